@@ -16,12 +16,21 @@
  */
 package com.offbynull.coroutines.antplugin;
 
+import com.offbynull.coroutines.instrumenter.CallGraph;
+import com.offbynull.coroutines.instrumenter.FrameStorageMode;
+import com.offbynull.coroutines.instrumenter.IncrementalState;
+import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
 import com.offbynull.coroutines.instrumenter.Instrumenter;
+import com.offbynull.coroutines.instrumenter.UnwindMode;
+import com.offbynull.coroutines.instrumenter.asm.ClassInformationRepository;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import org.apache.commons.io.FileUtils;
 import org.apache.tools.ant.BuildException;
@@ -55,6 +64,23 @@ public final class InstrumentTask extends Task {
     private File targetDirectory;
 
     private File jdkLibsDirectory;
+    
+    private String frameStorageMode;
+
+    private boolean loopPreemption;
+
+    private int outliningThreshold;
+
+    private boolean stateMachineLowering;
+    private String unwindMode;
+
+    private boolean callGraphAnalysis;
+
+    private File classInformationCacheDirectory;
+
+    private int parallelism;
+
+    private File incrementalDirectory;
 
     /**
      * Constructs a {@link InstrumentTask} object.
@@ -65,6 +91,10 @@ public final class InstrumentTask extends Task {
             jdkLibsDirectory = new File(jdkHome + "/lib");
         }
         classpath = "";
+        frameStorageMode = FrameStorageMode.METHOD_STATE.name();
+        unwindMode = UnwindMode.RETURN.name();
+        outliningThreshold = InstrumentationSettings.DEFAULT_OUTLINING_THRESHOLD;
+        parallelism = 1;
     }
 
     /**
@@ -99,6 +129,84 @@ public final class InstrumentTask extends Task {
         this.jdkLibsDirectory = jdkLibsDirectory;
     }
 
+    /**
+     * Sets how frames get saved when a coroutine suspends -- optional, defaults to {@code METHOD_STATE}.
+     * @param frameStorageMode name of a {@link FrameStorageMode} constant
+     */
+    public void setFrameStorageMode(String frameStorageMode) {
+        this.frameStorageMode = frameStorageMode;
+    }
+
+    /**
+     * Sets whether loops suspend on their own once a coroutine's preemption budget runs out -- optional, defaults to {@code false}.
+     * @param loopPreemption {@code true} to add preemption points to loops
+     */
+    public void setLoopPreemption(boolean loopPreemption) {
+        this.loopPreemption = loopPreemption;
+    }
+
+    /**
+     * Sets how large (in bytes of bytecode) an instrumented method can get before the code that saves its frames gets moved out in to
+     * shared helper methods -- optional, defaults to {@link InstrumentationSettings#DEFAULT_OUTLINING_THRESHOLD}.
+     * @param outliningThreshold outlining threshold
+     */
+    public void setOutliningThreshold(int outliningThreshold) {
+        this.outliningThreshold = outliningThreshold;
+    }
+
+    /**
+     * Sets whether coroutines that only ever suspend directly get lowered in to state machines that keep their frames in fields of the
+     * coroutine object -- optional, defaults to {@code false}. See {@link InstrumentationSettings#isStateMachineLowering()}.
+     * @param stateMachineLowering {@code true} to lower eligible coroutines in to state machines
+     */
+    public void setStateMachineLowering(boolean stateMachineLowering) {
+        this.stateMachineLowering = stateMachineLowering;
+    }
+
+    /**
+     * Sets how the call stack gets unwound when a coroutine suspends -- optional, defaults to {@code RETURN}. All classes that are part of
+     * the same coroutine must be instrumented with the same unwind mode.
+     * @param unwindMode name of a {@link UnwindMode} constant
+     */
+    public void setUnwindMode(String unwindMode) {
+        this.unwindMode = unwindMode;
+    }
+
+    /**
+     * Sets whether the class files in the source directory are instrumented as a batch, such that invocations that can never suspend are
+     * left as plain invocations -- optional, defaults to {@code false}. If instrumenting in place, an incremental directory must be set.
+     * @param callGraphAnalysis {@code true} to instrument class files as a batch
+     */
+    public void setCallGraphAnalysis(boolean callGraphAnalysis) {
+        this.callGraphAnalysis = callGraphAnalysis;
+    }
+
+    /**
+     * Sets the directory to cache information about classes in classpath JARs in -- optional, nothing gets cached if not set. Sharing this
+     * directory between builds means JARs that haven't changed don't need to be scanned again.
+     * @param classInformationCacheDirectory class information cache directory
+     */
+    public void setClassInformationCacheDirectory(File classInformationCacheDirectory) {
+        this.classInformationCacheDirectory = classInformationCacheDirectory;
+    }
+
+    /**
+     * Sets the number of classes to instrument at the same time -- optional, defaults to {@code 1}.
+     * @param parallelism number of threads to instrument with
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the directory to keep incremental instrumentation state in -- optional, everything gets instrumented if not set. If set, class
+     * files that haven't changed since the last time this task ran (and that don't depend on classes whose hierarchy changed) are skipped.
+     * @param incrementalDirectory incremental instrumentation state directory
+     */
+    public void setIncrementalDirectory(File incrementalDirectory) {
+        this.incrementalDirectory = incrementalDirectory;
+    }
+
     @Override
     public void execute() throws BuildException {
         // Check classpath
@@ -131,6 +239,49 @@ public final class InstrumentTask extends Task {
         if (!jdkLibsDirectory.isDirectory()) {
             throw new BuildException("JDK libs directory is not a directory: " + jdkLibsDirectory.getAbsolutePath());
         }
+        
+        // Check parallelism
+        if (parallelism < 1) {
+            throw new BuildException("Parallelism must be at least 1: " + parallelism);
+        }
+        
+        // Check outlining threshold
+        if (outliningThreshold < 0) {
+            throw new BuildException("Outlining threshold must not be negative: " + outliningThreshold);
+        }
+        
+        // Check call graph analysis -- when instrumenting in place, the originals that incremental instrumentation keeps around are needed
+        // to instrument classes from an earlier run again if the call graph changes
+        boolean inPlace = sourceDirectory.toPath().toAbsolutePath().normalize()
+                .equals(targetDirectory.toPath().toAbsolutePath().normalize());
+        if (callGraphAnalysis && incrementalDirectory == null && inPlace) {
+            throw new BuildException("Call graph analysis requires an incremental directory when instrumenting in place");
+        }
+        
+        // Check frame storage mode
+        if (frameStorageMode == null) {
+            throw new BuildException("Frame storage mode not set");
+        }
+        FrameStorageMode parsedFrameStorageMode;
+        try {
+            parsedFrameStorageMode = FrameStorageMode.valueOf(frameStorageMode.trim());
+        } catch (IllegalArgumentException iae) {
+            throw new BuildException("Frame storage mode not recognized: " + frameStorageMode, iae);
+        }
+        
+        // Check unwind mode
+        if (unwindMode == null) {
+            throw new BuildException("Unwind mode not set");
+        }
+        UnwindMode parsedUnwindMode;
+        try {
+            parsedUnwindMode = UnwindMode.valueOf(unwindMode.trim());
+        } catch (IllegalArgumentException iae) {
+            throw new BuildException("Unwind mode not recognized: " + unwindMode, iae);
+        }
+        
+        InstrumentationSettings settings = new InstrumentationSettings(parsedFrameStorageMode, loopPreemption, outliningThreshold,
+                stateMachineLowering, parsedUnwindMode);
 
         List<File> combinedClasspath;
         try {
@@ -142,35 +293,135 @@ public final class InstrumentTask extends Task {
                     .collect(Collectors.toList());
             log("Getting bootstrap classpath", Project.MSG_DEBUG);
             combinedClasspath.addAll(FileUtils.listFiles(jdkLibsDirectory, new String[]{"jar"}, true));
+            File moduleImage = new File(jdkLibsDirectory, "modules"); // JDK 9+ has classes in a module image instead of JARs
+            if (moduleImage.isFile()) {
+                combinedClasspath.add(moduleImage);
+            }
 
             log("Classpath for instrumentation is as follows: " + combinedClasspath, Project.MSG_INFO);
         } catch (Exception ex) {
             throw new BuildException("Unable to get compile classpath elements", ex);
         }
 
-        Instrumenter instrumenter;
+        List<String> relativePaths = FileUtils.listFiles(sourceDirectory, new String[]{"class"}, true).stream()
+                .map(x -> sourceDirectory.toPath().relativize(x.toPath()).toString().replace(File.separatorChar, '/'))
+                .collect(Collectors.toList());
+
+        IncrementalState incrementalState = null;
+        ClassInformationRepository classRepo = null;
         try {
-            log("Creating instrumenter...", Project.MSG_INFO);
-            instrumenter = new Instrumenter(combinedClasspath);
+            List<String> pathsToInstrument = relativePaths;
+            if (incrementalDirectory != null) {
+                incrementalState = IncrementalState.load(incrementalDirectory, sourceDirectory, targetDirectory, combinedClasspath,
+                        settings);
+                pathsToInstrument = incrementalState.findPathsToInstrument(relativePaths, callGraphAnalysis);
+                log(pathsToInstrument.size() + " of " + relativePaths.size() + " class files need to be instrumented", Project.MSG_INFO);
+            }
             
-            log("Processing " + sourceDirectory.getAbsolutePath() + " ... ", Project.MSG_INFO);
-            instrumentPath(instrumenter);
+            if (!pathsToInstrument.isEmpty()) {
+                log("Creating instrumenter...", Project.MSG_INFO);
+                if (classInformationCacheDirectory != null) {
+                    log("Using class information cache at " + classInformationCacheDirectory.getAbsolutePath(), Project.MSG_INFO);
+                    classRepo = ClassInformationRepository.create(combinedClasspath, classInformationCacheDirectory);
+                } else {
+                    classRepo = ClassInformationRepository.create(combinedClasspath);
+                }
+                Instrumenter instrumenter = new Instrumenter(classRepo, settings);
+                
+                CallGraph callGraph = null;
+                if (callGraphAnalysis) {
+                    callGraph = buildCallGraph(incrementalState, pathsToInstrument, settings);
+                }
+
+                log("Processing " + sourceDirectory.getAbsolutePath() + " ... ", Project.MSG_INFO);
+                instrumentPaths(instrumenter, callGraph, incrementalState, pathsToInstrument);
+            }
+        } catch (ExecutionException ee) {
+            throw new BuildException("Failed to instrument", ee.getCause());
         } catch (Exception ex) {
             throw new BuildException("Failed to instrument", ex);
+        } finally {
+            // Even if instrumentation failed, save what did get instrumented
+            if (incrementalState != null) {
+                try {
+                    incrementalState.save();
+                } catch (IOException ioe) {
+                    log("Unable to save incremental state: " + ioe, Project.MSG_WARN);
+                }
+            }
+            if (classRepo != null) {
+                try {
+                    classRepo.close();
+                } catch (IOException ioe) {
+                    log("Unable to close classpath: " + ioe, Project.MSG_WARN);
+                }
+            }
+        }
+    }
+
+    private CallGraph buildCallGraph(IncrementalState incrementalState, List<String> relativePaths, InstrumentationSettings settings)
+            throws IOException {
+        // If anything changed, incremental state hands back every path (see IncrementalState.findPathsToInstrument()), so these are all
+        // the classes in the batch
+        log("Building call graph of " + relativePaths.size() + " class files...", Project.MSG_INFO);
+        CallGraph.Builder callGraphBuilder = new CallGraph.Builder(settings);
+        for (String relativePath : relativePaths) {
+            callGraphBuilder.addClass(readInput(incrementalState, relativePath));
+        }
+        CallGraph callGraph = callGraphBuilder.build();
+        log(callGraph.getNonSuspendingMethodCount() + " methods proven to never suspend", Project.MSG_INFO);
+        return callGraph;
+    }
+
+    private void instrumentPaths(Instrumenter instrumenter, CallGraph callGraph, IncrementalState incrementalState,
+            List<String> relativePaths) throws IOException, InterruptedException, ExecutionException {
+        if (parallelism == 1) {
+            for (String relativePath : relativePaths) {
+                instrumentFile(instrumenter, callGraph, incrementalState, relativePath);
+            }
+            return;
+        }
+
+        // Each file is read, instrumented, and written by a single task -- only files currently being worked on are held in memory
+        List<Callable<Void>> tasks = relativePaths.stream()
+                .map(x -> (Callable<Void>) () -> {
+                    instrumentFile(instrumenter, callGraph, incrementalState, x);
+                    return null;
+                })
+                .collect(Collectors.toList());
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } finally {
+            pool.shutdownNow();
         }
     }
 
-    private void instrumentPath(Instrumenter instrumenter) throws IOException {
-        for (File inputFile : FileUtils.listFiles(sourceDirectory, new String[]{"class"}, true)) {
-            Path relativePath = sourceDirectory.toPath().relativize(inputFile.toPath());
-            Path outputFilePath = targetDirectory.toPath().resolve(relativePath);
-            File outputFile = outputFilePath.toFile();
+    private void instrumentFile(Instrumenter instrumenter, CallGraph callGraph, IncrementalState incrementalState, String relativePath)
+            throws IOException {
+        File inputFile = new File(sourceDirectory, relativePath);
+        File outputFile = new File(targetDirectory, relativePath);
 
-            log("Instrumenting " + inputFile, Project.MSG_INFO);
-            byte[] input = FileUtils.readFileToByteArray(inputFile);
-            byte[] output = instrumenter.instrument(input);
-            log("File size changed from " + input.length + " to " + output.length, Project.MSG_DEBUG);
+        log("Instrumenting " + inputFile, Project.MSG_INFO);
+        byte[] input = readInput(incrementalState, relativePath);
+        byte[] output = callGraph != null ? instrumenter.instrument(input, callGraph) : instrumenter.instrument(input);
+        log("File size changed from " + input.length + " to " + output.length, Project.MSG_DEBUG);
+        // Instrumenter hands back the input array when there's nothing to instrument -- if instrumenting in place, the class file is
+        // already what it should be, so don't bother rewriting it
+        if (output != input || !outputFile.equals(inputFile)) {
             FileUtils.writeByteArrayToFile(outputFile, output);
         }
+        if (incrementalState != null) {
+            incrementalState.record(relativePath, input, output);
+        }
+    }
+
+    private byte[] readInput(IncrementalState incrementalState, String relativePath) throws IOException {
+        if (incrementalState != null) {
+            return incrementalState.readInput(relativePath);
+        }
+        return FileUtils.readFileToByteArray(new File(sourceDirectory, relativePath));
     }
 }
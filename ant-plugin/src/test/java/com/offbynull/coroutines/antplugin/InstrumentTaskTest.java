@@ -66,6 +66,49 @@ public class InstrumentTaskTest {
         }
     }
     
+    @Test
+    public void mustInstrumentClassesInParallel() throws Exception {
+        byte[] inputContent = readZipFromResource("NormalInvokeTest.zip").get("NormalInvokeTest.class");
+        
+        File inputDir = null;
+        File outputDir = null;
+        try {
+            // create folders
+            inputDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            outputDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            
+            // write out same class multiple times
+            for (int i = 0; i < 20; i++) {
+                File inputClass = new File(inputDir, "dir" + i + "/NormalInvokeTest.class");
+                FileUtils.writeByteArrayToFile(inputClass, inputContent);
+            }
+            
+            // setup
+            fixture.setSourceDirectory(inputDir);
+            fixture.setTargetDirectory(outputDir);
+            fixture.setClasspath("");
+            fixture.setParallelism(4);
+            
+            // execute plugin
+            fixture.execute();
+            
+            // read back in and test
+            for (int i = 0; i < 20; i++) {
+                File outputClass = new File(outputDir, "dir" + i + "/NormalInvokeTest.class");
+                byte[] outputContent = FileUtils.readFileToByteArray(outputClass);
+                Assert.assertTrue(outputContent.length > inputContent.length);
+            }
+        } finally {
+            if (inputDir != null) {
+                FileUtils.deleteDirectory(inputDir);
+            }
+            
+            if (outputDir != null) {
+                FileUtils.deleteDirectory(outputDir);
+            }
+        }
+    }
+    
     private Map<String, byte[]> readZipFromResource(String path) throws IOException {
         ClassLoader cl = ClassLoader.getSystemClassLoader();
         URL url = cl.getResource(path);
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.benchmarks;
+
+import com.offbynull.coroutines.instrumenter.asm.ClassInformation;
+import com.offbynull.coroutines.instrumenter.asm.CompactClassInformationTable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures class information lookups in a map of {@link ClassInformation} objects (how classes are held when they aren't cached) vs a
+ * {@link CompactClassInformationTable} (how classes from cached JARs are held). Both are loaded up with every class in the JARs that this
+ * JVM was started with, including the JDK's JARs. Each operation is a single lookup of a random class that's known to be present.
+ * <p>
+ * Memory use isn't measured by JMH. Instead, {@link #setUp() } prints out how much the heap grew by when loading up the representation
+ * being benchmarked.
+ * @author Kasra Faghihi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ClassInformationLookupBenchmark {
+
+    // CHECKSTYLE:OFF -- JMH injects parameters in to these fields
+    /**
+     * {@code true} to look up classes in a {@link CompactClassInformationTable}, {@code false} to look them up in a map.
+     */
+    @Param({"false", "true"})
+    public boolean compact;
+    // CHECKSTYLE:ON
+
+    private Map<String, ClassInformation> map;
+    private CompactClassInformationTable table;
+    private String[] names;
+    private int nextName;
+
+    /**
+     * Reads in the classes on this JVM's classpath and loads them up in to the representation being benchmarked.
+     * @throws IOException if an IO error occurs
+     */
+    @Setup
+    public final void setUp() throws IOException {
+        // Heap is measured before reading and after the intermediate map has been let go of, so the result covers everything held on to
+        // by the representation (including the strings)
+        long usedBefore = usedHeap();
+        if (compact) {
+            table = CompactClassInformationTable.create(readClasspath());
+        } else {
+            map = new HashMap<>(readClasspath());
+        }
+        long usedAfter = usedHeap();
+        int size = compact ? table.size() : map.size();
+        System.out.println((compact ? "Table" : "Map") + " holding " + size + " classes uses approximately "
+                + (usedAfter - usedBefore) / 1024L + " KB of heap");
+        
+        names = (compact ? readClasspath() : map).keySet().toArray(new String[0]);
+        Collections.shuffle(Arrays.asList(names), new Random(0L));
+    }
+
+    /**
+     * Looks up a class.
+     * @return information for the class that was looked up
+     */
+    @Benchmark
+    public final ClassInformation lookup() {
+        String name = names[nextName];
+        nextName = (nextName + 1) % names.length;
+        return compact ? table.getInformation(name) : map.get(name);
+    }
+
+    private static Map<String, ClassInformation> readClasspath() throws IOException {
+        List<String> paths = new ArrayList<>();
+        String bootClasspath = System.getProperty("sun.boot.class.path"); // only on Java 8 and earlier
+        if (bootClasspath != null) {
+            paths.addAll(Arrays.asList(bootClasspath.split(File.pathSeparator)));
+        }
+        paths.addAll(Arrays.asList(System.getProperty("java.class.path").split(File.pathSeparator)));
+        
+        Map<String, ClassInformation> ret = new LinkedHashMap<>();
+        for (String path : paths) {
+            File file = new File(path);
+            if (!file.isFile()) {
+                continue;
+            }
+            
+            try (ZipFile zipFile = new ZipFile(file)) {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    String entryName = entry.getName();
+                    if (!entryName.endsWith(".class") || entry.isDirectory()) {
+                        continue;
+                    }
+                    
+                    try (InputStream is = zipFile.getInputStream(entry)) {
+                        ClassReader classReader = new ClassReader(is);
+                        ClassInformation classInformation = new ClassInformation(
+                                classReader.getSuperName(),
+                                Arrays.asList(classReader.getInterfaces()),
+                                (classReader.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+                        ret.putIfAbsent(entryName.substring(0, entryName.length() - ".class".length()), classInformation);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+    
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.benchmarks;
+
+import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
+import com.offbynull.coroutines.instrumenter.Instrumenter;
+import com.offbynull.coroutines.user.Coroutine;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Loads classes in the {@code com.offbynull.coroutines.benchmarks.fixtures} package through an {@link Instrumenter}. Fixture classes are
+ * always defined by this class loader (child-first), everything else is delegated to the parent class loader.
+ * @author Kasra Faghihi
+ */
+public final class FixtureClassLoader extends ClassLoader {
+
+    private static final String FIXTURES_PACKAGE_PREFIX = "com.offbynull.coroutines.benchmarks.fixtures.";
+
+    private final Instrumenter instrumenter;
+
+    /**
+     * Constructs a {@link FixtureClassLoader} object. The classpath given to the instrumenter is made up of the JARs in the running JVM's
+     * {@code lib} directory (or its module image on JDK 9+) along with the locations that the user module and the fixtures were loaded
+     * from.
+     * @param parent parent class loader (must be able to see the original fixture class files as resources)
+     * @param settings instrumentation settings
+     * @throws IOException if the instrumenter could not be created
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public FixtureClassLoader(ClassLoader parent, InstrumentationSettings settings) throws IOException {
+        super(parent);
+        Validate.notNull(parent);
+        Validate.notNull(settings);
+
+        File jdkLibsDirectory = new File(System.getProperty("java.home"), "lib");
+        List<File> classpath = new ArrayList<>();
+        classpath.addAll(FileUtils.listFiles(jdkLibsDirectory, new String[]{"jar"}, true));
+        File moduleImage = new File(jdkLibsDirectory, "modules"); // JDK 9+ has classes in a module image instead of JARs
+        if (moduleImage.isFile()) {
+            classpath.add(moduleImage);
+        }
+        classpath.add(getCodeSourceLocation(Coroutine.class));
+        classpath.add(getCodeSourceLocation(FixtureClassLoader.class));
+        
+        instrumenter = new Instrumenter(classpath, settings);
+    }
+
+    /**
+     * Loads a fixture class and instantiates it as a {@link Coroutine}.
+     * @param name fully qualified name of the fixture class
+     * @param ctorArgTypes constructor argument types
+     * @param ctorArgs constructor arguments
+     * @return new instance of the instrumented fixture
+     * @throws ReflectiveOperationException if the fixture could not be loaded or instantiated
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code name} isn't in the fixtures package
+     */
+    public Coroutine newCoroutine(String name, Class<?>[] ctorArgTypes, Object[] ctorArgs) throws ReflectiveOperationException {
+        Validate.notNull(name);
+        Validate.notNull(ctorArgTypes);
+        Validate.notNull(ctorArgs);
+        Validate.isTrue(name.startsWith(FIXTURES_PACKAGE_PREFIX));
+        
+        Class<?> cls = loadClass(name);
+        return (Coroutine) cls.getConstructor(ctorArgTypes).newInstance(ctorArgs);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!name.startsWith(FIXTURES_PACKAGE_PREFIX)) {
+            return super.loadClass(name, resolve);
+        }
+
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> cls = findLoadedClass(name);
+            if (cls == null) {
+                byte[] input;
+                try (InputStream is = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                    if (is == null) {
+                        throw new ClassNotFoundException(name);
+                    }
+                    input = IOUtils.toByteArray(is);
+                } catch (IOException ioe) {
+                    throw new ClassNotFoundException(name, ioe);
+                }
+                
+                byte[] output = instrumenter.instrument(input);
+                cls = defineClass(name, output, 0, output.length);
+            }
+            
+            if (resolve) {
+                resolveClass(cls);
+            }
+            return cls;
+        }
+    }
+    
+    private static File getCodeSourceLocation(Class<?> cls) {
+        try {
+            return new File(cls.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException use) {
+            throw new IllegalStateException(use);
+        }
+    }
+}
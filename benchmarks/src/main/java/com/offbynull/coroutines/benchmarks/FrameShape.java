@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.benchmarks;
+
+/**
+ * Shape of each frame in the call chain of a benchmarked coroutine. Each shape stresses a different part of the state that gets saved and
+ * restored when a coroutine suspends and resumes.
+ * @author Kasra Faghihi
+ */
+public enum FrameShape {
+    /**
+     * Frame only holds what's needed to recurse (this pointer, continuation, remaining depth).
+     */
+    PLAIN,
+    /**
+     * Frame holds 8 live {@code int} locals.
+     */
+    INT_LOCALS,
+    /**
+     * Frame holds 4 live {@code long} locals and 4 live {@code double} locals.
+     */
+    WIDE_LOCALS,
+    /**
+     * Frame holds 8 live object locals.
+     */
+    OBJECT_LOCALS,
+    /**
+     * Frame has 7 items on the operand stack at the point where it calls in to the next frame.
+     */
+    DEEP_OPERAND_STACK,
+    /**
+     * Frame calls in to the next frame from within a synchronized block.
+     */
+    SYNCHRONIZED,
+    /**
+     * Frame calls in to the next frame from within a try/catch block.
+     */
+    TRY_CATCH
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.benchmarks;
+
+import com.offbynull.coroutines.instrumenter.FrameStorageMode;
+import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
+import com.offbynull.coroutines.user.Coroutine;
+import com.offbynull.coroutines.user.CoroutineRunner;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures suspend/resume cycles of instrumented coroutines. Each operation is a single call to {@link CoroutineRunner#execute() }.
+ * <p>
+ * Benchmarks are parameterized by call depth, {@link FrameShape} (locals count and type, operand stack height, synchronized blocks,
+ * try/catch-wrapped invocations) and {@link FrameStorageMode}. Run with {@code -prof gc} to get the bytes allocated per cycle.
+ * @author Kasra Faghihi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class SuspendResumeBenchmark {
+
+    private static final String FIXTURE_CLASS_NAME = "com.offbynull.coroutines.benchmarks.fixtures.FrameShapeCoroutine";
+
+    // CHECKSTYLE:OFF -- JMH injects parameters in to these fields
+    /**
+     * Number of frames between the coroutine's entry point and the frame that suspends.
+     */
+    @Param({"1", "8", "32"})
+    public int depth;
+
+    /**
+     * Shape of each of the frames.
+     */
+    @Param
+    public FrameShape shape;
+
+    /**
+     * How the instrumented fixture saves its frames.
+     */
+    @Param
+    public FrameStorageMode frameStorageMode;
+    // CHECKSTYLE:ON
+
+    private CoroutineRunner resuspendingRunner;
+    private CoroutineRunner unwindingRunner;
+
+    /**
+     * Instruments the fixture and primes both runners such that they're suspended at the leaf.
+     * @throws Exception if the fixture could not be instrumented or loaded
+     */
+    @Setup
+    public final void setUp() throws Exception {
+        FixtureClassLoader classLoader = new FixtureClassLoader(
+                SuspendResumeBenchmark.class.getClassLoader(),
+                new InstrumentationSettings(frameStorageMode));
+        
+        resuspendingRunner = new CoroutineRunner(newFixture(classLoader, true));
+        unwindingRunner = new CoroutineRunner(newFixture(classLoader, false));
+        
+        resuspendingRunner.execute();
+        unwindingRunner.execute();
+    }
+
+    /**
+     * Resumes the full call chain, then suspends it again at the leaf without any frame returning.
+     * @return result of {@link CoroutineRunner#execute() }
+     */
+    @Benchmark
+    public final boolean resumeThenResuspend() {
+        return resuspendingRunner.execute();
+    }
+
+    /**
+     * Resumes the full call chain, unwinds it back to the coroutine's entry point, then calls back down and suspends at the leaf.
+     * @return result of {@link CoroutineRunner#execute() }
+     */
+    @Benchmark
+    public final boolean resumeUnwindThenSuspend() {
+        return unwindingRunner.execute();
+    }
+
+    private Coroutine newFixture(FixtureClassLoader classLoader, boolean resuspendAtLeaf) throws ReflectiveOperationException {
+        return classLoader.newCoroutine(
+                FIXTURE_CLASS_NAME,
+                new Class<?>[] {int.class, FrameShape.class, boolean.class},
+                new Object[] {depth, shape, resuspendAtLeaf});
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.benchmarks;
+
+import com.offbynull.coroutines.instrumenter.FrameStorageMode;
+import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
+import com.offbynull.coroutines.instrumenter.UnwindMode;
+import com.offbynull.coroutines.user.CoroutineRunner;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link UnwindMode}s at different suspend frequencies. Each operation is a single call to
+ * {@link CoroutineRunner#execute() }, during which the coroutine calls down a chain of instrumented methods {@link #callsPerSuspend}
+ * times before suspending once.
+ * <p>
+ * Unwinding by returning pays for a mode check after every invocation that returns, while unwinding by throwing pays for an exception
+ * every time the coroutine suspends. The fewer calls there are per suspend, the more the latter costs relative to the former.
+ * @author Kasra Faghihi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class UnwindModeBenchmark {
+
+    private static final String FIXTURE_CLASS_NAME = "com.offbynull.coroutines.benchmarks.fixtures.NormalCallCoroutine";
+
+    // CHECKSTYLE:OFF -- JMH injects parameters in to these fields
+    /**
+     * Number of frames between the coroutine's entry point and the leaf.
+     */
+    @Param({"1", "8", "32"})
+    public int depth;
+
+    /**
+     * Number of times the coroutine calls down to the leaf per operation (per suspend).
+     */
+    @Param({"1", "10", "100", "1000"})
+    public int callsPerSuspend;
+
+    /**
+     * How the instrumented fixture unwinds its call stack when it suspends.
+     */
+    @Param
+    public UnwindMode unwindMode;
+    // CHECKSTYLE:ON
+
+    private CoroutineRunner runner;
+
+    /**
+     * Instruments the fixture and primes the runner such that it's suspended.
+     * @throws Exception if the fixture could not be instrumented or loaded
+     */
+    @Setup
+    public final void setUp() throws Exception {
+        FixtureClassLoader classLoader = new FixtureClassLoader(
+                UnwindModeBenchmark.class.getClassLoader(),
+                new InstrumentationSettings(FrameStorageMode.METHOD_STATE, false, InstrumentationSettings.DEFAULT_OUTLINING_THRESHOLD,
+                        false, unwindMode));
+        
+        runner = new CoroutineRunner(classLoader.newCoroutine(
+                FIXTURE_CLASS_NAME,
+                new Class<?>[] {int.class, int.class},
+                new Object[] {depth, callsPerSuspend}));
+        
+        runner.execute();
+    }
+
+    /**
+     * Resumes the coroutine, calls down to the leaf {@link #callsPerSuspend} times, then suspends.
+     * @return result of {@link CoroutineRunner#execute() }
+     */
+    @Benchmark
+    public final boolean callThenSuspend() {
+        return runner.execute();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.benchmarks.fixtures;
+
+import com.offbynull.coroutines.benchmarks.FrameShape;
+import com.offbynull.coroutines.user.Continuation;
+import com.offbynull.coroutines.user.Coroutine;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Coroutine that recurses down a fixed number of frames of a specific {@link FrameShape} and suspends at the bottom.
+ * <p>
+ * If {@code resuspendAtLeaf} is {@code true}, the leaf keeps suspending forever. Every cycle after the first resumes the entire call chain
+ * and immediately suspends it again. Otherwise, the leaf returns after suspending, meaning that every cycle resumes the call chain, unwinds
+ * it back to {@link #run(com.offbynull.coroutines.user.Continuation) } and then recurses back down to suspend again.
+ * @author Kasra Faghihi
+ */
+public final class FrameShapeCoroutine implements Coroutine {
+    private final int depth;
+    private final FrameShape shape;
+    private final boolean resuspendAtLeaf;
+    private final Object lock = new Object();
+    private long sink;
+
+    /**
+     * Constructs a {@link FrameShapeCoroutine} object.
+     * @param depth number of frames (of type {@code shape}) between {@link #run(com.offbynull.coroutines.user.Continuation) } and the leaf
+     * @param shape frame shape
+     * @param resuspendAtLeaf {@code true} if the leaf should keep suspending forever, {@code false} if it should return after suspending
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code depth < 0}
+     */
+    public FrameShapeCoroutine(int depth, FrameShape shape, boolean resuspendAtLeaf) {
+        Validate.notNull(shape);
+        Validate.isTrue(depth >= 0);
+        this.depth = depth;
+        this.shape = shape;
+        this.resuspendAtLeaf = resuspendAtLeaf;
+    }
+
+    @Override
+    public void run(Continuation c) {
+        while (true) {
+            if (shape == FrameShape.PLAIN) {
+                plain(c, depth);
+            } else if (shape == FrameShape.INT_LOCALS) {
+                intLocals(c, depth);
+            } else if (shape == FrameShape.WIDE_LOCALS) {
+                wideLocals(c, depth);
+            } else if (shape == FrameShape.OBJECT_LOCALS) {
+                objectLocals(c, depth);
+            } else if (shape == FrameShape.DEEP_OPERAND_STACK) {
+                sink += deepOperandStack(c, depth);
+            } else if (shape == FrameShape.SYNCHRONIZED) {
+                synchronizedBlock(c, depth);
+            } else if (shape == FrameShape.TRY_CATCH) {
+                tryCatchBlock(c, depth);
+            } else {
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    private void leaf(Continuation c) {
+        do {
+            c.suspend();
+        } while (resuspendAtLeaf);
+    }
+
+    private void plain(Continuation c, int remaining) {
+        if (remaining == 0) {
+            leaf(c);
+        } else {
+            plain(c, remaining - 1);
+        }
+    }
+
+    private void intLocals(Continuation c, int remaining) {
+        int a = remaining;
+        int b = a + 1;
+        int d = a + 2;
+        int e = a + 3;
+        int f = a + 4;
+        int g = a + 5;
+        int h = a + 6;
+        int i = a + 7;
+        if (remaining == 0) {
+            leaf(c);
+        } else {
+            intLocals(c, remaining - 1);
+        }
+        sink += a + b + d + e + f + g + h + i;
+    }
+
+    private void wideLocals(Continuation c, int remaining) {
+        long a = remaining;
+        long b = a + 1L;
+        long d = a + 2L;
+        long e = a + 3L;
+        double f = remaining;
+        double g = f + 1.0;
+        double h = f + 2.0;
+        double i = f + 3.0;
+        if (remaining == 0) {
+            leaf(c);
+        } else {
+            wideLocals(c, remaining - 1);
+        }
+        sink += a + b + d + e + (long) (f + g + h + i);
+    }
+
+    private void objectLocals(Continuation c, int remaining) {
+        Object a = this;
+        Object b = lock;
+        Object d = shape;
+        Object e = c;
+        Object f = a;
+        Object g = b;
+        Object h = d;
+        Object i = e;
+        if (remaining == 0) {
+            leaf(c);
+        } else {
+            objectLocals(c, remaining - 1);
+        }
+        if (a == f && b == g && d == h && e == i) {
+            sink++;
+        }
+    }
+
+    private int deepOperandStack(Continuation c, int remaining) {
+        if (remaining == 0) {
+            leaf(c);
+            return 0;
+        }
+        return sum(remaining, remaining, remaining, remaining, remaining, remaining, remaining, deepOperandStack(c, remaining - 1));
+    }
+
+    private static int sum(int a, int b, int c, int d, int e, int f, int g, int h) {
+        return a + b + c + d + e + f + g + h;
+    }
+
+    private void synchronizedBlock(Continuation c, int remaining) {
+        synchronized (lock) {
+            if (remaining == 0) {
+                leaf(c);
+            } else {
+                synchronizedBlock(c, remaining - 1);
+            }
+        }
+    }
+
+    private void tryCatchBlock(Continuation c, int remaining) {
+        try {
+            if (remaining == 0) {
+                leaf(c);
+            } else {
+                tryCatchBlock(c, remaining - 1);
+            }
+        } catch (IllegalStateException ise) {
+            sink++;
+        }
+    }
+}
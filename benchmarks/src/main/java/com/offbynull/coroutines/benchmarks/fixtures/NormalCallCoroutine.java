@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.benchmarks.fixtures;
+
+import com.offbynull.coroutines.user.Continuation;
+import com.offbynull.coroutines.user.Coroutine;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Coroutine that repeatedly calls down a fixed number of frames without suspending, and suspends once all of those calls have returned.
+ * Every call made between suspensions is a fresh invoke (the continuation is in normal mode), so this mostly measures the cost that
+ * instrumentation adds to methods that don't end up suspending.
+ * @author Kasra Faghihi
+ */
+public final class NormalCallCoroutine implements Coroutine {
+    private final int depth;
+    private final int callsPerSuspend;
+    private long sink;
+
+    /**
+     * Constructs a {@link NormalCallCoroutine} object.
+     * @param depth number of frames between {@link #run(com.offbynull.coroutines.user.Continuation) } and the leaf
+     * @param callsPerSuspend number of times to call down to the leaf before suspending
+     * @throws IllegalArgumentException if {@code depth < 0 || callsPerSuspend < 1}
+     */
+    public NormalCallCoroutine(int depth, int callsPerSuspend) {
+        Validate.isTrue(depth >= 0);
+        Validate.isTrue(callsPerSuspend >= 1);
+        this.depth = depth;
+        this.callsPerSuspend = callsPerSuspend;
+    }
+
+    @Override
+    public void run(Continuation c) {
+        while (true) {
+            for (int i = 0; i < callsPerSuspend; i++) {
+                sink += call(c, depth);
+            }
+            c.suspend();
+        }
+    }
+
+    private int call(Continuation c, int remaining) {
+        if (remaining == 0) {
+            return 1; // leaf never reaches a continuation point
+        }
+        return call(c, remaining - 1) + 1;
+    }
+}
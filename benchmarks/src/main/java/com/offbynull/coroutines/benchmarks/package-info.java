@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+/**
+ * JMH benchmarks for the coroutines project. Benchmark fixtures are instrumented in-process by the instrumenter when each benchmark is set
+ * up, so measurements always reflect the current instrumenter.
+ * <p>
+ * Build with {@code mvn package} and run with {@code java -jar benchmarks/target/benchmarks-<version>-shaded.jar}. Add {@code -prof gc}
+ * to also report allocation per operation ({@code gc.alloc.rate.norm}).
+ * 
+ * @author Kasra Faghihi
+ */
+package com.offbynull.coroutines.benchmarks;
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.constantPoolContains;
+import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findBackwardJumps;
+import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findInvocationsOf;
+import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findInvocationsWithParameter;
+import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findMethodsWithParameter;
+import com.offbynull.coroutines.instrumenter.asm.SimpleClassNode;
+import com.offbynull.coroutines.user.Continuation;
+import com.offbynull.coroutines.user.Instrumented;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.reflect.MethodUtils;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Conservative call graph of a batch of classes that are being instrumented together. Invocations that this call graph proves can never
+ * suspend are left as plain invocations instead of being turned in to continuation points (see
+ * {@link Instrumenter#instrument(byte[], CallGraph) }). Many methods take in a {@link Continuation} only to pass it along to code that
+ * never actually suspends.
+ * <p>
+ * A method is treated as possibly suspending if it calls {@link Continuation#suspend() }, if it has loops while loop preemption is on, or
+ * if it passes a {@link Continuation} to a method that possibly suspends. An invocation that can't be tied to one specific method in the
+ * batch is treated as possibly suspending. That includes invocations of interface methods, invocations of virtual methods that can be
+ * overridden, invocations of methods in classes outside of the batch, and invocations of methods in classes that have already been
+ * instrumented.
+ * <p>
+ * The result is only valid if every class in the batch gets instrumented using it. A class instrumented without it (or with a call graph
+ * for a different batch) may have left out continuation points for methods that have since changed to suspend.
+ * <p>
+ * Use {@link Builder} to create instances. This class is immutable.
+ * @author Kasra Faghihi
+ */
+public final class CallGraph {
+
+    private static final Type INSTRUMENTED_CLASS_TYPE = Type.getType(Instrumented.class);
+    private static final Type CONTINUATION_CLASS_TYPE = Type.getType(Continuation.class);
+    private static final Method CONTINUATION_SUSPEND_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "suspend");
+    
+    private final boolean loopPreemption;
+    private final Map<String, ClassSummary> classes; // keyed by internal name
+    private final int nonSuspendingMethodCount;
+
+    private CallGraph(boolean loopPreemption, Map<String, ClassSummary> classes) {
+        this.loopPreemption = loopPreemption;
+        this.classes = classes;
+        this.nonSuspendingMethodCount = (int) classes.values().stream()
+                .flatMap(x -> x.methods.values().stream())
+                .filter(x -> !x.suspending)
+                .count();
+    }
+
+    /**
+     * Get the number of methods in the batch that take in a {@link Continuation} but were proven to never suspend.
+     * @return number of methods proven to never suspend
+     */
+    public int getNonSuspendingMethodCount() {
+        return nonSuspendingMethodCount;
+    }
+
+    boolean isLoopPreemption() {
+        return loopPreemption;
+    }
+
+    // Returns true only if the method being invoked is known and is proven to never suspend
+    boolean isNonSuspending(MethodInsnNode methodInsnNode) {
+        Validate.notNull(methodInsnNode);
+        MethodSummary target = resolve(classes, methodInsnNode.getOpcode(), methodInsnNode.owner, methodInsnNode.name, methodInsnNode.desc);
+        return target != null && !target.suspending;
+    }
+    
+    // Returns null if the method being invoked can't be tied down to a single method in the batch
+    private static MethodSummary resolve(Map<String, ClassSummary> classes, int opcode, String owner, String name, String desc) {
+        if (opcode == Opcodes.INVOKEINTERFACE || "<init>".equals(name)) {
+            return null;
+        }
+        
+        // Walk up the hierarchy looking for the method being invoked -- static/virtual methods are inherited
+        String key = name + desc;
+        ClassSummary ownerClass = classes.get(owner);
+        ClassSummary currentClass = ownerClass;
+        MethodSummary method = null;
+        while (method == null) {
+            if (currentClass == null || currentClass.opaque) {
+                return null;
+            }
+            method = currentClass.methods.get(key);
+            if (method == null) {
+                currentClass = currentClass.superName == null ? null : classes.get(currentClass.superName);
+            }
+        }
+        
+        // Static and special invocations always go to the method that was found. Virtual invocations only do if the method can't be
+        // overridden (private or final method) or if the class it's invoked on can't be extended.
+        if (opcode == Opcodes.INVOKEVIRTUAL
+                && (method.access & (Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL)) == 0
+                && (ownerClass.access & Opcodes.ACC_FINAL) == 0) {
+            return null;
+        }
+        
+        return method;
+    }
+
+    /**
+     * Builds a {@link CallGraph}. Add every class in the batch being instrumented with {@link #addClass(byte[]) }, then call
+     * {@link #build() }. Only a summary of each class is held on to, not the class itself.
+     * <p>
+     * This class is not thread-safe.
+     */
+    public static final class Builder {
+        private final boolean loopPreemption;
+        private Map<String, ClassSummary> classes;
+
+        /**
+         * Constructs a {@link Builder} object.
+         * @param settings settings that the classes are going to be instrumented with (must match the settings of the
+         * {@link Instrumenter} that the resulting call graph gets passed in to)
+         * @throws NullPointerException if any argument is {@code null}
+         */
+        public Builder(InstrumentationSettings settings) {
+            Validate.notNull(settings);
+            this.loopPreemption = settings.isLoopPreemption();
+            this.classes = new HashMap<>();
+        }
+
+        /**
+         * Adds a class to the batch.
+         * @param classData class file contents
+         * @throws NullPointerException if any argument is {@code null}
+         * @throws IllegalArgumentException if {@code classData} isn't a class file
+         * @throws IllegalStateException if {@link #build() } was already called
+         */
+        public void addClass(byte[] classData) {
+            Validate.notNull(classData);
+            Validate.validState(classes != null, "Already built");
+            
+            ClassReader cr = new ClassReader(classData);
+            String name = cr.getClassName();
+            
+            // The same class showing up more than once (e.g. versioned copies in a multi-release JAR) means that there's no way of
+            // knowing which copy ends up getting invoked
+            if (classes.containsKey(name)) {
+                classes.put(name, new ClassSummary(null, 0, true, Collections.emptyMap()));
+                return;
+            }
+            
+            // Classes that don't reference Continuation can't declare a method that takes one in, but a method that does may be inherited
+            // through them
+            if (!constantPoolContains(cr, CONTINUATION_CLASS_TYPE.getDescriptor())) {
+                classes.put(name, new ClassSummary(cr.getSuperName(), cr.getAccess(), false, Collections.emptyMap()));
+                return;
+            }
+            
+            ClassNode classNode = new SimpleClassNode(); // JSR blocks get inlined, same as they do when instrumenting
+            cr.accept(classNode, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            
+            // Interfaces don't get instrumented, and classes that have already been instrumented can't be looked in to (the original
+            // invocations have been buried in instrumentation logic)
+            boolean opaque = (classNode.access & Opcodes.ACC_INTERFACE) == Opcodes.ACC_INTERFACE
+                    || classNode.interfaces.contains(INSTRUMENTED_CLASS_TYPE.getInternalName());
+            
+            Map<String, MethodSummary> methods = new HashMap<>();
+            if (!opaque) {
+                for (MethodNode methodNode : findMethodsWithParameter(classNode.methods, CONTINUATION_CLASS_TYPE)) {
+                    methods.put(methodNode.name + methodNode.desc, summarize(methodNode));
+                }
+            }
+            
+            classes.put(name, new ClassSummary(classNode.superName, classNode.access, opaque, methods));
+        }
+
+        private MethodSummary summarize(MethodNode methodNode) {
+            boolean suspending = (methodNode.access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0
+                    || !findInvocationsOf(methodNode.instructions, CONTINUATION_SUSPEND_METHOD).isEmpty()
+                    || (loopPreemption && !findBackwardJumps(methodNode.instructions).isEmpty()); // loops get suspend() calls added
+            
+            List<Invocation> invocations = new ArrayList<>();
+            for (AbstractInsnNode insnNode : findInvocationsWithParameter(methodNode.instructions, CONTINUATION_CLASS_TYPE)) {
+                if (insnNode instanceof MethodInsnNode) {
+                    MethodInsnNode methodInsnNode = (MethodInsnNode) insnNode;
+                    invocations.add(new Invocation(methodInsnNode.getOpcode(), methodInsnNode.owner, methodInsnNode.name,
+                            methodInsnNode.desc));
+                } else {
+                    suspending = true; // invokedynamic, no way of knowing what ends up getting invoked
+                }
+            }
+            
+            return new MethodSummary(methodNode.access, suspending, invocations);
+        }
+
+        /**
+         * Builds the call graph. Once called, this builder can't be used anymore.
+         * @return call graph of the classes added
+         * @throws IllegalStateException if this method was already called
+         */
+        public CallGraph build() {
+            Validate.validState(classes != null, "Already built");
+            
+            // Methods already known to possibly suspend are the starting point. Anything that invokes a method that possibly suspends (or
+            // invokes something that can't be resolved) possibly suspends as well, so work backwards through the methods that invoke them.
+            // Methods that never get reached this way can't suspend, even if they're recursive.
+            Map<MethodSummary, List<MethodSummary>> callers = new IdentityHashMap<>();
+            Deque<MethodSummary> suspendingMethods = new ArrayDeque<>();
+            for (ClassSummary classSummary : classes.values()) {
+                for (MethodSummary method : classSummary.methods.values()) {
+                    for (Invocation invocation : method.invocations) {
+                        MethodSummary target = resolve(classes, invocation.opcode, invocation.owner, invocation.name, invocation.desc);
+                        if (target == null) {
+                            method.suspending = true;
+                        } else {
+                            callers.computeIfAbsent(target, x -> new ArrayList<>()).add(method);
+                        }
+                    }
+                    method.invocations = null; // not needed once resolved
+                    
+                    if (method.suspending) {
+                        suspendingMethods.add(method);
+                    }
+                }
+            }
+            
+            while (!suspendingMethods.isEmpty()) {
+                MethodSummary method = suspendingMethods.removeFirst();
+                for (MethodSummary caller : callers.getOrDefault(method, Collections.emptyList())) {
+                    if (!caller.suspending) {
+                        caller.suspending = true;
+                        suspendingMethods.addLast(caller);
+                    }
+                }
+            }
+            
+            CallGraph ret = new CallGraph(loopPreemption, classes);
+            classes = null;
+            return ret;
+        }
+    }
+    
+    private static final class ClassSummary {
+        private final String superName; // null if java/lang/Object
+        private final int access;
+        private final boolean opaque; // if true, nothing invoked through this class can be resolved
+        private final Map<String, MethodSummary> methods; // only methods that take in a Continuation, keyed by name + desc
+
+        ClassSummary(String superName, int access, boolean opaque, Map<String, MethodSummary> methods) {
+            this.superName = superName;
+            this.access = access;
+            this.opaque = opaque;
+            this.methods = methods;
+        }
+    }
+    
+    private static final class MethodSummary {
+        private final int access;
+        private boolean suspending;
+        private List<Invocation> invocations; // invocations that pass in a Continuation, null once the call graph is built
+
+        MethodSummary(int access, boolean suspending, List<Invocation> invocations) {
+            this.access = access;
+            this.suspending = suspending;
+            this.invocations = invocations;
+        }
+    }
+    
+    private static final class Invocation {
+        private final int opcode;
+        private final String owner;
+        private final String name;
+        private final String desc;
+
+        Invocation(int opcode, String owner, String name, String desc) {
+            this.opcode = opcode;
+            this.owner = owner;
+            this.name = name;
+            this.desc = desc;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import java.util.BitSet;
+import java.util.Map;
+import org.apache.commons.lang3.Validate;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+// Everything about a single continuation point that a ContinuationPointGenerator needs to generate its instructions. The things that are
+// the same for every continuation point in a method (variables, monitor instructions, settings, ...) are passed to the generator
+// separately.
+final class ContinuationPoint {
+
+    private final int id;
+    private final AbstractInsnNode invokeInsnNode;
+    private final Integer lineNumber;
+    private final Frame<BasicValue> frame;
+    private final BitSet liveLocals;
+    private final Map<Integer, Object> constantLocals;
+
+    // invokeLineNumberNode is null if there's no line number for the invocation, frame has rematerialized locals masked out and
+    // constantLocals are the constants to put back in to them (see FlowInstrumentationGenerator)
+    ContinuationPoint(int id, AbstractInsnNode invokeInsnNode, LineNumberNode invokeLineNumberNode, Frame<BasicValue> frame,
+            BitSet liveLocals, Map<Integer, Object> constantLocals) {
+        Validate.isTrue(id >= 0);
+        Validate.notNull(invokeInsnNode);
+        Validate.notNull(frame);
+        Validate.notNull(liveLocals);
+        Validate.notNull(constantLocals);
+
+        this.id = id;
+        this.invokeInsnNode = invokeInsnNode;
+        this.lineNumber = invokeLineNumberNode != null ? invokeLineNumberNode.line : null;
+        this.frame = frame;
+        this.liveLocals = liveLocals;
+        this.constantLocals = constantLocals;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    AbstractInsnNode getInvokeInsnNode() {
+        return invokeInsnNode;
+    }
+
+    // null if there's no line number for the invocation
+    Integer getLineNumber() {
+        return lineNumber;
+    }
+
+    Frame<BasicValue> getFrame() {
+        return frame;
+    }
+
+    BitSet getLiveLocals() {
+        return liveLocals;
+    }
+
+    Map<Integer, Object> getConstantLocals() {
+        return constantLocals;
+    }
+}
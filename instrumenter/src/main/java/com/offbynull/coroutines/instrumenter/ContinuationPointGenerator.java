@@ -16,17 +16,52 @@
  */
 package com.offbynull.coroutines.instrumenter;
 
+import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.guardUnwind;
+import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.loadConstantLocals;
+import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.loadLocalVariableTableFromSlots;
+import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.loadOperandStackFromSlots;
+import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.saveLocalVariableTableToSlots;
+import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.saveOperandStackToSlots;
+import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.throwUnwindSignal;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.call;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.cloneInsnList;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.cloneInvokeNode;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.construct;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.countSavedLocals;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.empty;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.ifIntegerNotZero;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.ifIntegersEqual;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadIntConst;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadLocalVariableTable;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadOperandStackPrefix;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadOperandStackSuffix;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadVar;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.merge;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.returnDummy;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.saveLocalVariableTable;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.saveOperandStack;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.saveVar;
+import com.offbynull.coroutines.instrumenter.asm.VariableTable;
+import com.offbynull.coroutines.instrumenter.asm.VariableTable.Variable;
 import com.offbynull.coroutines.user.Continuation;
 import com.offbynull.coroutines.user.LockState;
 import com.offbynull.coroutines.user.MethodState;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.reflect.ConstructorUtils;
 import org.apache.commons.lang3.reflect.MethodUtils;
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
-import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
 import org.objectweb.asm.tree.analysis.BasicValue;
 import org.objectweb.asm.tree.analysis.Frame;
 
@@ -36,37 +71,62 @@ abstract class ContinuationPointGenerator {
             = MethodUtils.getAccessibleMethod(Continuation.class, "getMode");
     protected static final Method CONTINUATION_SETMODE_METHOD
             = MethodUtils.getAccessibleMethod(Continuation.class, "setMode", Integer.TYPE);
+    protected static final Method CONTINUATION_GETPENDINGSIZE_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "getPendingSize");
     protected static final Method CONTINUATION_CLEAREXCESSPENDING_METHOD
             = MethodUtils.getAccessibleMethod(Continuation.class, "clearExcessPending", Integer.TYPE);
     protected static final Method CONTINUATION_ADDPENDING_METHOD
             = MethodUtils.getAccessibleMethod(Continuation.class, "addPending", MethodState.class);
+    protected static final Method METHODSTATE_GETLOCALTABLE_METHOD
+            = MethodUtils.getAccessibleMethod(MethodState.class, "getLocalTable");
+    protected static final Method METHODSTATE_GETSTACK_METHOD
+            = MethodUtils.getAccessibleMethod(MethodState.class, "getStack");
     protected static final Constructor<MethodState> METHODSTATE_INIT_METHOD
             = ConstructorUtils.getAccessibleConstructor(MethodState.class, Integer.TYPE, Object[].class, Object[].class, LockState.class);
+    protected static final Method CONTINUATION_ADDPENDINGSLOTS_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "addPendingSlots", Integer.TYPE, LockState.class, Integer.TYPE);
+    protected static final Method CONTINUATION_SELECTSLOTS_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "selectSlots", Integer.TYPE);
     
     private final int id;
     private final AbstractInsnNode invokeInsnNode;
     private final Integer lineNumber;
     private final Frame<BasicValue> frame;
+    private final BitSet liveLocals;
+    private final Map<Integer, Object> constantLocals;
     private final Type returnType;
     private final FlowInstrumentationVariables flowInstrumentationVariables;
     private final MonitorInstrumentationInstructions monitorInstrumentationInstructions;
+    private final InstrumentationSettings settings;
+    private final FrameSaveHelpers frameSaveHelpers;
+    private final LabelNode unwindHandlerLabelNode;
 
-    ContinuationPointGenerator(int id, AbstractInsnNode invokeInsnNode, LineNumberNode invokeLineNumberNode, Frame<BasicValue> frame,
+    // frameSaveHelpers is null if the frame should be saved inline (frames too large to be passed in to a helper get saved inline either
+    // way), unwindHandlerLabelNode is null if the method doesn't have an unwind handler (see FlowInstrumentationGenerator)
+    ContinuationPointGenerator(ContinuationPoint continuationPoint,
             Type returnType,
             FlowInstrumentationVariables flowInstrumentationVariables,
-            MonitorInstrumentationInstructions monitorInstrumentationInstructions) {
-        Validate.notNull(invokeInsnNode);
-        Validate.notNull(frame);
+            MonitorInstrumentationInstructions monitorInstrumentationInstructions,
+            InstrumentationSettings settings,
+            FrameSaveHelpers frameSaveHelpers,
+            LabelNode unwindHandlerLabelNode) {
+        Validate.notNull(continuationPoint);
         Validate.notNull(flowInstrumentationVariables);
         Validate.notNull(monitorInstrumentationInstructions);
+        Validate.notNull(settings);
         
-        this.id = id;
-        this.invokeInsnNode = invokeInsnNode;
-        this.lineNumber = invokeLineNumberNode != null ? invokeLineNumberNode.line : null;
-        this.frame = frame;
+        this.id = continuationPoint.getId();
+        this.invokeInsnNode = continuationPoint.getInvokeInsnNode();
+        this.lineNumber = continuationPoint.getLineNumber();
+        this.frame = continuationPoint.getFrame();
+        this.liveLocals = continuationPoint.getLiveLocals();
+        this.constantLocals = continuationPoint.getConstantLocals();
         this.returnType = returnType;
         this.flowInstrumentationVariables = flowInstrumentationVariables;
         this.monitorInstrumentationInstructions = monitorInstrumentationInstructions;
+        this.settings = settings;
+        this.frameSaveHelpers = frameSaveHelpers;
+        this.unwindHandlerLabelNode = unwindHandlerLabelNode;
     }
     
     final int getId() {
@@ -85,6 +145,10 @@ abstract class ContinuationPointGenerator {
         return frame;
     }
 
+    protected final BitSet getLiveLocals() {
+        return liveLocals;
+    }
+
     protected final Type getReturnType() {
         return returnType;
     }
@@ -97,5 +161,337 @@ abstract class ContinuationPointGenerator {
         return monitorInstrumentationInstructions;
     }
     
+    protected final InstrumentationSettings getSettings() {
+        return settings;
+    }
+    
+    // Frames can either be saved as MethodState objects or saved directly in to the Continuation's slot arena (see FrameStorageMode). The
+    // methods below generate the code that deals with the frame for whichever mode is being used, so that subclasses don't have to care.
+    //
+    // When saving in to the slot arena, the operand stack goes in to slots [0, stackSize) and the live locals in the local variables table
+    // go in to slots [stackSize, stackSize + liveLocals).
+    //
+    // In either mode, only locals that are live (see LivenessAnalyzer) get saved. Dead locals get restored as the default value for their
+    // type. Locals that can be rematerialized (see RematerializationAnalyzer) are masked out of the frame and don't get saved either.
+    // Unmodified arguments are left as-is when the frame is restored, because the caller passes them in again when it re-invokes this
+    // method. Constants get put back in once the rest of the local variables table has been restored.
+    
+    // if (pendingCount == -1) { // fresh invokes don't pull the pending count on entry, see FlowInstrumentationGenerator
+    //     pendingCount = continuation.getPendingSize(); // nothing before the 1st save in a fresh invoke changes the pending count
+    // }
+    // continuation.clearExcessPending(pendingCount);
+    // <save operand stack and local variables table as a new pending frame>
+    protected final InsnList saveFrame() {
+        Variable contArg = flowInstrumentationVariables.getContArg();
+        Variable pendingCountVar = flowInstrumentationVariables.getPendingCountVar();
+        Variable savedLocalsVar = flowInstrumentationVariables.getSavedLocalsVar();
+        Variable savedStackVar = flowInstrumentationVariables.getSavedStackVar();
+        Variable tempObjVar = flowInstrumentationVariables.getTempObjectVar();
+        
+        InsnList loadLockStateToStackInsnList = monitorInstrumentationInstructions.getLoadLockStateToStackInsnList();
+        
+        if (frameSaveHelpers != null && frameSaveHelpers.canSave(frame, liveLocals)) {
+            return saveFrameUsingHelper();
+        }
+        
+        InsnList loadPendingCountInsnList
+                = ifIntegersEqual(
+                        loadVar(pendingCountVar),
+                        loadIntConst(-1),
+                        merge(
+                                call(CONTINUATION_GETPENDINGSIZE_METHOD, loadVar(contArg)),
+                                saveVar(pendingCountVar)
+                        )
+                );
+        
+        switch (settings.getFrameStorageMode()) {
+            case METHOD_STATE:
+                return merge(
+                        loadPendingCountInsnList,
+                        call(CONTINUATION_CLEAREXCESSPENDING_METHOD, loadVar(contArg), loadVar(pendingCountVar)),
+                        saveOperandStack(savedStackVar, tempObjVar, frame),
+                        saveLocalVariableTable(savedLocalsVar, tempObjVar, frame, liveLocals),
+                        call(CONTINUATION_ADDPENDING_METHOD, loadVar(contArg),
+                                construct(METHODSTATE_INIT_METHOD,
+                                        loadIntConst(id),
+                                        loadVar(savedStackVar),
+                                        loadVar(savedLocalsVar),
+                                        cloneInsnList(loadLockStateToStackInsnList) // inserted many times, must be cloned
+                                )
+                        )
+                );
+            case SLOT_ARENA:
+                return merge(
+                        loadPendingCountInsnList,
+                        call(CONTINUATION_CLEAREXCESSPENDING_METHOD, loadVar(contArg), loadVar(pendingCountVar)),
+                        call(CONTINUATION_ADDPENDINGSLOTS_METHOD, loadVar(contArg),
+                                loadIntConst(id),
+                                cloneInsnList(loadLockStateToStackInsnList), // inserted many times, must be cloned
+                                loadIntConst(frame.getStackSize() + countSavedLocals(frame, liveLocals))
+                        ),
+                        saveOperandStackToSlots(contArg, frame),
+                        saveLocalVariableTableToSlots(contArg, frame, liveLocals, frame.getStackSize())
+                );
+            default:
+                throw new IllegalStateException();
+        }
+    }
+    
+    // <move operand stack in to temporary variables>
+    // pendingCount = saveFrameHelper(continuation, pendingCount, <number>, lockState, <operand stack>, <live locals>);
+    // <move operand stack back from temporary variables>
+    private InsnList saveFrameUsingHelper() {
+        VariableTable varTable = flowInstrumentationVariables.getVariableTable();
+        Variable contArg = flowInstrumentationVariables.getContArg();
+        Variable pendingCountVar = flowInstrumentationVariables.getPendingCountVar();
+        
+        InsnList loadLockStateToStackInsnList = monitorInstrumentationInstructions.getLoadLockStateToStackInsnList();
+        
+        // The operand stack has to be passed in to the helper, but it also needs to stay intact for the invocation after the save. Move
+        // it in to temporary variables so it can be pushed back on once the helper returns. Items that are always null aren't saved
+        // (see InstructionUtils.saveOperandStack()), so they're just popped off and pushed back on as null.
+        Variable[] stackVars = new Variable[frame.getStackSize()];
+        InsnList storeStackInsnList = new InsnList();
+        for (int i = frame.getStackSize() - 1; i >= 0; i--) {
+            Type type = frame.getStack(i).getType();
+            if ("Lnull;".equals(type.getDescriptor())) {
+                storeStackInsnList.add(new InsnNode(Opcodes.POP));
+            } else {
+                stackVars[i] = varTable.acquireExtra(type);
+                storeStackInsnList.add(saveVar(stackVars[i]));
+            }
+        }
+        
+        InsnList pushStackArgsInsnList = new InsnList();
+        InsnList restoreStackInsnList = new InsnList();
+        for (int i = 0; i < frame.getStackSize(); i++) {
+            if (stackVars[i] == null) {
+                restoreStackInsnList.add(new InsnNode(Opcodes.ACONST_NULL));
+            } else {
+                pushStackArgsInsnList.add(loadVar(stackVars[i]));
+                restoreStackInsnList.add(loadVar(stackVars[i]));
+            }
+        }
+        
+        InsnList pushLocalArgsInsnList = new InsnList();
+        for (int i = 0; i < frame.getLocals(); i++) {
+            Type type = frame.getLocal(i).getType();
+            if (type == null || "Lnull;".equals(type.getDescriptor()) || !liveLocals.get(i)) {
+                continue;
+            }
+            pushLocalArgsInsnList.add(new VarInsnNode(type.getOpcode(Opcodes.ILOAD), i));
+        }
+        
+        // The temporary variables are only used within the instructions generated here, so other continuation points can reuse them.
+        for (Variable stackVar : stackVars) {
+            if (stackVar != null) {
+                varTable.releaseExtra(stackVar);
+            }
+        }
+        
+        InsnList invokeHelperInsnList = new InsnList();
+        invokeHelperInsnList.add(frameSaveHelpers.getInvocation(frame, liveLocals));
+        
+        return merge(
+                storeStackInsnList,
+                loadVar(contArg),
+                loadVar(pendingCountVar),
+                loadIntConst(id),
+                cloneInsnList(loadLockStateToStackInsnList), // inserted many times, must be cloned
+                pushStackArgsInsnList,
+                pushLocalArgsInsnList,
+                invokeHelperInsnList,
+                saveVar(pendingCountVar),
+                restoreStackInsnList
+        );
+    }
+    
+    // continuation.addPending(methodState); // only if frame was loaded from a MethodState, slot frames get re-added when they're loaded
+    protected final InsnList readdLoadedFrame() {
+        Variable contArg = flowInstrumentationVariables.getContArg();
+        Variable methodStateVar = flowInstrumentationVariables.getMethodStateVar();
+        
+        switch (settings.getFrameStorageMode()) {
+            case METHOD_STATE:
+                return call(CONTINUATION_ADDPENDING_METHOD, loadVar(contArg), loadVar(methodStateVar));
+            case SLOT_ARENA:
+                return empty();
+            default:
+                throw new IllegalStateException();
+        }
+    }
+    
+    // restoreOperandStack(stack);
+    // restoreLocalsStack(localVars);
+    protected final InsnList loadFrame() {
+        return merge(
+                loadOperandStackPart(0, frame.getStackSize()),
+                loadLocalVariableTablePart()
+        );
+    }
+    
+    // restoreStackSuffix(stack, <count>);
+    protected final InsnList loadFrameOperandStackSuffix(int count) {
+        Validate.isTrue(count >= 0);
+        Validate.isTrue(count <= frame.getStackSize());
+        return loadOperandStackPart(frame.getStackSize() - count, frame.getStackSize());
+    }
+    
+    // continuation.selectSlots(pendingCount); // only for slot frames, invoked method would have selected a different frame
+    // restoreStackPrefix(stack, <count>);
+    // restoreLocalsStack(localVars);
+    protected final InsnList loadFrameAfterInvoke(int count) {
+        Validate.isTrue(count >= 0);
+        Validate.isTrue(count <= frame.getStackSize());
+        
+        Variable contArg = flowInstrumentationVariables.getContArg();
+        Variable pendingCountVar = flowInstrumentationVariables.getPendingCountVar();
+        
+        InsnList reselectInsnList;
+        switch (settings.getFrameStorageMode()) {
+            case METHOD_STATE:
+                reselectInsnList = empty();
+                break;
+            case SLOT_ARENA:
+                reselectInsnList = call(CONTINUATION_SELECTSLOTS_METHOD, loadVar(contArg), loadVar(pendingCountVar));
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        
+        return merge(
+                reselectInsnList,
+                loadOperandStackPart(0, count),
+                loadLocalVariableTablePart()
+        );
+    }
+    
+    // The stack and locals arrays of a MethodState are only pulled out of the MethodState at the point where they're needed. If a resumed
+    // method invokes a method that suspends again, the only part of the frame that gets touched is the stack items needed for the
+    // invocation -- the frame's MethodState itself is re-added to the continuation as-is (see readdLoadedFrame()). The rest of the
+    // frame only gets loaded if the invoked method actually returns.
+    
+    // stack = methodState.getStack(); // only if frames are stored in MethodState objects
+    // restoreStackPart(stack, <start>, <end>);
+    private InsnList loadOperandStackPart(int start, int end) {
+        Variable contArg = flowInstrumentationVariables.getContArg();
+        Variable methodStateVar = flowInstrumentationVariables.getMethodStateVar();
+        Variable savedStackVar = flowInstrumentationVariables.getSavedStackVar();
+        Variable tempObjVar = flowInstrumentationVariables.getTempObjectVar();
+        
+        switch (settings.getFrameStorageMode()) {
+            case METHOD_STATE:
+                if (start == end) {
+                    return empty();
+                }
+                
+                InsnList fetchStackInsnList = merge(
+                        call(METHODSTATE_GETSTACK_METHOD, loadVar(methodStateVar)),
+                        saveVar(savedStackVar)
+                );
+                if (start == 0) {
+                    return merge(
+                            fetchStackInsnList,
+                            loadOperandStackPrefix(savedStackVar, tempObjVar, frame, end)
+                    );
+                } else {
+                    Validate.isTrue(end == frame.getStackSize()); // sanity check
+                    return merge(
+                            fetchStackInsnList,
+                            loadOperandStackSuffix(savedStackVar, tempObjVar, frame, end - start)
+                    );
+                }
+            case SLOT_ARENA:
+                return loadOperandStackFromSlots(contArg, frame, start, end);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+    
+    // localVars = methodState.getLocalTable(); // only if frames are stored in MethodState objects
+    // restoreLocalsStack(localVars);
+    // restoreConstantLocals();
+    private InsnList loadLocalVariableTablePart() {
+        Variable contArg = flowInstrumentationVariables.getContArg();
+        Variable methodStateVar = flowInstrumentationVariables.getMethodStateVar();
+        Variable savedLocalsVar = flowInstrumentationVariables.getSavedLocalsVar();
+        Variable tempObjVar = flowInstrumentationVariables.getTempObjectVar();
+        
+        switch (settings.getFrameStorageMode()) {
+            case METHOD_STATE:
+                return merge(
+                        countSavedLocals(frame, liveLocals) == 0
+                                ? empty()
+                                : merge(call(METHODSTATE_GETLOCALTABLE_METHOD, loadVar(methodStateVar)), saveVar(savedLocalsVar)),
+                        loadLocalVariableTable(savedLocalsVar, tempObjVar, frame, liveLocals),
+                        loadConstantLocals(constantLocals)
+                );
+            case SLOT_ARENA:
+                return merge(
+                        loadLocalVariableTableFromSlots(contArg, frame, liveLocals, frame.getStackSize()),
+                        loadConstantLocals(constantLocals)
+                );
+            default:
+                throw new IllegalStateException();
+        }
+    }
+    
+    // Once a coroutine's frames have been saved, every method in the call stack has to get out of the way. Depending on the unwind mode
+    // (see UnwindMode), this is done either by returning a dummy value from each method or by throwing UnwindSignal. The methods below
+    // generate the code for whichever mode is being used, so that subclasses don't have to care.
+    //
+    // When unwinding by throwing, anything that may throw UnwindSignal is guarded by a trycatch block that sends it to the method's
+    // unwind handler (if it has one), which exits monitors and rethrows it from outside of the method's own trycatch blocks.
+    
+    // if (continuation.getMode() != MODE_NORMAL) { // only if unwinding by returning, only other mode possible here is MODE_SAVING
+    //     exitLocks(lockState);
+    //     return <dummy>;
+    // }
+    protected final InsnList returnIfSaving() {
+        Variable contArg = flowInstrumentationVariables.getContArg();
+        
+        InsnList exitMonitorsInLockStateInsnList = monitorInstrumentationInstructions.getExitMonitorsInLockStateInsnList();
+        
+        switch (settings.getUnwindMode()) {
+            case RETURN:
+                return ifIntegerNotZero(// if we're saving after invoke, return dummy value (MODE_NORMAL is 0, anything else is MODE_SAVING)
+                        call(CONTINUATION_GETMODE_METHOD, loadVar(contArg)),
+                        merge(
+                                cloneInsnList(exitMonitorsInLockStateInsnList), // inserted many times, must be cloned
+                                returnDummy(returnType)
+                        )
+                );
+            case EXCEPTION:
+                return empty();
+            default:
+                throw new IllegalStateException();
+        }
+    }
+    
+    // exitLocks(lockState);         // if unwinding by returning
+    // return <dummy>;
+    //
+    // throw UnwindSignal.INSTANCE;  // if unwinding by throwing, the unwind handler exits locks
+    protected final InsnList unwind(List<TryCatchBlockNode> tryCatchBlockNodes) {
+        InsnList exitMonitorsInLockStateInsnList = monitorInstrumentationInstructions.getExitMonitorsInLockStateInsnList();
+        
+        switch (settings.getUnwindMode()) {
+            case RETURN:
+                return merge(
+                        cloneInsnList(exitMonitorsInLockStateInsnList), // inserted many times, must be cloned
+                        returnDummy(returnType)
+                );
+            case EXCEPTION:
+                return guardUnwind(throwUnwindSignal(), unwindHandlerLabelNode, tryCatchBlockNodes);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+    
+    // <method invocation> // if unwinding by throwing, guarded such that UnwindSignal goes to the unwind handler
+    protected final InsnList invokeAndGuardUnwind(List<TryCatchBlockNode> tryCatchBlockNodes) {
+        return guardUnwind(cloneInvokeNode(invokeInsnNode), unwindHandlerLabelNode, tryCatchBlockNodes);
+    }
+    
     abstract ContinuationPointInstructions generate();
 }
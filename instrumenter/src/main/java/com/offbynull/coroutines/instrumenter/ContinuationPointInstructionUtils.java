@@ -16,18 +16,60 @@
  */
 package com.offbynull.coroutines.instrumenter;
 
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.call;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadDefaultValue;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadIntConst;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadVar;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.saveVar;
 import com.offbynull.coroutines.instrumenter.asm.VariableTable.Variable;
+import com.offbynull.coroutines.user.Continuation;
+import com.offbynull.coroutines.user.UnwindSignal;
+import java.lang.reflect.Method;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.reflect.MethodUtils;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
 import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
 
 final class ContinuationPointInstructionUtils {
+    
+    private static final Type UNWINDSIGNAL_TYPE = Type.getType(UnwindSignal.class);
+    
+    private static final Method CONTINUATION_SETSLOT_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "setSlot", Integer.TYPE, Object.class);
+    private static final Method CONTINUATION_GETSLOT_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "getSlot", Integer.TYPE);
+    private static final Method CONTINUATION_SETINTSLOT_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "setIntSlot", Integer.TYPE, Integer.TYPE);
+    private static final Method CONTINUATION_GETINTSLOT_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "getIntSlot", Integer.TYPE);
+    private static final Method CONTINUATION_SETLONGSLOT_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "setLongSlot", Integer.TYPE, Long.TYPE);
+    private static final Method CONTINUATION_GETLONGSLOT_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "getLongSlot", Integer.TYPE);
+    private static final Method CONTINUATION_SETFLOATSLOT_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "setFloatSlot", Integer.TYPE, Float.TYPE);
+    private static final Method CONTINUATION_GETFLOATSLOT_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "getFloatSlot", Integer.TYPE);
+    private static final Method CONTINUATION_SETDOUBLESLOT_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "setDoubleSlot", Integer.TYPE, Double.TYPE);
+    private static final Method CONTINUATION_GETDOUBLESLOT_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "getDoubleSlot", Integer.TYPE);
+    
     private ContinuationPointInstructionUtils() {
         // do nothing
     }
@@ -38,47 +80,65 @@ final class ContinuationPointInstructionUtils {
         Validate.notNull(variable);
         Validate.isTrue(variable.getType().equals(Type.getType(Object.class)));
 
+        InsnList ret = new InsnList();
+        if (originalType.getSort() != Type.VOID) {
+            ret.add(castToObject(originalType));
+            ret.add(saveVar(variable)); // save it in to the returnValObj
+        }
+        
+        return ret;
+    }
+
+    // casts variable to original type and puts on top of stack
+    static InsnList loadAndCastToOriginal(Type originalType, Variable variable) {
+        Validate.notNull(originalType);
+        Validate.notNull(variable);
+        Validate.isTrue(variable.getType().equals(Type.getType(Object.class)));
+
+        InsnList ret = new InsnList();
+        if (originalType.getSort() != Type.VOID) {
+            ret.add(loadVar(variable)); // load it in to the returnValObj
+            ret.add(castToOriginal(originalType));
+        }
+
+        return ret;
+    }
+
+    // casts item on top of stack to object (boxes it if it's a primitive)
+    static InsnList castToObject(Type originalType) {
+        Validate.notNull(originalType);
+
         InsnList ret = new InsnList();
         switch (originalType.getSort()) {
             case Type.BOOLEAN:
                 ret.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", false));
-                ret.add(saveVar(variable)); // save it in to the returnValObj
                 break;
             case Type.BYTE:
                 ret.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Byte", "valueOf", "(B)Ljava/lang/Byte;", false));
-                ret.add(saveVar(variable)); // save it in to the returnValObj
                 break;
             case Type.SHORT:
                 ret.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Short", "valueOf", "(S)Ljava/lang/Short;", false));
-                ret.add(saveVar(variable)); // save it in to the returnValObj
                 break;
             case Type.CHAR:
                 ret.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Character", "valueOf", "(C)Ljava/lang/Character;", false));
-                ret.add(saveVar(variable)); // save it in to the returnValObj
                 break;
             case Type.INT:
                 ret.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", false));
-                ret.add(saveVar(variable)); // save it in to the returnValObj
                 break;
             case Type.FLOAT:
                 ret.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Float", "valueOf", "(F)Ljava/lang/Float;", false));
-                ret.add(saveVar(variable)); // save it in to the returnValObj
                 break;
             case Type.LONG:
                 ret.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Long", "valueOf", "(J)Ljava/lang/Long;", false));
-                ret.add(saveVar(variable)); // save it in to the returnValObj
                 break;
             case Type.DOUBLE:
                 ret.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", false));
-                ret.add(saveVar(variable)); // save it in to the returnValObj
                 break;
             case Type.ARRAY:
             case Type.OBJECT:
-                ret.add(saveVar(variable)); // save it in to the returnValObj
-                break;
-            case Type.VOID:
                 break;
             case Type.METHOD:
+            case Type.VOID:
             default:
                 throw new IllegalArgumentException();
         }
@@ -86,67 +146,314 @@ final class ContinuationPointInstructionUtils {
         return ret;
     }
 
-    // casts variable to original type and puts on top of stack
-    static InsnList loadAndCastToOriginal(Type originalType, Variable variable) {
+    // casts object on top of stack to original type (unboxes it if original type is a primitive)
+    static InsnList castToOriginal(Type originalType) {
         Validate.notNull(originalType);
-        Validate.notNull(variable);
-        Validate.isTrue(variable.getType().equals(Type.getType(Object.class)));
 
         InsnList ret = new InsnList();
-        
         switch (originalType.getSort()) {
             case Type.BOOLEAN:
-                ret.add(loadVar(variable)); // load it in to the returnValObj
                 ret.add(new TypeInsnNode(Opcodes.CHECKCAST, "java/lang/Boolean"));
                 ret.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z", false));
                 break;
             case Type.BYTE:
-                ret.add(loadVar(variable)); // load it in to the returnValObj
                 ret.add(new TypeInsnNode(Opcodes.CHECKCAST, "java/lang/Byte"));
                 ret.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/Byte", "byteValue", "()B", false));
                 break;
             case Type.SHORT:
-                ret.add(loadVar(variable)); // load it in to the returnValObj
                 ret.add(new TypeInsnNode(Opcodes.CHECKCAST, "java/lang/Short"));
                 ret.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/Short", "shortValue", "()S", false));
                 break;
             case Type.CHAR:
-                ret.add(loadVar(variable)); // load it in to the returnValObj
                 ret.add(new TypeInsnNode(Opcodes.CHECKCAST, "java/lang/Character"));
                 ret.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/Character", "charValue", "()C", false));
                 break;
             case Type.INT:
-                ret.add(loadVar(variable)); // load it in to the returnValObj
                 ret.add(new TypeInsnNode(Opcodes.CHECKCAST, "java/lang/Integer"));
                 ret.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I", false));
                 break;
             case Type.FLOAT:
-                ret.add(loadVar(variable)); // load it in to the returnValObj
                 ret.add(new TypeInsnNode(Opcodes.CHECKCAST, "java/lang/Float"));
                 ret.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/Float", "floatValue", "()F", false));
                 break;
             case Type.LONG:
-                ret.add(loadVar(variable)); // load it in to the returnValObj
                 ret.add(new TypeInsnNode(Opcodes.CHECKCAST, "java/lang/Long"));
                 ret.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/Long", "longValue", "()J", false));
                 break;
             case Type.DOUBLE:
-                ret.add(loadVar(variable)); // load it in to the returnValObj
                 ret.add(new TypeInsnNode(Opcodes.CHECKCAST, "java/lang/Double"));
                 ret.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/Double", "doubleValue", "()D", false));
                 break;
             case Type.ARRAY:
             case Type.OBJECT:
-                ret.add(loadVar(variable)); // load it in to the returnValObj
                 ret.add(new TypeInsnNode(Opcodes.CHECKCAST, originalType.getInternalName()));
                 break;
+            case Type.METHOD:
             case Type.VOID:
+            default:
+                throw new IllegalArgumentException();
+        }
+
+        return ret;
+    }
+    
+    // saves the operand stack in to the slots of the frame currently selected in the continuation (stack item i goes to slot i), then
+    // puts the operand stack back to the way it was
+    static InsnList saveOperandStackToSlots(Variable contVar, Frame<BasicValue> frame) {
+        Validate.notNull(contVar);
+        Validate.notNull(frame);
+        Validate.isTrue(contVar.getType().equals(Type.getType(Continuation.class)));
+        
+        InsnList ret = new InsnList();
+        
+        // Save the stack
+        for (int i = frame.getStackSize() - 1; i >= 0; i--) {
+            Type type = frame.getStack(i).getType();
+            
+            // 'Lnull;' items are always null at this point, so there's no need to save them (see InstructionUtils.saveOperandStack())
+            if ("Lnull;".equals(type.getDescriptor())) {
+                ret.add(new InsnNode(Opcodes.POP));
+                continue;
+            }
+            
+            // The item being saved is on top of the stack, but the continuation and slot index need to go before it. Push them on and
+            // then move them underneath the item: item,cont,idx -> cont,idx,item,cont,idx -> cont,idx,item
+            ret.add(loadVar(contVar));
+            ret.add(loadIntConst(i));
+            ret.add(new InsnNode(type.getSize() == 2 ? Opcodes.DUP2_X2 : Opcodes.DUP2_X1));
+            ret.add(new InsnNode(Opcodes.POP2));
+            ret.add(invokeContinuation(getSetSlotMethod(type)));
+        }
+        
+        // Restore the stack
+        ret.add(loadOperandStackFromSlots(contVar, frame, 0, frame.getStackSize()));
+        
+        return ret;
+    }
+    
+    // loads stack items [start, end) from the slots of the frame currently selected in the continuation
+    static InsnList loadOperandStackFromSlots(Variable contVar, Frame<BasicValue> frame, int start, int end) {
+        Validate.notNull(contVar);
+        Validate.notNull(frame);
+        Validate.isTrue(contVar.getType().equals(Type.getType(Continuation.class)));
+        Validate.isTrue(start >= 0);
+        Validate.isTrue(end >= start); // end is exclusive
+        Validate.isTrue(end <= frame.getStackSize());
+        
+        InsnList ret = new InsnList();
+        
+        for (int i = start; i < end; i++) {
+            Type type = frame.getStack(i).getType();
+            
+            // 'Lnull;' items weren't saved, push null back in (see InstructionUtils.loadOperandStack())
+            if (type.getSort() == Type.OBJECT && "Lnull;".equals(type.getDescriptor())) {
+                ret.add(new InsnNode(Opcodes.ACONST_NULL));
+                continue;
+            }
+            
+            ret.add(getSlot(contVar, type, i));
+        }
+        
+        return ret;
+    }
+    
+    // saves the live locals in the local variables table in to the slots of the frame currently selected in the continuation (live locals
+    // are packed one after the other starting at slot offset, see InstructionUtils.saveLocalVariableTable())
+    static InsnList saveLocalVariableTableToSlots(Variable contVar, Frame<BasicValue> frame, BitSet liveLocals, int offset) {
+        Validate.notNull(contVar);
+        Validate.notNull(frame);
+        Validate.notNull(liveLocals);
+        Validate.isTrue(contVar.getType().equals(Type.getType(Continuation.class)));
+        Validate.isTrue(offset >= 0);
+        
+        InsnList ret = new InsnList();
+        
+        int slotIdx = offset;
+        for (int i = 0; i < frame.getLocals(); i++) {
+            Type type = frame.getLocal(i).getType();
+            
+            // Uninitialized, 'Lnull;', and dead locals have nothing to save (see InstructionUtils.saveLocalVariableTable())
+            if (type == null || "Lnull;".equals(type.getDescriptor()) || !liveLocals.get(i)) {
+                continue;
+            }
+            
+            ret.add(saveToSlot(contVar, slotIdx, type, loadLocal(type, i)));
+            slotIdx++;
+        }
+        
+        return ret;
+    }
+    
+    // loads the local variables table from the slots of the frame currently selected in the continuation (inverse of
+    // saveLocalVariableTableToSlots())
+    static InsnList loadLocalVariableTableFromSlots(Variable contVar, Frame<BasicValue> frame, BitSet liveLocals, int offset) {
+        Validate.notNull(contVar);
+        Validate.notNull(frame);
+        Validate.notNull(liveLocals);
+        Validate.isTrue(contVar.getType().equals(Type.getType(Continuation.class)));
+        Validate.isTrue(offset >= 0);
+        
+        InsnList ret = new InsnList();
+        
+        int slotIdx = offset;
+        for (int i = 0; i < frame.getLocals(); i++) {
+            Type type = frame.getLocal(i).getType();
+            
+            // Uninitialized locals are left uninitialized (see InstructionUtils.loadLocalVariableTable())
+            if (type == null) {
+                continue;
+            }
+            
+            // 'Lnull;' locals weren't saved, put null back in (see InstructionUtils.loadLocalVariableTable())
+            if (type.getSort() == Type.OBJECT && "Lnull;".equals(type.getDescriptor())) {
+                ret.add(new InsnNode(Opcodes.ACONST_NULL));
+                ret.add(new VarInsnNode(Opcodes.ASTORE, i));
+                continue;
+            }
+            
+            // Dead locals weren't saved, put the default value for the type back in (see InstructionUtils.loadLocalVariableTable())
+            if (!liveLocals.get(i)) {
+                ret.add(loadDefaultValue(type));
+                ret.add(new VarInsnNode(type.getOpcode(Opcodes.ISTORE), i));
+                continue;
+            }
+            
+            ret.add(getSlot(contVar, type, slotIdx));
+            ret.add(new VarInsnNode(type.getOpcode(Opcodes.ISTORE), i));
+            slotIdx++;
+        }
+        
+        return ret;
+    }
+    
+    // copies a frame with the given locals marked as uninitialized -- the code that saves and loads the local variables table skips over
+    // uninitialized locals, meaning that masked locals don't get saved and are left as-is when the frame gets loaded
+    static Frame<BasicValue> maskLocals(Frame<BasicValue> frame, BitSet maskedLocals) {
+        Validate.notNull(frame);
+        Validate.notNull(maskedLocals);
+        
+        Frame<BasicValue> ret = new Frame<>(frame);
+        for (int i = maskedLocals.nextSetBit(0); i >= 0 && i < frame.getLocals(); i = maskedLocals.nextSetBit(i + 1)) {
+            ret.setLocal(i, BasicValue.UNINITIALIZED_VALUE);
+        }
+        return ret;
+    }
+    
+    // puts constants back in to the locals that hold them (see RematerializationAnalyzer.findConstantLocals())
+    static InsnList loadConstantLocals(Map<Integer, Object> constantLocals) {
+        Validate.notNull(constantLocals);
+        
+        InsnList ret = new InsnList();
+        for (Entry<Integer, Object> entry : constantLocals.entrySet()) {
+            int idx = entry.getKey();
+            Object constant = entry.getValue();
+            
+            int storeOpcode;
+            if (constant instanceof Integer) {
+                storeOpcode = Opcodes.ISTORE;
+            } else if (constant instanceof Float) {
+                storeOpcode = Opcodes.FSTORE;
+            } else if (constant instanceof Long) {
+                storeOpcode = Opcodes.LSTORE;
+            } else if (constant instanceof Double) {
+                storeOpcode = Opcodes.DSTORE;
+            } else if (constant instanceof String) {
+                storeOpcode = Opcodes.ASTORE;
+            } else {
+                throw new IllegalArgumentException();
+            }
+            
+            ret.add(new LdcInsnNode(constant));
+            ret.add(new VarInsnNode(storeOpcode, idx));
+        }
+        
+        return ret;
+    }
+    
+    // saves a value in to a slot of the frame currently selected in the continuation
+    static InsnList saveToSlot(Variable contVar, int idx, Type type, InsnList loadValueInsnList) {
+        Validate.notNull(contVar);
+        Validate.notNull(type);
+        Validate.notNull(loadValueInsnList);
+        Validate.isTrue(contVar.getType().equals(Type.getType(Continuation.class)));
+        Validate.isTrue(idx >= 0);
+        
+        return call(getSetSlotMethod(type),
+                loadVar(contVar),
+                loadIntConst(idx),
+                loadValueInsnList
+        );
+    }
+    
+    // Primitives are saved in to slots as-is, they don't get boxed like they do when frames are saved as MethodState objects. Note that
+    // the JVM treats booleans/bytes/shorts/chars as ints.
+    private static Method getSetSlotMethod(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.CHAR:
+            case Type.INT:
+                return CONTINUATION_SETINTSLOT_METHOD;
+            case Type.FLOAT:
+                return CONTINUATION_SETFLOATSLOT_METHOD;
+            case Type.LONG:
+                return CONTINUATION_SETLONGSLOT_METHOD;
+            case Type.DOUBLE:
+                return CONTINUATION_SETDOUBLESLOT_METHOD;
+            case Type.ARRAY:
+            case Type.OBJECT:
+                return CONTINUATION_SETSLOT_METHOD;
+            case Type.METHOD:
+            case Type.VOID:
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+    
+    // pushes the value in a slot on to the stack (casted to type if it's an object)
+    private static InsnList getSlot(Variable contVar, Type type, int idx) {
+        InsnList ret = new InsnList();
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.CHAR:
+            case Type.INT:
+                ret.add(call(CONTINUATION_GETINTSLOT_METHOD, loadVar(contVar), loadIntConst(idx)));
+                break;
+            case Type.FLOAT:
+                ret.add(call(CONTINUATION_GETFLOATSLOT_METHOD, loadVar(contVar), loadIntConst(idx)));
+                break;
+            case Type.LONG:
+                ret.add(call(CONTINUATION_GETLONGSLOT_METHOD, loadVar(contVar), loadIntConst(idx)));
+                break;
+            case Type.DOUBLE:
+                ret.add(call(CONTINUATION_GETDOUBLESLOT_METHOD, loadVar(contVar), loadIntConst(idx)));
+                break;
+            case Type.ARRAY:
+            case Type.OBJECT:
+                ret.add(call(CONTINUATION_GETSLOT_METHOD, loadVar(contVar), loadIntConst(idx)));
+                ret.add(new TypeInsnNode(Opcodes.CHECKCAST, type.getInternalName()));
                 break;
             case Type.METHOD:
+            case Type.VOID:
             default:
                 throw new IllegalArgumentException();
         }
-
+        return ret;
+    }
+    
+    private static InsnList invokeContinuation(Method method) {
+        InsnList ret = new InsnList();
+        ret.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, Type.getInternalName(Continuation.class), method.getName(),
+                Type.getMethodDescriptor(method), false));
+        return ret;
+    }
+    
+    private static InsnList loadLocal(Type type, int idx) {
+        InsnList ret = new InsnList();
+        ret.add(new VarInsnNode(type.getOpcode(Opcodes.ILOAD), idx));
         return ret;
     }
 
@@ -162,4 +469,39 @@ final class ContinuationPointInstructionUtils {
         
         return ret;
     }
+
+    // throw UnwindSignal.INSTANCE;
+    static InsnList throwUnwindSignal() {
+        InsnList ret = new InsnList();
+        
+        ret.add(new FieldInsnNode(Opcodes.GETSTATIC, UNWINDSIGNAL_TYPE.getInternalName(), "INSTANCE", UNWINDSIGNAL_TYPE.getDescriptor()));
+        ret.add(new InsnNode(Opcodes.ATHROW));
+        
+        return ret;
+    }
+
+    // Wraps instructions that may throw UnwindSignal in a trycatch block that sends it to unwindHandlerLabelNode. The trycatch block gets
+    // added to tryCatchBlockNodes, which must end up ahead of the method's own trycatch blocks so that the signal skips past them. If
+    // unwindHandlerLabelNode is null, the method has nothing that the signal needs to skip past and the instructions are returned as-is.
+    static InsnList guardUnwind(InsnList insnList, LabelNode unwindHandlerLabelNode, List<TryCatchBlockNode> tryCatchBlockNodes) {
+        Validate.notNull(insnList);
+        Validate.notNull(tryCatchBlockNodes);
+        
+        if (unwindHandlerLabelNode == null) {
+            return insnList;
+        }
+        
+        LabelNode startLabelNode = new LabelNode();
+        LabelNode endLabelNode = new LabelNode();
+        tryCatchBlockNodes.add(new TryCatchBlockNode(startLabelNode, endLabelNode, unwindHandlerLabelNode,
+                UNWINDSIGNAL_TYPE.getInternalName()));
+        
+        InsnList ret = new InsnList();
+        
+        ret.add(startLabelNode);
+        ret.add(insnList);
+        ret.add(endLabelNode);
+        
+        return ret;
+    }
 }
@@ -16,30 +16,40 @@
  */
 package com.offbynull.coroutines.instrumenter;
 
+import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.maskLocals;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.addLabel;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.call;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.cloneInsnList;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.empty;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.ifIntegerZero;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.jumpTo;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadIntConst;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadVar;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.merge;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.saveVar;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.tableSwitch;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.throwException;
+import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.estimateCodeSize;
 import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findLineNumberForInstruction;
 import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findTryCatchBlockNodesEncompassingInstruction;
 import com.offbynull.coroutines.instrumenter.asm.VariableTable.Variable;
 import com.offbynull.coroutines.user.Continuation;
+import static com.offbynull.coroutines.user.Continuation.MODE_SAVING;
 import com.offbynull.coroutines.user.MethodState;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.reflect.MethodUtils;
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LineNumberNode;
 import org.objectweb.asm.tree.MethodNode;
@@ -55,117 +65,97 @@ final class FlowInstrumentationGenerator {
             = MethodUtils.getAccessibleMethod(Continuation.class, "getPendingSize");
     private static final Method CONTINUATION_REMOVEFIRSTSAVED_METHOD
             = MethodUtils.getAccessibleMethod(Continuation.class, "removeFirstSaved");
+    private static final Method CONTINUATION_REMOVEFIRSTSAVEDSLOTS_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "removeFirstSavedSlots");
     private static final Method METHODSTATE_GETCONTINUATIONPOINT_METHOD
             = MethodUtils.getAccessibleMethod(MethodState.class, "getContinuationPoint");
-    private static final Method METHODSTATE_GETLOCALTABLE_METHOD
-            = MethodUtils.getAccessibleMethod(MethodState.class, "getLocalTable");
-    private static final Method METHODSTATE_GETSTACK_METHOD
-            = MethodUtils.getAccessibleMethod(MethodState.class, "getStack");
     
     private final MethodNode methodNode;
     private final List<AbstractInsnNode> suspendInvocationInsnNodes;
     private final List<AbstractInsnNode> invokeInvocationInsnNodes;
-    private final Frame<BasicValue>[] frames;
+    private final MethodAnalysis methodAnalysis;
 
     private final MonitorInstrumentationInstructions monitorInstrumentationInstructions;
     private final FlowInstrumentationVariables flowInstrumentationVariables;
+    private final InstrumentationSettings settings;
+    private final FrameSaveHelpers frameSaveHelpers;
 
     FlowInstrumentationGenerator(MethodNode methodNode, List<AbstractInsnNode> suspendInvocationInsnNodes,
-            List<AbstractInsnNode> invokeInvocationInsnNodes, Frame<BasicValue>[] frames,
+            List<AbstractInsnNode> invokeInvocationInsnNodes, MethodAnalysis methodAnalysis,
             MonitorInstrumentationInstructions monitorInstrumentationInstructions,
-            FlowInstrumentationVariables flowInstrumentationVariables) {
+            FlowInstrumentationVariables flowInstrumentationVariables,
+            InstrumentationSettings settings,
+            FrameSaveHelpers frameSaveHelpers) {
         Validate.notNull(methodNode);
         Validate.notNull(suspendInvocationInsnNodes);
         Validate.notNull(invokeInvocationInsnNodes);
         Validate.notNull(invokeInvocationInsnNodes);
-        Validate.notNull(frames);
+        Validate.notNull(methodAnalysis);
         Validate.notNull(monitorInstrumentationInstructions);
         Validate.notNull(flowInstrumentationVariables);
+        Validate.notNull(settings);
+        Validate.notNull(frameSaveHelpers);
         Validate.noNullElements(suspendInvocationInsnNodes);
         Validate.noNullElements(invokeInvocationInsnNodes);
-        //Validate.noNullElements(frames); // frames can have null elements
         
         this.methodNode = methodNode;
         this.suspendInvocationInsnNodes = suspendInvocationInsnNodes;
         this.invokeInvocationInsnNodes = invokeInvocationInsnNodes;
-        this.frames = frames;
+        this.methodAnalysis = methodAnalysis;
 
         this.monitorInstrumentationInstructions = monitorInstrumentationInstructions;
         this.flowInstrumentationVariables = flowInstrumentationVariables;
+        this.settings = settings;
+        this.frameSaveHelpers = frameSaveHelpers;
     }
 
     FlowInstrumentationInstructions generate() {
         // Get return type
         Type returnType = Type.getMethodType(methodNode.desc).getReturnType();
 
-        // Generate continuation point details
-        int nextId = 0;
-        List<ContinuationPointInstructions> continuationPoints = new LinkedList<>();
-
-          // IMPORTANT NOTE: Code dealing with locks (e.g. anything to do with LockState) will only be present if this method contains
-          // MONITORENTER/MONITOREXIT. See comments MonitorInstructionGenerator for more information.
-        
-        for (AbstractInsnNode suspendInvocationInsnNode : suspendInvocationInsnNodes) {
-            int insnIdx = methodNode.instructions.indexOf(suspendInvocationInsnNode);
-            LineNumberNode invokeLineNumberNode = findLineNumberForInstruction(methodNode.instructions, suspendInvocationInsnNode);
-            ContinuationPointInstructions cp = new SuspendContinuationPointGenerator(
-                    nextId,
-                    suspendInvocationInsnNode,
-                    invokeLineNumberNode,
-                    frames[insnIdx],
-                    returnType,
-                    flowInstrumentationVariables,
-                    monitorInstrumentationInstructions)
-                    .generate();
-            continuationPoints.add(cp);
-            nextId++;
+        // If unwinding by throwing, UnwindSignal has to skip past any trycatch blocks in the method (including the ones that javac
+        // generates for finally blocks and synchronized blocks) and has to exit any monitors that the method entered. If the method has
+        // neither, the signal can pass through without being caught.
+        //
+        //    unwindHandler: // UnwindSignal is on the stack
+        //        exitLocks(lockState);
+        //        throw;
+        //
+        // This handler goes at the end of the method, outside of any of the method's trycatch blocks.
+        LabelNode unwindHandlerLabelNode = null;
+        InsnList unwindHandlerInsnList = empty();
+        boolean hasMonitors = !monitorInstrumentationInstructions.getMonitorInsnNodeReplacements().isEmpty();
+        if (settings.getUnwindMode() == UnwindMode.EXCEPTION && (!methodNode.tryCatchBlocks.isEmpty() || hasMonitors)) {
+            unwindHandlerLabelNode = new LabelNode();
+            unwindHandlerInsnList = merge(
+                    addLabel(unwindHandlerLabelNode),
+                    cloneInsnList(monitorInstrumentationInstructions.getExitMonitorsInLockStateInsnList()),
+                    rethrow()
+            );
         }
 
-        for (AbstractInsnNode invokeInvocationInsnNode : invokeInvocationInsnNodes) {
-            boolean withinTryCatch = findTryCatchBlockNodesEncompassingInstruction(
-                    methodNode.instructions,
-                    methodNode.tryCatchBlocks,
-                    invokeInvocationInsnNode).size() > 0;
-            LineNumberNode invokeLineNumberNode = findLineNumberForInstruction(methodNode.instructions, invokeInvocationInsnNode);
-            
-            int insnIdx = methodNode.instructions.indexOf(invokeInvocationInsnNode);
-            ContinuationPointInstructions cp;
-            if (withinTryCatch) {
-                cp = new InvokeWithinTryCatchContinuationPointGenerator(
-                        nextId,
-                        invokeInvocationInsnNode,
-                        invokeLineNumberNode,
-                        frames[insnIdx],
-                        returnType,
-                        flowInstrumentationVariables,
-                        monitorInstrumentationInstructions)
-                        .generate();
-            } else {
-                cp = new InvokeContinuationPointGenerator(
-                        nextId,
-                        invokeInvocationInsnNode,
-                        invokeLineNumberNode,
-                        frames[insnIdx],
-                        returnType,
-                        flowInstrumentationVariables,
-                        monitorInstrumentationInstructions)
-                        .generate();
-            }
-            
-            continuationPoints.add(cp);
-            nextId++;
+        // Generate continuation point details. Each continuation point saves its frame inline to begin with. If that makes the method
+        // too large for the JIT to inline/compile well, regenerate the continuation points such that they save their frames by calling
+        // out to shared helper methods instead (see InstrumentationSettings.getOutliningThreshold()).
+        List<ContinuationPointInstructions> continuationPoints = generateContinuationPoints(returnType, null, unwindHandlerLabelNode);
+        if (estimateInstrumentedCodeSize(continuationPoints) > settings.getOutliningThreshold()) {
+            continuationPoints = generateContinuationPoints(returnType, frameSaveHelpers, unwindHandlerLabelNode);
         }
         
         Variable contArg = flowInstrumentationVariables.getContArg();
         Variable pendingCountVar = flowInstrumentationVariables.getPendingCountVar();
         Variable methodStateVar = flowInstrumentationVariables.getMethodStateVar();
-        Variable savedLocalsVar = flowInstrumentationVariables.getSavedLocalsVar();
-        Variable savedStackVar = flowInstrumentationVariables.getSavedStackVar();
         
         InsnList createAndStoreLockStateInsnList
                 = monitorInstrumentationInstructions.getCreateAndStoreLockStateInsnList();
         InsnList loadAndStoreLockStateFromMethodStateInsnList
                 = monitorInstrumentationInstructions.getLoadAndStoreLockStateFromMethodStateInsnList();
+        InsnList loadAndStoreLockStateFromSlotsInsnList
+                = monitorInstrumentationInstructions.getLoadAndStoreLockStateFromSlotsInsnList();
+        
+        InsnList[] restoreInsnLists = continuationPoints.stream()
+                .map((cp) -> cp.getRestoreInsnNodes())
+                .toArray((x) -> new InsnList[x]);
         
         // Generate entrypoint instructions...
         //
@@ -173,20 +163,24 @@ final class FlowInstrumentationGenerator {
         //    MethodState methodState;
         //    Object[] stack;
         //    Object[] localVars;
-        //    int pendingCount = continuation.getPendingSize();
+        //    int pendingCount;
         //
+        //       // Fast path -- almost every invocation is a fresh invoke, so only a single check is done before running the method. The
+        //       // pending count is only ever needed if this invocation ends up saving its frame, so it gets pulled lazily (see
+        //       // ContinuationPointGenerator.saveFrame()).
+        //    if (continuation.getMode() == NORMAL) {
+        //        lockState = new LockState();
+        //        pendingCount = -1;
+        //        goto start;
+        //    }
+        //
+        //       // Slow path
+        //    pendingCount = continuation.getPendingSize();
         //    switch(continuation.getMode()) {
-        //        case NORMAL:
-        //        {
-        //            lockState = new LockState();
-        //            goto start;
-        //        }
         //        case SAVING: throw exception
-        //        case LOADING:
+        //        case LOADING: // if frames are stored in MethodState objects
         //        {
-        //            methodState = continuation.removeFirstSaved();
-        //            stack = methodState.getStack();
-        //            localVars = methodState.getLocalTable();
+        //            methodState = continuation.removeFirstSaved(); // stack/localVars are pulled out of this by the restore code
         //            lockState = methodState.getLockState();
         //            switch(methodState.getContinuationPoint()) {
         //                case <number>:
@@ -198,6 +192,20 @@ final class FlowInstrumentationGenerator {
         //            }
         //            goto start;
         //        }
+        //        case LOADING: // if frames are stored in the slot arena
+        //        {
+        //            int id = continuation.removeFirstSavedSlots(); // selects the frame's slots for getSlot()/getSlotsLockState()
+        //            lockState = continuation.getSlotsLockState();
+        //            switch(id) {
+        //                case <number>:
+        //                    <CP_RESTORE_INSTRUCTIONS>
+        //                ...
+        //                ...
+        //                ...
+        //                default: throw exception
+        //            }
+        //            goto start;
+        //        }
         //        default: throw exception
         //    }
         //
@@ -205,40 +213,62 @@ final class FlowInstrumentationGenerator {
         //        ...
         //        ...
         //        ...
+        InsnList loadInsnList;
+        switch (settings.getFrameStorageMode()) {
+            case METHOD_STATE:
+                loadInsnList
+                        = merge(
+                                call(CONTINUATION_REMOVEFIRSTSAVED_METHOD, loadVar(contArg)),
+                                saveVar(methodStateVar),
+                                loadAndStoreLockStateFromMethodStateInsnList,
+                                tableSwitch(
+                                        call(METHODSTATE_GETCONTINUATIONPOINT_METHOD, loadVar(methodStateVar)),
+                                        throwException("Unrecognized restore id " + methodNode.name),
+                                        0,
+                                        restoreInsnLists
+                                )
+                                // jump to not required here, switch above either throws exception or jumps to restore point
+                        );
+                break;
+            case SLOT_ARENA:
+                loadInsnList
+                        = merge(
+                                tableSwitch(
+                                        merge(
+                                                call(CONTINUATION_REMOVEFIRSTSAVEDSLOTS_METHOD, loadVar(contArg)),
+                                                loadAndStoreLockStateFromSlotsInsnList // leaves id returned above on the stack
+                                        ),
+                                        throwException("Unrecognized restore id " + methodNode.name),
+                                        0,
+                                        restoreInsnLists
+                                )
+                                // jump to not required here, switch above either throws exception or jumps to restore point
+                        );
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        
         LabelNode startOfMethodLabelNode = new LabelNode();
         InsnList entryPointInsnList
                 = merge(
+                        ifIntegerZero(// fresh invoke (MODE_NORMAL is 0)
+                                call(CONTINUATION_GETMODE_METHOD, loadVar(contArg)),
+                                merge(
+                                        createAndStoreLockStateInsnList,
+                                        loadIntConst(-1), // pending count not pulled yet
+                                        saveVar(pendingCountVar),
+                                        jumpTo(startOfMethodLabelNode)
+                                )
+                        ),
                         call(CONTINUATION_GETPENDINGSIZE_METHOD, loadVar(contArg)), // call getPendingSize()
                         saveVar(pendingCountVar),
                         tableSwitch(
                                 call(CONTINUATION_GETMODE_METHOD, loadVar(contArg)),
                                 throwException("Unrecognized state"),
-                                0,
-                                merge(
-                                        // fresh invoke
-                                        createAndStoreLockStateInsnList,
-                                        jumpTo(startOfMethodLabelNode)
-                                ),
+                                MODE_SAVING,
                                 throwException("Unexpected state (saving not allowed at this point)"),
-                                merge(
-                                        // restore invoke
-                                        call(CONTINUATION_REMOVEFIRSTSAVED_METHOD, loadVar(contArg)),
-                                        saveVar(methodStateVar),
-                                        call(METHODSTATE_GETLOCALTABLE_METHOD, loadVar(methodStateVar)),
-                                        saveVar(savedLocalsVar),
-                                        call(METHODSTATE_GETSTACK_METHOD, loadVar(methodStateVar)),
-                                        saveVar(savedStackVar),
-                                        loadAndStoreLockStateFromMethodStateInsnList,
-                                        tableSwitch(
-                                                call(METHODSTATE_GETCONTINUATIONPOINT_METHOD, loadVar(methodStateVar)),
-                                                throwException("Unrecognized restore id " + methodNode.name),
-                                                0,
-                                                continuationPoints.stream()
-                                                        .map((cp) -> cp.getRestoreInsnNodes())
-                                                        .toArray((x) -> new InsnList[x])
-                                        )
-                                        // jump to not required here, switch above either throws exception or jumps to restore point
-                                )
+                                loadInsnList // restore invoke
                         ),
                         addLabel(startOfMethodLabelNode)
                 );
@@ -254,6 +284,108 @@ final class FlowInstrumentationGenerator {
         });
         
         // We don't want labels to continuationPoints to be remapped when FlowInstrumentationInstructions returns them
-        return new FlowInstrumentationInstructions(entryPointInsnList, invokeInsnNodeReplacements, addedTryCatchBlockNodes);
+        return new FlowInstrumentationInstructions(entryPointInsnList, invokeInsnNodeReplacements, addedTryCatchBlockNodes,
+                unwindHandlerInsnList);
+    }
+    
+    // helpers is null if frames should be saved inline, unwindHandlerLabelNode is null if the method doesn't have an unwind handler
+    private List<ContinuationPointInstructions> generateContinuationPoints(Type returnType, FrameSaveHelpers helpers,
+            LabelNode unwindHandlerLabelNode) {
+        int nextId = 0;
+        List<ContinuationPointInstructions> continuationPoints = new LinkedList<>();
+
+          // IMPORTANT NOTE: Code dealing with locks (e.g. anything to do with LockState) will only be present if this method contains
+          // MONITORENTER/MONITOREXIT. See comments MonitorInstructionGenerator for more information.
+        
+        for (AbstractInsnNode suspendInvocationInsnNode : suspendInvocationInsnNodes) {
+            ContinuationPointInstructions cp = new SuspendContinuationPointGenerator(
+                    createContinuationPoint(nextId, suspendInvocationInsnNode),
+                    returnType,
+                    flowInstrumentationVariables,
+                    monitorInstrumentationInstructions,
+                    settings,
+                    helpers,
+                    unwindHandlerLabelNode)
+                    .generate();
+            continuationPoints.add(cp);
+            nextId++;
+        }
+
+        for (AbstractInsnNode invokeInvocationInsnNode : invokeInvocationInsnNodes) {
+            boolean withinTryCatch = findTryCatchBlockNodesEncompassingInstruction(
+                    methodNode.instructions,
+                    methodNode.tryCatchBlocks,
+                    invokeInvocationInsnNode).size() > 0;
+            
+            ContinuationPointInstructions cp;
+            if (withinTryCatch) {
+                cp = new InvokeWithinTryCatchContinuationPointGenerator(
+                        createContinuationPoint(nextId, invokeInvocationInsnNode),
+                        returnType,
+                        flowInstrumentationVariables,
+                        monitorInstrumentationInstructions,
+                        settings,
+                        helpers,
+                        unwindHandlerLabelNode)
+                        .generate();
+            } else {
+                cp = new InvokeContinuationPointGenerator(
+                        createContinuationPoint(nextId, invokeInvocationInsnNode),
+                        returnType,
+                        flowInstrumentationVariables,
+                        monitorInstrumentationInstructions,
+                        settings,
+                        helpers,
+                        unwindHandlerLabelNode)
+                        .generate();
+            }
+            
+            continuationPoints.add(cp);
+            nextId++;
+        }
+        
+        return continuationPoints;
+    }
+    
+    private int estimateInstrumentedCodeSize(List<ContinuationPointInstructions> continuationPoints) {
+        // Original code + what gets added in for each continuation point. The entry point is left out -- it's roughly the same size no
+        // matter how frames get saved, and the restore code it contains is only ever hit when a coroutine resumes.
+        int size = estimateCodeSize(methodNode.instructions);
+        for (ContinuationPointInstructions cp : continuationPoints) {
+            size += estimateCodeSize(cp.getInvokeReplacementInsnNodes());
+        }
+        return size;
+    }
+    
+    private static InsnList rethrow() {
+        InsnList ret = new InsnList();
+        ret.add(new InsnNode(Opcodes.ATHROW));
+        return ret;
+    }
+    
+    private ContinuationPoint createContinuationPoint(int id, AbstractInsnNode invokeInsnNode) {
+        int insnIdx = methodNode.instructions.indexOf(invokeInsnNode);
+        LineNumberNode invokeLineNumberNode = findLineNumberForInstruction(methodNode.instructions, invokeInsnNode);
+        return new ContinuationPoint(id, invokeInsnNode, invokeLineNumberNode, getFrame(insnIdx), getLiveLocals(insnIdx),
+                methodAnalysis.getConstantLocals(insnIdx));
+    }
+    
+    private Frame<BasicValue> getFrame(int insnIdx) {
+        // Locals that can be rematerialized don't need to be saved, so they're masked out of the frame (see ContinuationPointGenerator).
+        // Unmodified arguments are masked out whether or not they're live -- the caller passes them in again when it re-invokes this
+        // method, so there's no reason to touch them when the frame is restored.
+        BitSet maskedLocals = (BitSet) methodAnalysis.getUnmodifiedArgs().clone();
+        for (int i : methodAnalysis.getConstantLocals(insnIdx).keySet()) {
+            maskedLocals.set(i);
+        }
+        return maskLocals(methodAnalysis.getFrame(insnIdx), maskedLocals);
+    }
+    
+    private BitSet getLiveLocals(int insnIdx) {
+        // The continuation argument is always treated as live -- instrumented code uses it after the frame has been restored, even if
+        // the original code never touches it again.
+        BitSet ret = (BitSet) methodAnalysis.getLiveLocals(insnIdx).clone();
+        ret.set(flowInstrumentationVariables.getContArg().getIndex());
+        return ret;
     }
 }
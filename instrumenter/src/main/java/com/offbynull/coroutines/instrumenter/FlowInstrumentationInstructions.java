@@ -27,18 +27,21 @@ final class FlowInstrumentationInstructions {
     private final InsnList entryPointInsnList;
     private final Map<AbstractInsnNode, InsnList> invokeInsnNodeReplacements;
     private final List<TryCatchBlockNode> invokeTryCatchBlockNodes;
+    private final InsnList unwindHandlerInsnList;
 
     FlowInstrumentationInstructions(InsnList entryPointInsnList, Map<AbstractInsnNode, InsnList> invokeInsnNodeReplacements,
-            List<TryCatchBlockNode> invokeTryCatchBlockNodes) {
+            List<TryCatchBlockNode> invokeTryCatchBlockNodes, InsnList unwindHandlerInsnList) {
         Validate.notNull(entryPointInsnList);
         Validate.notNull(invokeInsnNodeReplacements);
         Validate.notNull(invokeTryCatchBlockNodes);
+        Validate.notNull(unwindHandlerInsnList);
         Validate.noNullElements(invokeInsnNodeReplacements.keySet());
         Validate.noNullElements(invokeInsnNodeReplacements.values());
         Validate.noNullElements(invokeTryCatchBlockNodes);
         this.entryPointInsnList = entryPointInsnList;
         this.invokeInsnNodeReplacements = invokeInsnNodeReplacements;
         this.invokeTryCatchBlockNodes = invokeTryCatchBlockNodes;
+        this.unwindHandlerInsnList = unwindHandlerInsnList;
     }
 
     // WARNING: Be careful with using these more than once. If you insert one InsnList in to another InsnList, it'll become empty. If you
@@ -52,8 +55,15 @@ final class FlowInstrumentationInstructions {
         return invokeInsnNodeReplacements;
     }
 
+    // Trycatch blocks in the order they must be added, ahead of the method's own trycatch blocks.
     public List<TryCatchBlockNode> getInvokeTryCatchBlockNodes() {
         return invokeTryCatchBlockNodes;
     }
 
+    // Instructions that get added to the end of the method, outside of any of the method's own trycatch blocks. Empty if the method
+    // doesn't need an unwind handler.
+    InsnList getUnwindHandlerInsnList() {
+        return unwindHandlerInsnList;
+    }
+
 }
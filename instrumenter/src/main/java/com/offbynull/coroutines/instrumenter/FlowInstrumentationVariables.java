@@ -25,6 +25,7 @@ import org.objectweb.asm.Type;
 
 final class FlowInstrumentationVariables {
 
+    private final VariableTable varTable;
     private final Variable contArg;
     private final Variable methodStateVar;
     private final Variable tempObjectVar;
@@ -42,6 +43,7 @@ final class FlowInstrumentationVariables {
         Validate.isTrue(methodStateVar.getType().equals(Type.getType(MethodState.class)));
         Validate.isTrue(tempObjectVar.getType().equals(Type.getType(Object.class)));
 
+        this.varTable = varTable;
         this.contArg = contArg;
         this.methodStateVar = methodStateVar;
         this.tempObjectVar = tempObjectVar;
@@ -51,6 +53,12 @@ final class FlowInstrumentationVariables {
         this.returnValObjectVar = varTable.acquireExtra(Object.class);
     }
 
+    // Used for acquiring variables that are only needed for a short stretch of code (e.g. to hold the operand stack while a frame is
+    // being saved by a helper method -- see FrameSaveHelpers). Release them once done so that other continuation points can reuse them.
+    public VariableTable getVariableTable() {
+        return varTable;
+    }
+
     public Variable getContArg() {
         return contArg;
     }
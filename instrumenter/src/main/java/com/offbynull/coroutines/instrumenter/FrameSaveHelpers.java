@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.castToObject;
+import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.saveToSlot;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.call;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.construct;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.ifIntegersEqual;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadIntConst;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadVar;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.merge;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.returnValue;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.saveVar;
+import com.offbynull.coroutines.instrumenter.asm.VariableTable;
+import com.offbynull.coroutines.instrumenter.asm.VariableTable.Variable;
+import com.offbynull.coroutines.user.Continuation;
+import com.offbynull.coroutines.user.LockState;
+import com.offbynull.coroutines.user.MethodState;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.reflect.ConstructorUtils;
+import org.apache.commons.lang3.reflect.MethodUtils;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+// Generates synthetic static methods that save frames, so that the code to save a frame doesn't have to be repeated inline at every
+// continuation point of a method (see InstrumentationSettings.getOutliningThreshold()). Continuation points that save frames of the same
+// shape (same operand stack/live locals types) share the same helper, even across methods in the class.
+//
+// A helper takes in the continuation, the pending count, the continuation point id, the lock state, every item on the operand stack
+// (bottom to top) and every local that needs saving (lowest index first) -- stack items/locals that are always null and locals that
+// aren't live aren't passed in. Objects are passed in as java.lang.Object, so frames that only differ in the types of objects they hold
+// still share a helper. The helper returns the pending count, which it fetches from the continuation if the count passed in was -1 (see
+// FlowInstrumentationGenerator).
+//
+// A method's arguments can take up at most 255 slots (longs and doubles take up 2). Frames too large to be passed in to a helper can't be
+// saved by one, so continuation points that save those frames have to save them inline instead (see canSave()).
+final class FrameSaveHelpers {
+    
+    private static final String NAME_PREFIX = "coroutines$saveFrame$";
+    
+    private static final Method CONTINUATION_GETPENDINGSIZE_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "getPendingSize");
+    private static final Method CONTINUATION_CLEAREXCESSPENDING_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "clearExcessPending", Integer.TYPE);
+    private static final Method CONTINUATION_ADDPENDING_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "addPending", MethodState.class);
+    private static final Method CONTINUATION_ADDPENDINGSLOTS_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "addPendingSlots", Integer.TYPE, LockState.class, Integer.TYPE);
+    private static final Constructor<MethodState> METHODSTATE_INIT_METHOD
+            = ConstructorUtils.getAccessibleConstructor(MethodState.class, Integer.TYPE, Object[].class, Object[].class, LockState.class);
+    
+    private static final int MAX_ARGUMENT_SLOTS = 255;
+    
+    private static final Type OBJECT_TYPE = Type.getType(Object.class);
+    private static final Type[] FIXED_ARGUMENT_TYPES = new Type[] {
+        Type.getType(Continuation.class), // continuation
+        Type.INT_TYPE, // pending count
+        Type.INT_TYPE, // continuation point id
+        Type.getType(LockState.class) // lock state
+    };
+
+    private final ClassNode classNode;
+    private final FrameStorageMode frameStorageMode;
+    private final Map<String, MethodNode> methodNodes; // keyed by frame shape
+    private int nextNameId;
+
+    FrameSaveHelpers(ClassNode classNode, FrameStorageMode frameStorageMode) {
+        Validate.notNull(classNode);
+        Validate.notNull(frameStorageMode);
+        
+        this.classNode = classNode;
+        this.frameStorageMode = frameStorageMode;
+        this.methodNodes = new LinkedHashMap<>();
+    }
+    
+    // Checks if frames of this shape are small enough to be passed in to a helper.
+    boolean canSave(Frame<BasicValue> frame, BitSet liveLocals) {
+        Validate.notNull(frame);
+        Validate.notNull(liveLocals);
+        
+        int argSlots = 0;
+        for (Type type : FIXED_ARGUMENT_TYPES) {
+            argSlots += type.getSize();
+        }
+        
+        for (int i = 0; i < frame.getStackSize(); i++) {
+            Type type = frame.getStack(i).getType();
+            if (!"Lnull;".equals(type.getDescriptor())) {
+                argSlots += type.getSize();
+            }
+        }
+        
+        for (int i = 0; i < frame.getLocals(); i++) {
+            Type type = frame.getLocal(i).getType();
+            if (type == null || "Lnull;".equals(type.getDescriptor()) || !liveLocals.get(i)) {
+                continue;
+            }
+            argSlots += type.getSize();
+        }
+        
+        return argSlots <= MAX_ARGUMENT_SLOTS;
+    }
+    
+    // Gets the invocation for the helper that saves frames of this shape, generating that helper if it doesn't exist yet.
+    MethodInsnNode getInvocation(Frame<BasicValue> frame, BitSet liveLocals) {
+        Validate.notNull(frame);
+        Validate.notNull(liveLocals);
+        Validate.isTrue(canSave(frame, liveLocals));
+        
+        List<Type> stackTypes = new ArrayList<>(); // null entries for items that are always null (they aren't passed in)
+        List<Type> localTypes = new ArrayList<>();
+        StringBuilder key = new StringBuilder();
+        
+        for (int i = 0; i < frame.getStackSize(); i++) {
+            Type type = frame.getStack(i).getType();
+            if ("Lnull;".equals(type.getDescriptor())) {
+                stackTypes.add(null);
+                key.append('N');
+            } else {
+                stackTypes.add(erase(type));
+                key.append(erase(type).getDescriptor());
+            }
+        }
+        key.append('|');
+        
+        for (int i = 0; i < frame.getLocals(); i++) {
+            Type type = frame.getLocal(i).getType();
+            if (type == null || "Lnull;".equals(type.getDescriptor()) || !liveLocals.get(i)) {
+                continue;
+            }
+            localTypes.add(erase(type));
+            key.append(erase(type).getDescriptor());
+        }
+        
+        MethodNode methodNode = methodNodes.get(key.toString());
+        if (methodNode == null) {
+            methodNode = generate(stackTypes, localTypes);
+            methodNodes.put(key.toString(), methodNode);
+        }
+        
+        return new MethodInsnNode(Opcodes.INVOKESTATIC, classNode.name, methodNode.name, methodNode.desc, false);
+    }
+    
+    // Gets the helpers that have been generated so far. These have already been added to the class node's methods, but they still need to
+    // be written out.
+    List<MethodNode> getMethodNodes() {
+        return new ArrayList<>(methodNodes.values());
+    }
+
+    private MethodNode generate(List<Type> stackTypes, List<Type> localTypes) {
+        List<Type> argTypes = new ArrayList<>();
+        for (Type type : FIXED_ARGUMENT_TYPES) {
+            argTypes.add(type);
+        }
+        for (Type type : stackTypes) {
+            if (type != null) {
+                argTypes.add(type);
+            }
+        }
+        argTypes.addAll(localTypes);
+        
+        String desc = Type.getMethodDescriptor(Type.INT_TYPE, argTypes.toArray(new Type[argTypes.size()]));
+        MethodNode methodNode = new MethodNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, nextName(), desc, null,
+                null);
+        classNode.methods.add(methodNode); // needs to be in the class before a VariableTable can be made for it
+        
+        VariableTable varTable = new VariableTable(classNode, methodNode);
+        Variable contArg = varTable.getArgument(0);
+        Variable pendingCountArg = varTable.getArgument(1);
+        Variable idArg = varTable.getArgument(2);
+        Variable lockStateArg = varTable.getArgument(3);
+        
+        Variable[] stackArgs = new Variable[stackTypes.size()];
+        int argIdx = FIXED_ARGUMENT_TYPES.length;
+        for (int i = 0; i < stackTypes.size(); i++) {
+            if (stackTypes.get(i) != null) {
+                stackArgs[i] = varTable.getArgument(argIdx);
+                argIdx++;
+            }
+        }
+        
+        Variable[] localArgs = new Variable[localTypes.size()];
+        for (int i = 0; i < localTypes.size(); i++) {
+            localArgs[i] = varTable.getArgument(argIdx);
+            argIdx++;
+        }
+        
+        // if (pendingCount == -1) {
+        //     pendingCount = continuation.getPendingSize();
+        // }
+        // continuation.clearExcessPending(pendingCount);
+        // <save operand stack and local variables table as a new pending frame>
+        // return pendingCount;
+        InsnList saveInsnList;
+        switch (frameStorageMode) {
+            case METHOD_STATE:
+                saveInsnList = call(CONTINUATION_ADDPENDING_METHOD, loadVar(contArg),
+                        construct(METHODSTATE_INIT_METHOD,
+                                loadVar(idArg),
+                                createArray(stackArgs),
+                                createArray(localArgs),
+                                loadVar(lockStateArg)
+                        )
+                );
+                break;
+            case SLOT_ARENA:
+                // Same layout as ContinuationPointGenerator.saveFrame() -- stack item i goes in slot i, locals get packed in after the
+                // stack
+                saveInsnList = call(CONTINUATION_ADDPENDINGSLOTS_METHOD, loadVar(contArg),
+                        loadVar(idArg),
+                        loadVar(lockStateArg),
+                        loadIntConst(stackArgs.length + localArgs.length)
+                );
+                for (int i = 0; i < stackArgs.length; i++) {
+                    if (stackArgs[i] != null) {
+                        saveInsnList.add(saveToSlot(contArg, i, stackArgs[i].getType(), loadVar(stackArgs[i])));
+                    }
+                }
+                for (int i = 0; i < localArgs.length; i++) {
+                    saveInsnList.add(saveToSlot(contArg, stackArgs.length + i, localArgs[i].getType(), loadVar(localArgs[i])));
+                }
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        
+        methodNode.instructions = merge(
+                ifIntegersEqual(
+                        loadVar(pendingCountArg),
+                        loadIntConst(-1),
+                        merge(
+                                call(CONTINUATION_GETPENDINGSIZE_METHOD, loadVar(contArg)),
+                                saveVar(pendingCountArg)
+                        )
+                ),
+                call(CONTINUATION_CLEAREXCESSPENDING_METHOD, loadVar(contArg), loadVar(pendingCountArg)),
+                saveInsnList,
+                returnValue(Type.INT_TYPE, loadVar(pendingCountArg))
+        );
+        
+        return methodNode;
+    }
+    
+    // creates an object array that contains the variables (boxed if they're primitives), null variables are left as null in the array
+    private static InsnList createArray(Variable[] vars) {
+        InsnList ret = new InsnList();
+        
+        ret.add(new LdcInsnNode(vars.length));
+        ret.add(new TypeInsnNode(Opcodes.ANEWARRAY, "java/lang/Object"));
+        for (int i = 0; i < vars.length; i++) {
+            if (vars[i] == null) {
+                continue;
+            }
+            ret.add(new InsnNode(Opcodes.DUP));
+            ret.add(new LdcInsnNode(i));
+            ret.add(loadVar(vars[i]));
+            ret.add(castToObject(vars[i].getType()));
+            ret.add(new InsnNode(Opcodes.AASTORE));
+        }
+        
+        return ret;
+    }
+    
+    private static Type erase(Type type) {
+        switch (type.getSort()) {
+            case Type.ARRAY:
+            case Type.OBJECT:
+                return OBJECT_TYPE;
+            default:
+                return type;
+        }
+    }
+    
+    private String nextName() {
+        while (true) {
+            String name = NAME_PREFIX + nextNameId;
+            nextNameId++;
+            if (classNode.methods.stream().noneMatch(x -> name.equals(x.name))) {
+                return name;
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+/**
+ * Controls how instrumented methods save their frames (operand stack, local variable table, and monitors) when a coroutine suspends.
+ * @author Kasra Faghihi
+ */
+public enum FrameStorageMode {
+    /**
+     * Each frame is saved as a newly allocated {@link com.offbynull.coroutines.user.MethodState} object, which holds newly allocated
+     * arrays for the operand stack and local variable table.
+     */
+    METHOD_STATE,
+    /**
+     * Each frame is saved directly in to a single growable slot array owned by the {@link com.offbynull.coroutines.user.Continuation}
+     * object. The slot array gets reused between suspend/resume cycles, meaning that nothing gets allocated to save a frame other than
+     * the boxes for primitive values.
+     */
+    SLOT_ARENA
+}
@@ -0,0 +1,574 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.Validate;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Keeps track of what was instrumented in a directory so that classes that haven't changed since the last time don't get instrumented
+ * again.
+ * <p>
+ * For each class file, the hash of the file before and after instrumentation is recorded along with its class hierarchy and the classes it
+ * references. A class file needs to be instrumented if its content changed, or if it references a class whose hierarchy changed (the
+ * stack map frames generated during instrumentation depend on the hierarchy of the types being used). Everything gets instrumented again if
+ * the instrumentation settings or the contents of the classpath change.
+ * <p>
+ * If classes are being instrumented in place (source directory is the same as the target directory), a copy of the original of each class
+ * that got changed by instrumentation is kept. This is needed in case that class has to be instrumented again because some class it
+ * references, the instrumentation settings, or the classpath changed.
+ * <p>
+ * Usage is: {@link #load(File, File, File, List, InstrumentationSettings) }, then {@link #findPathsToInstrument(Collection) }, then
+ * {@link #readInput(String) } and {@link #record(String, byte[], byte[]) } for each path returned, then {@link #save() }.
+ * {@link #readInput(String) } and {@link #record(String, byte[], byte[]) } are safe to call from multiple threads at the same time.
+ * @author Kasra Faghihi
+ */
+public final class IncrementalState {
+    private static final int MAGIC = 0x43494D46; // "CIMF"
+    private static final int VERSION = 2;
+    private static final int ZIP_MAGIC = 0x504B0304; // "PK\3\4", local file header
+    private static final String STATE_FILENAME = "state.bin";
+    private static final String ORIGINALS_DIRECTORY = "originals";
+    private static final Pattern DESCRIPTOR_CLASS_PATTERN = Pattern.compile("L([^;()\\[<>]+);");
+    
+    private final File stateDirectory;
+    private final File sourceDirectory;
+    private final File targetDirectory;
+    private final boolean inPlace;
+    private final String settingsFingerprint;
+    private String fingerprint; // settingsFingerprint combined with whether classes are being instrumented as a batch
+    private final Map<String, ClassEntry> entries;
+    private final Set<String> reinstrumentFromOriginal = ConcurrentHashMap.newKeySet();
+    private Set<String> currentPaths;
+
+    private IncrementalState(File stateDirectory, File sourceDirectory, File targetDirectory, String fingerprint,
+            Map<String, ClassEntry> entries) throws IOException {
+        this.stateDirectory = stateDirectory;
+        this.sourceDirectory = sourceDirectory;
+        this.targetDirectory = targetDirectory;
+        this.inPlace = sourceDirectory.getCanonicalFile().equals(targetDirectory.getCanonicalFile());
+        this.settingsFingerprint = fingerprint;
+        this.fingerprint = fingerprint;
+        this.entries = new ConcurrentHashMap<>(entries);
+    }
+
+    /**
+     * Loads the state of the last instrumentation run. If there was no last run, the state is empty (everything gets instrumented). If
+     * the last run's settings/classpath don't match what's passed in, everything gets instrumented again (from the kept originals if
+     * instrumenting in place).
+     * @param stateDirectory directory to keep state in (created if it doesn't exist)
+     * @param sourceDirectory directory containing the class files to instrument
+     * @param targetDirectory directory to write instrumented class files to (may be the same as {@code sourceDirectory})
+     * @param classpath classpath that the instrumenter is using
+     * @param settings settings that the instrumenter is using
+     * @return state of the last instrumentation run
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IOException if an IO error occurs
+     */
+    public static IncrementalState load(File stateDirectory, File sourceDirectory, File targetDirectory, List<File> classpath,
+            InstrumentationSettings settings) throws IOException {
+        Validate.notNull(stateDirectory);
+        Validate.notNull(sourceDirectory);
+        Validate.notNull(targetDirectory);
+        Validate.notNull(classpath);
+        Validate.notNull(settings);
+        Validate.noNullElements(classpath);
+        
+        String fingerprint = fingerprint(sourceDirectory, targetDirectory, classpath, settings);
+        Map<String, ClassEntry> entries = readStateFile(new File(stateDirectory, STATE_FILENAME));
+        if (entries == null) {
+            // Nothing usable from the last run, so any originals being kept around are useless
+            FileUtils.deleteQuietly(new File(stateDirectory, ORIGINALS_DIRECTORY));
+            entries = new HashMap<>();
+        }
+        // Entries recorded under a different fingerprint are kept (along with their originals) -- they're needed to get back the
+        // uninstrumented class files when instrumenting in place
+        
+        return new IncrementalState(stateDirectory, sourceDirectory, targetDirectory, fingerprint, entries);
+    }
+
+    /**
+     * Finds which class files need to be instrumented.
+     * @param relativePaths paths of all class files currently in the source directory, relative to the source directory and separated by
+     * {@code /}
+     * @return paths from {@code relativePaths} that need to be instrumented
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IOException if an IO error occurs
+     */
+    public List<String> findPathsToInstrument(Collection<String> relativePaths) throws IOException {
+        return findPathsToInstrument(relativePaths, false);
+    }
+
+    /**
+     * Finds which class files need to be instrumented.
+     * @param relativePaths paths of all class files currently in the source directory, relative to the source directory and separated by
+     * {@code /}
+     * @param batch if {@code true}, every class file is treated as depending on every other class file (e.g. when instrumenting with a
+     * {@link CallGraph}) -- if anything changed, all of {@code relativePaths} need to be instrumented (switching this on or off since the
+     * last run means that everything gets instrumented again)
+     * @return paths from {@code relativePaths} that need to be instrumented
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IOException if an IO error occurs
+     */
+    public List<String> findPathsToInstrument(Collection<String> relativePaths, boolean batch) throws IOException {
+        Validate.notNull(relativePaths);
+        Validate.noNullElements(relativePaths);
+        
+        currentPaths = new HashSet<>(relativePaths);
+        // Classes instrumented as a batch come out differently (e.g. calls that can never suspend don't get continuation points), so
+        // switching between the two means that everything needs to be instrumented again
+        fingerprint = batch ? hash((settingsFingerprint + "|batch").getBytes(StandardCharsets.UTF_8)) : settingsFingerprint;
+        
+        Set<String> ret = new LinkedHashSet<>();
+        Map<String, ClassEntry> unchangedEntries = new HashMap<>();
+        Set<String> changedHierarchies = new HashSet<>();
+        
+        // Find files that changed, and take note of classes whose hierarchy changed
+        for (String relativePath : relativePaths) {
+            byte[] data = FileUtils.readFileToByteArray(new File(sourceDirectory, relativePath));
+            String hash = hash(data);
+            ClassEntry entry = entries.get(relativePath);
+            
+            if (entry != null && isUnchanged(relativePath, hash, entry)) {
+                unchangedEntries.put(relativePath, entry);
+                // If the file was instrumented with different settings/classpath, it needs to be instrumented again. When instrumenting in
+                // place, the file in the source directory is what got instrumented last time, so the kept original has to be used.
+                if (!entry.fingerprint.equals(fingerprint)) {
+                    ret.add(relativePath);
+                    if (inPlace) {
+                        reinstrumentFromOriginal.add(relativePath);
+                    }
+                }
+                continue;
+            }
+            
+            ret.add(relativePath);
+            
+            ClassReader classReader = new ClassReader(data);
+            if (entry == null
+                    || !entry.name.equals(classReader.getClassName())
+                    || !Arrays.equals(entry.hierarchy, getHierarchy(classReader))) {
+                changedHierarchies.add(classReader.getClassName());
+                if (entry != null) {
+                    changedHierarchies.add(entry.name);
+                }
+            }
+        }
+        
+        // Classes that were removed count as classes whose hierarchy changed
+        for (Entry<String, ClassEntry> entry : entries.entrySet()) {
+            if (!currentPaths.contains(entry.getKey())) {
+                changedHierarchies.add(entry.getValue().name);
+            }
+        }
+        
+        // If a class's parent's hierarchy changed, so did the class's hierarchy
+        boolean changed = !changedHierarchies.isEmpty();
+        while (changed) {
+            changed = false;
+            for (ClassEntry entry : unchangedEntries.values()) {
+                if (!changedHierarchies.contains(entry.name) && containsAny(changedHierarchies, entry.hierarchy)) {
+                    changedHierarchies.add(entry.name);
+                    changed = true;
+                }
+            }
+        }
+        
+        // If instrumenting as a batch, any change means that unchanged classes need to be instrumented again
+        boolean removed = entries.keySet().stream().anyMatch(x -> !currentPaths.contains(x));
+        if (batch && (!ret.isEmpty() || removed)) {
+            for (String relativePath : unchangedEntries.keySet()) {
+                ret.add(relativePath);
+                if (inPlace) {
+                    reinstrumentFromOriginal.add(relativePath);
+                }
+            }
+        }
+        
+        // Unchanged classes that reference any of the classes whose hierarchy changed need to be instrumented again
+        if (!changedHierarchies.isEmpty()) {
+            for (Entry<String, ClassEntry> entry : unchangedEntries.entrySet()) {
+                ClassEntry classEntry = entry.getValue();
+                if (changedHierarchies.contains(classEntry.name) || containsAny(changedHierarchies, classEntry.references)) {
+                    ret.add(entry.getKey());
+                    if (inPlace) {
+                        reinstrumentFromOriginal.add(entry.getKey());
+                    }
+                }
+            }
+        }
+        
+        return new ArrayList<>(ret);
+    }
+
+    /**
+     * Reads the uninstrumented class file for a path returned by {@link #findPathsToInstrument(Collection) }.
+     * @param relativePath path of class file, relative to the source directory
+     * @return uninstrumented class file
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IOException if an IO error occurs
+     */
+    public byte[] readInput(String relativePath) throws IOException {
+        Validate.notNull(relativePath);
+        
+        if (reinstrumentFromOriginal.contains(relativePath)) {
+            File originalFile = new File(new File(stateDirectory, ORIGINALS_DIRECTORY), relativePath);
+            if (originalFile.isFile()) {
+                return FileUtils.readFileToByteArray(originalFile);
+            }
+            // no original means that instrumentation didn't change the file, so the file in the source directory is the original
+        }
+        
+        return FileUtils.readFileToByteArray(new File(sourceDirectory, relativePath));
+    }
+
+    /**
+     * Records that a class file was instrumented.
+     * @param relativePath path of class file, relative to the source directory
+     * @param input class file before instrumentation
+     * @param output class file after instrumentation
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IOException if an IO error occurs
+     */
+    public void record(String relativePath, byte[] input, byte[] output) throws IOException {
+        Validate.notNull(relativePath);
+        Validate.notNull(input);
+        Validate.notNull(output);
+        
+        if (inPlace) {
+            File originalFile = new File(new File(stateDirectory, ORIGINALS_DIRECTORY), relativePath);
+            if (Arrays.equals(input, output)) {
+                FileUtils.deleteQuietly(originalFile);
+            } else {
+                FileUtils.writeByteArrayToFile(originalFile, input);
+            }
+        }
+        
+        ClassReader classReader = new ClassReader(input);
+        entries.put(relativePath, new ClassEntry(
+                fingerprint,
+                hash(input),
+                hash(output),
+                classReader.getClassName(),
+                getHierarchy(classReader),
+                getReferences(input)));
+    }
+
+    /**
+     * Saves state so that it can be picked up by the next instrumentation run. Should be called even if instrumentation fails part way
+     * through, so that whatever was instrumented before the failure is remembered.
+     * @throws IOException if an IO error occurs
+     */
+    public void save() throws IOException {
+        if (currentPaths != null) {
+            for (String relativePath : new ArrayList<>(entries.keySet())) {
+                if (!currentPaths.contains(relativePath)) {
+                    entries.remove(relativePath);
+                    FileUtils.deleteQuietly(new File(new File(stateDirectory, ORIGINALS_DIRECTORY), relativePath));
+                }
+            }
+        }
+        
+        Files.createDirectories(stateDirectory.toPath());
+        File tempFile = File.createTempFile("state", ".tmp", stateDirectory);
+        try {
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeInt(entries.size());
+                for (Entry<String, ClassEntry> entry : entries.entrySet()) {
+                    ClassEntry classEntry = entry.getValue();
+                    dos.writeUTF(entry.getKey());
+                    dos.writeUTF(classEntry.fingerprint);
+                    dos.writeUTF(classEntry.inputHash);
+                    dos.writeUTF(classEntry.outputHash);
+                    dos.writeUTF(classEntry.name);
+                    writeStrings(dos, classEntry.hierarchy);
+                    writeStrings(dos, classEntry.references);
+                }
+            }
+            Files.move(tempFile.toPath(), new File(stateDirectory, STATE_FILENAME).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+    
+    private boolean isUnchanged(String relativePath, String hash, ClassEntry entry) throws IOException {
+        if (inPlace) {
+            return hash.equals(entry.outputHash);
+        }
+        
+        File targetFile = new File(targetDirectory, relativePath);
+        return hash.equals(entry.inputHash)
+                && targetFile.isFile()
+                && hash(FileUtils.readFileToByteArray(targetFile)).equals(entry.outputHash);
+    }
+    
+    private static String fingerprint(File sourceDirectory, File targetDirectory, List<File> classpath, InstrumentationSettings settings)
+            throws IOException {
+        File canonicalSourceDirectory = sourceDirectory.getCanonicalFile();
+        File canonicalTargetDirectory = targetDirectory.getCanonicalFile();
+        
+        // The directories being instrumented may be on the classpath (e.g. Maven includes the output directory of the module being
+        // instrumented), but changes to them are tracked per class, so they're skipped here.
+        //
+        // Everything else gets fingerprinted by content rather than by timestamp. In a multi-module build, sibling modules on the classpath
+        // get rebuilt (and their JARs rewritten) on every build even if nothing in them changed.
+        StringBuilder sb = new StringBuilder();
+        sb.append(settings).append('\n');
+        for (File classpathElement : classpath) {
+            File canonicalClasspathElement = classpathElement.getCanonicalFile();
+            if (canonicalClasspathElement.equals(canonicalSourceDirectory) || canonicalClasspathElement.equals(canonicalTargetDirectory)) {
+                continue;
+            }
+            
+            sb.append(canonicalClasspathElement).append('|');
+            if (canonicalClasspathElement.isDirectory()) {
+                Path directoryPath = canonicalClasspathElement.toPath();
+                List<File> files = new ArrayList<>(FileUtils.listFiles(canonicalClasspathElement, new String[] {"class"}, true));
+                Collections.sort(files);
+                for (File file : files) {
+                    sb.append(directoryPath.relativize(file.toPath())).append('=').append(hash(FileUtils.readFileToByteArray(file)))
+                            .append('|');
+                }
+            } else if (isZip(canonicalClasspathElement)) {
+                // The CRCs in the central directory cover the contents of each entry, so nothing needs to be decompressed
+                try (ZipFile zipFile = new ZipFile(canonicalClasspathElement)) {
+                    List<String> entryFingerprints = new ArrayList<>();
+                    for (ZipEntry zipEntry : Collections.list(zipFile.entries())) {
+                        if (zipEntry.getName().endsWith(".class")) {
+                            entryFingerprints.add(zipEntry.getName() + '=' + zipEntry.getSize() + ':' + zipEntry.getCrc());
+                        }
+                    }
+                    Collections.sort(entryFingerprints);
+                    for (String entryFingerprint : entryFingerprints) {
+                        sb.append(entryFingerprint).append('|');
+                    }
+                }
+            } else {
+                // e.g. a JDK's module image -- too big to read through, and it only ever changes when the JDK does
+                sb.append(canonicalClasspathElement.length()).append('|').append(canonicalClasspathElement.lastModified());
+            }
+            sb.append('\n');
+        }
+        
+        return hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean isZip(File file) throws IOException {
+        if (!file.isFile()) {
+            return false; // classpath elements that don't exist are fine (the instrumenter ignores them)
+        }
+        
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return dis.readInt() == ZIP_MAGIC;
+        } catch (EOFException eofe) {
+            return false;
+        }
+    }
+
+    private static Map<String, ClassEntry> readStateFile(File stateFile) {
+        if (!stateFile.isFile()) {
+            return null;
+        }
+        
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                return null;
+            }
+            
+            int count = dis.readInt();
+            Map<String, ClassEntry> ret = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String relativePath = dis.readUTF();
+                String fingerprint = dis.readUTF();
+                String inputHash = dis.readUTF();
+                String outputHash = dis.readUTF();
+                String name = dis.readUTF();
+                String[] hierarchy = readStrings(dis);
+                String[] references = readStrings(dis);
+                ret.put(relativePath, new ClassEntry(fingerprint, inputHash, outputHash, name, hierarchy, references));
+            }
+            return ret;
+        } catch (IOException | RuntimeException e) {
+            return null; // corrupt, so ignore
+        }
+    }
+    
+    private static void writeStrings(DataOutputStream dos, String[] strings) throws IOException {
+        dos.writeInt(strings.length);
+        for (String string : strings) {
+            dos.writeUTF(string);
+        }
+    }
+    
+    private static String[] readStrings(DataInputStream dis) throws IOException {
+        String[] ret = new String[dis.readInt()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = dis.readUTF();
+        }
+        return ret;
+    }
+    
+    private static String[] getHierarchy(ClassReader classReader) {
+        // super class followed by interfaces (super class is empty if none)
+        String superName = classReader.getSuperName();
+        String[] interfaces = classReader.getInterfaces();
+        
+        String[] ret = new String[interfaces.length + 1];
+        ret[0] = superName == null ? "" : superName;
+        System.arraycopy(interfaces, 0, ret, 1, interfaces.length);
+        return ret;
+    }
+    
+    private static String[] getReferences(byte[] classData) throws IOException {
+        // Walk the constant pool and pull out every class that gets referenced, either directly or through a descriptor/signature. Since
+        // strings are UTF8 entries as well, this may pick up some junk -- that's fine, at worst it means a class gets instrumented when it
+        // didn't need to be.
+        Set<String> ret = new HashSet<>();
+        
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(classData))) {
+            dis.skipBytes(8); // magic + minor version + major version
+            int count = dis.readUnsignedShort();
+            String[] utf8s = new String[count];
+            List<Integer> classNameIndexes = new ArrayList<>();
+            for (int i = 1; i < count; i++) {
+                int tag = dis.readUnsignedByte();
+                switch (tag) {
+                    case 1: // utf8
+                        utf8s[i] = dis.readUTF();
+                        Matcher matcher = DESCRIPTOR_CLASS_PATTERN.matcher(utf8s[i]);
+                        while (matcher.find()) {
+                            ret.add(matcher.group(1));
+                        }
+                        break;
+                    case 7: // class
+                        classNameIndexes.add(dis.readUnsignedShort());
+                        break;
+                    case 8: // string
+                    case 16: // method type
+                    case 19: // module
+                    case 20: // package
+                        dis.skipBytes(2);
+                        break;
+                    case 15: // method handle
+                        dis.skipBytes(3);
+                        break;
+                    case 3: // integer
+                    case 4: // float
+                    case 9: // field ref
+                    case 10: // method ref
+                    case 11: // interface method ref
+                    case 12: // name and type
+                    case 17: // dynamic
+                    case 18: // invoke dynamic
+                        dis.skipBytes(4);
+                        break;
+                    case 5: // long
+                    case 6: // double
+                        dis.skipBytes(8);
+                        i++; // takes up 2 entries
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unrecognized constant pool tag: " + tag);
+                }
+            }
+            
+            for (int classNameIndex : classNameIndexes) {
+                String className = utf8s[classNameIndex];
+                if (!className.startsWith("[")) { // arrays are descriptors, so they were already picked up above
+                    ret.add(className);
+                }
+            }
+        }
+        
+        return ret.toArray(new String[ret.size()]);
+    }
+    
+    private static boolean containsAny(Set<String> set, String[] values) {
+        for (String value : values) {
+            if (set.contains(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xFF));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae); // should never happen, SHA-1 is required to be present
+        }
+    }
+    
+    private static final class ClassEntry {
+        private final String fingerprint; // fingerprint of the settings/classpath the class file was instrumented with
+        private final String inputHash;
+        private final String outputHash;
+        private final String name;
+        private final String[] hierarchy;
+        private final String[] references;
+
+        ClassEntry(String fingerprint, String inputHash, String outputHash, String name, String[] hierarchy, String[] references) {
+            this.fingerprint = fingerprint;
+            this.inputHash = inputHash;
+            this.outputHash = outputHash;
+            this.name = name;
+            this.hierarchy = hierarchy;
+            this.references = references;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Settings that control how classes get instrumented.
+ * @author Kasra Faghihi
+ */
+public final class InstrumentationSettings {
+    
+    /**
+     * Default outlining threshold. This is HotSpot's default {@code FreqInlineSize}, which is the biggest a method's bytecode can be for
+     * it to be inlined in to a hot call site.
+     */
+    public static final int DEFAULT_OUTLINING_THRESHOLD = 325;
+    
+    /**
+     * Default settings.
+     */
+    public static final InstrumentationSettings DEFAULT = new InstrumentationSettings(FrameStorageMode.METHOD_STATE);
+    
+    private final FrameStorageMode frameStorageMode;
+    private final boolean loopPreemption;
+    private final int outliningThreshold;
+    private final boolean stateMachineLowering;
+    private final UnwindMode unwindMode;
+
+    /**
+     * Constructs a {@link InstrumentationSettings} object. Equivalent to calling
+     * {@code new InstrumentationSettings(frameStorageMode, false)}.
+     * @param frameStorageMode how frames get saved when a coroutine suspends
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public InstrumentationSettings(FrameStorageMode frameStorageMode) {
+        this(frameStorageMode, false);
+    }
+
+    /**
+     * Constructs a {@link InstrumentationSettings} object. Equivalent to calling
+     * {@code new InstrumentationSettings(frameStorageMode, loopPreemption, DEFAULT_OUTLINING_THRESHOLD)}.
+     * @param frameStorageMode how frames get saved when a coroutine suspends
+     * @param loopPreemption if {@code true}, loops within methods that take in a
+     * {@link com.offbynull.coroutines.user.Continuation} will suspend on their own once the coroutine's preemption budget runs out (see
+     * {@link com.offbynull.coroutines.user.CoroutineRunner#setPreemptionBudget(int)})
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public InstrumentationSettings(FrameStorageMode frameStorageMode, boolean loopPreemption) {
+        this(frameStorageMode, loopPreemption, DEFAULT_OUTLINING_THRESHOLD);
+    }
+
+    /**
+     * Constructs a {@link InstrumentationSettings} object.
+     * @param frameStorageMode how frames get saved when a coroutine suspends
+     * @param loopPreemption if {@code true}, loops within methods that take in a
+     * {@link com.offbynull.coroutines.user.Continuation} will suspend on their own once the coroutine's preemption budget runs out (see
+     * {@link com.offbynull.coroutines.user.CoroutineRunner#setPreemptionBudget(int)})
+     * @param outliningThreshold if an instrumented method's bytecode would end up bigger than this many bytes, the code that saves its
+     * frame at each continuation point gets moved out in to synthetic helper methods (shared between continuation points that save
+     * frames of the same shape) rather than being repeated inline at every continuation point -- use {@code 0} to always do this and
+     * {@link Integer#MAX_VALUE} to never do this
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code outliningThreshold < 0}
+     */
+    public InstrumentationSettings(FrameStorageMode frameStorageMode, boolean loopPreemption, int outliningThreshold) {
+        this(frameStorageMode, loopPreemption, outliningThreshold, false);
+    }
+
+    /**
+     * Constructs a {@link InstrumentationSettings} object.
+     * @param frameStorageMode how frames get saved when a coroutine suspends
+     * @param loopPreemption if {@code true}, loops within methods that take in a
+     * {@link com.offbynull.coroutines.user.Continuation} will suspend on their own once the coroutine's preemption budget runs out (see
+     * {@link com.offbynull.coroutines.user.CoroutineRunner#setPreemptionBudget(int)})
+     * @param outliningThreshold if an instrumented method's bytecode would end up bigger than this many bytes, the code that saves its
+     * frame at each continuation point gets moved out in to synthetic helper methods (shared between continuation points that save
+     * frames of the same shape) rather than being repeated inline at every continuation point -- use {@code 0} to always do this and
+     * {@link Integer#MAX_VALUE} to never do this
+     * @param stateMachineLowering if {@code true}, {@link com.offbynull.coroutines.user.Coroutine} implementations whose {@code run()}
+     * methods only ever suspend by calling {@link com.offbynull.coroutines.user.Continuation#suspend()} directly (never within a method
+     * they invoke) are lowered in to state machines that keep their frame in synthetic fields of the coroutine object rather than saving
+     * it to the {@link com.offbynull.coroutines.user.Continuation} -- coroutine objects lowered this way must not be run by more than one
+     * {@link com.offbynull.coroutines.user.CoroutineRunner} at a time
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code outliningThreshold < 0}
+     */
+    public InstrumentationSettings(FrameStorageMode frameStorageMode, boolean loopPreemption, int outliningThreshold,
+            boolean stateMachineLowering) {
+        this(frameStorageMode, loopPreemption, outliningThreshold, stateMachineLowering, UnwindMode.RETURN);
+    }
+
+    /**
+     * Constructs a {@link InstrumentationSettings} object.
+     * @param frameStorageMode how frames get saved when a coroutine suspends
+     * @param loopPreemption if {@code true}, loops within methods that take in a
+     * {@link com.offbynull.coroutines.user.Continuation} will suspend on their own once the coroutine's preemption budget runs out (see
+     * {@link com.offbynull.coroutines.user.CoroutineRunner#setPreemptionBudget(int)})
+     * @param outliningThreshold if an instrumented method's bytecode would end up bigger than this many bytes, the code that saves its
+     * frame at each continuation point gets moved out in to synthetic helper methods (shared between continuation points that save
+     * frames of the same shape) rather than being repeated inline at every continuation point -- use {@code 0} to always do this and
+     * {@link Integer#MAX_VALUE} to never do this
+     * @param stateMachineLowering if {@code true}, {@link com.offbynull.coroutines.user.Coroutine} implementations whose {@code run()}
+     * methods only ever suspend by calling {@link com.offbynull.coroutines.user.Continuation#suspend()} directly (never within a method
+     * they invoke) are lowered in to state machines that keep their frame in synthetic fields of the coroutine object rather than saving
+     * it to the {@link com.offbynull.coroutines.user.Continuation} -- coroutine objects lowered this way must not be run by more than one
+     * {@link com.offbynull.coroutines.user.CoroutineRunner} at a time
+     * @param unwindMode how instrumented methods get out of the way once a coroutine suspends
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code outliningThreshold < 0}
+     */
+    public InstrumentationSettings(FrameStorageMode frameStorageMode, boolean loopPreemption, int outliningThreshold,
+            boolean stateMachineLowering, UnwindMode unwindMode) {
+        Validate.notNull(frameStorageMode);
+        Validate.notNull(unwindMode);
+        Validate.isTrue(outliningThreshold >= 0);
+        this.frameStorageMode = frameStorageMode;
+        this.loopPreemption = loopPreemption;
+        this.outliningThreshold = outliningThreshold;
+        this.stateMachineLowering = stateMachineLowering;
+        this.unwindMode = unwindMode;
+    }
+
+    /**
+     * Get how frames get saved when a coroutine suspends.
+     * @return frame storage mode
+     */
+    public FrameStorageMode getFrameStorageMode() {
+        return frameStorageMode;
+    }
+
+    /**
+     * Get whether loops get preemption points.
+     * @return {@code true} if loops suspend on their own once the coroutine's preemption budget runs out
+     */
+    public boolean isLoopPreemption() {
+        return loopPreemption;
+    }
+
+    /**
+     * Get the size (in bytes) an instrumented method's bytecode has to go over before its frame saving code gets moved out in to helper
+     * methods.
+     * @return outlining threshold
+     */
+    public int getOutliningThreshold() {
+        return outliningThreshold;
+    }
+
+    /**
+     * Get whether coroutines that only ever suspend directly get lowered in to state machines.
+     * @return {@code true} if coroutines that only ever suspend directly keep their frame in fields of the coroutine object
+     */
+    public boolean isStateMachineLowering() {
+        return stateMachineLowering;
+    }
+
+    /**
+     * Get how instrumented methods get out of the way once a coroutine suspends.
+     * @return unwind mode
+     */
+    public UnwindMode getUnwindMode() {
+        return unwindMode;
+    }
+
+    @Override
+    public String toString() {
+        return "InstrumentationSettings{" + "frameStorageMode=" + frameStorageMode + ", loopPreemption=" + loopPreemption
+                + ", outliningThreshold=" + outliningThreshold + ", stateMachineLowering=" + stateMachineLowering
+                + ", unwindMode=" + unwindMode + '}';
+    }
+    
+}
@@ -16,9 +16,18 @@
  */
 package com.offbynull.coroutines.instrumenter;
 
+import com.offbynull.coroutines.instrumenter.asm.ClassInformation;
 import com.offbynull.coroutines.instrumenter.asm.ClassInformationRepository;
+import com.offbynull.coroutines.instrumenter.asm.LivenessAnalyzer;
+import com.offbynull.coroutines.instrumenter.asm.RematerializationAnalyzer;
 import com.offbynull.coroutines.instrumenter.asm.SimpleClassWriter;
 import com.offbynull.coroutines.instrumenter.asm.VariableTable;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.call;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.ifIntegersEqual;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadIntConst;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadVar;
+import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.constantPoolContains;
+import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findBackwardJumps;
 import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findInvocationsOf;
 import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findInvocationsWithParameter;
 import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findMethodsWithParameter;
@@ -27,26 +36,41 @@ import com.offbynull.coroutines.instrumenter.asm.SimpleClassNode;
 import com.offbynull.coroutines.instrumenter.asm.SimpleVerifier;
 import com.offbynull.coroutines.instrumenter.asm.VariableTable.Variable;
 import com.offbynull.coroutines.user.Continuation;
+import com.offbynull.coroutines.user.Coroutine;
 import com.offbynull.coroutines.user.MethodState;
 import com.offbynull.coroutines.user.Instrumented;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.reflect.MethodUtils;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
-import org.objectweb.asm.tree.TryCatchBlockNode;
 import org.objectweb.asm.tree.analysis.Analyzer;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.BasicValue;
@@ -55,34 +79,96 @@ import org.objectweb.asm.tree.analysis.Frame;
 /**
  * Instruments methods in Java classes that are intended to be run as coroutines. Tested with Java 1.2 and Java 8, so hopefully thing should
  * work with all versions of Java inbetween.
+ * <p>
+ * This class is thread-safe -- multiple classes can be instrumented at the same time.
+ * <p>
+ * Instrumenters created from a classpath should be closed once they're no longer needed, so that the files read from that classpath get
+ * closed.
  * @author Kasra Faghihi
  */
-public final class Instrumenter {
+public final class Instrumenter implements Closeable {
 
     private static final Type INSTRUMENTED_CLASS_TYPE = Type.getType(Instrumented.class);
     private static final Type CONTINUATION_CLASS_TYPE = Type.getType(Continuation.class);
+    private static final Type COROUTINE_CLASS_TYPE = Type.getType(Coroutine.class);
+    private static final String COROUTINE_RUN_METHOD_DESC = Type.getMethodDescriptor(Type.VOID_TYPE, CONTINUATION_CLASS_TYPE);
     private static final Method CONTINUATION_SUSPEND_METHOD
             = MethodUtils.getAccessibleMethod(Continuation.class, "suspend");
+    private static final Method CONTINUATION_CHECKPREEMPTION_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "checkPreemption");
 
-    private ClassInformationRepository classRepo;
+    private final ClassInformationRepository classRepo;
+    private final boolean classRepoOwned; // true if created by this instrumenter, in which case it gets closed by this instrumenter
+    private final InstrumentationSettings settings;
 
     /**
-     * Constructs a {@link Instrumenter} object.
+     * Constructs a {@link Instrumenter} object. Equivalent to calling
+     * {@code new Instrumenter(classpath, InstrumentationSettings.DEFAULT)}.
      * @param classpath classpath JARs and folders to use for instrumentation (this is needed by ASM to generate stack map frames).
      * @throws IOException if classes in the classpath could not be loaded up
      * @throws NullPointerException if any argument is {@code null} or contains {@code null}
      */
     public Instrumenter(List<File> classpath) throws IOException {
+        this(classpath, InstrumentationSettings.DEFAULT);
+    }
+
+    /**
+     * Constructs a {@link Instrumenter} object.
+     * @param classpath classpath JARs and folders to use for instrumentation (this is needed by ASM to generate stack map frames).
+     * @param settings instrumentation settings
+     * @throws IOException if classes in the classpath could not be loaded up
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     */
+    public Instrumenter(List<File> classpath, InstrumentationSettings settings) throws IOException {
         Validate.notNull(classpath);
+        Validate.notNull(settings);
         Validate.noNullElements(classpath);
 
         classRepo = ClassInformationRepository.create(classpath);
+        classRepoOwned = true;
+        this.settings = settings;
+    }
+
+    /**
+     * Constructs a {@link Instrumenter} object.
+     * @param classRepo information about classes on the classpath (this is needed by ASM to generate stack map frames).
+     * @param settings instrumentation settings
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public Instrumenter(ClassInformationRepository classRepo, InstrumentationSettings settings) {
+        Validate.notNull(classRepo);
+        Validate.notNull(settings);
+
+        this.classRepo = classRepo;
+        classRepoOwned = false;
+        this.settings = settings;
+    }
+
+    /**
+     * Closes the files opened for the classpath this instrumenter was created with. Does nothing if this instrumenter was created with a
+     * {@link ClassInformationRepository}, closing that is left to whoever created it.
+     * @throws IOException if an IO error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (classRepoOwned) {
+            classRepo.close();
+        }
+    }
+
+    /**
+     * Get the settings this instrumenter was created with.
+     * @return instrumentation settings
+     */
+    public InstrumentationSettings getSettings() {
+        return settings;
     }
 
     /**
      * Instruments a class.
      * @param input class file contents
-     * @return instrumented class
+     * @return instrumented class, or {@code input} itself if the class didn't need to be instrumented (don't modify {@code input} or the
+     * returned array if this is a concern)
      * @throws IllegalArgumentException if the class could not be instrumented for some reason
      * @throws NullPointerException if any argument is {@code null}
      */
@@ -90,31 +176,63 @@ public final class Instrumenter {
         Validate.notNull(input);
         Validate.isTrue(input.length > 0);
         
-        // Read class as tree model -- because we're using SimpleClassNode, JSR blocks get inlined
+        return instrumentClass(input, null);
+    }
+
+    /**
+     * Instruments a class that's part of a batch of classes being instrumented together. Invocations that {@code callGraph} proves can
+     * never suspend are left as plain invocations.
+     * @param input class file contents
+     * @param callGraph call graph of the batch that this class is a part of
+     * @return instrumented class, or {@code input} itself if the class didn't need to be instrumented (don't modify {@code input} or the
+     * returned array if this is a concern)
+     * @throws IllegalArgumentException if the class could not be instrumented for some reason, or if {@code callGraph} was built using
+     * different settings
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public byte[] instrument(byte[] input, CallGraph callGraph) {
+        Validate.notNull(input);
+        Validate.notNull(callGraph);
+        Validate.isTrue(input.length > 0);
+        Validate.isTrue(callGraph.isLoopPreemption() == settings.isLoopPreemption(), "Call graph built using different settings");
+        
+        return instrumentClass(input, callGraph);
+    }
+
+    // callGraph is null if not instrumenting as part of a batch
+    private byte[] instrumentClass(byte[] input, CallGraph callGraph) {
+        // Quickly rule out classes that don't need to be instrumented. Methods that need to be instrumented take in a Continuation, so if
+        // the Continuation descriptor isn't in the constant pool, there's nothing to do. Most classes get skipped here, before they're
+        // parsed in to a tree.
         ClassReader cr = new ClassReader(input);
+        if (!constantPoolContains(cr, CONTINUATION_CLASS_TYPE.getDescriptor())) {
+            return input;
+        }
+        
+        // Read class as tree model -- because we're using SimpleClassNode, JSR blocks get inlined
         ClassNode classNode = new SimpleClassNode();
         cr.accept(classNode, 0);
 
         // Is this class an interface? if so, skip it
         if ((classNode.access & Opcodes.ACC_INTERFACE) == Opcodes.ACC_INTERFACE) {
-            return input.clone();
+            return input;
         }
 
         // Has this class already been instrumented? if so, skip it
         if (classNode.interfaces.contains(INSTRUMENTED_CLASS_TYPE.getInternalName())) {
-            return input.clone();
+            return input;
         }
 
         // Find methods that need to be instrumented. If none are found, skip
         List<MethodNode> methodNodesToInstrument = findMethodsWithParameter(classNode.methods, CONTINUATION_CLASS_TYPE);
         if (methodNodesToInstrument.isEmpty()) {
-            return input.clone();
+            return input;
         }
         
-        // Add the "Instrumented" interface to this class so if we ever come back to it, we can skip it
-        classNode.interfaces.add(INSTRUMENTED_CLASS_TYPE.getInternalName());
-
         // Instrument each method that was returned
+        Map<String, MethodNode> instrumentedMethodNodes = new HashMap<>(); // keyed by name + desc
+        FrameSaveHelpers frameSaveHelpers = new FrameSaveHelpers(classNode, settings.getFrameStorageMode()); // shared by all methods
+        List<FieldNode> addedFieldNodes = new ArrayList<>();
         for (MethodNode methodNode : methodNodesToInstrument) {
             // Check if method is constructor -- we cannot instrument constructor
             Validate.isTrue(!"<init>".equals(methodNode.name), "Instrumentation of constructors not allowed");
@@ -124,12 +242,23 @@ public final class Instrumenter {
             Validate.isTrue(searchForOpcodes(methodNode.instructions, Opcodes.JSR).isEmpty(),
                     "JSR instructions not allowed");
             
+            // Add preemption points to loops if enabled -- these are suspend() invocations, so they get picked up as continuation points
+            // below just like any other suspend() invocation
+            if (settings.isLoopPreemption()) {
+                insertLoopPreemptionPoints(classNode, methodNode);
+            }
+            
             // Find invocations of continuation points
             List<AbstractInsnNode> suspendInvocationInsnNodes
                     = findInvocationsOf(methodNode.instructions, CONTINUATION_SUSPEND_METHOD);
             List<AbstractInsnNode> invokeInvocationInsnNodes
                     = findInvocationsWithParameter(methodNode.instructions, CONTINUATION_CLASS_TYPE);
             
+            // Invocations that the call graph proves can never suspend don't need to be continuation points -- they stay as they are
+            if (callGraph != null) {
+                invokeInvocationInsnNodes.removeIf(x -> x instanceof MethodInsnNode && callGraph.isNonSuspending((MethodInsnNode) x));
+            }
+            
             // If there are no continuation points, we don't need to instrument this method. It'll be like any other normal method
             // invocation because it won't have the potential to pause or call in to another method that may potentially pause.
             if (suspendInvocationInsnNodes.isEmpty() && invokeInvocationInsnNodes.isEmpty()) {
@@ -149,6 +278,31 @@ public final class Instrumenter {
                 throw new IllegalArgumentException("Analyzer failed to analyze method", ae);
             }
             
+            // Find which locals are live at each instruction, only live locals need to be saved/restored at continuation points
+            BitSet[] liveLocals = LivenessAnalyzer.analyze(methodNode);
+            
+            // Find which locals can be regenerated at each instruction rather than saved/restored at continuation points
+            BitSet unmodifiedArgs = RematerializationAnalyzer.findUnmodifiedArguments(methodNode);
+            Object[][] constantLocals = RematerializationAnalyzer.findConstantLocals(classNode.name, methodNode);
+            MethodAnalysis methodAnalysis = new MethodAnalysis(frames, liveLocals, unmodifiedArgs, constantLocals);
+            
+            // If this is a coroutine's run() method and the only continuation points are suspend() invocations, lower it in to a state
+            // machine that keeps its frame in fields of the coroutine object instead of in the Continuation
+            if (settings.isStateMachineLowering()
+                    && isCoroutineRunMethod(classNode, methodNode)
+                    && StateMachineGenerator.canLower(methodNode, suspendInvocationInsnNodes, invokeInvocationInsnNodes, frames)) {
+                StateMachineGenerator stateMachineGenerator = new StateMachineGenerator(
+                        classNode,
+                        methodNode,
+                        suspendInvocationInsnNodes,
+                        methodAnalysis,
+                        settings.getUnwindMode());
+                applyInstrumentationLogic(methodNode, stateMachineGenerator.generate(), Collections.emptyMap());
+                addedFieldNodes.addAll(stateMachineGenerator.getFieldNodes());
+                instrumentedMethodNodes.put(methodNode.name + methodNode.desc, methodNode);
+                continue;
+            }
+            
             // Manage arguments and additional local variables that we need for instrumentation
             int contArgIdx = getLocalVariableIndexOfContinuationParameter(methodNode);
             
@@ -160,6 +314,7 @@ public final class Instrumenter {
             // Generate code to deal with suspending around synchronized blocks
             MonitorInstrumentationVariables monitorInstrumentationVariables = new MonitorInstrumentationVariables(
                     varTable,
+                    contArg,
                     methodStateVar,
                     tempObjVar);
             MonitorInstrumentationInstructions monitorInstrumentationLogic = new MonitorInstrumentationGenerator(
@@ -177,29 +332,64 @@ public final class Instrumenter {
                     methodNode,
                     suspendInvocationInsnNodes,
                     invokeInvocationInsnNodes,
-                    frames,
+                    methodAnalysis,
                     monitorInstrumentationLogic,
-                    flowInstrumentationVariables)
+                    flowInstrumentationVariables,
+                    settings,
+                    frameSaveHelpers)
                     .generate();
             
             // Apply generated code
-            applyInstrumentationLogic(methodNode, flowInstrumentationInstructions, monitorInstrumentationLogic);
+            applyInstrumentationLogic(methodNode, flowInstrumentationInstructions,
+                    monitorInstrumentationLogic.getMonitorInsnNodeReplacements());
+            instrumentedMethodNodes.put(methodNode.name + methodNode.desc, methodNode);
         }
 
-        // Write tree model back out as class
-        ClassWriter cw = new SimpleClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES, classRepo);
-        classNode.accept(cw);
+        // Write class back out. The writer is linked to the original reader, so the original constant pool gets copied over and any method
+        // passed straight from the reader to the writer gets copied over byte-for-byte (no frames/maxs get computed for it). Only the
+        // methods that were instrumented get written from the tree model (and have their frames/maxs computed). Any frame save helpers
+        // and state machine fields that were generated get tacked on to the end.
+        ClassWriter cw = new SimpleClassWriter(cr, ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES, classRepo);
+        cr.accept(new ClassVisitor(Opcodes.ASM5, cw) {
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                // Add the "Instrumented" interface to this class so if we ever come back to it, we can skip it
+                String[] newInterfaces = Arrays.copyOf(interfaces, interfaces.length + 1);
+                newInterfaces[interfaces.length] = INSTRUMENTED_CLASS_TYPE.getInternalName();
+                super.visit(version, access, name, signature, superName, newInterfaces);
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                MethodNode instrumentedMethodNode = instrumentedMethodNodes.get(name + desc);
+                if (instrumentedMethodNode != null) {
+                    instrumentedMethodNode.accept(cv);
+                    return null;
+                }
+                return super.visitMethod(access, name, desc, signature, exceptions);
+            }
+
+            @Override
+            public void visitEnd() {
+                for (FieldNode addedFieldNode : addedFieldNodes) {
+                    addedFieldNode.accept(cv);
+                }
+                for (MethodNode helperMethodNode : frameSaveHelpers.getMethodNodes()) {
+                    helperMethodNode.accept(cv);
+                }
+                super.visitEnd();
+            }
+        }, 0);
         return cw.toByteArray();
     }
     
     private void applyInstrumentationLogic(MethodNode methodNode,
             FlowInstrumentationInstructions flowInstrumentationLogic,
-            MonitorInstrumentationInstructions monitorInstrumentationLogic) {
+            Map<AbstractInsnNode, InsnList> monitorReplacements) {
         
-        // Add trycatch nodes
-        for (TryCatchBlockNode tryCatchBlockNode : flowInstrumentationLogic.getInvokeTryCatchBlockNodes()) {
-            methodNode.tryCatchBlocks.add(0, tryCatchBlockNode);
-        }
+        // Add trycatch nodes -- generated trycatch nodes must come before the original ones, and must keep their order (the ones that
+        // guard against UnwindSignal must come before any other generated ones that cover the same instructions)
+        methodNode.tryCatchBlocks.addAll(0, flowInstrumentationLogic.getInvokeTryCatchBlockNodes());
         
         // Add loading code
         InsnList entryPointInsnList = flowInstrumentationLogic.getEntryPointInsnList();
@@ -215,8 +405,10 @@ public final class Instrumenter {
             methodNode.instructions.remove(nodeToReplace);
         }
         
+        // Add unwind handler -- the original method ends in a return/throw/goto, so nothing falls through in to this
+        methodNode.instructions.add(flowInstrumentationLogic.getUnwindHandlerInsnList());
+        
         // Add instrumented monitorenter/monitorexits instructions
-        Map<AbstractInsnNode, InsnList> monitorReplacements = monitorInstrumentationLogic.getMonitorInsnNodeReplacements();
         for (Entry<AbstractInsnNode, InsnList> replaceEntry : monitorReplacements.entrySet()) {
             AbstractInsnNode nodeToReplace = replaceEntry.getKey();
             InsnList insnsToReplaceWith = replaceEntry.getValue();
@@ -226,6 +418,74 @@ public final class Instrumenter {
         }
     }
 
+    private void insertLoopPreemptionPoints(ClassNode classNode, MethodNode methodNode) {
+        // A jump backwards is the tail end of a loop. Right before each of these, add the following...
+        //
+        // if (continuation.checkPreemption()) {
+        //     continuation.suspend();
+        // }
+        //
+        // Backward jumps are found before anything is inserted so that the instruction indexes being compared don't shift around.
+        InsnList insnList = methodNode.instructions;
+        List<JumpInsnNode> backwardJumpInsnNodes = findBackwardJumps(insnList);
+        
+        if (backwardJumpInsnNodes.isEmpty()) {
+            return;
+        }
+        
+        int contArgIdx = getLocalVariableIndexOfContinuationParameter(methodNode);
+        Variable contArg = new VariableTable(classNode, methodNode).getArgument(contArgIdx);
+        for (JumpInsnNode jumpInsnNode : backwardJumpInsnNodes) {
+            InsnList preemptionInsnList = ifIntegersEqual(
+                    call(CONTINUATION_CHECKPREEMPTION_METHOD, loadVar(contArg)),
+                    loadIntConst(1),
+                    call(CONTINUATION_SUSPEND_METHOD, loadVar(contArg)));
+            insnList.insertBefore(jumpInsnNode, preemptionInsnList);
+        }
+        
+        // The comparison above pushes 2 items on top of whatever's already on the stack at the jump. The analyzer needs room for them (the
+        // real max gets recomputed when the class is written out).
+        methodNode.maxStack += 2;
+    }
+
+    private boolean isCoroutineRunMethod(ClassNode classNode, MethodNode methodNode) {
+        if (!"run".equals(methodNode.name)
+                || !COROUTINE_RUN_METHOD_DESC.equals(methodNode.desc)
+                || (methodNode.access & (Opcodes.ACC_STATIC | Opcodes.ACC_ABSTRACT)) != 0) {
+            return false;
+        }
+        
+        // Coroutine may be implemented by a super class or through an interface that extends it, so search through everything that this
+        // class inherits from. Classes that can't be found are skipped.
+        Deque<String> pending = new ArrayDeque<>();
+        if (classNode.superName != null) {
+            pending.add(classNode.superName);
+        }
+        pending.addAll(classNode.interfaces);
+        
+        Set<String> visited = new HashSet<>();
+        while (!pending.isEmpty()) {
+            String name = pending.removeFirst();
+            if (name.equals(COROUTINE_CLASS_TYPE.getInternalName())) {
+                return true;
+            }
+            if (!visited.add(name)) {
+                continue;
+            }
+            
+            ClassInformation classInformation = classRepo.getInformation(name);
+            if (classInformation == null) {
+                continue;
+            }
+            if (classInformation.getSuperClassName() != null) {
+                pending.add(classInformation.getSuperClassName());
+            }
+            pending.addAll(classInformation.getInterfaces());
+        }
+        
+        return false;
+    }
+
     private int getLocalVariableIndexOfContinuationParameter(MethodNode methodNode) {
         // If it is NOT static, the first index in the local variables table is always the "this" pointer, followed by the arguments passed
         // in to the method.
@@ -20,36 +20,21 @@ import static com.offbynull.coroutines.instrumenter.ContinuationPointInstruction
 import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.loadAndCastToOriginal;
 import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.throwThrowableInVariable;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.addLabel;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.call;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.cloneInsnList;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.cloneInvokeNode;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.construct;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.empty;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.ifIntegersEqual;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.jumpTo;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.lineNumber;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadIntConst;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadLocalVariableTable;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadOperandStackPrefix;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadOperandStackSuffix;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadVar;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.merge;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.returnDummy;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.saveLocalVariableTable;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.saveOperandStack;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.saveVar;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.tryCatchBlock;
 import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.getRequiredStackCountForInvocation;
 import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.getReturnTypeOfInvocation;
 import com.offbynull.coroutines.instrumenter.asm.VariableTable.Variable;
-import static com.offbynull.coroutines.user.Continuation.MODE_SAVING;
 import java.util.ArrayList;
 import java.util.List;
 import org.objectweb.asm.Type;
-import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.LabelNode;
-import org.objectweb.asm.tree.LineNumberNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
 import org.objectweb.asm.tree.analysis.BasicValue;
 import org.objectweb.asm.tree.analysis.Frame;
@@ -57,15 +42,15 @@ import org.objectweb.asm.tree.analysis.Frame;
 final class InvokeWithinTryCatchContinuationPointGenerator extends ContinuationPointGenerator {
 
     public InvokeWithinTryCatchContinuationPointGenerator(
-            int id,
-            AbstractInsnNode invokeInsnNode,
-            LineNumberNode invokeLineNumberNode,
-            Frame<BasicValue> frame,
+            ContinuationPoint continuationPoint,
             Type returnType,
             FlowInstrumentationVariables flowInstrumentationVariables,
-            MonitorInstrumentationInstructions monitorInstrumentationInstructions) {
-        super(id, invokeInsnNode, invokeLineNumberNode, frame, returnType, flowInstrumentationVariables,
-                monitorInstrumentationInstructions);
+            MonitorInstrumentationInstructions monitorInstrumentationInstructions,
+            InstrumentationSettings settings,
+            FrameSaveHelpers frameSaveHelpers,
+            LabelNode unwindHandlerLabelNode) {
+        super(continuationPoint, returnType, flowInstrumentationVariables, monitorInstrumentationInstructions, settings, frameSaveHelpers,
+                unwindHandlerLabelNode);
     }
     
     
@@ -78,7 +63,7 @@ final class InvokeWithinTryCatchContinuationPointGenerator extends ContinuationP
         return new ContinuationPointInstructions(
                 getInvokeInsnNode(),
                 generateLoadInstructions(continueExecLabelNode, failedRestoreExecLabelNode, tryCatchBlockNodes),
-                generateInvokeReplacementInstructions(continueExecLabelNode, failedRestoreExecLabelNode),
+                generateInvokeReplacementInstructions(continueExecLabelNode, failedRestoreExecLabelNode, tryCatchBlockNodes),
                 tryCatchBlockNodes);
     }
     
@@ -86,25 +71,20 @@ final class InvokeWithinTryCatchContinuationPointGenerator extends ContinuationP
             LabelNode continueExecLabelNode,
             LabelNode failedRestoreExecLabelNode,
             List<TryCatchBlockNode> tryCatchBlockNodes) {
-        // tryCatchBlock() invocation further on in this method will populate TryCatchBlockNode fields
+        // tryCatchBlock() invocation further on in this method will populate TryCatchBlockNode fields. It must come after the trycatch
+        // block that guards the invocation for unwinding (if there is one), otherwise it would catch UnwindSignal.
         TryCatchBlockNode newTryCatchBlockNode = new TryCatchBlockNode(null, null, null, null);
+        InsnList invokeInsnList = invokeAndGuardUnwind(tryCatchBlockNodes);
         tryCatchBlockNodes.add(newTryCatchBlockNode);
         
         FlowInstrumentationVariables vars = getFlowInstrumentationVariables();
         MonitorInstrumentationInstructions monInsts = getMonitorInstrumentationInstructions();
         
-        Variable contArg = vars.getContArg();
-        Variable methodStateVar = vars.getMethodStateVar();
-        Variable savedLocalsVar = vars.getSavedLocalsVar();
-        Variable savedStackVar = vars.getSavedStackVar();
-        Variable tempObjVar = vars.getTempObjectVar();
         Variable tempObjVar2 = vars.getTempObjVar2();
         
         InsnList enterMonitorsInLockStateInsnList = monInsts.getEnterMonitorsInLockStateInsnList();
-        InsnList exitMonitorsInLockStateInsnList = monInsts.getExitMonitorsInLockStateInsnList();
         
         Type invokeMethodReturnType = getReturnTypeOfInvocation(getInvokeInsnNode());
-        Type returnType = getReturnType();
         int methodStackCount = getRequiredStackCountForInvocation(getInvokeInsnNode());
         Integer lineNum = getLineNumber();
         
@@ -125,7 +105,7 @@ final class InvokeWithinTryCatchContinuationPointGenerator extends ContinuationP
         //              restoreLocalsStack(localVars);
         //              goto restorePoint_<number>_rethrow;
         //          }
-        //          if (continuation.getMode() == MODE_SAVING) {
+        //          if (continuation.getMode() != MODE_NORMAL) { // only if unwinding by returning, other mode possible is MODE_SAVING
         //              exitLocks(lockState);
         //              return <dummy>;
         //          }
@@ -140,32 +120,23 @@ final class InvokeWithinTryCatchContinuationPointGenerator extends ContinuationP
         
         return merge(lineNum == null ? empty() : lineNumber(lineNum),
                 cloneInsnList(enterMonitorsInLockStateInsnList),
-                call(CONTINUATION_ADDPENDING_METHOD, loadVar(contArg), loadVar(methodStateVar)),
-                loadOperandStackSuffix(savedStackVar, tempObjVar, frame, methodStackCount),
+                readdLoadedFrame(),
+                loadFrameOperandStackSuffix(methodStackCount),
                 tryCatchBlock(
                         newTryCatchBlockNode,
                         null,
                         merge(
-                                cloneInvokeNode(getInvokeInsnNode()) // invoke method
+                                invokeInsnList // invoke method
                         ),
                         merge(
                                 saveVar(tempObjVar2),
-                                loadOperandStackPrefix(savedStackVar, tempObjVar, frame, frame.getStackSize() - methodStackCount),
-                                loadLocalVariableTable(savedLocalsVar, tempObjVar, frame),
+                                loadFrameAfterInvoke(frame.getStackSize() - methodStackCount),
                                 jumpTo(failedRestoreExecLabelNode)
                         )
                 ),
-                ifIntegersEqual(// if we're saving after invoke, return dummy value
-                        call(CONTINUATION_GETMODE_METHOD, loadVar(contArg)),
-                        loadIntConst(MODE_SAVING),
-                        merge(
-                                cloneInsnList(exitMonitorsInLockStateInsnList), // inserted many times, must be cloned
-                                returnDummy(returnType)
-                        )
-                ),
+                returnIfSaving(),
                 castToObjectAndSave(invokeMethodReturnType, tempObjVar2), // save return (does nothing if invoked method returns void)
-                loadOperandStackPrefix(savedStackVar, tempObjVar, frame, frame.getStackSize() - methodStackCount),
-                loadLocalVariableTable(savedLocalsVar, tempObjVar, frame),
+                loadFrameAfterInvoke(frame.getStackSize() - methodStackCount),
                 loadAndCastToOriginal(invokeMethodReturnType, tempObjVar2),
                 jumpTo(continueExecLabelNode)
         );
@@ -173,24 +144,12 @@ final class InvokeWithinTryCatchContinuationPointGenerator extends ContinuationP
 
     private InsnList generateInvokeReplacementInstructions(
             LabelNode continueExecLabelNode,
-            LabelNode failedRestoreExecLabelNode) {
+            LabelNode failedRestoreExecLabelNode,
+            List<TryCatchBlockNode> tryCatchBlockNodes) {
         FlowInstrumentationVariables vars = getFlowInstrumentationVariables();
-        MonitorInstrumentationInstructions monInsts = getMonitorInstrumentationInstructions();
         
-        Variable contArg = vars.getContArg();
-        Variable pendingCountVar = vars.getPendingCountVar();
-        Variable savedLocalsVar = vars.getSavedLocalsVar();
-        Variable savedStackVar = vars.getSavedStackVar();
-        Variable tempObjVar = vars.getTempObjectVar();
         Variable tempObjVar2 = vars.getTempObjVar2();
         
-        InsnList loadLockStateToStackInsnList = monInsts.getLoadLockStateToStackInsnList();
-        InsnList exitMonitorsInLockStateInsnList = monInsts.getExitMonitorsInLockStateInsnList();
-        
-        Type returnType = getReturnType();
-        
-        Frame<BasicValue> frame = getFrame();
-        
         //             // Clear any excess pending MethodStates that may be lingering. We need to do this because we may have one or more
         //             // excess pending method states sitting around if invocation continuation points (methods that take in a continuation
         //             // object) were called previously in this method. In the event that such a previous call threw an exception, there
@@ -202,7 +161,7 @@ final class InvokeWithinTryCatchContinuationPointGenerator extends ContinuationP
         //          Object[] locals = saveLocals();
         //          continuation.addPending(new MethodState(<number>, stack, locals, lockState);
         //          <method invocation>
-        //          if (continuation.getMode() == MODE_SAVING) {
+        //          if (continuation.getMode() != MODE_NORMAL) { // only if unwinding by returning, other mode possible is MODE_SAVING
         //              exitLocks(lockState);
         //              return <dummy>;
         //          }
@@ -214,28 +173,9 @@ final class InvokeWithinTryCatchContinuationPointGenerator extends ContinuationP
         //
         //          restorePoint_<number>_continue:
         return merge(
-                call(CONTINUATION_CLEAREXCESSPENDING_METHOD, loadVar(contArg), loadVar(pendingCountVar)),
-                saveOperandStack(savedStackVar, tempObjVar, frame),
-                saveLocalVariableTable(savedLocalsVar, tempObjVar, frame),
-                call(CONTINUATION_ADDPENDING_METHOD, loadVar(contArg),
-                        construct(METHODSTATE_INIT_METHOD,
-                                loadIntConst(getId()),
-                                loadVar(savedStackVar),
-                                loadVar(savedLocalsVar),
-                                cloneInsnList(loadLockStateToStackInsnList) // inserted many times, must be cloned
-                        )
-                ),
-                cloneInvokeNode(getInvokeInsnNode()), // invoke method
-                ifIntegersEqual(// if we're saving after invoke, return dummy value
-                        call(CONTINUATION_GETMODE_METHOD, loadVar(contArg)),
-                        loadIntConst(MODE_SAVING),
-                        merge(
-                                // debugPrint("exiting monitors" + methodNode.name),
-                                cloneInsnList(exitMonitorsInLockStateInsnList), // inserted many times, must be cloned
-                                // debugPrint("returning dummy value" + methodNode.name),
-                                returnDummy(returnType)
-                        )
-                ),
+                saveFrame(),
+                invokeAndGuardUnwind(tryCatchBlockNodes), // invoke method
+                returnIfSaving(),
                 jumpTo(continueExecLabelNode),
                 
                 
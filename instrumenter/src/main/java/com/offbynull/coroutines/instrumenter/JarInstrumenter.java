@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Instruments the classes in a JAR, writing the result out to a new JAR.
+ * <p>
+ * The input JAR is streamed through rather than extracted. Entries that don't get changed by instrumentation (resources as well as
+ * classes that don't need to be instrumented) are copied over as-is, without being decompressed and recompressed. Classes are
+ * instrumented in parallel, but only a small window of entries is in flight at any given time, so memory use doesn't depend on the size
+ * of the JAR. The order of entries in the output JAR is the same as the order in the input JAR.
+ * <p>
+ * If call graph analysis is turned on, the classes in the JAR are instrumented as a batch (see {@link CallGraph}). This requires an extra
+ * pass over the JAR to build the call graph before anything gets instrumented.
+ * <p>
+ * This class can be run from the command-line -- see {@link #main(java.lang.String[]) }.
+ * <p>
+ * This class is thread-safe.
+ * @author Kasra Faghihi
+ */
+public final class JarInstrumenter {
+
+    private static final int ENTRIES_IN_FLIGHT_PER_THREAD = 4;
+
+    private final Instrumenter instrumenter;
+    private final int parallelism;
+    private final boolean callGraphAnalysis;
+
+    /**
+     * Constructs a {@link JarInstrumenter} object.
+     * @param instrumenter instrumenter to use for classes (the classpath of this instrumenter must include the JARs that'll be passed in to
+     * {@link #instrument(java.io.File, java.io.File) })
+     * @param parallelism maximum number of classes to instrument at the same time
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code parallelism < 1}
+     */
+    public JarInstrumenter(Instrumenter instrumenter, int parallelism) {
+        this(instrumenter, parallelism, false);
+    }
+
+    /**
+     * Constructs a {@link JarInstrumenter} object.
+     * @param instrumenter instrumenter to use for classes (the classpath of this instrumenter must include the JARs that'll be passed in to
+     * {@link #instrument(java.io.File, java.io.File) })
+     * @param parallelism maximum number of classes to instrument at the same time
+     * @param callGraphAnalysis if {@code true}, the classes in a JAR are instrumented as a batch (see {@link CallGraph})
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code parallelism < 1}
+     */
+    public JarInstrumenter(Instrumenter instrumenter, int parallelism, boolean callGraphAnalysis) {
+        Validate.notNull(instrumenter);
+        Validate.isTrue(parallelism >= 1);
+        this.instrumenter = instrumenter;
+        this.parallelism = parallelism;
+        this.callGraphAnalysis = callGraphAnalysis;
+    }
+
+    /**
+     * Instruments the classes in a JAR.
+     * @param inputJar JAR to instrument
+     * @param outputJar JAR to write the result to (overwritten if it already exists, must not be the same as {@code inputJar})
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code inputJar} and {@code outputJar} are the same file, or if a class could not be
+     * instrumented for some reason
+     * @throws IOException if an IO error occurs
+     */
+    public void instrument(File inputJar, File outputJar) throws IOException {
+        Validate.notNull(inputJar);
+        Validate.notNull(outputJar);
+        Validate.isTrue(!inputJar.getCanonicalFile().equals(outputJar.getCanonicalFile()), "Input and output JAR must be different");
+
+        CallGraph callGraph = callGraphAnalysis ? buildCallGraph(inputJar) : null;
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try (ZipFile zipFile = new ZipFile(inputJar);
+                OutputStream os = new FileOutputStream(outputJar);
+                ZipArchiveOutputStream zaos = new ZipArchiveOutputStream(os)) {
+            // Each entry gets queued up along with the result of instrumenting it. Resources don't get instrumented, so their result is
+            // known right away. Results are written out in the order they were queued, as soon as they're ready. If too many entries are
+            // queued up, stop and write out the oldest before queueing any more.
+            int maxInFlight = parallelism * ENTRIES_IN_FLIGHT_PER_THREAD;
+            Deque<PendingEntry> pendingEntries = new ArrayDeque<>(maxInFlight);
+            for (ZipArchiveEntry entry : Collections.list(zipFile.getEntriesInPhysicalOrder())) {
+                Future<byte[]> result;
+                if (!entry.isDirectory() && entry.getName().endsWith(".class")) {
+                    result = executor.submit(() -> instrumentEntry(zipFile, entry, callGraph));
+                } else {
+                    result = CompletableFuture.completedFuture(null);
+                }
+                pendingEntries.addLast(new PendingEntry(entry, result));
+
+                if (pendingEntries.size() >= maxInFlight) {
+                    writeEntry(zipFile, zaos, pendingEntries.removeFirst());
+                }
+            }
+
+            while (!pendingEntries.isEmpty()) {
+                writeEntry(zipFile, zaos, pendingEntries.removeFirst());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private CallGraph buildCallGraph(File inputJar) throws IOException {
+        // Only a summary of each class is kept by the builder, so the classes get streamed through one at a time
+        CallGraph.Builder callGraphBuilder = new CallGraph.Builder(instrumenter.getSettings());
+        try (ZipFile zipFile = new ZipFile(inputJar)) {
+            for (ZipArchiveEntry entry : Collections.list(zipFile.getEntriesInPhysicalOrder())) {
+                if (!entry.isDirectory() && entry.getName().endsWith(".class")) {
+                    byte[] input = readEntry(zipFile, entry);
+                    if (input.length != 0) {
+                        callGraphBuilder.addClass(input);
+                    }
+                }
+            }
+        }
+        return callGraphBuilder.build();
+    }
+
+    // returns null if the entry didn't change, so the original can be copied over raw
+    private byte[] instrumentEntry(ZipFile zipFile, ZipArchiveEntry entry, CallGraph callGraph) throws IOException {
+        byte[] input = readEntry(zipFile, entry);
+        
+        if (input.length == 0) {
+            return null;
+        }
+
+        byte[] output = callGraph != null ? instrumenter.instrument(input, callGraph) : instrumenter.instrument(input);
+        return output == input ? null : output;
+    }
+
+    private static byte[] readEntry(ZipFile zipFile, ZipArchiveEntry entry) throws IOException {
+        try (InputStream is = zipFile.getInputStream(entry)) {
+            return IOUtils.toByteArray(is);
+        }
+    }
+
+    private static void writeEntry(ZipFile zipFile, ZipArchiveOutputStream zaos, PendingEntry pendingEntry) throws IOException {
+        ZipArchiveEntry entry = pendingEntry.entry;
+
+        byte[] data;
+        try {
+            data = pendingEntry.result.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while instrumenting " + entry.getName(), ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Unable to instrument " + entry.getName(), cause);
+        }
+
+        if (data == null) {
+            try (InputStream rawIs = zipFile.getRawInputStream(entry)) {
+                zaos.addRawArchiveEntry(entry, rawIs);
+            }
+        } else {
+            ZipArchiveEntry newEntry = new ZipArchiveEntry(entry.getName());
+            newEntry.setTime(entry.getTime());
+            newEntry.setMethod(ZipArchiveEntry.DEFLATED);
+            zaos.putArchiveEntry(newEntry);
+            zaos.write(data);
+            zaos.closeArchiveEntry();
+        }
+    }
+
+    /**
+     * Instruments a JAR from the command-line. Usage is as follows...
+     * <pre>
+     * java com.offbynull.coroutines.instrumenter.JarInstrumenter [options] &lt;input jar&gt; &lt;output jar&gt;
+     *   -classpath &lt;paths&gt;           JARs/folders that classes in the input JAR depend on (platform path separator delimited)
+     *   -jdkLibsDirectory &lt;dir&gt;       JDK libs directory (defaults to the lib directory of the running JRE)
+     *   -frameStorageMode &lt;mode&gt;      see {@link FrameStorageMode} (defaults to METHOD_STATE)
+     *   -loopPreemption               add preemption points to loops
+     *   -outliningThreshold &lt;n&gt;      see {@link InstrumentationSettings#getOutliningThreshold()} (defaults to 325)
+     *   -stateMachineLowering         see {@link InstrumentationSettings#isStateMachineLowering()}
+     *   -unwindMode &lt;mode&gt;            see {@link UnwindMode} (defaults to RETURN)
+     *   -callGraphAnalysis            instrument the classes in the JAR as a batch, see {@link CallGraph}
+     *   -parallelism &lt;n&gt;             number of classes to instrument at the same time (defaults to the number of processors)
+     * </pre>
+     * Exits with status code 1 if the arguments are bad, or 2 if the JAR couldn't be instrumented.
+     * @param args command-line arguments
+     */
+    public static void main(String[] args) {
+        List<File> classpath = new ArrayList<>();
+        File jdkLibsDirectory = null;
+        String javaHome = System.getProperty("java.home");
+        if (javaHome != null) {
+            jdkLibsDirectory = new File(javaHome, "lib");
+        }
+        FrameStorageMode frameStorageMode = FrameStorageMode.METHOD_STATE;
+        boolean loopPreemption = false;
+        int outliningThreshold = InstrumentationSettings.DEFAULT_OUTLINING_THRESHOLD;
+        boolean stateMachineLowering = false;
+        UnwindMode unwindMode = UnwindMode.RETURN;
+        boolean callGraphAnalysis = false;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        File inputJar;
+        File outputJar;
+        
+        try {
+            int idx = 0;
+            while (idx < args.length && args[idx].startsWith("-")) {
+                String option = args[idx++];
+                switch (option) {
+                    case "-classpath":
+                        Validate.isTrue(idx < args.length, "Missing value for %s", option);
+                        for (String path : args[idx++].split(File.pathSeparator)) {
+                            if (!path.trim().isEmpty()) {
+                                classpath.add(new File(path.trim()));
+                            }
+                        }
+                        break;
+                    case "-jdkLibsDirectory":
+                        Validate.isTrue(idx < args.length, "Missing value for %s", option);
+                        jdkLibsDirectory = new File(args[idx++]);
+                        break;
+                    case "-frameStorageMode":
+                        Validate.isTrue(idx < args.length, "Missing value for %s", option);
+                        frameStorageMode = FrameStorageMode.valueOf(args[idx++].trim());
+                        break;
+                    case "-loopPreemption":
+                        loopPreemption = true;
+                        break;
+                    case "-outliningThreshold":
+                        Validate.isTrue(idx < args.length, "Missing value for %s", option);
+                        outliningThreshold = Integer.parseInt(args[idx++].trim());
+                        Validate.isTrue(outliningThreshold >= 0, "Outlining threshold must not be negative: %d", outliningThreshold);
+                        break;
+                    case "-stateMachineLowering":
+                        stateMachineLowering = true;
+                        break;
+                    case "-unwindMode":
+                        Validate.isTrue(idx < args.length, "Missing value for %s", option);
+                        unwindMode = UnwindMode.valueOf(args[idx++].trim());
+                        break;
+                    case "-callGraphAnalysis":
+                        callGraphAnalysis = true;
+                        break;
+                    case "-parallelism":
+                        Validate.isTrue(idx < args.length, "Missing value for %s", option);
+                        parallelism = Integer.parseInt(args[idx++].trim());
+                        Validate.isTrue(parallelism >= 1, "Parallelism must be at least 1: %d", parallelism);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unrecognized option: " + option);
+                }
+            }
+            
+            Validate.isTrue(args.length - idx == 2, "Expected input JAR and output JAR");
+            inputJar = new File(args[idx]);
+            outputJar = new File(args[idx + 1]);
+            Validate.isTrue(inputJar.isFile(), "Input JAR does not exist: %s", inputJar);
+            Validate.isTrue(jdkLibsDirectory != null && jdkLibsDirectory.isDirectory(), "JDK libs directory is not a directory: %s",
+                    jdkLibsDirectory);
+        } catch (IllegalArgumentException iae) { // NumberFormatException is an IllegalArgumentException
+            System.err.println(iae.getMessage());
+            System.err.println("Usage: java " + JarInstrumenter.class.getName() + " [options] <input jar> <output jar>");
+            System.err.println("  -classpath <paths>         JARs/folders that classes in the input JAR depend on");
+            System.err.println("  -jdkLibsDirectory <dir>    JDK libs directory (defaults to the lib directory of the running JRE)");
+            System.err.println("  -frameStorageMode <mode>   METHOD_STATE or SLOT_ARENA (defaults to METHOD_STATE)");
+            System.err.println("  -loopPreemption            add preemption points to loops");
+            System.err.println("  -outliningThreshold <n>    method size before frame saving is moved in to helpers (defaults to 325)");
+            System.err.println("  -stateMachineLowering      keep frames of coroutines that only suspend directly in fields");
+            System.err.println("  -unwindMode <mode>         RETURN or EXCEPTION (defaults to RETURN)");
+            System.err.println("  -callGraphAnalysis         leave invocations that can never suspend as plain invocations");
+            System.err.println("  -parallelism <n>           number of classes to instrument at the same time");
+            System.exit(1);
+            return;
+        }
+
+        try {
+            List<File> combinedClasspath = new ArrayList<>();
+            combinedClasspath.add(inputJar);
+            combinedClasspath.addAll(classpath);
+            combinedClasspath.addAll(FileUtils.listFiles(jdkLibsDirectory, new String[]{"jar"}, true));
+            File moduleImage = new File(jdkLibsDirectory, "modules"); // JDK 9+ has classes in a module image instead of JARs
+            if (moduleImage.isFile()) {
+                combinedClasspath.add(moduleImage);
+            }
+
+            InstrumentationSettings settings = new InstrumentationSettings(frameStorageMode, loopPreemption, outliningThreshold,
+                    stateMachineLowering, unwindMode);
+            try (Instrumenter instrumenter = new Instrumenter(combinedClasspath, settings)) {
+                new JarInstrumenter(instrumenter, parallelism, callGraphAnalysis).instrument(inputJar, outputJar);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Unable to instrument " + inputJar);
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private static final class PendingEntry {
+        private final ZipArchiveEntry entry;
+        private final Future<byte[]> result;
+
+        PendingEntry(ZipArchiveEntry entry, Future<byte[]> result) {
+            this.entry = entry;
+            this.result = result;
+        }
+    }
+}
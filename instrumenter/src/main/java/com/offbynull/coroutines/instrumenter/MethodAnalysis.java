@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.lang3.Validate;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+// The results of analyzing a method that's being instrumented, indexed by instruction (frames can have null elements for unreachable
+// instructions). Frames come from ASM's Analyzer, liveLocals from LivenessAnalyzer, and unmodifiedArgs/constantLocals from
+// RematerializationAnalyzer.
+final class MethodAnalysis {
+
+    private final Frame<BasicValue>[] frames;
+    private final BitSet[] liveLocals;
+    private final BitSet unmodifiedArgs;
+    private final Object[][] constantLocals;
+
+    MethodAnalysis(Frame<BasicValue>[] frames, BitSet[] liveLocals, BitSet unmodifiedArgs, Object[][] constantLocals) {
+        Validate.notNull(frames);
+        Validate.notNull(liveLocals);
+        Validate.notNull(unmodifiedArgs);
+        Validate.notNull(constantLocals);
+        //Validate.noNullElements(frames); // frames can have null elements
+        Validate.noNullElements(liveLocals);
+        Validate.isTrue(frames.length == liveLocals.length);
+        Validate.isTrue(frames.length == constantLocals.length);
+
+        this.frames = frames;
+        this.liveLocals = liveLocals;
+        this.unmodifiedArgs = unmodifiedArgs;
+        this.constantLocals = constantLocals;
+    }
+
+    Frame<BasicValue> getFrame(int insnIdx) {
+        return frames[insnIdx];
+    }
+
+    BitSet getLiveLocals(int insnIdx) {
+        return liveLocals[insnIdx];
+    }
+
+    BitSet getUnmodifiedArgs() {
+        return unmodifiedArgs;
+    }
+
+    // Only constants in locals that are live are worth rematerializing. Dead locals don't get saved in the first place.
+    Map<Integer, Object> getConstantLocals(int insnIdx) {
+        Frame<BasicValue> frame = frames[insnIdx];
+        Object[] constants = constantLocals[insnIdx];
+        BitSet frameLiveLocals = liveLocals[insnIdx];
+        Map<Integer, Object> ret = new TreeMap<>();
+        for (int i = 0; i < constants.length && i < frame.getLocals(); i++) {
+            if (constants[i] != null && frame.getLocal(i).getType() != null && frameLiveLocals.get(i)) {
+                ret.put(i, constants[i]);
+            }
+        }
+        return ret;
+    }
+}
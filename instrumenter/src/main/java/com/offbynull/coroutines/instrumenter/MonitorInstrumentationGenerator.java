@@ -29,6 +29,7 @@ import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.monitor
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.saveVar;
 import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.searchForOpcodes;
 import com.offbynull.coroutines.instrumenter.asm.VariableTable.Variable;
+import com.offbynull.coroutines.user.Continuation;
 import com.offbynull.coroutines.user.LockState;
 import com.offbynull.coroutines.user.MethodState;
 import java.lang.reflect.Constructor;
@@ -47,6 +48,8 @@ import org.objectweb.asm.tree.MethodNode;
 
 final class MonitorInstrumentationGenerator {
 
+    private static final Method CONTINUATION_GETSLOTSLOCKSTATE_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "getSlotsLockState");
     private static final Method METHODSTATE_GETLOCKSTATE_METHOD
             = MethodUtils.getAccessibleMethod(MethodState.class, "getLockState");
     private static final Constructor<LockState> LOCKSTATE_INIT_METHOD
@@ -60,6 +63,7 @@ final class MonitorInstrumentationGenerator {
     
 
     private final MethodNode methodNode;
+    private final Variable contArg;
     private final Variable tempObjVar;
     private final Variable counterVar;
     private final Variable arrayLenVar;
@@ -74,6 +78,7 @@ final class MonitorInstrumentationGenerator {
 
         this.methodNode = methodNode;
         
+        contArg = monitorInstrumentationVariables.getContArg();
         tempObjVar = monitorInstrumentationVariables.getTempObjectVar();
         counterVar = monitorInstrumentationVariables.getCounterVar();
         arrayLenVar = monitorInstrumentationVariables.getArrayLenVar();
@@ -164,6 +169,19 @@ final class MonitorInstrumentationGenerator {
         }
 
         
+        // Create code to load lockstate object from the frame that was last loaded from the continuation's slots
+        InsnList loadAndStoreLockStateFromSlotsInsnList;
+        if (monitorInsnNodeReplacements.isEmpty()) {
+            loadAndStoreLockStateFromSlotsInsnList = empty();
+        } else {
+            loadAndStoreLockStateFromSlotsInsnList
+                    = merge(
+                            call(CONTINUATION_GETSLOTSLOCKSTATE_METHOD, loadVar(contArg)),
+                            saveVar(lockStateVar)
+                    );
+        }
+
+        
         // Create code to load lockstate object to the stack
         InsnList loadLockStateToStackInsnList;
         if (monitorInsnNodeReplacements.isEmpty()) {
@@ -206,6 +224,7 @@ final class MonitorInstrumentationGenerator {
         return new MonitorInstrumentationInstructions(monitorInsnNodeReplacements,
                 createAndStoreLockStateInsnList,
                 loadAndStoreLockStateFromMethodStateInsnList,
+                loadAndStoreLockStateFromSlotsInsnList,
                 loadLockStateToStackInsnList,
                 enterMonitorsInLockStateInsnList,
                 exitMonitorsInLockStateInsnList);
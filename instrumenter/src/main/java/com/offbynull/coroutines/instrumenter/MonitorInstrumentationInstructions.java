@@ -26,17 +26,19 @@ final class MonitorInstrumentationInstructions {
     private final Map<AbstractInsnNode, InsnList> monitorInsnNodeReplacements;
     private final InsnList createAndStoreLockStateInsnList;
     private final InsnList loadAndStoreLockStateFromMethodStateInsnList;
+    private final InsnList loadAndStoreLockStateFromSlotsInsnList;
     private final InsnList loadLockStateToStackInsnList;
     private final InsnList enterMonitorsInLockStateInsnList;
     private final InsnList exitMonitorsInLockStateInsnList;
 
     MonitorInstrumentationInstructions(Map<AbstractInsnNode, InsnList> monitorInsnNodeReplacements,
             InsnList createAndStoreLockStateInsnList, InsnList loadAndStoreLockStateFromMethodStateInsnList,
-            InsnList loadLockStateToStackInsnList, InsnList enterMonitorsInLockStateInsnList,
-            InsnList exitMonitorsInLockStateInsnList) {
+            InsnList loadAndStoreLockStateFromSlotsInsnList, InsnList loadLockStateToStackInsnList,
+            InsnList enterMonitorsInLockStateInsnList, InsnList exitMonitorsInLockStateInsnList) {
         Validate.notNull(monitorInsnNodeReplacements);
         Validate.notNull(createAndStoreLockStateInsnList);
         Validate.notNull(loadAndStoreLockStateFromMethodStateInsnList);
+        Validate.notNull(loadAndStoreLockStateFromSlotsInsnList);
         Validate.notNull(loadLockStateToStackInsnList);
         Validate.notNull(enterMonitorsInLockStateInsnList);
         Validate.notNull(exitMonitorsInLockStateInsnList);
@@ -45,6 +47,7 @@ final class MonitorInstrumentationInstructions {
         this.monitorInsnNodeReplacements = monitorInsnNodeReplacements;
         this.createAndStoreLockStateInsnList = createAndStoreLockStateInsnList;
         this.loadAndStoreLockStateFromMethodStateInsnList = loadAndStoreLockStateFromMethodStateInsnList;
+        this.loadAndStoreLockStateFromSlotsInsnList = loadAndStoreLockStateFromSlotsInsnList;
         this.loadLockStateToStackInsnList = loadLockStateToStackInsnList;
         this.enterMonitorsInLockStateInsnList = enterMonitorsInLockStateInsnList;
         this.exitMonitorsInLockStateInsnList = exitMonitorsInLockStateInsnList;
@@ -65,6 +68,9 @@ final class MonitorInstrumentationInstructions {
         return loadAndStoreLockStateFromMethodStateInsnList;
     }
 
+    InsnList getLoadAndStoreLockStateFromSlotsInsnList() {
+        return loadAndStoreLockStateFromSlotsInsnList;
+    }
 
     InsnList getLoadLockStateToStackInsnList() {
         return loadLockStateToStackInsnList;
@@ -18,6 +18,7 @@ package com.offbynull.coroutines.instrumenter;
 
 import com.offbynull.coroutines.instrumenter.asm.VariableTable;
 import com.offbynull.coroutines.instrumenter.asm.VariableTable.Variable;
+import com.offbynull.coroutines.user.Continuation;
 import com.offbynull.coroutines.user.LockState;
 import com.offbynull.coroutines.user.MethodState;
 import org.apache.commons.lang3.Validate;
@@ -25,19 +26,23 @@ import org.objectweb.asm.Type;
 
 final class MonitorInstrumentationVariables {
 
+    private final Variable contArg;
     private final Variable methodStateVar;
     private final Variable tempObjectVar;
     private final Variable lockStateVar;
     private final Variable counterVar;
     private final Variable arrayLenVar;
     
-    public MonitorInstrumentationVariables(VariableTable varTable, Variable methodStateVar, Variable tempObjectVar) {
+    public MonitorInstrumentationVariables(VariableTable varTable, Variable contArg, Variable methodStateVar, Variable tempObjectVar) {
         Validate.notNull(varTable);
+        Validate.notNull(contArg);
         Validate.notNull(methodStateVar);
         Validate.notNull(tempObjectVar);
+        Validate.isTrue(contArg.getType().equals(Type.getType(Continuation.class)));
         Validate.isTrue(methodStateVar.getType().equals(Type.getType(MethodState.class)));
         Validate.isTrue(tempObjectVar.getType().equals(Type.getType(Object.class)));
         
+        this.contArg = contArg;
         this.methodStateVar = methodStateVar;
         this.tempObjectVar = tempObjectVar;
         lockStateVar = varTable.acquireExtra(LockState.class);
@@ -45,6 +50,10 @@ final class MonitorInstrumentationVariables {
         arrayLenVar = varTable.acquireExtra(Type.INT_TYPE);
     }
 
+    public Variable getContArg() {
+        return contArg;
+    }
+
     public Variable getMethodStateVar() {
         return methodStateVar;
     }
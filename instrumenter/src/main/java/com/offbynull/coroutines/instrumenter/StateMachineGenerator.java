@@ -0,0 +1,468 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.guardUnwind;
+import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.loadConstantLocals;
+import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.maskLocals;
+import static com.offbynull.coroutines.instrumenter.ContinuationPointInstructionUtils.throwUnwindSignal;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.addLabel;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.call;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.empty;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.ifIntegerZero;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.jumpTo;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.lineNumber;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadDefaultValue;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadIntConst;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadNull;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadVar;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.merge;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.pop;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.returnDummy;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.tableSwitch;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.throwException;
+import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findLineNumberForInstruction;
+import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.searchForOpcodes;
+import com.offbynull.coroutines.instrumenter.asm.VariableTable;
+import com.offbynull.coroutines.instrumenter.asm.VariableTable.Variable;
+import com.offbynull.coroutines.user.Continuation;
+import static com.offbynull.coroutines.user.Continuation.MODE_NORMAL;
+import static com.offbynull.coroutines.user.Continuation.MODE_SAVING;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.stream.Stream;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.reflect.MethodUtils;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+// Lowers a coroutine's run() method in to a state machine (see InstrumentationSettings.isStateMachineLowering()). This is only done if
+// the only continuation points in run() are direct invocations of Continuation.suspend(). Nothing that run() invokes can suspend, so
+// run() is always the last frame in the call chain when it suspends, and there's no reason for it to save its frame to the Continuation.
+// Instead, the live locals at each suspend() go in to synthetic fields of the coroutine object and the id of that suspend() goes in to a
+// synthetic state field (similar to how C# compiles iterators). Suspending is a handful of field writes and resuming is a switch on the
+// state field -- nothing gets allocated and nothing gets added to the Continuation.
+//
+// This still works if run() gets invoked by some other coroutine. The methods leading up to run() save their frames to the Continuation
+// as usual, run() just doesn't add a frame of its own. The catch is that the frame is tied to the coroutine object rather than the
+// Continuation, so the same coroutine object can't be run by multiple CoroutineRunners at the same time.
+//
+// Fields are shared between suspend() invocations. The n-th int local saved at a suspend() goes in to the n-th int field, the n-th object
+// local goes in to the n-th object field, and so on. Objects are kept in fields of type java.lang.Object and cast back when loaded. Object
+// fields are cleared as soon as they're loaded, so that the coroutine object doesn't hold on to anything once it resumes.
+// Locals that hold a constant at a suspend() aren't given fields at all, they're regenerated when restoring (see
+// ContinuationPointGenerator).
+//
+// If unwinding by throwing (see UnwindMode), suspending throws UnwindSignal instead of returning. run() can't hold any monitors, so the
+// only thing the signal needs a handler for is to skip past run()'s own trycatch blocks.
+final class StateMachineGenerator {
+    
+    private static final String STATE_FIELD_NAME_PREFIX = "coroutines$state$";
+    private static final String LOCAL_FIELD_NAME_PREFIX = "coroutines$local$";
+    private static final int FIELD_ACCESS = Opcodes.ACC_PRIVATE | Opcodes.ACC_SYNTHETIC;
+    
+    private static final Method CONTINUATION_GETMODE_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "getMode");
+    private static final Method CONTINUATION_SETMODE_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "setMode", Integer.TYPE);
+    
+    private static final Type OBJECT_TYPE = Type.getType(Object.class);
+    private static final Type[] FIELD_TYPES = new Type[] {
+        Type.INT_TYPE, Type.LONG_TYPE, Type.FLOAT_TYPE, Type.DOUBLE_TYPE, OBJECT_TYPE
+    };
+    
+    private final ClassNode classNode;
+    private final MethodNode methodNode;
+    private final List<AbstractInsnNode> suspendInvocationInsnNodes;
+    private final MethodAnalysis methodAnalysis;
+    private final UnwindMode unwindMode;
+    private final Variable thisArg;
+    private final Variable contArg;
+    
+    private final List<FieldNode> fieldNodes;
+    private final FieldNode stateFieldNode;
+    private final Map<Type, List<FieldNode>> localFieldNodes; // keyed by field type
+
+    StateMachineGenerator(ClassNode classNode, MethodNode methodNode, List<AbstractInsnNode> suspendInvocationInsnNodes,
+            MethodAnalysis methodAnalysis, UnwindMode unwindMode) {
+        Validate.notNull(classNode);
+        Validate.notNull(methodNode);
+        Validate.notNull(suspendInvocationInsnNodes);
+        Validate.notNull(methodAnalysis);
+        Validate.notNull(unwindMode);
+        Validate.noNullElements(suspendInvocationInsnNodes);
+        Validate.isTrue(!suspendInvocationInsnNodes.isEmpty());
+        
+        this.classNode = classNode;
+        this.methodNode = methodNode;
+        this.suspendInvocationInsnNodes = suspendInvocationInsnNodes;
+        this.methodAnalysis = methodAnalysis;
+        this.unwindMode = unwindMode;
+        
+        VariableTable varTable = new VariableTable(classNode, methodNode);
+        this.thisArg = varTable.getArgument(0);
+        this.contArg = varTable.getArgument(1);
+        
+        // Figure out how many fields of each type are needed -- enough to hold the locals saved by whichever suspend() needs the most
+        Map<Type, Integer> fieldCounts = new HashMap<>();
+        for (AbstractInsnNode suspendInvocationInsnNode : suspendInvocationInsnNodes) {
+            int insnIdx = methodNode.instructions.indexOf(suspendInvocationInsnNode);
+            Map<Type, Integer> counts = new HashMap<>();
+            Frame<BasicValue> frame = getFrame(insnIdx);
+            for (int i : getSavedLocals(frame, methodAnalysis.getLiveLocals(insnIdx))) {
+                counts.merge(getFieldType(frame.getLocal(i).getType()), 1, Integer::sum);
+            }
+            counts.forEach((k, v) -> fieldCounts.merge(k, v, Math::max));
+        }
+        
+        this.fieldNodes = new ArrayList<>();
+        this.stateFieldNode = addField(STATE_FIELD_NAME_PREFIX, Type.INT_TYPE);
+        this.localFieldNodes = new HashMap<>();
+        for (Type fieldType : FIELD_TYPES) {
+            List<FieldNode> fieldNodesOfType = new ArrayList<>();
+            for (int i = 0; i < fieldCounts.getOrDefault(fieldType, 0); i++) {
+                fieldNodesOfType.add(addField(LOCAL_FIELD_NAME_PREFIX, fieldType));
+            }
+            localFieldNodes.put(fieldType, fieldNodesOfType);
+        }
+    }
+    
+    // Checks to see if a coroutine's run() method can be lowered in to a state machine.
+    static boolean canLower(MethodNode methodNode, List<AbstractInsnNode> suspendInvocationInsnNodes,
+            List<AbstractInsnNode> invokeInvocationInsnNodes, Frame<BasicValue>[] frames) {
+        Validate.notNull(methodNode);
+        Validate.notNull(suspendInvocationInsnNodes);
+        Validate.notNull(invokeInvocationInsnNodes);
+        Validate.notNull(frames);
+        
+        // Anything invoked with the Continuation may suspend, in which case run() wouldn't be the last frame in the call chain
+        if (suspendInvocationInsnNodes.isEmpty() || !invokeInvocationInsnNodes.isEmpty()) {
+            return false;
+        }
+        
+        // Locks held when suspending would have to be tracked as well (see MonitorInstrumentationGenerator)
+        if (!searchForOpcodes(methodNode.instructions, Opcodes.MONITORENTER, Opcodes.MONITOREXIT).isEmpty()) {
+            return false;
+        }
+        
+        // When resuming, this and the Continuation are taken from the arguments passed in, so they can't have been overwritten
+        for (AbstractInsnNode insnNode : methodNode.instructions.toArray()) {
+            if (insnNode.getOpcode() >= Opcodes.ISTORE && insnNode.getOpcode() <= Opcodes.ASTORE && ((VarInsnNode) insnNode).var <= 1) {
+                return false;
+            }
+        }
+        
+        // The operand stack isn't saved, so the Continuation that suspend() is invoked on must be the only thing on it (javac only ever
+        // emits suspend() as a statement on its own, so this is always the case for Java code)
+        for (AbstractInsnNode suspendInvocationInsnNode : suspendInvocationInsnNodes) {
+            Frame<BasicValue> frame = frames[methodNode.instructions.indexOf(suspendInvocationInsnNode)];
+            if (frame == null || frame.getStackSize() != 1) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    // Fields that need to be added to the class
+    List<FieldNode> getFieldNodes() {
+        return fieldNodes;
+    }
+    
+    FlowInstrumentationInstructions generate() {
+        LabelNode startOfMethodLabelNode = new LabelNode();
+        
+        //    unwindHandler: // UnwindSignal is on the stack, only needed if unwinding by throwing and run() has trycatch blocks
+        //        throw;
+        LabelNode unwindHandlerLabelNode = null;
+        InsnList unwindHandlerInsnList = empty();
+        if (unwindMode == UnwindMode.EXCEPTION && !methodNode.tryCatchBlocks.isEmpty()) {
+            unwindHandlerLabelNode = new LabelNode();
+            unwindHandlerInsnList.add(unwindHandlerLabelNode);
+            unwindHandlerInsnList.add(new InsnNode(Opcodes.ATHROW));
+        }
+        
+        List<TryCatchBlockNode> tryCatchBlockNodes = new ArrayList<>();
+        InsnList[] restoreInsnLists = new InsnList[suspendInvocationInsnNodes.size()];
+        Map<AbstractInsnNode, InsnList> invokeInsnNodeReplacements = new HashMap<>();
+        for (int id = 0; id < suspendInvocationInsnNodes.size(); id++) {
+            AbstractInsnNode suspendInvocationInsnNode = suspendInvocationInsnNodes.get(id);
+            int insnIdx = methodNode.instructions.indexOf(suspendInvocationInsnNode);
+            Frame<BasicValue> frame = getFrame(insnIdx);
+            BitSet frameLiveLocals = methodAnalysis.getLiveLocals(insnIdx);
+            Map<Integer, Object> frameConstantLocals = methodAnalysis.getConstantLocals(insnIdx);
+            Map<Integer, FieldNode> localFields = assignFields(frame, frameLiveLocals);
+            LineNumberNode lineNumberNode = findLineNumberForInstruction(methodNode.instructions, suspendInvocationInsnNode);
+            
+            LabelNode continueExecLabelNode = new LabelNode();
+            restoreInsnLists[id] = generateRestoreInstructions(frame, frameLiveLocals, frameConstantLocals, localFields,
+                    lineNumberNode, continueExecLabelNode);
+            invokeInsnNodeReplacements.put(suspendInvocationInsnNode,
+                    generateSuspendInstructions(id, localFields, continueExecLabelNode, unwindHandlerLabelNode, tryCatchBlockNodes));
+        }
+        
+        // Generate entrypoint instructions...
+        //
+        //    if (continuation.getMode() == NORMAL) {
+        //        goto start;
+        //    }
+        //
+        //    switch(continuation.getMode()) {
+        //        case SAVING: throw exception
+        //        case LOADING:
+        //        {
+        //            switch(this.state) {
+        //                case <number>:
+        //                    <RESTORE_INSTRUCTIONS>
+        //                ...
+        //                ...
+        //                ...
+        //                default: throw exception
+        //            }
+        //        }
+        //        default: throw exception
+        //    }
+        //
+        //    start:
+        //        ...
+        //        ...
+        //        ...
+        InsnList entryPointInsnList
+                = merge(
+                        ifIntegerZero(// fresh invoke (MODE_NORMAL is 0)
+                                call(CONTINUATION_GETMODE_METHOD, loadVar(contArg)),
+                                jumpTo(startOfMethodLabelNode)
+                        ),
+                        tableSwitch(
+                                call(CONTINUATION_GETMODE_METHOD, loadVar(contArg)),
+                                throwException("Unrecognized state"),
+                                MODE_SAVING,
+                                throwException("Unexpected state (saving not allowed at this point)"),
+                                tableSwitch(
+                                        getField(stateFieldNode),
+                                        throwException("Unrecognized restore id " + methodNode.name),
+                                        0,
+                                        restoreInsnLists
+                                )
+                                // jump to not required here, switch above either throws exception or jumps to restore point
+                        ),
+                        addLabel(startOfMethodLabelNode)
+                );
+        
+        return new FlowInstrumentationInstructions(entryPointInsnList, invokeInsnNodeReplacements, tryCatchBlockNodes,
+                unwindHandlerInsnList);
+    }
+    
+    //          <restore locals from fields, cleared object fields>
+    //          <restore constant locals>
+    //          continuation.setMode(MODE_NORMAL);
+    //          goto restorePoint_<number>_continue;
+    private InsnList generateRestoreInstructions(Frame<BasicValue> frame, BitSet frameLiveLocals, Map<Integer, Object> frameConstantLocals,
+            Map<Integer, FieldNode> localFields, LineNumberNode lineNumberNode, LabelNode continueExecLabelNode) {
+        InsnList loadLocalsInsnList = new InsnList();
+        InsnList clearFieldsInsnList = new InsnList();
+        for (int i = 0; i < frame.getLocals(); i++) {
+            Type type = frame.getLocal(i).getType();
+            
+            // this/Continuation are the arguments passed in, and uninitialized locals are left uninitialized (see
+            // InstructionUtils.loadLocalVariableTable())
+            if (i == thisArg.getIndex() || i == contArg.getIndex() || type == null) {
+                continue;
+            }
+            
+            // 'Lnull;' locals weren't saved, put null back in (see InstructionUtils.loadLocalVariableTable())
+            if ("Lnull;".equals(type.getDescriptor())) {
+                loadLocalsInsnList.add(loadNull());
+                loadLocalsInsnList.add(new VarInsnNode(Opcodes.ASTORE, i));
+                continue;
+            }
+            
+            // Dead locals weren't saved, put the default value for the type back in (see InstructionUtils.loadLocalVariableTable())
+            if (!frameLiveLocals.get(i)) {
+                loadLocalsInsnList.add(loadDefaultValue(type));
+                loadLocalsInsnList.add(new VarInsnNode(type.getOpcode(Opcodes.ISTORE), i));
+                continue;
+            }
+            
+            FieldNode fieldNode = localFields.get(i);
+            loadLocalsInsnList.add(getField(fieldNode));
+            if (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY) {
+                loadLocalsInsnList.add(new TypeInsnNode(Opcodes.CHECKCAST, type.getInternalName()));
+                clearFieldsInsnList.add(putField(fieldNode, loadNull()));
+            }
+            loadLocalsInsnList.add(new VarInsnNode(type.getOpcode(Opcodes.ISTORE), i));
+        }
+        
+        return merge(
+                lineNumberNode == null ? empty() : lineNumber(lineNumberNode.line),
+                loadLocalsInsnList,
+                clearFieldsInsnList,
+                loadConstantLocals(frameConstantLocals),
+                call(CONTINUATION_SETMODE_METHOD, loadVar(contArg), loadIntConst(MODE_NORMAL)),
+                jumpTo(continueExecLabelNode)
+        );
+    }
+    
+    //          <save locals to fields>
+    //          this.state = <number>;
+    //          continuation.setMode(MODE_SAVING);
+    //          return;                       // if unwinding by returning
+    //          throw UnwindSignal.INSTANCE;  // if unwinding by throwing
+    //
+    //
+    //          restorePoint_<number>_continue: // at this label: empty exec stack / uninit exec var table
+    private InsnList generateSuspendInstructions(int id, Map<Integer, FieldNode> localFields, LabelNode continueExecLabelNode,
+            LabelNode unwindHandlerLabelNode, List<TryCatchBlockNode> tryCatchBlockNodes) {
+        InsnList saveLocalsInsnList = new InsnList();
+        for (Entry<Integer, FieldNode> entry : localFields.entrySet()) {
+            Type fieldType = Type.getType(entry.getValue().desc);
+            InsnList loadLocalInsnList = new InsnList();
+            loadLocalInsnList.add(new VarInsnNode(fieldType.getOpcode(Opcodes.ILOAD), entry.getKey()));
+            saveLocalsInsnList.add(putField(entry.getValue(), loadLocalInsnList));
+        }
+        
+        InsnList unwindInsnList;
+        switch (unwindMode) {
+            case RETURN:
+                unwindInsnList = returnDummy(Type.VOID_TYPE);
+                break;
+            case EXCEPTION:
+                unwindInsnList = guardUnwind(throwUnwindSignal(), unwindHandlerLabelNode, tryCatchBlockNodes);
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        
+        return merge(
+                pop(), // Continuation reference that would have been consumed by the invocation to Continuation.suspend()
+                saveLocalsInsnList,
+                putField(stateFieldNode, loadIntConst(id)),
+                call(CONTINUATION_SETMODE_METHOD, loadVar(contArg), loadIntConst(MODE_SAVING)),
+                unwindInsnList,
+                
+                
+                
+                addLabel(continueExecLabelNode)
+        );
+    }
+    
+    // Locals that hold a constant don't need to be kept in fields, so they're masked out of the frame (see ContinuationPointGenerator)
+    private Frame<BasicValue> getFrame(int insnIdx) {
+        BitSet maskedLocals = new BitSet();
+        for (int i : methodAnalysis.getConstantLocals(insnIdx).keySet()) {
+            maskedLocals.set(i);
+        }
+        return maskLocals(methodAnalysis.getFrame(insnIdx), maskedLocals);
+    }
+    
+    // Maps each local that needs to be saved to the field it gets saved in to. Iteration order is the order of the locals.
+    private Map<Integer, FieldNode> assignFields(Frame<BasicValue> frame, BitSet frameLiveLocals) {
+        Map<Type, Integer> nextFieldIdxs = new HashMap<>();
+        Map<Integer, FieldNode> ret = new LinkedHashMap<>();
+        for (int i : getSavedLocals(frame, frameLiveLocals)) {
+            Type fieldType = getFieldType(frame.getLocal(i).getType());
+            int fieldIdx = nextFieldIdxs.merge(fieldType, 1, Integer::sum) - 1;
+            ret.put(i, localFieldNodes.get(fieldType).get(fieldIdx));
+        }
+        return ret;
+    }
+    
+    // Locals that need to be saved -- skips this/Continuation, uninitialized locals, 'Lnull;' locals, and locals that aren't live
+    private List<Integer> getSavedLocals(Frame<BasicValue> frame, BitSet frameLiveLocals) {
+        List<Integer> ret = new ArrayList<>();
+        for (int i = 0; i < frame.getLocals(); i++) {
+            Type type = frame.getLocal(i).getType();
+            if (i == thisArg.getIndex() || i == contArg.getIndex() || type == null || "Lnull;".equals(type.getDescriptor())
+                    || !frameLiveLocals.get(i)) {
+                continue;
+            }
+            ret.add(i);
+        }
+        return ret;
+    }
+    
+    // The JVM treats booleans/bytes/shorts/chars as ints, and objects are all kept as java.lang.Object so fields can be shared
+    private static Type getFieldType(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.CHAR:
+            case Type.INT:
+                return Type.INT_TYPE;
+            case Type.FLOAT:
+            case Type.LONG:
+            case Type.DOUBLE:
+                return type;
+            case Type.ARRAY:
+            case Type.OBJECT:
+                return OBJECT_TYPE;
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+    
+    private InsnList getField(FieldNode fieldNode) {
+        InsnList ret = new InsnList();
+        ret.add(loadVar(thisArg));
+        ret.add(new FieldInsnNode(Opcodes.GETFIELD, classNode.name, fieldNode.name, fieldNode.desc));
+        return ret;
+    }
+    
+    private InsnList putField(FieldNode fieldNode, InsnList loadValueInsnList) {
+        InsnList ret = new InsnList();
+        ret.add(loadVar(thisArg));
+        ret.add(loadValueInsnList);
+        ret.add(new FieldInsnNode(Opcodes.PUTFIELD, classNode.name, fieldNode.name, fieldNode.desc));
+        return ret;
+    }
+    
+    private FieldNode addField(String namePrefix, Type type) {
+        int nameId = 0;
+        while (containsField(namePrefix + nameId)) {
+            nameId++;
+        }
+        
+        FieldNode fieldNode = new FieldNode(FIELD_ACCESS, namePrefix + nameId, type.getDescriptor(), null, null);
+        fieldNodes.add(fieldNode);
+        return fieldNode;
+    }
+    
+    private boolean containsField(String name) {
+        return Stream.concat(classNode.fields.stream(), fieldNodes.stream()).anyMatch(x -> name.equals(x.name));
+    }
+}
@@ -19,53 +19,46 @@ package com.offbynull.coroutines.instrumenter;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.addLabel;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.call;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.cloneInsnList;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.construct;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.empty;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.jumpTo;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.lineNumber;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadIntConst;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadLocalVariableTable;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadOperandStack;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadVar;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.merge;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.pop;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.returnDummy;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.saveLocalVariableTable;
-import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.saveOperandStack;
 import com.offbynull.coroutines.instrumenter.asm.VariableTable.Variable;
 import static com.offbynull.coroutines.user.Continuation.MODE_NORMAL;
 import static com.offbynull.coroutines.user.Continuation.MODE_SAVING;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
 import org.objectweb.asm.Type;
-import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.LabelNode;
-import org.objectweb.asm.tree.LineNumberNode;
-import org.objectweb.asm.tree.analysis.BasicValue;
-import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.TryCatchBlockNode;
 
 final class SuspendContinuationPointGenerator extends ContinuationPointGenerator {
 
     public SuspendContinuationPointGenerator(
-            int id,
-            AbstractInsnNode invokeInsnNode,
-            LineNumberNode invokeLineNumberNode,
-            Frame<BasicValue> frame,
+            ContinuationPoint continuationPoint,
             Type returnType,
             FlowInstrumentationVariables flowInstrumentationVariables,
-            MonitorInstrumentationInstructions monitorInstrumentationInstructions) {
-        super(id, invokeInsnNode, invokeLineNumberNode, frame, returnType, flowInstrumentationVariables,
-                monitorInstrumentationInstructions);
+            MonitorInstrumentationInstructions monitorInstrumentationInstructions,
+            InstrumentationSettings settings,
+            FrameSaveHelpers frameSaveHelpers,
+            LabelNode unwindHandlerLabelNode) {
+        super(continuationPoint, returnType, flowInstrumentationVariables, monitorInstrumentationInstructions, settings, frameSaveHelpers,
+                unwindHandlerLabelNode);
     }
     
     @Override
     ContinuationPointInstructions generate() {
         LabelNode continueExecLabelNode = new LabelNode();
+        List<TryCatchBlockNode> tryCatchBlockNodes = new ArrayList<>();
         return new ContinuationPointInstructions(
                 getInvokeInsnNode(),
                 generateLoadInstructions(continueExecLabelNode),
-                generateInvokeReplacementInstructions(continueExecLabelNode),
-                Collections.emptyList());
+                generateInvokeReplacementInstructions(continueExecLabelNode, tryCatchBlockNodes),
+                tryCatchBlockNodes);
     }
     
     private InsnList generateLoadInstructions(LabelNode continueExecLabelNode) {
@@ -73,16 +66,11 @@ final class SuspendContinuationPointGenerator extends ContinuationPointGenerator
         MonitorInstrumentationInstructions monInsts = getMonitorInstrumentationInstructions();
         
         Variable contArg = vars.getContArg();
-        Variable savedLocalsVar = vars.getSavedLocalsVar();
-        Variable savedStackVar = vars.getSavedStackVar();
-        Variable tempObjVar = vars.getTempObjectVar();
         
         InsnList enterMonitorsInLockStateInsnList = monInsts.getEnterMonitorsInLockStateInsnList();
 
         Integer lineNum = getLineNumber();
         
-        Frame<BasicValue> frame = getFrame();
-        
         //          enterLocks(lockState);
         //          restoreOperandStack(stack);
         //          restoreLocalsStack(localVars);
@@ -90,8 +78,7 @@ final class SuspendContinuationPointGenerator extends ContinuationPointGenerator
         //          goto restorePoint_<number>_continue;
         return merge(
                 lineNum == null ? empty() : lineNumber(lineNum),
-                loadOperandStack(savedStackVar, tempObjVar, frame),
-                loadLocalVariableTable(savedLocalsVar, tempObjVar, frame),
+                loadFrame(),
                 cloneInsnList(enterMonitorsInLockStateInsnList),
                 pop(), // frame at the time of invocation to Continuation.suspend() has Continuation reference on the
                        // stack that would have been consumed by that invocation... since we're removing that call, we
@@ -104,22 +91,10 @@ final class SuspendContinuationPointGenerator extends ContinuationPointGenerator
     }
 
     
-    private InsnList generateInvokeReplacementInstructions(LabelNode continueExecLabelNode) {
+    private InsnList generateInvokeReplacementInstructions(LabelNode continueExecLabelNode, List<TryCatchBlockNode> tryCatchBlockNodes) {
         FlowInstrumentationVariables vars = getFlowInstrumentationVariables();
-        MonitorInstrumentationInstructions monInsts = getMonitorInstrumentationInstructions();
         
         Variable contArg = vars.getContArg();
-        Variable pendingCountVar = vars.getPendingCountVar();
-        Variable savedLocalsVar = vars.getSavedLocalsVar();
-        Variable savedStackVar = vars.getSavedStackVar();
-        Variable tempObjVar = vars.getTempObjectVar();
-        
-        InsnList loadLockStateToStackInsnList = monInsts.getLoadLockStateToStackInsnList();
-        InsnList exitMonitorsInLockStateInsnList = monInsts.getExitMonitorsInLockStateInsnList();
-        
-        Type returnType = getReturnType();
-        
-        Frame<BasicValue> frame = getFrame();
         
         //             // Clear any excess pending MethodStates that may be lingering. We need to do this because we may have pending method
         //             // states sitting around from methods that threw an exception. When a method that takes in a Continuation throws an
@@ -129,26 +104,16 @@ final class SuspendContinuationPointGenerator extends ContinuationPointGenerator
         //          Object[] locals = saveLocals();
         //          continuation.addPending(new MethodState(<number>, stack, locals, lockState);
         //          continuation.setMode(MODE_SAVING);
-        //          exitLocks(lockState);
+        //          exitLocks(lockState);         // if unwinding by returning
         //          return <dummy>;
+        //          throw UnwindSignal.INSTANCE;  // if unwinding by throwing, the unwind handler exits locks
         //
         //
         //          restorePoint_<number>_continue: // at this label: empty exec stack / uninit exec var table
         return merge(
-                call(CONTINUATION_CLEAREXCESSPENDING_METHOD, loadVar(contArg), loadVar(pendingCountVar)),
-                saveOperandStack(savedStackVar, tempObjVar, frame),
-                saveLocalVariableTable(savedLocalsVar, tempObjVar, frame),
-                call(CONTINUATION_ADDPENDING_METHOD, loadVar(contArg),
-                        construct(METHODSTATE_INIT_METHOD,
-                                loadIntConst(getId()),
-                                loadVar(savedStackVar),
-                                loadVar(savedLocalsVar),
-                                cloneInsnList(loadLockStateToStackInsnList) // inserted many times, must be cloned
-                        )
-                ),
+                saveFrame(),
                 call(CONTINUATION_SETMODE_METHOD, loadVar(contArg), loadIntConst(MODE_SAVING)),
-                cloneInsnList(exitMonitorsInLockStateInsnList), // used several times, must be cloned
-                returnDummy(returnType), // return dummy value
+                unwind(tryCatchBlockNodes),
                 
                 
                 
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+/**
+ * Controls how instrumented methods get out of the way once a coroutine suspends. Every class a coroutine runs through must be instrumented
+ * with the same mode.
+ * @author Kasra Faghihi
+ */
+public enum UnwindMode {
+    /**
+     * Each method returns a dummy value once its frame has been saved. Every invocation that may suspend checks the
+     * {@link com.offbynull.coroutines.user.Continuation}'s mode after it returns, and returns as well if the coroutine is suspending. This
+     * check is paid on every invocation, even when nothing suspends.
+     */
+    RETURN,
+    /**
+     * Suspending throws a preallocated stackless {@link com.offbynull.coroutines.user.UnwindSignal} once the frame has been saved, and
+     * invocations don't check anything after they return. Exception handlers get generated only for methods that have try-catch blocks or
+     * synchronized blocks of their own, so that the signal skips past them (and releases monitors). Suspending is more expensive than
+     * with {@link #RETURN}, but invocations that don't suspend are cheaper.
+     */
+    EXCEPTION
+}
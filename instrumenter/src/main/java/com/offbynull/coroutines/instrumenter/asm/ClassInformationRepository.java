@@ -16,29 +16,145 @@
  */
 package com.offbynull.coroutines.instrumenter.asm;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.ProviderNotFoundException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import org.apache.commons.compress.archivers.jar.JarArchiveEntry;
-import org.apache.commons.compress.archivers.jar.JarArchiveInputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.Validate;
-import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
 
 /**
  * Scans JARs and folders to grab information about the classes contained within. Used by {@link SimpleClassWriter} to avoid the default
  * {@link ClassWriter} implementation of using the current classloader to derive common super classes between two classes.
+ * <p>
+ * Adding a classpath only indexes where each class is (for JARs, this comes from the central directory at the end of the file). A class
+ * doesn't actually get parsed until its information is first requested. JARs are kept open so that classes can be read out of them, until
+ * this repository gets closed.
+ * <p>
+ * If a cache directory is given, the information for every class in a JAR gets written to a cache file in that directory the first time
+ * that JAR is added. Any repository that adds the same JAR after that (same path, size, and last modified time) reads the cache file
+ * instead of opening the JAR. Cache files are never modified once written, so a cache directory can be shared between builds running at
+ * the same time. Folders aren't cached. Classes read out of a cache file are held in a {@link CompactClassInformationTable} rather than
+ * individually, since a cached classpath is usually a large one.
+ * <p>
+ * JDK 9+ doesn't ship with JARs. Instead, its classes are in a module image (the {@code lib/modules} file of the JDK). If a module image
+ * is added as a classpath element, classes in it are resolved through the {@code jrt:/} file system of that JDK, one package at a time
+ * and only when they're requested (so only the JDK classes actually used are ever read). That file system isn't opened until the first
+ * JDK class gets requested.
+ * <p>
+ * Files that a repository has open (JARs that aren't cached and module images) get closed by {@link #close() }. Class information that
+ * was already read stays available after that, and files get opened again if anything else needs to be read from them. This means that a
+ * repository that's shared (e.g. as one of the repositories another is layered on top of) can be closed by each of its users once they're
+ * done with it.
+ * <p>
+ * A repository can be layered on top of other repositories (see {@link #layer(java.util.List) }), in which case classes that it can't
+ * find itself are looked up in those other repositories. This allows repositories for commonly used JARs to be shared rather than each
+ * user having to index those same JARs again.
+ * <p>
+ * Class hierarchies (see {@link #getHierarchy(java.lang.String) }) and common super classes (see
+ * {@link #getCommonSuperClass(java.lang.String, java.lang.String) }) are derived from the information in this repository and memoized,
+ * since the same ones get requested over and over again when instrumenting (e.g. when frames are merged). Each memo table holds a bounded
+ * number of entries and gets emptied out if it fills up. Hit/miss counts are available via {@link #getHierarchyCacheStatistics() }.
+ * <p>
+ * This class is thread-safe.
  * @author Kasra Faghihi
  */
-public final class ClassInformationRepository {
-    private final Map<String, ClassInformation> hierarchyMap = new HashMap<>();
+public final class ClassInformationRepository implements Closeable {
+    private static final int CACHE_MAGIC = 0x43495243; // "CIRC"
+    private static final int CACHE_VERSION = 2;
+    private static final int MAX_MEMOIZED_ENTRIES = 16384;
+    private static final int MODULE_IMAGE_MAGIC = 0xCAFEDADA;
+    private static final int CLASS_MAGIC = 0xCAFEBABE;
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+    private static final URI JRT_URI = URI.create("jrt:/");
+
+    private final Map<String, ClassInformation> hierarchyMap = new ConcurrentHashMap<>();
+    private final Map<String, ClassLocation> locationMap = new ConcurrentHashMap<>();
+    private final List<ClassSource> sources = new CopyOnWriteArrayList<>(); // cached JARs and module images, checked in order after maps
+    private final List<Jar> jars = new CopyOnWriteArrayList<>(); // JARs that classes in locationMap get read out of
+    private final File cacheDirectory; // null if not caching
+    private final List<ClassInformationRepository> parents; // checked in order when a class can't be found in this repository
+    private final Map<String, ClassInformation> parentHits = new ConcurrentHashMap<>(); // classes found in parents
+    
+    private final Map<String, List<String>> hierarchyMemo = new ConcurrentHashMap<>();
+    private final Map<String, String> commonSuperClassMemo = new ConcurrentHashMap<>();
+    private final LongAdder hierarchyHits = new LongAdder();
+    private final LongAdder hierarchyMisses = new LongAdder();
+    private final LongAdder commonSuperClassHits = new LongAdder();
+    private final LongAdder commonSuperClassMisses = new LongAdder();
+
+    /**
+     * Constructs an empty {@link ClassInformationRepository} object that doesn't cache.
+     */
+    public ClassInformationRepository() {
+        this.cacheDirectory = null;
+        this.parents = Collections.emptyList();
+    }
+
+    /**
+     * Constructs an empty {@link ClassInformationRepository} object that caches information about the classes in JARs that get added.
+     * @param cacheDirectory directory to keep cache files in (created if it doesn't exist)
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public ClassInformationRepository(File cacheDirectory) {
+        Validate.notNull(cacheDirectory);
+        this.cacheDirectory = cacheDirectory;
+        this.parents = Collections.emptyList();
+    }
+    
+    private ClassInformationRepository(File cacheDirectory, List<ClassInformationRepository> parents) {
+        this.cacheDirectory = cacheDirectory;
+        this.parents = parents;
+    }
 
     /**
      * Constructs a {@link ClassInformationRepository} object and loads it up with the classes in a classpath.
@@ -54,24 +170,68 @@ public final class ClassInformationRepository {
         repo.addClasspath(initialClasspath);
         return repo;
     }
+
+    /**
+     * Constructs a {@link ClassInformationRepository} object that caches information about the classes in JARs, and loads it up with the
+     * classes in a classpath.
+     * @param initialClasspath classpath to scan for class information (can be JAR files and/or folders)
+     * @param cacheDirectory directory to keep cache files in (created if it doesn't exist)
+     * @return newly created {@link ClassInformationRepository} object
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null} elements
+     * @throws IOException if an IO error occurs
+     */
+    public static ClassInformationRepository create(List<File> initialClasspath, File cacheDirectory) throws IOException {
+        Validate.notNull(initialClasspath);
+        Validate.notNull(cacheDirectory);
+        Validate.noNullElements(initialClasspath);
+        ClassInformationRepository repo = new ClassInformationRepository(cacheDirectory);
+        repo.addClasspath(initialClasspath);
+        return repo;
+    }
+    
+    /**
+     * Constructs an empty {@link ClassInformationRepository} object that's layered on top of other {@link ClassInformationRepository}
+     * objects. Classes that can't be found in the returned repository are looked up in {@code parents}, in order. The parents themselves
+     * are never modified, so they can be shared between multiple layered repositories.
+     * @param parents repositories to layer on top of (first takes precedence)
+     * @return newly created {@link ClassInformationRepository} object, doesn't cache
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null} elements
+     */
+    public static ClassInformationRepository layer(List<ClassInformationRepository> parents) {
+        Validate.notNull(parents);
+        Validate.noNullElements(parents);
+        return new ClassInformationRepository(null, Collections.unmodifiableList(new ArrayList<>(parents)));
+    }
     
     /**
      * Constructs a {@link ClassInformationRepository} object by merging two existing {@link ClassInformationRepository} objects together.
+     * If either is layered on top of other repositories, the result is layered on top of those same repositories ({@code cr1}'s first).
      * @param cr1 first object
      * @param cr2 second object
-     * @return {@code cr1} and {@code cr2} merged together (keys in {@code cr1} take precedence)
+     * @return {@code cr1} and {@code cr2} merged together (keys in {@code cr1} take precedence), uses the same cache directory as
+     * {@code cr1} (if any)
      * @throws NullPointerException if any argument is {@code null}
      */
     public static ClassInformationRepository merge(ClassInformationRepository cr1, ClassInformationRepository cr2) {
         Validate.notNull(cr1);
         Validate.notNull(cr2);
-        Map<String, ClassInformation> cr1Map = cr1.hierarchyMap;
-        Map<String, ClassInformation> cr2Map = cr2.hierarchyMap;
         
-        // merge cr1 and cr2 in to result, cr1's keys take precedence over cr2's keys
-        ClassInformationRepository ret = new ClassInformationRepository();
-        ret.hierarchyMap.putAll(cr2Map);
-        ret.hierarchyMap.putAll(cr1Map);
+        // merge cr1 and cr2 in to result, cr1's keys take precedence over cr2's keys -- information in cr2 for classes that cr1 can locate
+        // needs to be removed, otherwise it would be returned instead of cr1's version
+        List<ClassInformationRepository> mergedParents = new ArrayList<>(cr1.parents);
+        mergedParents.addAll(cr2.parents);
+        ClassInformationRepository ret = new ClassInformationRepository(cr1.cacheDirectory, Collections.unmodifiableList(mergedParents));
+        ret.sources.addAll(cr1.sources);
+        ret.sources.addAll(cr2.sources);
+        ret.jars.addAll(cr1.jars);
+        ret.jars.addAll(cr2.jars);
+        ret.locationMap.putAll(cr2.locationMap);
+        ret.locationMap.keySet().removeIf(cr1::isInSources);
+        ret.locationMap.putAll(cr1.locationMap);
+        ret.hierarchyMap.putAll(cr2.hierarchyMap);
+        ret.hierarchyMap.keySet().removeAll(cr1.locationMap.keySet());
+        ret.hierarchyMap.keySet().removeIf(cr1::isInSources);
+        ret.hierarchyMap.putAll(cr1.hierarchyMap);
         
         return ret;
     }
@@ -80,9 +240,161 @@ public final class ClassInformationRepository {
      * Get information for a certain class.
      * @param internalClassName internal class name
      * @return information for that class, or {@code null}
+     * @throws IllegalStateException if the class couldn't be read
      */
     public ClassInformation getInformation(String internalClassName) {
-        return hierarchyMap.get(internalClassName);
+        ClassInformation classInformation = hierarchyMap.get(internalClassName);
+        if (classInformation != null) {
+            return classInformation;
+        }
+        
+        ClassLocation classLocation = locationMap.get(internalClassName);
+        if (classLocation == null) {
+            // Not kept in hierarchyMap if found in a source, otherwise the memory saved by using compact tables would be lost over time
+            for (ClassSource source : sources) {
+                classInformation = source.getInformation(internalClassName);
+                if (classInformation != null) {
+                    return classInformation;
+                }
+            }
+            return getInformationFromParents(internalClassName);
+        }
+        
+        // Parse it and cache it. If another thread is doing the same thing at the same time, one of the results gets thrown away.
+        try {
+            classInformation = classLocation.read();
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to read class " + internalClassName, ioe);
+        }
+        ClassInformation existingClassInformation = hierarchyMap.putIfAbsent(internalClassName, classInformation);
+        return existingClassInformation != null ? existingClassInformation : classInformation;
+    }
+    
+    /**
+     * Get the super class chain of a certain class.
+     * @param internalClassName internal class name
+     * @return unmodifiable list containing {@code internalClassName} followed by its super class, that class's super class, and so on
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if information for {@code internalClassName} or one of its super classes couldn't be found
+     * @throws IllegalStateException if a class couldn't be read
+     */
+    public List<String> getHierarchy(String internalClassName) {
+        Validate.notNull(internalClassName);
+        
+        List<String> hierarchy = hierarchyMemo.get(internalClassName);
+        if (hierarchy != null) {
+            hierarchyHits.increment();
+            return hierarchy;
+        }
+        hierarchyMisses.increment();
+        
+        List<String> newHierarchy = new ArrayList<>();
+        String currentType = internalClassName;
+        while (true) {
+            newHierarchy.add(currentType);
+            
+            ClassInformation classInformation = getInformation(currentType); // must return a result
+            Validate.isTrue(classInformation != null, "No parent found for %s", currentType);
+            if (classInformation.getSuperClassName() == null) {
+                break;
+            }
+            
+            currentType = classInformation.getSuperClassName();
+        }
+        
+        hierarchy = Collections.unmodifiableList(newHierarchy);
+        memoize(hierarchyMemo, internalClassName, hierarchy);
+        return hierarchy;
+    }
+    
+    /**
+     * Get the closest super class that two classes have in common. Interfaces aren't taken in to account.
+     * @param internalClassName1 internal name of a class
+     * @param internalClassName2 internal name of another class
+     * @return internal name of the first class in {@code internalClassName1}'s hierarchy that's also in {@code internalClassName2}'s
+     * hierarchy (or {@code java/lang/Object} if there isn't one)
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if information for either class or one of its super classes couldn't be found
+     * @throws IllegalStateException if a class couldn't be read
+     */
+    public String getCommonSuperClass(String internalClassName1, String internalClassName2) {
+        Validate.notNull(internalClassName1);
+        Validate.notNull(internalClassName2);
+        
+        String key = internalClassName1 + ' ' + internalClassName2; // space can't appear in an internal name
+        String commonSuperClass = commonSuperClassMemo.get(key);
+        if (commonSuperClass != null) {
+            commonSuperClassHits.increment();
+            return commonSuperClass;
+        }
+        commonSuperClassMisses.increment();
+        
+        commonSuperClass = "java/lang/Object";
+        List<String> hierarchy2 = getHierarchy(internalClassName2);
+        for (String type : getHierarchy(internalClassName1)) {
+            if (hierarchy2.contains(type)) {
+                commonSuperClass = type;
+                break;
+            }
+        }
+        
+        memoize(commonSuperClassMemo, key, commonSuperClass);
+        return commonSuperClass;
+    }
+    
+    /**
+     * Get hit/miss counts for {@link #getHierarchy(java.lang.String) } and
+     * {@link #getCommonSuperClass(java.lang.String, java.lang.String) }.
+     * @return snapshot of hit/miss counts
+     */
+    public HierarchyCacheStatistics getHierarchyCacheStatistics() {
+        return new HierarchyCacheStatistics(hierarchyHits.sum(), hierarchyMisses.sum(), commonSuperClassHits.sum(),
+                commonSuperClassMisses.sum());
+    }
+    
+    private static <V> void memoize(Map<String, V> memo, String key, V value) {
+        // Crude bound -- start over once full. Entries are cheap to recompute, and the ones that matter will come right back.
+        if (memo.size() >= MAX_MEMOIZED_ENTRIES) {
+            memo.clear();
+        }
+        memo.put(key, value);
+    }
+    
+    private void shadowed(String internalClassName) {
+        // Memoized results only ever involve classes that could be found, and classes can't be replaced once they're in this repository
+        // itself. A class found in a parent can get shadowed by one added to this repository though, which invalidates everything
+        // memoized up until this point.
+        if (parentHits.remove(internalClassName) != null) {
+            hierarchyMemo.clear();
+            commonSuperClassMemo.clear();
+        }
+    }
+    
+    private boolean isInSources(String internalClassName) {
+        for (ClassSource source : sources) {
+            if (source.contains(internalClassName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private ClassInformation getInformationFromParents(String internalClassName) {
+        ClassInformation cachedClassInformation = parentHits.get(internalClassName);
+        if (cachedClassInformation != null) {
+            return cachedClassInformation;
+        }
+        
+        for (ClassInformationRepository parent : parents) {
+            ClassInformation classInformation = parent.getInformation(internalClassName);
+            if (classInformation != null) {
+                // Remember it so that later lookups don't have to walk the parents again. Not added as an individual class, so this
+                // repository still behaves as if it doesn't have this class when adding to it.
+                parentHits.putIfAbsent(internalClassName, classInformation);
+                return classInformation;
+            }
+        }
+        return null;
     }
     
 
@@ -96,14 +408,65 @@ public final class ClassInformationRepository {
     public void addIndividual(String className, ClassInformation classInformation) {
         Validate.notNull(className);
         Validate.notNull(classInformation);
-        Validate.isTrue(!hierarchyMap.containsKey(className));
-        
-        hierarchyMap.put(className, classInformation);
+        Validate.isTrue(!locationMap.containsKey(className) && !isInSources(className));
+        Validate.isTrue(hierarchyMap.putIfAbsent(className, classInformation) == null);
+        shadowed(className);
     }
 
     /**
-     * Add classes contained within a list of JAR files and folders. Note that if a duplicate class is encountered, the original is kept.
-     * @param classpath list of JARs and folders to scan
+     * Add a custom class, unless this repository already has a class by the same name.
+     * @param className name of class
+     * @param classInformation information for class
+     * @return {@code true} if the class was added, {@code false} if this repository already had a class by the same name
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public boolean addIndividualIfAbsent(String className, ClassInformation classInformation) {
+        Validate.notNull(className);
+        Validate.notNull(classInformation);
+        if (locationMap.containsKey(className) || isInSources(className) || hierarchyMap.putIfAbsent(className, classInformation) != null) {
+            return false;
+        }
+        shadowed(className);
+        return true;
+    }
+
+    /**
+     * Closes any files that this repository has open, including ones opened by the repositories it's layered on top of and the
+     * repositories it was merged from. This repository can still be used afterwards, files get opened again as needed.
+     * @throws IOException if an IO error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        for (Closeable closeable : getCloseables()) {
+            try {
+                closeable.close();
+            } catch (IOException ioe) {
+                if (exception == null) {
+                    exception = ioe;
+                } else {
+                    exception.addSuppressed(ioe);
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+    
+    private List<Closeable> getCloseables() {
+        List<Closeable> ret = new ArrayList<>(jars);
+        ret.addAll(sources);
+        for (ClassInformationRepository parent : parents) {
+            ret.addAll(parent.getCloseables());
+        }
+        return ret;
+    }
+
+    /**
+     * Add classes contained within a list of JAR files, folders, and JDK module images (the {@code lib/modules} file of a JDK 9+
+     * installation). Note that if a duplicate class is encountered, the original is kept.
+     * @param classpath list of JARs, folders, and module images to scan
      * @throws NullPointerException if any argument is {@code null} or contains {@code null} elements
      * @throws IOException if an IO error occurs
      */
@@ -112,7 +475,9 @@ public final class ClassInformationRepository {
         Validate.noNullElements(classpath);
 
         for (File classpathElement : classpath) {
-            if (classpathElement.isFile()) {
+            if (classpathElement.isFile() && isModuleImage(classpathElement)) {
+                addSource(new ModuleImage(classpathElement));
+            } else if (classpathElement.isFile()) {
                 addJar(classpathElement);
             } else if (classpathElement.isDirectory()) {
                 addDirectory(classpathElement);
@@ -122,50 +487,445 @@ public final class ClassInformationRepository {
         }
     }
     
+    private static boolean isModuleImage(File file) throws IOException {
+        // Module images start with a magic number in the platform's byte order, JARs start with a ZIP local file header
+        byte[] magic = new byte[4];
+        try (InputStream is = new FileInputStream(file)) {
+            if (IOUtils.read(is, magic) != magic.length) {
+                return false;
+            }
+        }
+        int value = ((magic[0] & 0xFF) << 24) | ((magic[1] & 0xFF) << 16) | ((magic[2] & 0xFF) << 8) | (magic[3] & 0xFF);
+        return value == MODULE_IMAGE_MAGIC || Integer.reverseBytes(value) == MODULE_IMAGE_MAGIC;
+    }
+    
     private void addDirectory(File directory) throws IOException {
         Validate.notNull(directory);
         Validate.isTrue(directory.isDirectory());
+        String directoryPath = directory.toURI().getPath();
         for (File file : FileUtils.listFiles(directory, new String[] {"class"}, true)) {
             if (!file.getName().endsWith(".class")) {
                 continue;
             }
             
-            try (InputStream is = new FileInputStream(file)) {
-                populateSuperClassMapping(is);
-            }
+            String path = file.toURI().getPath().substring(directoryPath.length());
+            addLocation(path, new FileClassLocation(file));
         }
     }
 
     private void addJar(File file) throws IOException {
         Validate.notNull(file);
         Validate.isTrue(file.isFile());
-        try (FileInputStream fis = new FileInputStream(file);
-                JarArchiveInputStream jais = new JarArchiveInputStream(fis)) {
-            JarArchiveEntry entry;
-            while ((entry = jais.getNextJarEntry()) != null) {
-                if (!entry.getName().endsWith(".class") || entry.isDirectory()) {
+        
+        if (cacheDirectory != null) {
+            addCachedJar(file);
+            return;
+        }
+        
+        // Opening a ZipFile only reads the central directory, none of the entries get decompressed at this point. It's left open for
+        // reading classes out of later on.
+        Jar jar = new Jar(file);
+        jars.add(jar);
+        Enumeration<? extends ZipEntry> entries = jar.open().entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (!entry.getName().endsWith(".class") || entry.isDirectory()) {
+                continue;
+            }
+
+            addLocation(entry.getName(), new JarClassLocation(jar, entry.getName()));
+        }
+    }
+    
+    private void addCachedJar(File file) throws IOException {
+        String key = file.getCanonicalPath() + '|' + file.length() + '|' + file.lastModified();
+        File cacheFile = new File(cacheDirectory, hash(key) + ".cache");
+        
+        CompactClassInformationTable table = readCacheFile(cacheFile, key);
+        if (table == null) {
+            table = CompactClassInformationTable.create(readJar(file));
+            writeCacheFile(cacheFile, key, table);
+        }
+        
+        addSource(new TableClassSource(table));
+    }
+    
+    private void addSource(ClassSource source) {
+        // Classes in the source that were already added individually or from some earlier classpath element get shadowed by those
+        // earlier additions, since sources are checked after everything else. Classes in the source that were previously found in a
+        // parent need to be marked as shadowed.
+        sources.add(source);
+        for (String name : parentHits.keySet()) {
+            if (source.contains(name)) {
+                shadowed(name);
+            }
+        }
+    }
+    
+    private static Map<String, ClassInformation> readJar(File file) throws IOException {
+        Map<String, ClassInformation> ret = new LinkedHashMap<>();
+        try (ZipFile zipFile = new ZipFile(file)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String path = entry.getName();
+                if (!path.endsWith(".class") || entry.isDirectory()) {
                     continue;
                 }
-
-                populateSuperClassMapping(jais);
+                
+                try (InputStream is = zipFile.getInputStream(entry)) {
+                    ret.put(path.substring(0, path.length() - ".class".length()), readClassInformation(is));
+                }
+            }
+        }
+        return ret;
+    }
+    
+    private static CompactClassInformationTable readCacheFile(File cacheFile, String key) {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        
+        // Anything wrong with the cache file (corrupt, old version, hash collision) means that it gets ignored and rewritten
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (dis.readInt() != CACHE_MAGIC || dis.readInt() != CACHE_VERSION || !dis.readUTF().equals(key)) {
+                return null;
             }
+            
+            return CompactClassInformationTable.read(dis);
+        } catch (IOException | RuntimeException e) {
+            return null;
         }
     }
     
-    private void populateSuperClassMapping(final InputStream is) throws IOException {
-        ClassReader classReader = new ClassReader(is);
-        String name = classReader.getClassName();
+    private void writeCacheFile(File cacheFile, String key, CompactClassInformationTable table) throws IOException {
+        Files.createDirectories(cacheDirectory.toPath());
         
-        if (hierarchyMap.containsKey(name)) {
-            // duplicate encounter, ignore
+        // Write to a temp file and move it in to place, so that other processes never see a partially written cache file
+        File tempFile = File.createTempFile("cache", ".tmp", cacheDirectory);
+        try {
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                dos.writeInt(CACHE_MAGIC);
+                dos.writeInt(CACHE_VERSION);
+                dos.writeUTF(key);
+                table.write(dos);
+            }
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+    
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xFF));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae); // should never happen, SHA-1 is required to be present
+        }
+    }
+    
+    private void addLocation(String path, ClassLocation classLocation) {
+        // Classes are expected to be at a path that matches their name. Classes that aren't won't be found, same as with a classloader.
+        String name = path.substring(0, path.length() - ".class".length());
+        
+        if (hierarchyMap.containsKey(name) || isInSources(name)) {
+            // duplicate encounter (added individually or from an earlier cached JAR/module image), ignore
             return;
         }
         
-        String superName = classReader.getSuperName();
-        String[] interfaces = classReader.getInterfaces();
-        boolean interfaceMarker = (classReader.getAccess() & Opcodes.ACC_INTERFACE) != 0;
+        if (locationMap.putIfAbsent(name, classLocation) == null) { // if a duplicate is encountered, ignore
+            shadowed(name);
+        }
+    }
+    
+    private static ClassInformation readClassInformation(InputStream is) throws IOException {
+        // Only the class header is needed, so it's read directly rather than through ClassReader. ClassReader rejects class files that are
+        // newer than it knows about (e.g. those in the module images of newer JDKs), even though the parts needed here haven't changed.
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+        if (dis.readInt() != CLASS_MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        dis.readUnsignedShort(); // minor version
+        dis.readUnsignedShort(); // major version
+        
+        int constantPoolCount = dis.readUnsignedShort();
+        String[] utf8s = new String[constantPoolCount];
+        int[] classNameIndexes = new int[constantPoolCount];
+        byte[] skipBuffer = new byte[8];
+        for (int i = 1; i < constantPoolCount; i++) {
+            int tag = dis.readUnsignedByte();
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    utf8s[i] = dis.readUTF(); // class files use the same modified UTF-8 as DataInput
+                    break;
+                case CONSTANT_CLASS:
+                    classNameIndexes[i] = dis.readUnsignedShort();
+                    break;
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    dis.readFully(skipBuffer, 0, 2);
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    dis.readFully(skipBuffer, 0, 3);
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    dis.readFully(skipBuffer, 0, 4);
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    dis.readFully(skipBuffer, 0, 8);
+                    i++; // takes up 2 slots
+                    break;
+                default:
+                    throw new IOException("Unrecognized constant pool tag " + tag);
+            }
+        }
+        
+        int access = dis.readUnsignedShort();
+        dis.readUnsignedShort(); // this class
+        int superClassIndex = dis.readUnsignedShort();
+        String superName = superClassIndex == 0 ? null : utf8s[classNameIndexes[superClassIndex]];
+        int interfaceCount = dis.readUnsignedShort();
+        List<String> interfaces = new ArrayList<>(interfaceCount);
+        for (int i = 0; i < interfaceCount; i++) {
+            interfaces.add(utf8s[classNameIndexes[dis.readUnsignedShort()]]);
+        }
+        boolean interfaceMarker = (access & Opcodes.ACC_INTERFACE) != 0;
+
+        return new ClassInformation(superName, interfaces, interfaceMarker);
+    }
+    
+    private interface ClassLocation {
+        ClassInformation read() throws IOException;
+    }
+    
+    private static final class FileClassLocation implements ClassLocation {
+        private final File file;
+
+        FileClassLocation(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public ClassInformation read() throws IOException {
+            try (InputStream is = new FileInputStream(file)) {
+                return readClassInformation(is);
+            }
+        }
+    }
+    
+    private static final class JarClassLocation implements ClassLocation {
+        private final Jar jar;
+        private final String entryName;
+
+        JarClassLocation(Jar jar, String entryName) {
+            this.jar = jar;
+            this.entryName = entryName;
+        }
+
+        @Override
+        public ClassInformation read() throws IOException {
+            return jar.read(entryName);
+        }
+    }
+    
+    private static final class Jar implements Closeable {
+        private final File file;
+        private ZipFile zipFile; // null if not open, guarded by this
 
-        hierarchyMap.put(name, new ClassInformation(superName, Arrays.asList(interfaces), interfaceMarker));
+        Jar(File file) {
+            this.file = file;
+        }
+
+        synchronized ZipFile open() throws IOException {
+            if (zipFile == null) {
+                zipFile = new ZipFile(file);
+            }
+            return zipFile;
+        }
+
+        synchronized ClassInformation read(String entryName) throws IOException {
+            // Synchronized so that the JAR doesn't get closed while it's being read from
+            ZipFile openZipFile = open();
+            ZipEntry entry = openZipFile.getEntry(entryName);
+            if (entry == null) {
+                throw new IOException(entryName + " is no longer in " + file);
+            }
+            try (InputStream is = openZipFile.getInputStream(entry)) {
+                return readClassInformation(is);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (zipFile == null) {
+                return;
+            }
+            
+            try {
+                zipFile.close();
+            } finally {
+                zipFile = null;
+            }
+        }
+    }
+    
+    private interface ClassSource extends Closeable {
+        boolean contains(String internalClassName);
+        ClassInformation getInformation(String internalClassName);
     }
     
+    private static final class TableClassSource implements ClassSource {
+        private final CompactClassInformationTable table;
+
+        TableClassSource(CompactClassInformationTable table) {
+            this.table = table;
+        }
+
+        @Override
+        public boolean contains(String internalClassName) {
+            return table.contains(internalClassName);
+        }
+
+        @Override
+        public ClassInformation getInformation(String internalClassName) {
+            return table.getInformation(internalClassName);
+        }
+
+        @Override
+        public void close() {
+            // nothing is held open, the table is entirely in memory
+        }
+    }
+    
+    private static final class ModuleImage implements ClassSource {
+        private final File javaHome;
+        private final Map<String, List<String>> packageModules = new ConcurrentHashMap<>(); // listed lazily, one package at a time
+        private final Map<String, ClassInformation> classes = new ConcurrentHashMap<>(); // read lazily
+        private FileSystem fileSystem; // null if not open, guarded by this
+        private URLClassLoader providerClassLoader; // null if not open or if the jrt:/ provider is built in, guarded by this
+
+        ModuleImage(File file) {
+            // The image belongs to the JDK at <java.home>/lib/modules
+            javaHome = file.getAbsoluteFile().getParentFile().getParentFile();
+        }
+
+        @Override
+        public boolean contains(String internalClassName) {
+            return getInformation(internalClassName) != null;
+        }
+
+        @Override
+        public ClassInformation getInformation(String internalClassName) {
+            ClassInformation classInformation = classes.get(internalClassName);
+            if (classInformation != null) {
+                return classInformation;
+            }
+            
+            // Classes that aren't in the image aren't remembered. Most are in packages that the image doesn't have, which are quick to
+            // rule out since package listings are remembered.
+            try {
+                classInformation = read(internalClassName);
+            } catch (IOException ioe) {
+                throw new IllegalStateException("Unable to read class " + internalClassName, ioe);
+            }
+            if (classInformation != null) {
+                classes.putIfAbsent(internalClassName, classInformation);
+            }
+            return classInformation;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (fileSystem == null) {
+                return;
+            }
+            
+            try (URLClassLoader closedProviderClassLoader = providerClassLoader) {
+                fileSystem.close();
+            } finally {
+                fileSystem = null;
+                providerClassLoader = null;
+            }
+        }
+
+        private synchronized ClassInformation read(String internalClassName) throws IOException {
+            // Synchronized so that the file system doesn't get closed while it's being read from
+            int packageEnd = internalClassName.lastIndexOf('/');
+            if (packageEnd == -1) {
+                return null; // JDK has no classes in the default package
+            }
+            String packageName = internalClassName.substring(0, packageEnd);
+            String fileName = internalClassName.substring(packageEnd + 1) + ".class";
+            
+            List<String> modules = packageModules.get(packageName);
+            if (modules == null) {
+                modules = listPackageModules(packageName);
+                packageModules.put(packageName, modules);
+            }
+            
+            for (String module : modules) {
+                Path path = getFileSystem().getPath("/modules", module, packageName, fileName);
+                if (Files.isRegularFile(path)) {
+                    try (InputStream is = Files.newInputStream(path)) {
+                        return readClassInformation(is);
+                    }
+                }
+            }
+            return null;
+        }
+        
+        private List<String> listPackageModules(String packageName) throws IOException {
+            // /packages/<package> has an entry for each module that has classes in that package
+            Path packagePath = getFileSystem().getPath("/packages", packageName.replace('/', '.'));
+            if (!Files.isDirectory(packagePath)) {
+                return Collections.emptyList();
+            }
+            
+            List<String> ret = new ArrayList<>();
+            try (DirectoryStream<Path> moduleLinks = Files.newDirectoryStream(packagePath)) {
+                for (Path moduleLink : moduleLinks) {
+                    ret.add(moduleLink.getFileName().toString());
+                }
+            }
+            return ret;
+        }
+        
+        private FileSystem getFileSystem() throws IOException {
+            // The jrt:/ file system is opened through the image's own JDK, so the image can be read even if it's from a different JDK
+            // version than the one running
+            if (fileSystem == null) {
+                Map<String, String> env = Collections.singletonMap("java.home", javaHome.getPath());
+                try {
+                    fileSystem = FileSystems.newFileSystem(JRT_URI, env); // JDK 9+ has a jrt:/ provider built in
+                } catch (ProviderNotFoundException pnfe) {
+                    // JDK 8 doesn't, so the provider gets loaded from the image's JDK
+                    URL jrtFsJarUrl = new File(javaHome, "lib/jrt-fs.jar").toURI().toURL();
+                    URLClassLoader newProviderClassLoader = new URLClassLoader(new URL[] {jrtFsJarUrl});
+                    try {
+                        fileSystem = FileSystems.newFileSystem(JRT_URI, Collections.emptyMap(), newProviderClassLoader);
+                    } catch (IOException | RuntimeException e) {
+                        newProviderClassLoader.close();
+                        throw e;
+                    }
+                    providerClassLoader = newProviderClassLoader;
+                }
+            }
+            return fileSystem;
+        }
+    }
 }
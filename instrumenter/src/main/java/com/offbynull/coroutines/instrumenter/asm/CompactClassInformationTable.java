@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter.asm;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Immutable table of class information, stored compactly. Every name this table refers to (the classes themselves along with their super
+ * classes and interfaces) is stored once in a symbol table, and links between classes are stored as indexes in to that symbol table
+ * rather than as separate strings and lists. Classes are looked up through an open addressing hash table of indexes.
+ * {@link ClassInformation} objects are created on the fly as they're requested.
+ * <p>
+ * {@link ClassInformationRepository} uses this to hold the classes of JARs that it reads out of its cache, where a map of
+ * {@link ClassInformation} objects for a large classpath (e.g. the JDK along with all dependencies) would take up several times as much
+ * memory.
+ * <p>
+ * This class is immutable.
+ * @author Kasra Faghihi
+ */
+public final class CompactClassInformationTable {
+    private static final int NO_SUPER_CLASS = -1;
+
+    private final String[] symbols; // classes in this table come first, followed by names that are only referenced by those classes
+    private final int classCount;
+    private final int[] superClassIndexes; // per class, NO_SUPER_CLASS if class has no super class
+    private final int[] interfaceOffsets; // per class + 1, class i's interfaces are from interfaceOffsets[i] to interfaceOffsets[i + 1]
+    private final int[] interfaceIndexes;
+    private final BitSet interfaceMarkers; // per class
+    private final int[] slots; // class index + 1 (0 means empty slot), length is a power of 2
+
+    private CompactClassInformationTable(String[] symbols, int classCount, int[] superClassIndexes, int[] interfaceOffsets,
+            int[] interfaceIndexes, BitSet interfaceMarkers) {
+        // Sanity check -- tables read back from a file may be corrupt
+        Validate.isTrue(classCount >= 0 && classCount <= symbols.length);
+        Validate.isTrue(superClassIndexes.length == classCount);
+        Validate.isTrue(interfaceOffsets.length == classCount + 1);
+        Validate.isTrue(interfaceOffsets[0] == 0 && interfaceOffsets[classCount] == interfaceIndexes.length);
+        for (int i = 0; i < classCount; i++) {
+            Validate.isTrue(superClassIndexes[i] == NO_SUPER_CLASS || (superClassIndexes[i] >= 0 && superClassIndexes[i] < symbols.length));
+            Validate.isTrue(interfaceOffsets[i] <= interfaceOffsets[i + 1]);
+        }
+        for (int interfaceIndex : interfaceIndexes) {
+            Validate.isTrue(interfaceIndex >= 0 && interfaceIndex < symbols.length);
+        }
+        Validate.noNullElements(symbols);
+        
+        this.symbols = symbols;
+        this.classCount = classCount;
+        this.superClassIndexes = superClassIndexes;
+        this.interfaceOffsets = interfaceOffsets;
+        this.interfaceIndexes = interfaceIndexes;
+        this.interfaceMarkers = interfaceMarkers;
+        
+        // Keep the load factor between 0.25 and 0.5, so probe sequences stay short
+        slots = new int[Integer.highestOneBit(Math.max(classCount, 1)) << 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < classCount; i++) {
+            int slot = mix(symbols[i].hashCode()) & mask;
+            while (slots[slot] != 0) {
+                Validate.isTrue(!symbols[slots[slot] - 1].equals(symbols[i]), "Duplicate class %s", symbols[i]);
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    /**
+     * Constructs a {@link CompactClassInformationTable} object.
+     * @param classes classes to put in to the table, keyed by internal class name
+     * @return newly created {@link CompactClassInformationTable} object
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null} keys or values
+     */
+    public static CompactClassInformationTable create(Map<String, ClassInformation> classes) {
+        Validate.notNull(classes);
+        Validate.noNullElements(classes.keySet());
+        Validate.noNullElements(classes.values());
+        
+        // Only used while building -- the table doesn't keep it around
+        Map<String, Integer> symbolIndexes = new HashMap<>();
+        List<String> symbols = new ArrayList<>();
+        for (String name : classes.keySet()) {
+            symbolIndexes.put(name, symbols.size());
+            symbols.add(name);
+        }
+        
+        int classCount = classes.size();
+        int[] superClassIndexes = new int[classCount];
+        int[] interfaceOffsets = new int[classCount + 1];
+        List<Integer> interfaceIndexList = new ArrayList<>();
+        BitSet interfaceMarkers = new BitSet(classCount);
+        int i = 0;
+        for (ClassInformation classInformation : classes.values()) {
+            String superClassName = classInformation.getSuperClassName();
+            superClassIndexes[i] = superClassName == null ? NO_SUPER_CLASS : intern(symbolIndexes, symbols, superClassName);
+            for (String interfaceName : classInformation.getInterfaces()) {
+                interfaceIndexList.add(intern(symbolIndexes, symbols, interfaceName));
+            }
+            interfaceOffsets[i + 1] = interfaceIndexList.size();
+            interfaceMarkers.set(i, classInformation.isInterface());
+            i++;
+        }
+        
+        int[] interfaceIndexes = new int[interfaceIndexList.size()];
+        for (int j = 0; j < interfaceIndexes.length; j++) {
+            interfaceIndexes[j] = interfaceIndexList.get(j);
+        }
+        
+        return new CompactClassInformationTable(symbols.toArray(new String[symbols.size()]), classCount, superClassIndexes,
+                interfaceOffsets, interfaceIndexes, interfaceMarkers);
+    }
+    
+    private static int intern(Map<String, Integer> symbolIndexes, List<String> symbols, String name) {
+        Integer index = symbolIndexes.get(name);
+        if (index == null) {
+            index = symbols.size();
+            symbolIndexes.put(name, index);
+            symbols.add(name);
+        }
+        return index;
+    }
+    
+    /**
+     * Reads in a table that was written out using {@link #write(java.io.DataOutput) }.
+     * @param in input to read from
+     * @return table that was read in
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IOException if an IO error occurs
+     * @throws IllegalArgumentException if the data read in is inconsistent
+     */
+    static CompactClassInformationTable read(DataInput in) throws IOException {
+        Validate.notNull(in);
+        
+        int symbolCount = in.readInt();
+        int classCount = in.readInt();
+        Validate.isTrue(symbolCount >= 0 && classCount >= 0 && classCount <= symbolCount);
+        
+        String[] symbols = new String[symbolCount];
+        for (int i = 0; i < symbolCount; i++) {
+            symbols[i] = in.readUTF();
+        }
+        
+        int[] superClassIndexes = new int[classCount];
+        int[] interfaceOffsets = new int[classCount + 1];
+        BitSet interfaceMarkers = new BitSet(classCount);
+        for (int i = 0; i < classCount; i++) {
+            superClassIndexes[i] = in.readInt();
+            interfaceOffsets[i + 1] = in.readInt();
+            interfaceMarkers.set(i, in.readBoolean());
+        }
+        
+        int interfaceCount = in.readInt();
+        Validate.isTrue(interfaceCount >= 0);
+        int[] interfaceIndexes = new int[interfaceCount];
+        for (int i = 0; i < interfaceCount; i++) {
+            interfaceIndexes[i] = in.readInt();
+        }
+        
+        return new CompactClassInformationTable(symbols, classCount, superClassIndexes, interfaceOffsets, interfaceIndexes,
+                interfaceMarkers);
+    }
+    
+    /**
+     * Writes out this table such that it can be read back in using {@link #read(java.io.DataInput) }.
+     * @param out output to write to
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IOException if an IO error occurs
+     */
+    void write(DataOutput out) throws IOException {
+        Validate.notNull(out);
+        
+        out.writeInt(symbols.length);
+        out.writeInt(classCount);
+        for (String symbol : symbols) {
+            out.writeUTF(symbol);
+        }
+        
+        for (int i = 0; i < classCount; i++) {
+            out.writeInt(superClassIndexes[i]);
+            out.writeInt(interfaceOffsets[i + 1]);
+            out.writeBoolean(interfaceMarkers.get(i));
+        }
+        
+        out.writeInt(interfaceIndexes.length);
+        for (int interfaceIndex : interfaceIndexes) {
+            out.writeInt(interfaceIndex);
+        }
+    }
+
+    /**
+     * Get information for a certain class.
+     * @param internalClassName internal class name
+     * @return newly created information for that class, or {@code null} if this table doesn't contain it
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public ClassInformation getInformation(String internalClassName) {
+        Validate.notNull(internalClassName);
+        
+        int index = indexOf(internalClassName);
+        if (index == -1) {
+            return null;
+        }
+        
+        int superClassIndex = superClassIndexes[index];
+        String superClassName = superClassIndex == NO_SUPER_CLASS ? null : symbols[superClassIndex];
+        int interfaceStart = interfaceOffsets[index];
+        String[] interfaces = new String[interfaceOffsets[index + 1] - interfaceStart];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = symbols[interfaceIndexes[interfaceStart + i]];
+        }
+        
+        return new ClassInformation(superClassName, Arrays.asList(interfaces), interfaceMarkers.get(index));
+    }
+
+    /**
+     * Checks if this table contains a certain class.
+     * @param internalClassName internal class name
+     * @return {@code true} if this table contains {@code internalClassName}, {@code false} otherwise
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public boolean contains(String internalClassName) {
+        Validate.notNull(internalClassName);
+        return indexOf(internalClassName) != -1;
+    }
+
+    /**
+     * Get the number of classes in this table.
+     * @return number of classes
+     */
+    public int size() {
+        return classCount;
+    }
+    
+    private int indexOf(String internalClassName) {
+        int mask = slots.length - 1;
+        int slot = mix(internalClassName.hashCode()) & mask;
+        while (true) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (symbols[entry - 1].equals(internalClassName)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    private static int mix(int hash) {
+        // Spread the high bits down, since only the low bits are used to pick a slot (same as what HashMap does)
+        return hash ^ (hash >>> 16);
+    }
+}
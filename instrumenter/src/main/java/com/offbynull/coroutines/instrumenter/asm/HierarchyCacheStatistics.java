@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter.asm;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Snapshot of hit/miss counts for the hierarchy and common super class lookups memoized by a {@link ClassInformationRepository}.
+ * @author Kasra Faghihi
+ */
+public final class HierarchyCacheStatistics {
+    private final long hierarchyHits;
+    private final long hierarchyMisses;
+    private final long commonSuperClassHits;
+    private final long commonSuperClassMisses;
+
+    /**
+     * Constructs a {@link HierarchyCacheStatistics} object.
+     * @param hierarchyHits number of hierarchy lookups that were memoized
+     * @param hierarchyMisses number of hierarchy lookups that had to be computed
+     * @param commonSuperClassHits number of common super class lookups that were memoized
+     * @param commonSuperClassMisses number of common super class lookups that had to be computed
+     * @throws IllegalArgumentException if any argument is negative
+     */
+    public HierarchyCacheStatistics(long hierarchyHits, long hierarchyMisses, long commonSuperClassHits, long commonSuperClassMisses) {
+        Validate.isTrue(hierarchyHits >= 0L);
+        Validate.isTrue(hierarchyMisses >= 0L);
+        Validate.isTrue(commonSuperClassHits >= 0L);
+        Validate.isTrue(commonSuperClassMisses >= 0L);
+        this.hierarchyHits = hierarchyHits;
+        this.hierarchyMisses = hierarchyMisses;
+        this.commonSuperClassHits = commonSuperClassHits;
+        this.commonSuperClassMisses = commonSuperClassMisses;
+    }
+
+    /**
+     * Get the number of hierarchy lookups that were memoized.
+     * @return hierarchy hits
+     */
+    public long getHierarchyHits() {
+        return hierarchyHits;
+    }
+
+    /**
+     * Get the number of hierarchy lookups that had to be computed.
+     * @return hierarchy misses
+     */
+    public long getHierarchyMisses() {
+        return hierarchyMisses;
+    }
+
+    /**
+     * Get the fraction of hierarchy lookups that were memoized.
+     * @return hierarchy hit rate (between 0 and 1), or 0 if there were no lookups
+     */
+    public double getHierarchyHitRate() {
+        return hitRate(hierarchyHits, hierarchyMisses);
+    }
+
+    /**
+     * Get the number of common super class lookups that were memoized.
+     * @return common super class hits
+     */
+    public long getCommonSuperClassHits() {
+        return commonSuperClassHits;
+    }
+
+    /**
+     * Get the number of common super class lookups that had to be computed.
+     * @return common super class misses
+     */
+    public long getCommonSuperClassMisses() {
+        return commonSuperClassMisses;
+    }
+
+    /**
+     * Get the fraction of common super class lookups that were memoized.
+     * @return common super class hit rate (between 0 and 1), or 0 if there were no lookups
+     */
+    public double getCommonSuperClassHitRate() {
+        return hitRate(commonSuperClassHits, commonSuperClassMisses);
+    }
+    
+    private static double hitRate(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0L ? 0.0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "HierarchyCacheStatistics{" + "hierarchyHits=" + hierarchyHits + ", hierarchyMisses=" + hierarchyMisses
+                + ", commonSuperClassHits=" + commonSuperClassHits + ", commonSuperClassMisses=" + commonSuperClassMisses + '}';
+    }
+}
@@ -21,6 +21,7 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.ListIterator;
@@ -458,6 +459,55 @@ public final class InstructionUtils {
         return ret;
     }
 
+    /**
+     * Checks if an integer is {@code 0} and performs some action if it is. Cheaper than comparing against a constant with
+     * {@link #ifIntegersEqual(org.objectweb.asm.tree.InsnList, org.objectweb.asm.tree.InsnList, org.objectweb.asm.tree.InsnList) }.
+     * @param value instruction list -- must leave an int on top of the stack
+     * @param action action to perform if result of {@code value} is {@code 0}
+     * @return instructions instruction list to perform some action if an int is {@code 0}
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static InsnList ifIntegerZero(InsnList value, InsnList action) {
+        Validate.notNull(value);
+        Validate.notNull(action);
+        
+        
+        InsnList ret = new InsnList();
+        
+        LabelNode notZeroLabelNode = new LabelNode();
+        
+        ret.add(value);
+        ret.add(new JumpInsnNode(Opcodes.IFNE, notZeroLabelNode));
+        ret.add(action);
+        ret.add(notZeroLabelNode);
+        
+        return ret;
+    }
+
+    /**
+     * Checks if an integer is {@code 0} and performs some action if it isn't.
+     * @param value instruction list -- must leave an int on top of the stack
+     * @param action action to perform if result of {@code value} isn't {@code 0}
+     * @return instructions instruction list to perform some action if an int isn't {@code 0}
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static InsnList ifIntegerNotZero(InsnList value, InsnList action) {
+        Validate.notNull(value);
+        Validate.notNull(action);
+        
+        
+        InsnList ret = new InsnList();
+        
+        LabelNode zeroLabelNode = new LabelNode();
+        
+        ret.add(value);
+        ret.add(new JumpInsnNode(Opcodes.IFEQ, zeroLabelNode));
+        ret.add(action);
+        ret.add(zeroLabelNode);
+        
+        return ret;
+    }
+        
 /**
      * Compares two objects and performs some action if the objects are the same (uses == to check if same, not the equals method).
      * @param lhs left hand side instruction list -- must leave an object on top of the stack
@@ -998,15 +1048,36 @@ public final class InstructionUtils {
      * type
      */
     public static InsnList loadLocalVariableTable(Variable arrayLocalsVar, Variable tempObjectVar, Frame<BasicValue> frame) {
+        return loadLocalVariableTable(arrayLocalsVar, tempObjectVar, frame, allLocals(frame));
+    }
+
+    /**
+     * Generates instructions to load the local variables table from an object array that was saved with
+     * {@link #saveLocalVariableTable(Variable, Variable, Frame, BitSet)}. Locals that aren't live are not in the array -- they're set to
+     * the default value for their type instead (e.g. 0 or {@code null}) such that they remain initialized to the same type.
+     *
+     * @param arrayLocalsVar variable that the object array containing local variables table is stored
+     * @param tempObjectVar variable to use for temporary objects
+     * @param frame execution frame at the instruction for which the local variables table is to be restored
+     * @param liveLocals indexes of the locals in {@code frame} that are live
+     * @return instructions to load the local variables table from an array
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if variables have the same index, or if variables have been released, or if variables are of wrong
+     * type
+     */
+    public static InsnList loadLocalVariableTable(Variable arrayLocalsVar, Variable tempObjectVar, Frame<BasicValue> frame,
+            BitSet liveLocals) {
         Validate.notNull(arrayLocalsVar);
         Validate.notNull(tempObjectVar);
         Validate.notNull(frame);
+        Validate.notNull(liveLocals);
         Validate.isTrue(arrayLocalsVar.getType().equals(Type.getType(Object[].class)));
         Validate.isTrue(tempObjectVar.getType().equals(Type.getType(Object.class)));
         validateLocalIndicies(arrayLocalsVar.getIndex(), tempObjectVar.getIndex());
         InsnList ret = new InsnList();
         
         // Load the locals
+        int arrayIdx = 0;
         for (int i = 0; i < frame.getLocals(); i++) {
             BasicValue basicValue = frame.getLocal(i);
             Type type = basicValue.getType();
@@ -1028,10 +1099,19 @@ public final class InstructionUtils {
                 continue;
             }
             
+            // If the local isn't live, it wasn't saved. Its value will never be read again, but we still need to put something of the same
+            // type in there so that the type of the slot is the same as it is in the original code (keeps the verifier happy).
+            if (!liveLocals.get(i)) {
+                ret.add(loadDefaultValue(type));
+                ret.add(new VarInsnNode(type.getOpcode(Opcodes.ISTORE), i));
+                continue;
+            }
+            
             // Load item from locals storage array
             ret.add(new VarInsnNode(Opcodes.ALOAD, arrayLocalsVar.getIndex()));
-            ret.add(new LdcInsnNode(i));
+            ret.add(new LdcInsnNode(arrayIdx));
             ret.add(new InsnNode(Opcodes.AALOAD));
+            arrayIdx++;
 
             // Convert the item from an object stores it in local vars table.
             switch (type.getSort()) {
@@ -1102,20 +1182,42 @@ public final class InstructionUtils {
      * type
      */
     public static InsnList saveLocalVariableTable(Variable arrayLocalsVar, Variable tempObjectVar, Frame<BasicValue> frame) {
+        return saveLocalVariableTable(arrayLocalsVar, tempObjectVar, frame, allLocals(frame));
+    }
+
+    /**
+     * Generates instructions to save the live portion of the local variables table to an object array. Only locals that are live get
+     * saved, and they're packed one after the other in the array (the array is only as big as it needs to be). Use
+     * {@link #loadLocalVariableTable(Variable, Variable, Frame, BitSet)} with the same {@code frame} and {@code liveLocals} to load it
+     * back up.
+     *
+     * @param arrayLocalsVar variable that the object array containing local variables table is stored
+     * @param tempObjectVar variable to use for temporary objects
+     * @param frame execution frame at the instruction where the local variables table is to be saved
+     * @param liveLocals indexes of the locals in {@code frame} that are live
+     * @return instructions to save the local variables table in to an array
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if variables have the same index, or if variables have been released, or if variables are of wrong
+     * type
+     */
+    public static InsnList saveLocalVariableTable(Variable arrayLocalsVar, Variable tempObjectVar, Frame<BasicValue> frame,
+            BitSet liveLocals) {
         Validate.notNull(arrayLocalsVar);
         Validate.notNull(tempObjectVar);
         Validate.notNull(frame);
+        Validate.notNull(liveLocals);
         Validate.isTrue(arrayLocalsVar.getType().equals(Type.getType(Object[].class)));
         Validate.isTrue(tempObjectVar.getType().equals(Type.getType(Object.class)));
         validateLocalIndicies(arrayLocalsVar.getIndex(), tempObjectVar.getIndex());
         InsnList ret = new InsnList();
 
         // Create array and save it in local vars table
-        ret.add(new LdcInsnNode(frame.getLocals()));
+        ret.add(new LdcInsnNode(countSavedLocals(frame, liveLocals)));
         ret.add(new TypeInsnNode(Opcodes.ANEWARRAY, "java/lang/Object"));
         ret.add(new VarInsnNode(Opcodes.ASTORE, arrayLocalsVar.getIndex()));
 
         // Save the locals
+        int arrayIdx = 0;
         for (int i = 0; i < frame.getLocals(); i++) {
             BasicValue basicValue = frame.getLocal(i);
             Type type = basicValue.getType();
@@ -1133,6 +1235,11 @@ public final class InstructionUtils {
             if ("Lnull;".equals(type.getDescriptor())) {
                 continue;
             }
+            
+            // If the local isn't live, nothing will ever read it again. There's no point in saving it.
+            if (!liveLocals.get(i)) {
+                continue;
+            }
 
             // Convert the item to an object (if not already an object) and stores it in array.
             switch (type.getSort()) {
@@ -1189,13 +1296,89 @@ public final class InstructionUtils {
 
             // Store item in to locals storage array
             ret.add(new VarInsnNode(Opcodes.ALOAD, arrayLocalsVar.getIndex()));
-            ret.add(new LdcInsnNode(i));
+            ret.add(new LdcInsnNode(arrayIdx));
             ret.add(new VarInsnNode(Opcodes.ALOAD, tempObjectVar.getIndex()));
             ret.add(new InsnNode(Opcodes.AASTORE));
+            arrayIdx++;
         }
 
         return ret;
     }
+    
+    /**
+     * Counts the number of locals that {@link #saveLocalVariableTable(Variable, Variable, Frame, BitSet)} will save. Locals that are
+     * uninitialized, that are always {@code null}, or that aren't live don't get saved.
+     *
+     * @param frame execution frame at the instruction where the local variables table is to be saved
+     * @param liveLocals indexes of the locals in {@code frame} that are live
+     * @return number of locals that get saved
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static int countSavedLocals(Frame<BasicValue> frame, BitSet liveLocals) {
+        Validate.notNull(frame);
+        Validate.notNull(liveLocals);
+        
+        int count = 0;
+        for (int i = 0; i < frame.getLocals(); i++) {
+            Type type = frame.getLocal(i).getType();
+            if (type == null || "Lnull;".equals(type.getDescriptor()) || !liveLocals.get(i)) {
+                continue;
+            }
+            count++;
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Generates instructions to push the default value for a type on to the stack (0 for primitives / {@code null} for objects and
+     * arrays).
+     *
+     * @param type type of default value to push
+     * @return instructions to push the default value of {@code type} on to the stack
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code type} is of sort {@link Type#METHOD} or {@link Type#VOID}
+     */
+    public static InsnList loadDefaultValue(Type type) {
+        Validate.notNull(type);
+        InsnList ret = new InsnList();
+        
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.CHAR:
+            case Type.INT:
+                ret.add(new InsnNode(Opcodes.ICONST_0));
+                break;
+            case Type.FLOAT:
+                ret.add(new InsnNode(Opcodes.FCONST_0));
+                break;
+            case Type.LONG:
+                ret.add(new InsnNode(Opcodes.LCONST_0));
+                break;
+            case Type.DOUBLE:
+                ret.add(new InsnNode(Opcodes.DCONST_0));
+                break;
+            case Type.ARRAY:
+            case Type.OBJECT:
+                ret.add(new InsnNode(Opcodes.ACONST_NULL));
+                break;
+            case Type.METHOD:
+            case Type.VOID:
+            default:
+                throw new IllegalArgumentException();
+        }
+        
+        return ret;
+    }
+    
+    private static BitSet allLocals(Frame<BasicValue> frame) {
+        Validate.notNull(frame);
+        BitSet ret = new BitSet();
+        ret.set(0, frame.getLocals());
+        return ret;
+    }
 
     /**
      * Generates instructions that returns a dummy value. Return values are as follows:
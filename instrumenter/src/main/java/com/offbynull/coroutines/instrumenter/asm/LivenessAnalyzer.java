@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter.asm;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import org.apache.commons.lang3.Validate;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Computes which local variable slots are live at each instruction of a method. A slot is live at an instruction if the value in that
+ * slot may be read by that instruction or by some instruction reachable from it before the slot is overwritten.
+ * <p>
+ * This is a standard backwards dataflow analysis. An instruction within a try block may pass control to the block's exception handler
+ * before it's had a chance to execute, so anything live at the handler is considered live at each instruction the try block covers.
+ * @author Kasra Faghihi
+ */
+public final class LivenessAnalyzer {
+
+    private LivenessAnalyzer() {
+        // do nothing
+    }
+
+    /**
+     * Computes the local variable slots that are live on entry to each instruction in a method.
+     * @param methodNode method to analyze
+     * @return array of the same size as {@code methodNode.instructions}, where each element is the set of local variable slot indexes
+     * live on entry to the instruction at that same index
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code methodNode} contains JSR/RET instructions
+     */
+    public static BitSet[] analyze(MethodNode methodNode) {
+        Validate.notNull(methodNode);
+
+        InsnList insnList = methodNode.instructions;
+        int len = insnList.size();
+
+        // Gather what each instruction reads/writes and where control can flow to from each instruction
+        BitSet[] uses = new BitSet[len];
+        BitSet[] defs = new BitSet[len];
+        int[][] successors = new int[len][];
+        for (int i = 0; i < len; i++) {
+            AbstractInsnNode insnNode = insnList.get(i);
+            uses[i] = new BitSet();
+            defs[i] = new BitSet();
+            successors[i] = getSuccessors(insnList, insnNode, i);
+
+            if (insnNode instanceof VarInsnNode) {
+                VarInsnNode varInsnNode = (VarInsnNode) insnNode;
+                switch (varInsnNode.getOpcode()) {
+                    case Opcodes.ILOAD:
+                    case Opcodes.LLOAD:
+                    case Opcodes.FLOAD:
+                    case Opcodes.DLOAD:
+                    case Opcodes.ALOAD:
+                        uses[i].set(varInsnNode.var);
+                        break;
+                    case Opcodes.LSTORE:
+                    case Opcodes.DSTORE:
+                        defs[i].set(varInsnNode.var + 1); // wide types take up 2 slots, the 2nd slot gets clobbered
+                        // fall through
+                    case Opcodes.ISTORE:
+                    case Opcodes.FSTORE:
+                    case Opcodes.ASTORE:
+                        defs[i].set(varInsnNode.var);
+                        break;
+                    case Opcodes.RET:
+                    default:
+                        throw new IllegalArgumentException("JSR/RET instructions not allowed");
+                }
+            } else if (insnNode instanceof IincInsnNode) {
+                uses[i].set(((IincInsnNode) insnNode).var); // reads before it writes, so it's a use
+            }
+        }
+
+        // Gather which exception handlers each instruction can jump to
+        List<List<Integer>> handlers = new ArrayList<>(len);
+        for (int i = 0; i < len; i++) {
+            handlers.add(new ArrayList<>());
+        }
+        for (TryCatchBlockNode tryCatchBlockNode : methodNode.tryCatchBlocks) {
+            int startIdx = insnList.indexOf(tryCatchBlockNode.start);
+            int endIdx = insnList.indexOf(tryCatchBlockNode.end);
+            int handlerIdx = insnList.indexOf(tryCatchBlockNode.handler);
+            for (int i = startIdx; i < endIdx; i++) {
+                handlers.get(i).add(handlerIdx);
+            }
+        }
+
+        // Iterate backwards until nothing changes:
+        //   liveOut[i] = union of liveIn[s] for each successor s of i
+        //   liveIn[i] = uses[i] + (liveOut[i] - defs[i]) + union of liveIn[h] for each exception handler h covering i
+        BitSet[] liveIn = new BitSet[len];
+        for (int i = 0; i < len; i++) {
+            liveIn[i] = new BitSet();
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = len - 1; i >= 0; i--) {
+                BitSet live = new BitSet();
+                for (int successorIdx : successors[i]) {
+                    live.or(liveIn[successorIdx]);
+                }
+                live.andNot(defs[i]);
+                live.or(uses[i]);
+                for (int handlerIdx : handlers.get(i)) {
+                    live.or(liveIn[handlerIdx]);
+                }
+
+                if (!live.equals(liveIn[i])) {
+                    liveIn[i] = live;
+                    changed = true;
+                }
+            }
+        }
+
+        return liveIn;
+    }
+
+    private static int[] getSuccessors(InsnList insnList, AbstractInsnNode insnNode, int idx) {
+        int nextIdx = idx + 1;
+        boolean hasNext = nextIdx < insnList.size();
+
+        if (insnNode instanceof JumpInsnNode) {
+            if (insnNode.getOpcode() == Opcodes.JSR) {
+                throw new IllegalArgumentException("JSR/RET instructions not allowed");
+            }
+
+            int targetIdx = insnList.indexOf(((JumpInsnNode) insnNode).label);
+            if (insnNode.getOpcode() == Opcodes.GOTO || !hasNext) {
+                return new int[] {targetIdx};
+            }
+            return new int[] {targetIdx, nextIdx};
+        } else if (insnNode instanceof TableSwitchInsnNode) {
+            TableSwitchInsnNode tableSwitchInsnNode = (TableSwitchInsnNode) insnNode;
+            return getSwitchSuccessors(insnList, tableSwitchInsnNode.dflt, tableSwitchInsnNode.labels);
+        } else if (insnNode instanceof LookupSwitchInsnNode) {
+            LookupSwitchInsnNode lookupSwitchInsnNode = (LookupSwitchInsnNode) insnNode;
+            return getSwitchSuccessors(insnList, lookupSwitchInsnNode.dflt, lookupSwitchInsnNode.labels);
+        }
+
+        switch (insnNode.getOpcode()) {
+            case Opcodes.IRETURN:
+            case Opcodes.LRETURN:
+            case Opcodes.FRETURN:
+            case Opcodes.DRETURN:
+            case Opcodes.ARETURN:
+            case Opcodes.RETURN:
+            case Opcodes.ATHROW:
+                return new int[0];
+            default:
+                return hasNext ? new int[] {nextIdx} : new int[0];
+        }
+    }
+
+    private static int[] getSwitchSuccessors(InsnList insnList, LabelNode dflt, List<LabelNode> labels) {
+        int[] ret = new int[labels.size() + 1];
+        ret[0] = insnList.indexOf(dflt);
+        for (int i = 0; i < labels.size(); i++) {
+            ret[i + 1] = insnList.indexOf(labels.get(i));
+        }
+        return ret;
+    }
+}
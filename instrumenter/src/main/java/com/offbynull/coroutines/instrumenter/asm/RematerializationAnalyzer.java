@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter.asm;
+
+import java.util.BitSet;
+import org.apache.commons.lang3.Validate;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceInterpreter;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
+/**
+ * Finds local variable slots whose values can be regenerated rather than saved when a method's frame is saved. There are two kinds of
+ * these...
+ * <ul>
+ * <li>Arguments (including {@code this}) that are never assigned to. When a suspended method is resumed, the method that called it
+ * restores its own frame and invokes it again with the same arguments, so those slots already hold the right values.</li>
+ * <li>Locals that are known to hold a specific constant at an instruction, because every assignment that can reach that instruction
+ * assigns the same constant.</li>
+ * </ul>
+ * @author Kasra Faghihi
+ */
+public final class RematerializationAnalyzer {
+
+    private RematerializationAnalyzer() {
+        // do nothing
+    }
+
+    /**
+     * Finds the arguments of a method that never get assigned to.
+     * @param methodNode method to analyze
+     * @return set of local variable slot indexes of the arguments (including {@code this} if the method isn't static) that are never
+     * assigned to -- for {@code long} and {@code double} arguments, this is the index of the first of the 2 slots
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static BitSet findUnmodifiedArguments(MethodNode methodNode) {
+        Validate.notNull(methodNode);
+        
+        // Find every slot that gets written to
+        BitSet modified = new BitSet();
+        for (AbstractInsnNode insnNode : methodNode.instructions.toArray()) {
+            if (insnNode instanceof VarInsnNode) {
+                VarInsnNode varInsnNode = (VarInsnNode) insnNode;
+                switch (varInsnNode.getOpcode()) {
+                    case Opcodes.LSTORE:
+                    case Opcodes.DSTORE:
+                        modified.set(varInsnNode.var + 1); // wide types take up 2 slots, the 2nd slot gets clobbered
+                        // fall through
+                    case Opcodes.ISTORE:
+                    case Opcodes.FSTORE:
+                    case Opcodes.ASTORE:
+                        modified.set(varInsnNode.var);
+                        break;
+                    default:
+                        break;
+                }
+            } else if (insnNode instanceof IincInsnNode) {
+                modified.set(((IincInsnNode) insnNode).var);
+            }
+        }
+        
+        // Keep the arguments that none of those writes touch. 'this' in a constructor starts off uninitialized and changes once the super
+        // constructor gets called, so it's never treated as unmodified.
+        BitSet ret = new BitSet();
+        int idx = 0;
+        if ((methodNode.access & Opcodes.ACC_STATIC) == 0) {
+            if (!modified.get(idx) && !"<init>".equals(methodNode.name)) {
+                ret.set(idx);
+            }
+            idx++;
+        }
+        for (Type argType : Type.getArgumentTypes(methodNode.desc)) {
+            int size = argType.getSize();
+            if (modified.get(idx, idx + size).isEmpty()) {
+                ret.set(idx);
+            }
+            idx += size;
+        }
+        
+        return ret;
+    }
+
+    /**
+     * Finds the locals that hold a constant at each instruction of a method. Only locals that were assigned a constant directly (e.g.
+     * {@code int x = 5;}) are found. Locals that may have been assigned different constants, or that were assigned anything other than a
+     * constant (including {@code null} -- locals that are always {@code null} get dealt with through their type), aren't.
+     * @param owner internal name of the class that {@code methodNode} belongs to
+     * @param methodNode method to analyze
+     * @return array of the same size as {@code methodNode.instructions}, where each element is an array indexed by local variable slot
+     * index holding the constant in that slot on entry to the instruction at that same index (an {@link Integer}, {@link Float},
+     * {@link Long}, {@link Double}, or {@link String}) or {@code null} if that slot doesn't hold a constant -- elements for instructions
+     * that are unreachable are empty arrays
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code methodNode} couldn't be analyzed
+     */
+    public static Object[][] findConstantLocals(String owner, MethodNode methodNode) {
+        Validate.notNull(owner);
+        Validate.notNull(methodNode);
+        
+        Frame<SourceValue>[] frames;
+        try {
+            frames = new Analyzer<>(new SourceInterpreter()).analyze(owner, methodNode);
+        } catch (AnalyzerException ae) {
+            throw new IllegalArgumentException("Analyzer failed to analyze method", ae);
+        }
+        
+        InsnList insnList = methodNode.instructions;
+        Object[][] ret = new Object[insnList.size()][];
+        for (int i = 0; i < ret.length; i++) {
+            Frame<SourceValue> frame = frames[i];
+            if (frame == null) {
+                ret[i] = new Object[0];
+                continue;
+            }
+            
+            ret[i] = new Object[frame.getLocals()];
+            for (int j = 0; j < frame.getLocals(); j++) {
+                ret[i][j] = getConstant(insnList, frames, frame.getLocal(j), j);
+            }
+        }
+        
+        return ret;
+    }
+    
+    // A local's sources are the instructions that wrote to it. If all of them are stores in to this slot of the same constant, return that
+    // constant. Arguments and uninitialized locals have no sources.
+    private static Object getConstant(InsnList insnList, Frame<SourceValue>[] frames, SourceValue localValue, int localIdx) {
+        if (localValue.insns.isEmpty()) {
+            return null;
+        }
+        
+        Object ret = null;
+        for (AbstractInsnNode storeInsnNode : localValue.insns) {
+            if (!(storeInsnNode instanceof VarInsnNode) || ((VarInsnNode) storeInsnNode).var != localIdx) {
+                return null;
+            }
+            switch (storeInsnNode.getOpcode()) {
+                case Opcodes.ISTORE:
+                case Opcodes.LSTORE:
+                case Opcodes.FSTORE:
+                case Opcodes.DSTORE:
+                case Opcodes.ASTORE:
+                    break;
+                default:
+                    return null;
+            }
+            
+            // The value stored is whatever was on the top of the stack right before the store
+            Frame<SourceValue> storeFrame = frames[insnList.indexOf(storeInsnNode)];
+            SourceValue storedValue = storeFrame.getStack(storeFrame.getStackSize() - 1);
+            if (storedValue.insns.isEmpty()) {
+                return null;
+            }
+            for (AbstractInsnNode pushInsnNode : storedValue.insns) {
+                Object constant = getPushedConstant(pushInsnNode);
+                if (constant == null || (ret != null && !ret.equals(constant))) {
+                    return null;
+                }
+                ret = constant;
+            }
+        }
+        
+        return ret;
+    }
+    
+    private static Object getPushedConstant(AbstractInsnNode insnNode) {
+        switch (insnNode.getOpcode()) {
+            case Opcodes.ICONST_M1:
+            case Opcodes.ICONST_0:
+            case Opcodes.ICONST_1:
+            case Opcodes.ICONST_2:
+            case Opcodes.ICONST_3:
+            case Opcodes.ICONST_4:
+            case Opcodes.ICONST_5:
+                return insnNode.getOpcode() - Opcodes.ICONST_0;
+            case Opcodes.LCONST_0:
+            case Opcodes.LCONST_1:
+                return (long) (insnNode.getOpcode() - Opcodes.LCONST_0);
+            case Opcodes.FCONST_0:
+            case Opcodes.FCONST_1:
+            case Opcodes.FCONST_2:
+                return (float) (insnNode.getOpcode() - Opcodes.FCONST_0);
+            case Opcodes.DCONST_0:
+            case Opcodes.DCONST_1:
+                return (double) (insnNode.getOpcode() - Opcodes.DCONST_0);
+            case Opcodes.BIPUSH:
+            case Opcodes.SIPUSH:
+                return ((IntInsnNode) insnNode).operand;
+            case Opcodes.LDC: {
+                Object cst = ((LdcInsnNode) insnNode).cst;
+                if (cst instanceof Integer || cst instanceof Float || cst instanceof Long || cst instanceof Double
+                        || cst instanceof String) {
+                    return cst;
+                }
+                return null; // class literals and method types/handles aren't treated as constants
+            }
+            default:
+                return null;
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.offbynull.coroutines.instrumenter.asm;
 
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -29,16 +30,23 @@ import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import org.apache.commons.lang3.Validate;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
 import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
 
 /**
  * Utility class to search Java bytecode. 
@@ -373,4 +381,147 @@ public final class SearchUtils {
         
         return null;
     }
+
+    /**
+     * Checks if any UTF8 entry in a class's constant pool contains some text. This is much quicker than parsing the class, and can be used
+     * to rule classes out early. For example, a class can't have a method that takes in some type unless the descriptor of that type shows
+     * up somewhere in its constant pool.
+     * @param classReader class to search through
+     * @param text text to search for (must be ASCII -- UTF8 entries in the constant pool are modified UTF-8, which only matches plain
+     * bytes for ASCII characters)
+     * @return {@code true} if any UTF8 entry in the constant pool contains {@code text}, {@code false} otherwise
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code text} is empty or isn't ASCII
+     */
+    public static boolean constantPoolContains(ClassReader classReader, String text) {
+        Validate.notNull(classReader);
+        Validate.notNull(text);
+        Validate.isTrue(!text.isEmpty());
+        Validate.isTrue(StandardCharsets.US_ASCII.newEncoder().canEncode(text));
+        
+        byte[] needle = text.getBytes(StandardCharsets.US_ASCII);
+        byte[] b = classReader.b;
+        
+        int count = classReader.getItemCount();
+        for (int i = 1; i < count; i++) {
+            int offset = classReader.getItem(i); // points to just after the tag, 0 for the unused entry after longs/doubles
+            if (offset == 0 || b[offset - 1] != 1) { // 1 = CONSTANT_Utf8
+                continue;
+            }
+            
+            int start = offset + 2;
+            int end = start + classReader.readUnsignedShort(offset) - needle.length;
+            for (int j = start; j <= end; j++) {
+                int k = 0;
+                while (k < needle.length && b[j + k] == needle[k]) {
+                    k++;
+                }
+                if (k == needle.length) {
+                    return true;
+                }
+            }
+        }
+        
+        return false;
+    }
+
+    /**
+     * Find jumps that go backwards (or to themselves) -- the tail ends of loops.
+     * @param insnList instruction list to search through
+     * @return list of jump instructions that jump backwards
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static List<JumpInsnNode> findBackwardJumps(InsnList insnList) {
+        Validate.notNull(insnList);
+        
+        List<JumpInsnNode> ret = new ArrayList<>();
+        
+        Iterator<AbstractInsnNode> it = insnList.iterator();
+        while (it.hasNext()) {
+            AbstractInsnNode insnNode = it.next();
+            if (insnNode instanceof JumpInsnNode) {
+                JumpInsnNode jumpInsnNode = (JumpInsnNode) insnNode;
+                if (insnList.indexOf(jumpInsnNode.label) <= insnList.indexOf(jumpInsnNode)) {
+                    ret.add(jumpInsnNode);
+                }
+            }
+        }
+        
+        return ret;
+    }
+
+    /**
+     * Estimates how many bytes some instructions take up once they're written out to a class file. The estimate is exact except for
+     * switch instructions (which get padded to 4 byte alignment depending on where they end up) and jumps that are too far for a 2 byte
+     * offset (which get widened).
+     * @param insnList instructions to estimate the size of
+     * @return estimated size of {@code insnList} in bytes
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static int estimateCodeSize(InsnList insnList) {
+        Validate.notNull(insnList);
+        
+        int size = 0;
+        
+        Iterator<AbstractInsnNode> it = insnList.iterator();
+        while (it.hasNext()) {
+            AbstractInsnNode insnNode = it.next();
+            switch (insnNode.getType()) {
+                case AbstractInsnNode.LABEL:
+                case AbstractInsnNode.LINE:
+                case AbstractInsnNode.FRAME:
+                    break;
+                case AbstractInsnNode.INSN:
+                    size += 1;
+                    break;
+                case AbstractInsnNode.INT_INSN:
+                    size += insnNode.getOpcode() == Opcodes.SIPUSH ? 3 : 2;
+                    break;
+                case AbstractInsnNode.VAR_INSN: {
+                    int var = ((VarInsnNode) insnNode).var;
+                    if (var < 4 && insnNode.getOpcode() != Opcodes.RET) {
+                        size += 1; // e.g. ILOAD_0 / ASTORE_3
+                    } else {
+                        size += var < 256 ? 2 : 4; // 4 if it needs to be prefixed by WIDE
+                    }
+                    break;
+                }
+                case AbstractInsnNode.IINC_INSN: {
+                    IincInsnNode iincInsnNode = (IincInsnNode) insnNode;
+                    boolean wide = iincInsnNode.var > 255 || iincInsnNode.incr > 127 || iincInsnNode.incr < -128;
+                    size += wide ? 6 : 3;
+                    break;
+                }
+                case AbstractInsnNode.LDC_INSN: {
+                    Object cst = ((LdcInsnNode) insnNode).cst;
+                    size += cst instanceof Long || cst instanceof Double ? 3 : 2; // 3 if LDC2_W (or LDC_W, which we can't know)
+                    break;
+                }
+                case AbstractInsnNode.TYPE_INSN:
+                case AbstractInsnNode.FIELD_INSN:
+                case AbstractInsnNode.JUMP_INSN:
+                    size += 3;
+                    break;
+                case AbstractInsnNode.METHOD_INSN:
+                    size += insnNode.getOpcode() == Opcodes.INVOKEINTERFACE ? 5 : 3;
+                    break;
+                case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+                    size += 5;
+                    break;
+                case AbstractInsnNode.MULTIANEWARRAY_INSN:
+                    size += 4;
+                    break;
+                case AbstractInsnNode.TABLESWITCH_INSN:
+                    size += 1 + 3 + 12 + 4 * ((TableSwitchInsnNode) insnNode).labels.size(); // assume worst case padding of 3
+                    break;
+                case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                    size += 1 + 3 + 8 + 8 * ((LookupSwitchInsnNode) insnNode).labels.size(); // assume worst case padding of 3
+                    break;
+                default:
+                    throw new IllegalArgumentException(); // should never happen
+            }
+        }
+        
+        return size;
+    }
 }
@@ -16,7 +16,6 @@
  */
 package com.offbynull.coroutines.instrumenter.asm;
 
-import java.util.LinkedHashSet;
 import org.apache.commons.lang3.Validate;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
@@ -60,7 +59,7 @@ public final class SimpleClassWriter extends ClassWriter {
     }
     
     /**
-     * Derives common super class from the super name mapping passed in to the constructor.
+     * Derives common super class from the class information repository passed in to the constructor (memoized by that repository).
      * @param type1 the internal name of a class.
      * @param type2 the internal name of another class.
      * @return the internal name of the common super class of the two given classes
@@ -71,39 +70,6 @@ public final class SimpleClassWriter extends ClassWriter {
         Validate.notNull(type1);
         Validate.notNull(type2);
         
-        infoRepo.getInformation(type1);
-        LinkedHashSet<String> type1Hierarchy = flattenHierarchy(type1);
-        LinkedHashSet<String> type2Hierarchy = flattenHierarchy(type2);
-        
-        for (String testType1 : type1Hierarchy) {
-            for (String testType2 : type2Hierarchy) {
-                if (testType1.equals(testType2)) {
-                    return testType1;
-                }
-            }
-        }
-        
-        return "java/lang/Object"; // is this correct behaviour? shouldn't both type1 and type2 ultimately contain Object?
-    }
-    
-    private LinkedHashSet<String> flattenHierarchy(String type) {
-        Validate.notNull(type);
-        
-        LinkedHashSet<String> ret = new LinkedHashSet<>();
-        
-        String currentType = type;
-        while (true) {
-            ret.add(currentType);
-            
-            ClassInformation classHierarchy = infoRepo.getInformation(currentType); // must return a result
-            Validate.isTrue(classHierarchy != null, "No parent found for %s", currentType);
-            if (classHierarchy.getSuperClassName() == null) {
-                break;
-            }
-            
-            currentType = classHierarchy.getSuperClassName();
-        }
-        
-        return ret;
+        return infoRepo.getCommonSuperClass(type1, type2);
     }
 }
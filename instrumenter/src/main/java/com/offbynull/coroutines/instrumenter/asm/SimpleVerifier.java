@@ -16,7 +16,6 @@
  */
 package com.offbynull.coroutines.instrumenter.asm;
 
-import java.util.LinkedHashSet;
 import org.apache.commons.lang3.Validate;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
@@ -63,29 +62,7 @@ public final class SimpleVerifier extends org.objectweb.asm.tree.analysis.Simple
             t = Type.getType(Object.class);
         }
         
-        LinkedHashSet<String> hierarchy = flattenHierarchy(u.getInternalName());
-        return hierarchy.contains(t.getInternalName());
-    }
-
-    private LinkedHashSet<String> flattenHierarchy(String type) {
-        Validate.notNull(type);
-        
-        LinkedHashSet<String> ret = new LinkedHashSet<>();
-        
-        String currentType = type;
-        while (true) {
-            ret.add(currentType);
-            
-            ClassInformation classHierarchy = repo.getInformation(currentType); // must return a result
-            Validate.isTrue(classHierarchy != null, "No parent found for %s", currentType);
-            if (classHierarchy.getSuperClassName() == null) {
-                break;
-            }
-            
-            currentType = classHierarchy.getSuperClassName();
-        }
-        
-        return ret;
+        return repo.getHierarchy(u.getInternalName()).contains(t.getInternalName());
     }
     
     @Override
@@ -31,6 +31,7 @@ import org.objectweb.asm.tree.MethodNode;
 public final class VariableTable {
     private List<Variable> argVars;
     private int extraOffset;
+    private int extraSize;
     private List<Variable> extraVars;
     
     /**
@@ -61,9 +62,10 @@ public final class VariableTable {
         }
         
         Type[] argTypes = methodType.getArgumentTypes();
+        int idx = isStatic ? 0 : 1;
         for (int i = 0; i < argTypes.length; i++) {
-            int idx = isStatic ? i : i + 1;
             argVars.add(new Variable(argTypes[i], idx, true));
+            idx += argTypes[i].getSize(); // Longs and doubles take up 2 slots
         }
     }
 
@@ -117,8 +119,10 @@ public final class VariableTable {
             }
         }
         
-        Variable var = new Variable(type, extraOffset + extraVars.size(), true);
+        // Longs and doubles take up 2 slots in the local variables table
+        Variable var = new Variable(type, extraOffset + extraSize, true);
         extraVars.add(var);
+        extraSize += type.getSize();
         return var;
     }
 
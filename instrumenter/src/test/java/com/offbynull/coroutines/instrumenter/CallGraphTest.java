@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.createJar;
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.createJarAndLoad;
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.getClasspath;
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.readZipFromResource;
+import com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.JarEntry;
+import com.offbynull.coroutines.user.Continuation;
+import com.offbynull.coroutines.user.Coroutine;
+import com.offbynull.coroutines.user.CoroutineRunner;
+import java.io.File;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.lang3.reflect.ConstructorUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+public final class CallGraphTest {
+    
+    private static final String NON_SUSPENDING_INVOKE_TEST = "NonSuspendingInvokeTest";
+    private static final String CONTINUATION_INTERNAL_NAME = Type.getInternalName(Continuation.class);
+    
+    private static final InstrumentationSettings LOOP_PREEMPTION_SETTINGS
+            = new InstrumentationSettings(FrameStorageMode.METHOD_STATE, true);
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+    
+    @Test
+    public void mustProveMethodsThatNeverSuspend() throws Exception {
+        CallGraph callGraph = buildCallGraph(InstrumentationSettings.DEFAULT);
+
+        Assert.assertTrue(callGraph.isNonSuspending(invoke(Opcodes.INVOKESPECIAL, "log", "I", "V")));
+        Assert.assertTrue(callGraph.isNonSuspending(invoke(Opcodes.INVOKESTATIC, "format", "Ljava/lang/StringBuilder;I", "V")));
+        Assert.assertTrue(callGraph.isNonSuspending(invoke(Opcodes.INVOKESTATIC, "countDown", "I", "I"))); // recursive
+        Assert.assertTrue(callGraph.isNonSuspending(invoke(Opcodes.INVOKESTATIC, "spin", "I", "I")));
+        Assert.assertFalse(callGraph.isNonSuspending(invoke(Opcodes.INVOKESPECIAL, "echo", "I", "V")));
+        Assert.assertFalse(callGraph.isNonSuspending(invoke(Opcodes.INVOKEVIRTUAL, "run", "", "V")));
+        Assert.assertEquals(5, callGraph.getNonSuspendingMethodCount()); // log, format, countDown, spin, overridable
+    }
+
+    @Test
+    public void mustTreatOverridableMethodsAsSuspending() throws Exception {
+        CallGraph callGraph = buildCallGraph(InstrumentationSettings.DEFAULT);
+        
+        // overridable() itself never suspends, but a subclass outside of the batch could override it with something that does
+        Assert.assertFalse(callGraph.isNonSuspending(invoke(Opcodes.INVOKEVIRTUAL, "overridable", "", "V")));
+        Assert.assertTrue(callGraph.isNonSuspending(invoke(Opcodes.INVOKESPECIAL, "overridable", "", "V")));
+    }
+
+    @Test
+    public void mustTreatMethodsWithLoopsAsSuspendingWhenLoopPreemptionIsOn() throws Exception {
+        CallGraph callGraph = buildCallGraph(LOOP_PREEMPTION_SETTINGS);
+        
+        Assert.assertFalse(callGraph.isNonSuspending(invoke(Opcodes.INVOKESTATIC, "spin", "I", "I")));
+        Assert.assertTrue(callGraph.isNonSuspending(invoke(Opcodes.INVOKESTATIC, "countDown", "I", "I")));
+    }
+
+    @Test
+    public void mustTreatMethodsOutsideOfBatchAsSuspending() throws Exception {
+        CallGraph callGraph = new CallGraph.Builder(InstrumentationSettings.DEFAULT).build();
+        
+        Assert.assertFalse(callGraph.isNonSuspending(invoke(Opcodes.INVOKESPECIAL, "log", "I", "V")));
+        Assert.assertEquals(0, callGraph.getNonSuspendingMethodCount());
+    }
+
+    @Test
+    public void mustTreatDuplicateClassesAsSuspending() throws Exception {
+        byte[] input = readZipFromResource(NON_SUSPENDING_INVOKE_TEST + ".zip").get(NON_SUSPENDING_INVOKE_TEST + ".class");
+        
+        CallGraph.Builder builder = new CallGraph.Builder(InstrumentationSettings.DEFAULT);
+        builder.addClass(input);
+        builder.addClass(input);
+        CallGraph callGraph = builder.build();
+        
+        Assert.assertFalse(callGraph.isNonSuspending(invoke(Opcodes.INVOKESPECIAL, "log", "I", "V")));
+    }
+
+    @Test
+    public void mustFailToReuseBuilder() throws Exception {
+        CallGraph.Builder builder = new CallGraph.Builder(InstrumentationSettings.DEFAULT);
+        builder.build();
+        
+        thrown.expect(IllegalStateException.class);
+        builder.build();
+    }
+
+    @Test
+    public void mustFailToInstrumentWithCallGraphBuiltUsingDifferentSettings() throws Exception {
+        byte[] input = readZipFromResource(NON_SUSPENDING_INVOKE_TEST + ".zip").get(NON_SUSPENDING_INVOKE_TEST + ".class");
+        List<File> classpath = getClasspath();
+        classpath.add(createJar(new JarEntry(NON_SUSPENDING_INVOKE_TEST + ".class", input)));
+        CallGraph callGraph = buildCallGraph(LOOP_PREEMPTION_SETTINGS);
+        
+        try (Instrumenter instrumenter = new Instrumenter(classpath, InstrumentationSettings.DEFAULT)) {
+            thrown.expect(IllegalArgumentException.class);
+            instrumenter.instrument(input, callGraph);
+        }
+    }
+
+    @Test
+    public void mustLeaveOutContinuationPointsForMethodsThatNeverSuspend() throws Exception {
+        byte[] input = readZipFromResource(NON_SUSPENDING_INVOKE_TEST + ".zip").get(NON_SUSPENDING_INVOKE_TEST + ".class");
+        List<File> classpath = getClasspath();
+        classpath.add(createJar(new JarEntry(NON_SUSPENDING_INVOKE_TEST + ".class", input)));
+        byte[] output;
+        byte[] unanalyzedOutput;
+        try (Instrumenter instrumenter = new Instrumenter(classpath, InstrumentationSettings.DEFAULT)) {
+            output = instrumenter.instrument(input, buildCallGraph(InstrumentationSettings.DEFAULT));
+            unanalyzedOutput = instrumenter.instrument(input);
+        }
+        
+        // Methods that never suspend mustn't have been touched, and run() must have fewer continuation points than it would otherwise
+        ClassNode classNode = readClass(output);
+        for (MethodNode methodNode : classNode.methods) {
+            if (methodNode.name.equals("log") || methodNode.name.equals("format") || methodNode.name.equals("countDown")
+                    || methodNode.name.equals("spin")) {
+                Assert.assertEquals(0, countContinuationInvocations(methodNode));
+            }
+        }
+        Assert.assertTrue(countContinuationInvocations(getMethod(classNode, "run"))
+                < countContinuationInvocations(getMethod(readClass(unanalyzedOutput), "run")));
+        
+        // Must still run properly
+        StringBuilder builder = new StringBuilder();
+        try (URLClassLoader classLoader = createJarAndLoad(new JarEntry(NON_SUSPENDING_INVOKE_TEST + ".class", output))) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(NON_SUSPENDING_INVOKE_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, builder);
+            
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            int suspendCount = 0;
+            while (runner.execute()) {
+                suspendCount++;
+            }
+            Assert.assertEquals(10, suspendCount);
+        }
+        
+        StringBuilder expected = new StringBuilder("started\n");
+        for (int i = 0; i < 10; i++) {
+            expected.append('[').append(i).append("]\n").append(i).append('\n');
+        }
+        Assert.assertEquals(expected.toString(), builder.toString());
+    }
+    
+    private static CallGraph buildCallGraph(InstrumentationSettings settings) throws Exception {
+        byte[] input = readZipFromResource(NON_SUSPENDING_INVOKE_TEST + ".zip").get(NON_SUSPENDING_INVOKE_TEST + ".class");
+        CallGraph.Builder builder = new CallGraph.Builder(settings);
+        builder.addClass(input);
+        return builder.build();
+    }
+    
+    private static MethodInsnNode invoke(int opcode, String name, String extraParamDescs, String returnDesc) {
+        String desc = "(L" + CONTINUATION_INTERNAL_NAME + ";" + extraParamDescs + ")" + returnDesc;
+        return new MethodInsnNode(opcode, NON_SUSPENDING_INVOKE_TEST, name, desc, false);
+    }
+    
+    private static ClassNode readClass(byte[] classData) {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(classData).accept(classNode, 0);
+        return classNode;
+    }
+    
+    private static MethodNode getMethod(ClassNode classNode, String name) {
+        return classNode.methods.stream().filter(x -> x.name.equals(name)).findAny().get();
+    }
+    
+    private static long countContinuationInvocations(MethodNode methodNode) {
+        return Arrays.stream(methodNode.instructions.toArray())
+                .filter(x -> x instanceof MethodInsnNode && ((MethodInsnNode) x).owner.equals(CONTINUATION_INTERNAL_NAME))
+                .count();
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import com.offbynull.coroutines.instrumenter.asm.SearchUtils;
+import com.offbynull.coroutines.instrumenter.testhelpers.TestUtils;
+import com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.JarEntry;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+public final class IncrementalStateTest {
+    
+    private static final List<File> CLASSPATH = Collections.emptyList();
+    
+    private File stateDir;
+    private File classDir;
+    
+    @Before
+    public void setUp() throws Exception {
+        stateDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+        classDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(stateDir);
+        FileUtils.deleteDirectory(classDir);
+    }
+
+    @Test
+    public void mustSkipUnchangedClasses() throws Exception {
+        writeClass("A", "java/lang/Object");
+        writeClass("B", "java/lang/Object");
+        
+        Assert.assertEquals(Arrays.asList("A.class", "B.class"), instrumentInPlace(InstrumentationSettings.DEFAULT));
+        Assert.assertEquals(Collections.emptyList(), instrumentInPlace(InstrumentationSettings.DEFAULT));
+        
+        writeClass("B", "java/lang/Object", "java/io/Serializable"); // changed
+        Assert.assertEquals(Arrays.asList("B.class"), instrumentInPlace(InstrumentationSettings.DEFAULT));
+        Assert.assertEquals(Collections.emptyList(), instrumentInPlace(InstrumentationSettings.DEFAULT));
+    }
+
+    @Test
+    public void mustInstrumentEverythingFromOriginalWhenSettingsChange() throws Exception {
+        byte[] original = TestUtils.readZipFromResource("NormalInvokeTest.zip").get("NormalInvokeTest.class");
+        FileUtils.writeByteArrayToFile(new File(classDir, "NormalInvokeTest.class"), original);
+        List<File> classpath = new ArrayList<>(TestUtils.getClasspath());
+        classpath.add(classDir);
+        
+        InstrumentationSettings settings = InstrumentationSettings.DEFAULT;
+        Assert.assertEquals(Arrays.asList("NormalInvokeTest.class"),
+                instrumentInPlaceWithInstrumenter(settings, classpath));
+        Assert.assertFalse(usesSlotArena(FileUtils.readFileToByteArray(new File(classDir, "NormalInvokeTest.class"))));
+        
+        // the class file in the directory is already instrumented, so the original has to be what gets instrumented with the new settings
+        settings = new InstrumentationSettings(FrameStorageMode.SLOT_ARENA);
+        Assert.assertEquals(Arrays.asList("NormalInvokeTest.class"),
+                instrumentInPlaceWithInstrumenter(settings, classpath));
+        Assert.assertTrue(usesSlotArena(FileUtils.readFileToByteArray(new File(classDir, "NormalInvokeTest.class"))));
+        
+        Assert.assertEquals(Collections.emptyList(), instrumentInPlaceWithInstrumenter(settings, classpath));
+    }
+
+    @Test
+    public void mustOnlyInstrumentEverythingAgainWhenClasspathContentChanges() throws Exception {
+        writeClass("A", "java/lang/Object");
+        File jar = new File(stateDir.getParentFile(), stateDir.getName() + ".jar");
+        try {
+            List<File> classpath = Arrays.asList(jar);
+            FileUtils.copyFile(TestUtils.createJar(new JarEntry("X.class", createClass("X", "java/lang/Object"))), jar);
+            Assert.assertEquals(Arrays.asList("A.class"), instrumentInPlace(InstrumentationSettings.DEFAULT, classpath));
+            
+            // rebuilt with the same content (e.g. a sibling module in a multi-module build)
+            FileUtils.copyFile(TestUtils.createJar(new JarEntry("X.class", createClass("X", "java/lang/Object"))), jar);
+            jar.setLastModified(jar.lastModified() + 10000L);
+            Assert.assertEquals(Collections.emptyList(), instrumentInPlace(InstrumentationSettings.DEFAULT, classpath));
+            
+            FileUtils.copyFile(TestUtils.createJar(new JarEntry("X.class", createClass("X", "java/util/ArrayList"))), jar);
+            Assert.assertEquals(Arrays.asList("A.class"), instrumentInPlace(InstrumentationSettings.DEFAULT, classpath));
+        } finally {
+            FileUtils.deleteQuietly(jar);
+        }
+    }
+
+    @Test
+    public void mustInstrumentUnchangedClassesThatDependOnClassWhoseHierarchyChanged() throws Exception {
+        writeClass("A", "java/lang/Object");
+        writeClass("B", "A");   // child of A
+        writeClass("C", "B");   // grandchild of A
+        writeClass("D", "java/lang/Object", "E"); // references E, not A
+        writeClass("E", "java/lang/Object");
+        
+        Assert.assertEquals(Arrays.asList("A.class", "B.class", "C.class", "D.class", "E.class"),
+                instrumentInPlace(InstrumentationSettings.DEFAULT));
+        
+        writeClass("A", "java/util/ArrayList"); // hierarchy of A changes, so hierarchy of B and C changes as well
+        Assert.assertEquals(Arrays.asList("A.class", "B.class", "C.class"), instrumentInPlace(InstrumentationSettings.DEFAULT));
+    }
+
+    @Test
+    public void mustInstrumentAgainFromOriginalWhenInstrumentingInPlace() throws Exception {
+        writeClass("A", "java/lang/Object");
+        byte[] originalB = writeClass("B", "A");
+        
+        // pretend that instrumentation changes B
+        IncrementalState state = IncrementalState.load(stateDir, classDir, classDir, CLASSPATH, InstrumentationSettings.DEFAULT);
+        for (String path : state.findPathsToInstrument(listClasses())) {
+            byte[] input = state.readInput(path);
+            byte[] output = path.equals("B.class") ? new byte[] { 1, 2, 3 } : input;
+            FileUtils.writeByteArrayToFile(new File(classDir, path), output);
+            state.record(path, input, output);
+        }
+        state.save();
+        
+        writeClass("A", "java/util/ArrayList");
+        state = IncrementalState.load(stateDir, classDir, classDir, CLASSPATH, InstrumentationSettings.DEFAULT);
+        Assert.assertEquals(Arrays.asList("A.class", "B.class"), state.findPathsToInstrument(listClasses()));
+        Assert.assertArrayEquals(originalB, state.readInput("B.class"));
+    }
+    
+    @Test
+    public void mustInstrumentEverythingInBatchWhenAnythingChanges() throws Exception {
+        writeClass("A", "java/lang/Object");
+        writeClass("B", "java/lang/Object");
+        writeClass("C", "java/lang/Object");
+        
+        Assert.assertEquals(Arrays.asList("A.class", "B.class", "C.class"), instrumentInPlace(InstrumentationSettings.DEFAULT, true));
+        Assert.assertEquals(Collections.emptyList(), instrumentInPlace(InstrumentationSettings.DEFAULT, true));
+        
+        writeClass("B", "java/lang/Object", "java/io/Serializable"); // changed, A and C don't reference it but are part of the batch
+        Assert.assertEquals(Arrays.asList("A.class", "B.class", "C.class"), instrumentInPlace(InstrumentationSettings.DEFAULT, true));
+        
+        new File(classDir, "C.class").delete(); // removed
+        Assert.assertEquals(Arrays.asList("A.class", "B.class"), instrumentInPlace(InstrumentationSettings.DEFAULT, true));
+    }
+    
+    private List<String> instrumentInPlace(InstrumentationSettings settings) throws Exception {
+        return instrumentInPlace(settings, false);
+    }
+    
+    private List<String> instrumentInPlace(InstrumentationSettings settings, List<File> classpath) throws Exception {
+        return instrumentInPlace(settings, classpath, false);
+    }
+    
+    private List<String> instrumentInPlace(InstrumentationSettings settings, boolean batch) throws Exception {
+        return instrumentInPlace(settings, CLASSPATH, batch);
+    }
+    
+    private List<String> instrumentInPlace(InstrumentationSettings settings, List<File> classpath, boolean batch) throws Exception {
+        // "instrumentation" here leaves classes as-is, what's being tested is which classes get picked
+        IncrementalState state = IncrementalState.load(stateDir, classDir, classDir, classpath, settings);
+        List<String> ret = state.findPathsToInstrument(listClasses(), batch);
+        for (String path : ret) {
+            byte[] input = state.readInput(path);
+            state.record(path, input, input);
+        }
+        state.save();
+        
+        Collections.sort(ret);
+        return ret;
+    }
+    
+    private List<String> instrumentInPlaceWithInstrumenter(InstrumentationSettings settings, List<File> classpath) throws Exception {
+        IncrementalState state = IncrementalState.load(stateDir, classDir, classDir, classpath, settings);
+        List<String> ret = state.findPathsToInstrument(listClasses());
+        try (Instrumenter instrumenter = new Instrumenter(classpath, settings)) {
+            for (String path : ret) {
+                byte[] input = state.readInput(path);
+                byte[] output = instrumenter.instrument(input);
+                FileUtils.writeByteArrayToFile(new File(classDir, path), output);
+                state.record(path, input, output);
+            }
+        }
+        state.save();
+        
+        Collections.sort(ret);
+        return ret;
+    }
+    
+    private static boolean usesSlotArena(byte[] classData) {
+        return SearchUtils.constantPoolContains(new ClassReader(classData), "addPendingSlots");
+    }
+    
+    private List<String> listClasses() {
+        List<String> ret = new ArrayList<>();
+        for (File file : FileUtils.listFiles(classDir, new String[] {"class"}, true)) {
+            ret.add(file.getName());
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+    
+    private byte[] writeClass(String name, String superName, String ... interfaces) throws Exception {
+        byte[] data = createClass(name, superName, interfaces);
+        FileUtils.writeByteArrayToFile(new File(classDir, name + ".class"), data);
+        return data;
+    }
+    
+    private static byte[] createClass(String name, String superName, String ... interfaces) {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, superName, interfaces);
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
@@ -16,20 +16,31 @@
  */
 package com.offbynull.coroutines.instrumenter;
 
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.createJar;
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.getClasspath;
 import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.loadClassesInZipResourceAndInstrument;
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.readZipFromResource;
+import com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.JarEntry;
 import com.offbynull.coroutines.user.Continuation;
 import com.offbynull.coroutines.user.Coroutine;
 import com.offbynull.coroutines.user.CoroutineRunner;
+import com.offbynull.coroutines.user.MethodState;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import org.apache.commons.lang3.reflect.ConstructorUtils;
 import org.apache.commons.lang3.reflect.FieldUtils;
 import org.apache.commons.lang3.reflect.MethodUtils;
@@ -37,6 +48,14 @@ import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.util.Textifier;
+import org.objectweb.asm.util.TraceMethodVisitor;
 
 public final class InstrumenterTest {
 
@@ -61,6 +80,38 @@ public final class InstrumenterTest {
     private static final String EXCEPTION_THEN_CONTINUE_INVOKE_TEST = "ExceptionThenContinueInvokeTest";
     private static final String EMPTY_CONTINUATION_POINT_INVOKE_TEST = "EmptyContinuationPointInvokeTest";
     private static final String COMPLEX_TEST = "ComplexTest";
+    private static final String STATE_MACHINE_INVOKE_TEST = "StateMachineInvokeTest";
+    private static final String STATE_MACHINE_NESTED_INVOKE_TEST = "StateMachineNestedInvokeTest";
+    private static final String REMATERIALIZATION_TEST = "RematerializationTest";
+    private static final String LARGE_FRAME_TEST = "LargeFrameTest";
+    
+    private static final InstrumentationSettings SLOT_ARENA_SETTINGS = new InstrumentationSettings(FrameStorageMode.SLOT_ARENA);
+    private static final InstrumentationSettings LOOP_PREEMPTION_SETTINGS
+            = new InstrumentationSettings(FrameStorageMode.METHOD_STATE, true);
+    private static final InstrumentationSettings INLINE_SETTINGS
+            = new InstrumentationSettings(FrameStorageMode.METHOD_STATE, false, Integer.MAX_VALUE);
+    private static final InstrumentationSettings OUTLINED_SETTINGS
+            = new InstrumentationSettings(FrameStorageMode.METHOD_STATE, false, 0);
+    private static final InstrumentationSettings OUTLINED_SLOT_ARENA_SETTINGS
+            = new InstrumentationSettings(FrameStorageMode.SLOT_ARENA, false, 0);
+    private static final InstrumentationSettings STATE_MACHINE_SETTINGS
+            = new InstrumentationSettings(FrameStorageMode.METHOD_STATE, false, InstrumentationSettings.DEFAULT_OUTLINING_THRESHOLD, true);
+    private static final InstrumentationSettings STATE_MACHINE_SLOT_ARENA_SETTINGS
+            = new InstrumentationSettings(FrameStorageMode.SLOT_ARENA, false, InstrumentationSettings.DEFAULT_OUTLINING_THRESHOLD, true);
+    private static final InstrumentationSettings EXCEPTION_UNWIND_SETTINGS
+            = new InstrumentationSettings(FrameStorageMode.METHOD_STATE, false, InstrumentationSettings.DEFAULT_OUTLINING_THRESHOLD, false,
+                    UnwindMode.EXCEPTION);
+    private static final InstrumentationSettings EXCEPTION_UNWIND_SLOT_ARENA_SETTINGS
+            = new InstrumentationSettings(FrameStorageMode.SLOT_ARENA, false, InstrumentationSettings.DEFAULT_OUTLINING_THRESHOLD, false,
+                    UnwindMode.EXCEPTION);
+    private static final InstrumentationSettings EXCEPTION_UNWIND_OUTLINED_SETTINGS
+            = new InstrumentationSettings(FrameStorageMode.METHOD_STATE, false, 0, false, UnwindMode.EXCEPTION);
+    private static final InstrumentationSettings EXCEPTION_UNWIND_LOOP_PREEMPTION_SETTINGS
+            = new InstrumentationSettings(FrameStorageMode.METHOD_STATE, true, InstrumentationSettings.DEFAULT_OUTLINING_THRESHOLD, false,
+                    UnwindMode.EXCEPTION);
+    private static final InstrumentationSettings EXCEPTION_UNWIND_STATE_MACHINE_SETTINGS
+            = new InstrumentationSettings(FrameStorageMode.METHOD_STATE, false, InstrumentationSettings.DEFAULT_OUTLINING_THRESHOLD, true,
+                    UnwindMode.EXCEPTION);
 
     @Rule
     public ExpectedException thrown = ExpectedException.none();
@@ -85,6 +136,31 @@ public final class InstrumenterTest {
         performCountTest(RECURSIVE_INVOKE_TEST);
     }
 
+    @Test
+    public void mustReuseParentMethodStatesWhenResumedMethodSuspendsAgain() throws Exception {
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(RECURSIVE_INVOKE_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(RECURSIVE_INVOKE_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, builder);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            Continuation continuation = (Continuation) FieldUtils.readField(runner, "continuation", true);
+
+            Assert.assertTrue(runner.execute()); // run() -> start(0) suspended
+            Assert.assertTrue(runner.execute()); // run() -> start(0) -> start(1) suspended
+            
+            MethodState runMethodState = continuation.getSaved(0);
+            MethodState start0MethodState = continuation.getSaved(1);
+            
+            Assert.assertTrue(runner.execute()); // run() -> start(0) -> start(1) -> start(2) suspended
+            
+            // Parent frames that only re-invoked down towards the method that suspended again should have kept their original states
+            Assert.assertSame(runMethodState, continuation.getSaved(0));
+            Assert.assertSame(start0MethodState, continuation.getSaved(1));
+        }
+    }
+
     @Test
     public void mustProperlySuspendWithInheritedMethods() throws Exception {
         performCountTest(INHERITANCE_INVOKE_TEST);
@@ -151,7 +227,11 @@ public final class InstrumenterTest {
     
     @Test
     public void mustProperlySuspendWithSerialization() throws Exception {
-        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(SERIALIZABLE_INVOKE_TEST + ".zip")) {
+        performSerializationTest(InstrumentationSettings.DEFAULT);
+    }
+    
+    private void performSerializationTest(InstrumentationSettings settings) throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(SERIALIZABLE_INVOKE_TEST + ".zip", settings)) {
             Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(SERIALIZABLE_INVOKE_TEST);
             Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, new StringBuilder());
 
@@ -252,6 +332,38 @@ public final class InstrumenterTest {
         }
     }
     
+    @Test
+    public void mustProperlySuspendWithLoopPreemptionWhenNoBudgetSet() throws Exception {
+        performCountTest(NORMAL_INVOKE_TEST, LOOP_PREEMPTION_SETTINGS);
+    }
+
+    @Test
+    public void mustSuspendAtLoopBackEdgesOnceBudgetRunsOut() throws Exception {
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(NORMAL_INVOKE_TEST + ".zip", LOOP_PREEMPTION_SETTINGS)) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(NORMAL_INVOKE_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, builder);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            runner.setPreemptionBudget(1);
+
+            Assert.assertTrue(runner.execute()); // preempted at loop condition (i = 0)
+            Assert.assertEquals("started\n", builder.toString());
+            Assert.assertTrue(runner.execute()); // suspended in echo(0)
+            Assert.assertEquals("started\n0\n", builder.toString());
+            
+            // Each remaining iteration gets preempted at the loop condition before suspending in echo() -- 9 iterations left, plus a final
+            // preemption when the loop condition fails
+            for (int i = 0; i < 19; i++) {
+                Assert.assertTrue(runner.execute());
+            }
+            Assert.assertFalse(runner.execute()); // coroutine finished executing here
+
+            Assert.assertEquals("started\n0\n1\n2\n3\n4\n5\n6\n7\n8\n9\n", builder.toString());
+        }
+    }
+
     @Test
     public void mustRejectLambdas() throws Exception {
         thrown.expect(IllegalArgumentException.class);
@@ -269,9 +381,13 @@ public final class InstrumenterTest {
     }
 
     private void performCountTest(String testClass) throws Exception {
+        performCountTest(testClass, InstrumentationSettings.DEFAULT);
+    }
+
+    private void performCountTest(String testClass, InstrumentationSettings settings) throws Exception {
         StringBuilder builder = new StringBuilder();
 
-        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(testClass + ".zip")) {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(testClass + ".zip", settings)) {
             Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(testClass);
             Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, builder);
 
@@ -322,9 +438,13 @@ public final class InstrumenterTest {
 
     @Test
     public void mustProperlySuspendInTryCatchFinally() throws Exception {
+        performTryCatchFinallyTest(InstrumentationSettings.DEFAULT);
+    }
+
+    private void performTryCatchFinallyTest(InstrumentationSettings settings) throws Exception {
         StringBuilder builder = new StringBuilder();
 
-        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(EXCEPTION_SUSPEND_TEST + ".zip")) {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(EXCEPTION_SUSPEND_TEST + ".zip", settings)) {
             Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(EXCEPTION_SUSPEND_TEST);
             Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, builder);
 
@@ -377,6 +497,10 @@ public final class InstrumenterTest {
     
     @Test
     public void mustKeepTrackOfSynchronizedBlocks() throws Exception {
+        performSynchronizedBlocksTest(InstrumentationSettings.DEFAULT);
+    }
+    
+    private void performSynchronizedBlocksTest(InstrumentationSettings settings) throws Exception {
         LinkedList<String> tracker = new LinkedList<>();
         
         // mon1/mon2/mon3 all point to different objects that are logically equivalent but different objects. Tracking should ignore logical
@@ -387,7 +511,7 @@ public final class InstrumenterTest {
         Object mon3 = new ArrayList<>();
 
         // All we're testing here is tracking. It's difficult to test to see if monitors were re-entered/exited.
-        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(MONITOR_INVOKE_TEST + ".zip")) {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(MONITOR_INVOKE_TEST + ".zip", settings)) {
             Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(MONITOR_INVOKE_TEST);
             Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, tracker, mon1, mon2, mon3);
 
@@ -397,30 +521,607 @@ public final class InstrumenterTest {
             Continuation continuation = (Continuation) FieldUtils.readField(runner, "continuation", true);
 
             Assert.assertTrue(runner.execute());
+            assertMonitorsNotHeld(mon1, mon2, mon3);
             Assert.assertEquals(Arrays.asList("mon1", "mon2", "mon3", "mon1"), tracker);
             Assert.assertArrayEquals(new Object[] { mon1 }, continuation.getSaved(0).getLockState().toArray());
             Assert.assertArrayEquals(new Object[] { mon2, mon3, mon1 }, continuation.getSaved(1).getLockState().toArray());
             
             Assert.assertTrue(runner.execute());
+            assertMonitorsNotHeld(mon1, mon2, mon3);
             Assert.assertEquals(Arrays.asList("mon1", "mon2", "mon3"), tracker);
             Assert.assertArrayEquals(new Object[] { mon1 }, continuation.getSaved(0).getLockState().toArray());
             Assert.assertArrayEquals(new Object[] { mon2, mon3 }, continuation.getSaved(1).getLockState().toArray());
             
             Assert.assertTrue(runner.execute());
+            assertMonitorsNotHeld(mon1, mon2, mon3);
             Assert.assertEquals(Arrays.asList("mon1", "mon2"), tracker);
             Assert.assertArrayEquals(new Object[] { mon1 }, continuation.getSaved(0).getLockState().toArray());
             Assert.assertArrayEquals(new Object[] { mon2 }, continuation.getSaved(1).getLockState().toArray());
             
             Assert.assertTrue(runner.execute());
+            assertMonitorsNotHeld(mon1, mon2, mon3);
             Assert.assertEquals(Arrays.asList("mon1"), tracker);
             Assert.assertArrayEquals(new Object[] { mon1 }, continuation.getSaved(0).getLockState().toArray());
             Assert.assertArrayEquals(new Object[] { }, continuation.getSaved(1).getLockState().toArray());
             
             Assert.assertTrue(runner.execute());
+            assertMonitorsNotHeld(mon1, mon2, mon3);
             Assert.assertEquals(Arrays.<String>asList(), tracker);
             Assert.assertArrayEquals(new Object[] { }, continuation.getSaved(0).getLockState().toArray());
             
             Assert.assertFalse(runner.execute()); // coroutine finished executing here            
+            assertMonitorsNotHeld(mon1, mon2, mon3);
+        }
+    }
+    
+    private static void assertMonitorsNotHeld(Object... monitors) {
+        // Monitors must have been exited when the coroutine suspended, and re-entered when it resumed
+        for (Object monitor : monitors) {
+            Assert.assertFalse(Thread.holdsLock(monitor));
+        }
+    }
+
+    @Test
+    public void mustProperlySuspendWithRecursiveMethodsInSlotArena() throws Exception {
+        performCountTest(RECURSIVE_INVOKE_TEST, SLOT_ARENA_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWithMethodsThatReturnValuesInSlotArena() throws Exception {
+        performCountTest(RETURN_INVOKE_TEST, SLOT_ARENA_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWithNullTypeInLocalVariableTableInSlotArena() throws Exception {
+        performCountTest(NULL_TYPE_IN_LOCAL_VARIABLE_TABLE_INVOKE_TEST, SLOT_ARENA_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWithBasicTypesInLocalVariableTableAndOperandStackInSlotArena() throws Exception {
+        performCountTest(BASIC_TYPE_INVOKE_TEST, SLOT_ARENA_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendInNonTrivialCoroutineInSlotArena() throws Exception {
+        performCountTest(COMPLEX_TEST, SLOT_ARENA_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendInTryCatchFinallyInSlotArena() throws Exception {
+        performTryCatchFinallyTest(SLOT_ARENA_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWithSerializationInSlotArena() throws Exception {
+        performSerializationTest(SLOT_ARENA_SETTINGS);
+    }
+
+    @Test
+    public void mustCopyMethodsThatArentInstrumentedAsIs() throws Exception {
+        byte[] input = readZipFromResource(COMPLEX_TEST + ".zip").get(COMPLEX_TEST + ".class");
+        List<File> classpath = getClasspath();
+        classpath.add(createJar(new JarEntry(COMPLEX_TEST + ".class", input)));
+        byte[] output = instrument(classpath, InstrumentationSettings.DEFAULT, input);
+
+        Map<String, String> inputMethods = dumpMethods(input);
+        Map<String, String> outputMethods = dumpMethods(output);
+        outputMethods.keySet().removeIf(x -> x.startsWith("coroutines$saveFrame$")); // frame save helpers may have been added
+        Assert.assertEquals(inputMethods.keySet(), outputMethods.keySet());
+        
+        // The constructor and static initializer don't take a Continuation, so they must come out exactly the same (including maxs and
+        // frames). Methods that take a Continuation must have been rewritten.
+        Assert.assertEquals(inputMethods.get("<init>(Ljava/lang/StringBuilder;)V"), outputMethods.get("<init>(Ljava/lang/StringBuilder;)V"));
+        Assert.assertEquals(inputMethods.get("<clinit>()V"), outputMethods.get("<clinit>()V"));
+        Assert.assertFalse(inputMethods.get("run(Lcom/offbynull/coroutines/user/Continuation;)V").equals(
+                outputMethods.get("run(Lcom/offbynull/coroutines/user/Continuation;)V")));
+    }
+
+    @Test
+    public void mustProperlySuspendWithBasicTypesInLocalVariableTableAndOperandStackWhenFrameSavingIsInline() throws Exception {
+        performCountTest(BASIC_TYPE_INVOKE_TEST, INLINE_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendInNonTrivialCoroutineWhenFrameSavingIsInline() throws Exception {
+        performCountTest(COMPLEX_TEST, INLINE_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWithBasicTypesInLocalVariableTableAndOperandStackWhenFrameSavingIsOutlined() throws Exception {
+        performCountTest(BASIC_TYPE_INVOKE_TEST, OUTLINED_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWithNullTypeInLocalVariableTableWhenFrameSavingIsOutlined() throws Exception {
+        performCountTest(NULL_TYPE_IN_LOCAL_VARIABLE_TABLE_INVOKE_TEST, OUTLINED_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendInNonTrivialCoroutineWhenFrameSavingIsOutlined() throws Exception {
+        performCountTest(COMPLEX_TEST, OUTLINED_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendInTryCatchFinallyWhenFrameSavingIsOutlined() throws Exception {
+        performTryCatchFinallyTest(OUTLINED_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWithSerializationWhenFrameSavingIsOutlined() throws Exception {
+        performSerializationTest(OUTLINED_SETTINGS);
+    }
+
+    @Test
+    public void mustKeepTrackOfSynchronizedBlocksWhenFrameSavingIsOutlined() throws Exception {
+        performSynchronizedBlocksTest(OUTLINED_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWithBasicTypesInLocalVariableTableAndOperandStackInSlotArenaWhenFrameSavingIsOutlined()
+            throws Exception {
+        performCountTest(BASIC_TYPE_INVOKE_TEST, OUTLINED_SLOT_ARENA_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendInNonTrivialCoroutineInSlotArenaWhenFrameSavingIsOutlined() throws Exception {
+        performCountTest(COMPLEX_TEST, OUTLINED_SLOT_ARENA_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendInTryCatchFinallyInSlotArenaWhenFrameSavingIsOutlined() throws Exception {
+        performTryCatchFinallyTest(OUTLINED_SLOT_ARENA_SETTINGS);
+    }
+
+    @Test
+    public void mustSaveFramesTooLargeForHelperArgumentsInlineWhenFrameSavingIsOutlined() throws Exception {
+        performLargeFrameTest(OUTLINED_SETTINGS);
+    }
+
+    @Test
+    public void mustSaveFramesTooLargeForHelperArgumentsInlineInSlotArenaWhenFrameSavingIsOutlined() throws Exception {
+        performLargeFrameTest(OUTLINED_SLOT_ARENA_SETTINGS);
+    }
+
+    private void performLargeFrameTest(InstrumentationSettings settings) throws Exception {
+        // 300 int locals are live across the continuation point, more than fit in to the 255 argument slots a helper method can have
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(LARGE_FRAME_TEST + ".zip", settings)) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(LARGE_FRAME_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, builder);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+
+            Assert.assertTrue(runner.execute());
+            Assert.assertTrue(runner.execute());
+            Assert.assertTrue(runner.execute());
+            Assert.assertFalse(runner.execute()); // coroutine finished executing here
+
+            Assert.assertEquals("0\n45150\n90300\n", builder.toString());
+        }
+    }
+
+    @Test
+    public void mustShrinkInstrumentedMethodsWhenFrameSavingIsOutlined() throws Exception {
+        byte[] input = readZipFromResource(COMPLEX_TEST + ".zip").get(COMPLEX_TEST + ".class");
+        List<File> classpath = getClasspath();
+        classpath.add(createJar(new JarEntry(COMPLEX_TEST + ".class", input)));
+        byte[] inlineOutput = instrument(classpath, INLINE_SETTINGS, input);
+        byte[] outlinedOutput = instrument(classpath, OUTLINED_SETTINGS, input);
+
+        // No helpers when saving inline
+        Map<String, MethodNode> inlineMethods = getMethods(inlineOutput);
+        Assert.assertTrue(inlineMethods.keySet().stream().noneMatch(x -> x.startsWith("coroutines$saveFrame$")));
+        
+        // Helpers when outlining
+        Map<String, MethodNode> outlinedMethods = getMethods(outlinedOutput);
+        Assert.assertTrue(countFrameSaveHelpers(outlinedMethods) > 0L);
+        
+        // The instrumented method must be smaller when outlining
+        String runKey = "run(Lcom/offbynull/coroutines/user/Continuation;)V";
+        Assert.assertTrue(outlinedMethods.get(runKey).instructions.size() < inlineMethods.get(runKey).instructions.size());
+        
+        // Continuation points that save frames of the same shape must share the same helper (the suspend() invocations in this class save
+        // frames of the same shape, so there are fewer helpers than there are continuation points)
+        byte[] sharedInput = readZipFromResource(EXCEPTION_SUSPEND_TEST + ".zip").get(EXCEPTION_SUSPEND_TEST + ".class");
+        List<File> sharedClasspath = getClasspath();
+        sharedClasspath.add(createJar(new JarEntry(EXCEPTION_SUSPEND_TEST + ".class", sharedInput)));
+        Map<String, MethodNode> sharedMethods = getMethods(instrument(sharedClasspath, OUTLINED_SETTINGS, sharedInput));
+        long helperCount = countFrameSaveHelpers(sharedMethods);
+        long continuationPointCount = sharedMethods.values().stream()
+                .filter(x -> !x.name.startsWith("coroutines$saveFrame$"))
+                .flatMap(x -> Arrays.stream(x.instructions.toArray()))
+                .filter(x -> x instanceof MethodInsnNode && ((MethodInsnNode) x).name.startsWith("coroutines$saveFrame$"))
+                .count();
+        Assert.assertTrue(helperCount > 0L);
+        Assert.assertTrue(helperCount < continuationPointCount);
+    }
+    
+    private static byte[] instrument(List<File> classpath, InstrumentationSettings settings, byte[] input) throws IOException {
+        try (Instrumenter instrumenter = new Instrumenter(classpath, settings)) {
+            return instrumenter.instrument(input);
+        }
+    }
+    
+    private static long countFrameSaveHelpers(Map<String, MethodNode> methods) {
+        return methods.values().stream()
+                .filter(x -> x.name.startsWith("coroutines$saveFrame$"))
+                .peek(x -> Assert.assertEquals(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, x.access))
+                .count();
+    }
+
+    private static Map<String, MethodNode> getMethods(byte[] classData) {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(classData).accept(classNode, 0);
+        
+        Map<String, MethodNode> ret = new HashMap<>();
+        for (MethodNode methodNode : classNode.methods) {
+            ret.put(methodNode.name + methodNode.desc, methodNode);
+        }
+        return ret;
+    }
+
+    private static Map<String, String> dumpMethods(byte[] classData) {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(classData).accept(classNode, 0);
+        
+        Map<String, String> ret = new HashMap<>();
+        for (MethodNode methodNode : classNode.methods) {
+            Textifier textifier = new Textifier();
+            methodNode.accept(new TraceMethodVisitor(textifier));
+            StringWriter sw = new StringWriter();
+            textifier.print(new PrintWriter(sw));
+            ret.put(methodNode.name + methodNode.desc, sw.toString());
+        }
+        return ret;
+    }
+
+    @Test
+    public void mustNotBoxPrimitivesInSlotArena() throws Exception {
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(BASIC_TYPE_INVOKE_TEST + ".zip", SLOT_ARENA_SETTINGS)) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(BASIC_TYPE_INVOKE_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, builder);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            Continuation continuation = (Continuation) FieldUtils.readField(runner, "continuation", true);
+
+            Assert.assertTrue(runner.execute());
+            
+            // echo() is suspended with a byte, char, short, int, long, float, and double as arguments, which are sitting on run()'s
+            // operand stack. None of those should have been boxed when they were saved. The only boxed value should be the Integer that
+            // was explicitly passed in as an Object. It shows up once, in run()'s operand stack -- echo() never assigns to its
+            // arguments, so they get passed in again on resume rather than being saved in echo()'s locals.
+            Object[] slots = (Object[]) FieldUtils.readField(continuation, "slots", true);
+            int boxedCount = 0;
+            for (Object slot : slots) {
+                if (slot instanceof Number || slot instanceof Character || slot instanceof Boolean) {
+                    Assert.assertEquals(0, slot);
+                    boxedCount++;
+                }
+            }
+            Assert.assertEquals(1, boxedCount);
+            
+            Assert.assertTrue(runner.execute());
+            Assert.assertTrue(builder.toString().startsWith("started\n0\n1\n"));
+        }
+    }
+
+    @Test
+    public void mustReuseSlotArenaBetweenExecutionCycles() throws Exception {
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(NORMAL_INVOKE_TEST + ".zip", SLOT_ARENA_SETTINGS)) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(NORMAL_INVOKE_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, builder);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            Continuation continuation = (Continuation) FieldUtils.readField(runner, "continuation", true);
+
+            Assert.assertTrue(runner.execute());
+            Assert.assertTrue(runner.execute());
+            
+            Object slots = FieldUtils.readField(continuation, "slots", true);
+            Object frameContinuationPoints = FieldUtils.readField(continuation, "frameContinuationPoints", true);
+            
+            Assert.assertTrue(runner.execute());
+            Assert.assertTrue(runner.execute());
+            Assert.assertTrue(runner.execute());
+            Assert.assertTrue(runner.execute());
+            
+            // Once the arena has grown to the coroutine's working depth, frames should be saved in to the same arrays every cycle
+            Assert.assertSame(slots, FieldUtils.readField(continuation, "slots", true));
+            Assert.assertSame(frameContinuationPoints, FieldUtils.readField(continuation, "frameContinuationPoints", true));
+        }
+    }
+
+    @Test
+    public void mustProperlySuspendWhenLoweredInToStateMachine() throws Exception {
+        String expected = runStateMachineTest(STATE_MACHINE_INVOKE_TEST, InstrumentationSettings.DEFAULT, 8);
+        String actual = runStateMachineTest(STATE_MACHINE_INVOKE_TEST, STATE_MACHINE_SETTINGS, 8);
+        Assert.assertEquals(expected, actual);
+        Assert.assertTrue(actual.endsWith("try\ncatch exc\nfinally\n"));
+    }
+
+    @Test
+    public void mustProperlySuspendWhenLoweredInToStateMachineAndInvokedByOtherCoroutine() throws Exception {
+        String expected = "a0\na1\na2\nb0\nb1\nb2\na0\na1\na2\nb0\nb1\nb2\ndone\n";
+        Assert.assertEquals(expected, runStateMachineTest(STATE_MACHINE_NESTED_INVOKE_TEST, STATE_MACHINE_SETTINGS, 12));
+        Assert.assertEquals(expected, runStateMachineTest(STATE_MACHINE_NESTED_INVOKE_TEST, STATE_MACHINE_SLOT_ARENA_SETTINGS, 12));
+    }
+
+    private String runStateMachineTest(String testClass, InstrumentationSettings settings, int suspendCount) throws Exception {
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(testClass + ".zip", settings)) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(testClass);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, builder);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            for (int i = 0; i < suspendCount; i++) {
+                Assert.assertTrue(runner.execute());
+            }
+            Assert.assertFalse(runner.execute()); // coroutine finished executing here
+        }
+        
+        return builder.toString();
+    }
+
+    @Test
+    public void mustKeepFrameInFieldsWhenLoweredInToStateMachine() throws Exception {
+        byte[] input = readZipFromResource(STATE_MACHINE_INVOKE_TEST + ".zip").get(STATE_MACHINE_INVOKE_TEST + ".class");
+        List<File> classpath = getClasspath();
+        classpath.add(createJar(new JarEntry(STATE_MACHINE_INVOKE_TEST + ".class", input)));
+        byte[] output = instrument(classpath, STATE_MACHINE_SETTINGS, input);
+
+        ClassNode classNode = new ClassNode();
+        new ClassReader(output).accept(classNode, 0);
+        
+        // Frame must be kept in private synthetic fields of the coroutine
+        Assert.assertTrue(classNode.fields.stream().anyMatch(x -> x.name.equals("coroutines$state$0")));
+        Assert.assertTrue(classNode.fields.stream()
+                .filter(x -> x.name.startsWith("coroutines$"))
+                .allMatch(x -> x.access == (Opcodes.ACC_PRIVATE | Opcodes.ACC_SYNTHETIC)));
+        
+        // Nothing must get saved to the Continuation
+        MethodNode runMethodNode = getMethods(output).get("run(Lcom/offbynull/coroutines/user/Continuation;)V");
+        Assert.assertTrue(Arrays.stream(runMethodNode.instructions.toArray())
+                .filter(x -> x instanceof MethodInsnNode)
+                .map(x -> ((MethodInsnNode) x).name)
+                .noneMatch(x -> x.equals("addPending") || x.equals("addPendingSlots") || x.equals("suspend")));
+    }
+
+    @Test
+    public void mustNotLowerCoroutinesThatInvokeOtherMethodsInToStateMachines() throws Exception {
+        byte[] input = readZipFromResource(NORMAL_INVOKE_TEST + ".zip").get(NORMAL_INVOKE_TEST + ".class");
+        List<File> classpath = getClasspath();
+        classpath.add(createJar(new JarEntry(NORMAL_INVOKE_TEST + ".class", input)));
+        byte[] output = instrument(classpath, STATE_MACHINE_SETTINGS, input);
+
+        ClassNode classNode = new ClassNode();
+        new ClassReader(output).accept(classNode, 0);
+        Assert.assertTrue(classNode.fields.stream().noneMatch(x -> x.name.startsWith("coroutines$")));
+        
+        performCountTest(NORMAL_INVOKE_TEST, STATE_MACHINE_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWithSerializationWhenLoweredInToStateMachine() throws Exception {
+        StringBuilder expected = new StringBuilder();
+        String zipName = STATE_MACHINE_INVOKE_TEST + ".zip";
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(zipName, STATE_MACHINE_SETTINGS)) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(STATE_MACHINE_INVOKE_TEST);
+            CoroutineRunner originalRunner = new CoroutineRunner(ConstructorUtils.invokeConstructor(cls, expected));
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(originalRunner.execute());
+            }
+
+            // Serialize
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+                oos.writeObject(originalRunner);
+            }
+
+            // Deserialize
+            ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
+            ObjectInputStream ois = new ObjectInputStream(bais) {
+
+                @Override
+                protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                    try {
+                        return super.resolveClass(desc);
+                    } catch (ClassNotFoundException cnfe) {
+                        return classLoader.loadClass(desc.getName());
+                    }
+                }
+                
+            };
+            CoroutineRunner deserializedRunner = (CoroutineRunner) ois.readObject();
+            
+            // Continue running both -- the deserialized one must pick up from where the original left off
+            for (int i = 0; i < 5; i++) {
+                Assert.assertTrue(originalRunner.execute());
+                Assert.assertTrue(deserializedRunner.execute());
+            }
+            Assert.assertFalse(originalRunner.execute());
+            Assert.assertFalse(deserializedRunner.execute());
+
+            Object deserializedCoroutine = FieldUtils.readField(deserializedRunner, "coroutine", true);
+            StringBuilder actual = (StringBuilder) FieldUtils.readField(deserializedCoroutine, "builder", true);
+            Assert.assertEquals(expected.toString(), actual.toString());
+        }
+    }
+
+    @Test
+    public void mustProperlySuspendWithVirtualMethodsWhenUnwindingByThrowing() throws Exception {
+        performCountTest(NORMAL_INVOKE_TEST, EXCEPTION_UNWIND_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWithRecursiveMethodsWhenUnwindingByThrowing() throws Exception {
+        performCountTest(RECURSIVE_INVOKE_TEST, EXCEPTION_UNWIND_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWithMethodsThatReturnValuesWhenUnwindingByThrowing() throws Exception {
+        performCountTest(RETURN_INVOKE_TEST, EXCEPTION_UNWIND_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWithBasicTypesInLocalVariableTableAndOperandStackWhenUnwindingByThrowing() throws Exception {
+        performCountTest(BASIC_TYPE_INVOKE_TEST, EXCEPTION_UNWIND_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendInNonTrivialCoroutineWhenUnwindingByThrowing() throws Exception {
+        performCountTest(COMPLEX_TEST, EXCEPTION_UNWIND_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendInNonTrivialCoroutineInSlotArenaWhenUnwindingByThrowing() throws Exception {
+        performCountTest(COMPLEX_TEST, EXCEPTION_UNWIND_SLOT_ARENA_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendInNonTrivialCoroutineWhenUnwindingByThrowingAndFrameSavingIsOutlined() throws Exception {
+        performCountTest(COMPLEX_TEST, EXCEPTION_UNWIND_OUTLINED_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendInTryCatchFinallyWhenUnwindingByThrowing() throws Exception {
+        performTryCatchFinallyTest(EXCEPTION_UNWIND_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendInTryCatchFinallyInSlotArenaWhenUnwindingByThrowing() throws Exception {
+        performTryCatchFinallyTest(EXCEPTION_UNWIND_SLOT_ARENA_SETTINGS);
+    }
+
+    @Test
+    public void mustKeepTrackOfSynchronizedBlocksWhenUnwindingByThrowing() throws Exception {
+        performSynchronizedBlocksTest(EXCEPTION_UNWIND_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWithSerializationWhenUnwindingByThrowing() throws Exception {
+        performSerializationTest(EXCEPTION_UNWIND_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWithLoopPreemptionWhenUnwindingByThrowing() throws Exception {
+        performCountTest(NORMAL_INVOKE_TEST, EXCEPTION_UNWIND_LOOP_PREEMPTION_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlyReportExceptionsWhenUnwindingByThrowing() throws Exception {
+        thrown.expect(RuntimeException.class);
+        thrown.expectMessage("Exception thrown during execution");
+        
+        performCountTest(EXCEPTION_THROW_TEST, EXCEPTION_UNWIND_SETTINGS);
+    }
+
+    @Test
+    public void mustProperlySuspendWhenLoweredInToStateMachineAndUnwindingByThrowing() throws Exception {
+        String expected = runStateMachineTest(STATE_MACHINE_INVOKE_TEST, InstrumentationSettings.DEFAULT, 8);
+        Assert.assertEquals(expected, runStateMachineTest(STATE_MACHINE_INVOKE_TEST, EXCEPTION_UNWIND_STATE_MACHINE_SETTINGS, 8));
+        Assert.assertEquals("a0\na1\na2\nb0\nb1\nb2\na0\na1\na2\nb0\nb1\nb2\ndone\n",
+                runStateMachineTest(STATE_MACHINE_NESTED_INVOKE_TEST, EXCEPTION_UNWIND_STATE_MACHINE_SETTINGS, 12));
+    }
+
+    @Test
+    public void mustNotCheckModeAfterInvocationsWhenUnwindingByThrowing() throws Exception {
+        byte[] input = readZipFromResource(EXCEPTION_SUSPEND_TEST + ".zip").get(EXCEPTION_SUSPEND_TEST + ".class");
+        List<File> classpath = getClasspath();
+        classpath.add(createJar(new JarEntry(EXCEPTION_SUSPEND_TEST + ".class", input)));
+        Map<String, MethodNode> returnMethods = getMethods(new Instrumenter(classpath, InstrumentationSettings.DEFAULT).instrument(input));
+        Map<String, MethodNode> exceptionMethods = getMethods(instrument(classpath, EXCEPTION_UNWIND_SETTINGS, input));
+        
+        // When unwinding by returning, getMode() gets called again after every invocation that may suspend (run() invokes
+        // innerTryCatchFinally()). When unwinding by throwing, those checks are gone.
+        String runKey = "run(Lcom/offbynull/coroutines/user/Continuation;)V";
+        String innerKey = "innerTryCatchFinally(Lcom/offbynull/coroutines/user/Continuation;)V";
+        Assert.assertTrue(countInvocationsOf(exceptionMethods.get(runKey), "getMode")
+                < countInvocationsOf(returnMethods.get(runKey), "getMode"));
+        
+        // run() has no trycatch blocks of its own, so UnwindSignal is left to propagate through it untouched
+        Assert.assertTrue(exceptionMethods.get(runKey).tryCatchBlocks.isEmpty());
+        
+        // innerTryCatchFinally() does, so UnwindSignal must be caught ahead of them (before its catch/finally handlers see it)
+        TryCatchBlockNode firstTryCatchBlockNode = exceptionMethods.get(innerKey).tryCatchBlocks.get(0);
+        Assert.assertEquals("com/offbynull/coroutines/user/UnwindSignal", firstTryCatchBlockNode.type);
+    }
+
+    private static long countInvocationsOf(MethodNode methodNode, String name) {
+        return Arrays.stream(methodNode.instructions.toArray())
+                .filter(x -> x instanceof MethodInsnNode && ((MethodInsnNode) x).name.equals(name))
+                .count();
+    }
+
+    @Test
+    public void mustRematerializeUnmodifiedArgumentsAndConstants() throws Exception {
+        performRematerializationTest(InstrumentationSettings.DEFAULT);
+    }
+
+    @Test
+    public void mustRematerializeUnmodifiedArgumentsAndConstantsInSlotArena() throws Exception {
+        performRematerializationTest(SLOT_ARENA_SETTINGS);
+    }
+
+    @Test
+    public void mustRematerializeUnmodifiedArgumentsAndConstantsWhenFrameSavingIsOutlined() throws Exception {
+        performRematerializationTest(OUTLINED_SETTINGS);
+    }
+
+    @Test
+    public void mustRematerializeUnmodifiedArgumentsAndConstantsInSlotArenaWhenFrameSavingIsOutlined() throws Exception {
+        performRematerializationTest(OUTLINED_SLOT_ARENA_SETTINGS);
+    }
+
+    @Test
+    public void mustNotSaveUnmodifiedArgumentsOrConstants() throws Exception {
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(REMATERIALIZATION_TEST + ".zip",
+                InstrumentationSettings.DEFAULT)) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(REMATERIALIZATION_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, builder);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            Continuation continuation = (Continuation) FieldUtils.readField(runner, "continuation", true);
+
+            Assert.assertTrue(runner.execute());
+            
+            // run() only needs to save i -- this and c are never assigned to
+            Assert.assertEquals(1, continuation.getSaved(0).getLocalTable().length);
+            
+            // echo() only needs to save a (assigned to), changed (not a constant), and different (may be either of 2 constants). Its
+            // other arguments are never assigned to, and k/big/d/t/same always hold the same constant at this suspend().
+            Assert.assertArrayEquals(new Object[] { 100, 0, 2 }, continuation.getSaved(1).getLocalTable());
+        }
+    }
+    
+    private void performRematerializationTest(InstrumentationSettings settings) throws Exception {
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(REMATERIALIZATION_TEST + ".zip", settings)) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(REMATERIALIZATION_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, builder);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            for (int i = 0; i < 6; i++) {
+                Assert.assertTrue(runner.execute());
+            }
+            Assert.assertFalse(runner.execute());
+            
+            Assert.assertEquals(
+                    "100 10 arg0 2.5 7 1234567890123 1.5 const 0 3 2\n"
+                    + "8 arg0\n"
+                    + "101 11 arg1 2.5 7 1234567890123 1.5 const 2 3 1\n"
+                    + "8 arg1\n"
+                    + "102 12 arg2 2.5 7 1234567890123 1.5 const 4 3 1\n"
+                    + "8 arg2\n",
+                    builder.toString());
         }
     }
 }
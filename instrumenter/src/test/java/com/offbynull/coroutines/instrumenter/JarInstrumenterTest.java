@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.createJar;
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.getClasspath;
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.readZipFromResource;
+import com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.JarEntry;
+import com.offbynull.coroutines.user.Instrumented;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+public final class JarInstrumenterTest {
+    
+    private static final String INSTRUMENTED_INTERNAL_NAME = Type.getInternalName(Instrumented.class);
+    
+    private File inputJar;
+    private File outputJar;
+    
+    @Before
+    public void setUp() throws Exception {
+        byte[] coroutineClass = readZipFromResource("NormalInvokeTest.zip").get("NormalInvokeTest.class");
+        byte[] plainClass = readZipFromResource("SimpleStub.zip").get("SimpleStub.class");
+        
+        List<JarEntry> entries = new ArrayList<>();
+        entries.add(new JarEntry("NormalInvokeTest.class", coroutineClass));
+        for (int i = 0; i < 20; i++) {
+            entries.add(new JarEntry("copies/" + i + "/NormalInvokeTest.class", coroutineClass));
+            entries.add(new JarEntry("copies/" + i + "/SimpleStub.class", plainClass));
+            entries.add(new JarEntry("copies/" + i + "/data.txt", ("resource " + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        inputJar = createJar(entries.toArray(new JarEntry[0]));
+        outputJar = Files.createTempFile(getClass().getSimpleName(), ".jar").toFile();
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        inputJar.delete();
+        outputJar.delete();
+    }
+
+    @Test
+    public void mustInstrumentClassesAndCopyEverythingElseRaw() throws Exception {
+        List<File> classpath = getClasspath();
+        classpath.add(inputJar);
+        try (Instrumenter instrumenter = new Instrumenter(classpath)) {
+            new JarInstrumenter(instrumenter, 2).instrument(inputJar, outputJar);
+        }
+        
+        try (ZipFile inputZip = new ZipFile(inputJar);
+                ZipFile outputZip = new ZipFile(outputJar)) {
+            List<String> inputNames = getNames(inputZip);
+            List<String> outputNames = getNames(outputZip);
+            assertEquals(inputNames, outputNames);
+            
+            for (String name : inputNames) {
+                ZipArchiveEntry inputEntry = inputZip.getEntry(name);
+                ZipArchiveEntry outputEntry = outputZip.getEntry(name);
+                if (name.endsWith("NormalInvokeTest.class")) {
+                    byte[] data = read(outputZip.getInputStream(outputEntry));
+                    List<String> interfaces = Arrays.asList(new ClassReader(data).getInterfaces());
+                    assertTrue(interfaces.contains(INSTRUMENTED_INTERNAL_NAME));
+                } else {
+                    assertEquals(inputEntry.getMethod(), outputEntry.getMethod());
+                    assertArrayEquals(read(inputZip.getRawInputStream(inputEntry)), read(outputZip.getRawInputStream(outputEntry)));
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailIfInputAndOutputAreTheSame() throws Exception {
+        try (Instrumenter instrumenter = new Instrumenter(getClasspath())) {
+            new JarInstrumenter(instrumenter, 1).instrument(inputJar, inputJar);
+        }
+    }
+    
+    private static List<String> getNames(ZipFile zipFile) {
+        List<String> ret = new ArrayList<>();
+        for (ZipArchiveEntry entry : Collections.list(zipFile.getEntriesInPhysicalOrder())) {
+            ret.add(entry.getName());
+        }
+        assertFalse(ret.isEmpty());
+        return ret;
+    }
+    
+    private static byte[] read(InputStream is) throws IOException {
+        try (InputStream in = is) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter.asm;
+
+import com.offbynull.coroutines.instrumenter.testhelpers.TestUtils;
+import com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.JarEntry;
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.createJar;
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.readZipFromResource;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ClassInformationRepositoryTest {
+    
+    private ClassInformationRepository classRepo;
+    private File cacheDirectory;
+    
+    @Before
+    public void setUp() throws Exception {
+        classRepo = ClassInformationRepository.create(TestUtils.getClasspath());
+        cacheDirectory = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        classRepo.close();
+        FileUtils.deleteDirectory(cacheDirectory);
+    }
+
+    @Test
+    public void mustGetInformationForClassInJar() {
+        ClassInformation classInformation = classRepo.getInformation("java/util/ArrayList");
+
+        assertEquals("java/util/AbstractList", classInformation.getSuperClassName());
+        assertTrue(classInformation.getInterfaces().contains("java/util/List"));
+        assertFalse(classInformation.isInterface());
+        assertSame(classInformation, classRepo.getInformation("java/util/ArrayList")); // parsed once, then cached
+    }
+
+    @Test
+    public void mustGetInformationForInterfaceInJar() {
+        ClassInformation classInformation = classRepo.getInformation("java/util/List");
+
+        assertEquals(Arrays.asList("java/util/Collection"), classInformation.getInterfaces());
+        assertTrue(classInformation.isInterface());
+    }
+
+    @Test
+    public void mustReturnNullForUnknownClass() {
+        assertNull(classRepo.getInformation("fake/FakeClass"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailToAddIndividualClassThatIsAlreadyOnClasspath() {
+        ClassInformation classInformation = new ClassInformation("java/lang/Object", Collections.<String>emptyList(), false);
+        classRepo.addIndividual("java/util/ArrayList", classInformation);
+    }
+
+    @Test
+    public void mustGivePrecedenceToFirstRepositoryWhenMerging() {
+        ClassInformation classInformation = new ClassInformation("java/lang/Object", Collections.<String>emptyList(), false);
+        ClassInformationRepository individualRepo = new ClassInformationRepository();
+        individualRepo.addIndividual("java/util/ArrayList", classInformation);
+
+        assertSame(classInformation, ClassInformationRepository.merge(individualRepo, classRepo).getInformation("java/util/ArrayList"));
+        assertEquals("java/util/AbstractList",
+                ClassInformationRepository.merge(classRepo, individualRepo).getInformation("java/util/ArrayList").getSuperClassName());
+    }
+
+    @Test
+    public void mustLookUpClassesInLayersInOrder() throws Exception {
+        ClassInformation classInformation = new ClassInformation("java/lang/Object", Collections.<String>emptyList(), false);
+        ClassInformationRepository individualRepo = new ClassInformationRepository();
+        individualRepo.addIndividual("java/util/ArrayList", classInformation);
+        individualRepo.addIndividual("fake/FakeClass", classInformation);
+        
+        ClassInformationRepository layeredRepo = ClassInformationRepository.layer(Arrays.asList(classRepo, individualRepo));
+        assertEquals("java/util/AbstractList", layeredRepo.getInformation("java/util/ArrayList").getSuperClassName());
+        assertSame(classInformation, layeredRepo.getInformation("fake/FakeClass"));
+        assertNull(layeredRepo.getInformation("fake/OtherFakeClass"));
+        
+        // Adding to the layered repo takes precedence over its layers, but doesn't touch the layers themselves
+        ClassInformation otherClassInformation = new ClassInformation("java/lang/Object", Collections.<String>emptyList(), true);
+        layeredRepo.addIndividual("fake/OtherFakeClass", otherClassInformation);
+        assertSame(otherClassInformation, layeredRepo.getInformation("fake/OtherFakeClass"));
+        assertNull(individualRepo.getInformation("fake/OtherFakeClass"));
+        assertNull(classRepo.getInformation("fake/OtherFakeClass"));
+    }
+
+    @Test
+    public void mustMemoizeHierarchiesAndCommonSuperClasses() {
+        assertEquals(Arrays.asList("java/util/ArrayList", "java/util/AbstractList", "java/util/AbstractCollection", "java/lang/Object"),
+                classRepo.getHierarchy("java/util/ArrayList"));
+        assertSame(classRepo.getHierarchy("java/util/ArrayList"), classRepo.getHierarchy("java/util/ArrayList"));
+        
+        assertEquals("java/util/AbstractList", classRepo.getCommonSuperClass("java/util/ArrayList", "java/util/LinkedList"));
+        assertEquals("java/util/AbstractList", classRepo.getCommonSuperClass("java/util/ArrayList", "java/util/LinkedList"));
+        assertEquals("java/lang/Object", classRepo.getCommonSuperClass("java/util/ArrayList", "java/lang/String"));
+        
+        HierarchyCacheStatistics stats = classRepo.getHierarchyCacheStatistics();
+        assertEquals(1L, stats.getCommonSuperClassHits());
+        assertEquals(2L, stats.getCommonSuperClassMisses());
+        assertEquals(3L, stats.getHierarchyMisses()); // ArrayList, LinkedList, String
+        assertEquals(4L, stats.getHierarchyHits()); // ArrayList x2 above, then once for each of the 2 common super class misses
+    }
+
+    @Test
+    public void mustForgetMemoizedHierarchiesWhenParentClassGetsShadowed() {
+        ClassInformationRepository layeredRepo = ClassInformationRepository.layer(Arrays.asList(classRepo));
+        assertEquals("java/util/AbstractList", layeredRepo.getCommonSuperClass("java/util/ArrayList", "java/util/LinkedList"));
+        
+        ClassInformation classInformation = new ClassInformation("java/lang/Object", Collections.<String>emptyList(), false);
+        layeredRepo.addIndividual("java/util/ArrayList", classInformation);
+        assertEquals(Arrays.asList("java/util/ArrayList", "java/lang/Object"), layeredRepo.getHierarchy("java/util/ArrayList"));
+        assertEquals("java/lang/Object", layeredRepo.getCommonSuperClass("java/util/ArrayList", "java/util/LinkedList"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailToGetHierarchyOfUnknownClass() {
+        classRepo.getHierarchy("fake/FakeClass");
+    }
+
+    @Test
+    public void mustReadJarFromCacheWhenJarHasNotChanged() throws Exception {
+        byte[] classData = readZipFromResource("SimpleStub.zip").get("SimpleStub.class");
+        File jarFile = createJar(new JarEntry("SimpleStub.class", classData));
+        
+        ClassInformationRepository repo = ClassInformationRepository.create(Arrays.asList(jarFile), cacheDirectory);
+        assertEquals("java/lang/Object", repo.getInformation("SimpleStub").getSuperClassName());
+        assertEquals(1, cacheDirectory.listFiles().length);
+        
+        // Trash the JAR without changing its size or last modified time -- the cache can't tell the difference, so it shouldn't need to
+        // open the JAR
+        long lastModified = jarFile.lastModified();
+        byte[] garbage = new byte[(int) jarFile.length()];
+        FileUtils.writeByteArrayToFile(jarFile, garbage);
+        jarFile.setLastModified(lastModified);
+        
+        repo = ClassInformationRepository.create(Arrays.asList(jarFile), cacheDirectory);
+        assertEquals("java/lang/Object", repo.getInformation("SimpleStub").getSuperClassName());
+        assertEquals(1, cacheDirectory.listFiles().length);
+    }
+
+    @Test
+    public void mustGivePrecedenceToEarlierClasspathElementsOverCachedJars() throws Exception {
+        byte[] classData = readZipFromResource("SimpleStub.zip").get("SimpleStub.class");
+        File jarFile = createJar(new JarEntry("SimpleStub.class", classData));
+        
+        ClassInformationRepository repo = new ClassInformationRepository(cacheDirectory);
+        ClassInformation classInformation = new ClassInformation("fake/FakeSuper", Collections.<String>emptyList(), false);
+        repo.addIndividual("SimpleStub", classInformation);
+        repo.addClasspath(Arrays.asList(jarFile));
+        assertSame(classInformation, repo.getInformation("SimpleStub"));
+        
+        // Other way around -- class from cached JAR is there first, so it can't be added again
+        repo = ClassInformationRepository.create(Arrays.asList(jarFile), cacheDirectory);
+        assertFalse(repo.addIndividualIfAbsent("SimpleStub", classInformation));
+        assertEquals("java/lang/Object", repo.getInformation("SimpleStub").getSuperClassName());
+    }
+
+    @Test
+    public void mustReadClassFilesNewerThanJava8() throws Exception {
+        byte[] classData = readZipFromResource("SimpleStub.zip").get("SimpleStub.class");
+        classData[6] = 0; // major version 61 (Java 17)
+        classData[7] = 61;
+        File jarFile = createJar(new JarEntry("SimpleStub.class", classData));
+        
+        try (ClassInformationRepository repo = ClassInformationRepository.create(Arrays.asList(jarFile))) {
+            assertEquals("java/lang/Object", repo.getInformation("SimpleStub").getSuperClassName());
+        }
+    }
+
+    @Test
+    public void mustReadClassesOutOfJarAfterClose() throws Exception {
+        byte[] classData = readZipFromResource("SimpleStub.zip").get("SimpleStub.class");
+        File jarFile = createJar(new JarEntry("SimpleStub.class", classData), new JarEntry("OtherStub.class", classData));
+        
+        try (ClassInformationRepository repo = ClassInformationRepository.create(Arrays.asList(jarFile))) {
+            ClassInformation classInformation = repo.getInformation("SimpleStub");
+            repo.close();
+            
+            // what was already read stays available, anything else gets read by opening the JAR again
+            assertSame(classInformation, repo.getInformation("SimpleStub"));
+            assertEquals("java/lang/Object", repo.getInformation("OtherStub").getSuperClassName());
+        }
+        
+        // a repository layered on top of another closes that other repository's JARs as well
+        ClassInformationRepository jarRepo = ClassInformationRepository.create(Arrays.asList(jarFile));
+        try (ClassInformationRepository repo = ClassInformationRepository.layer(Arrays.asList(jarRepo))) {
+            assertEquals("java/lang/Object", repo.getInformation("SimpleStub").getSuperClassName());
+        }
+        assertTrue(jarFile.delete()); // fails on Windows if the JAR is still open
+        assertEquals("java/lang/Object", jarRepo.getInformation("SimpleStub").getSuperClassName());
+    }
+
+    @Test
+    public void mustResolveClassesInModuleImage() throws Exception {
+        File moduleImage = new File(System.getProperty("java.home"), "lib/modules");
+        if (!moduleImage.isFile()) {
+            return; // only JDK 9+ has a module image
+        }
+        
+        try (ClassInformationRepository repo = ClassInformationRepository.create(Arrays.asList(moduleImage))) {
+            assertEquals(Arrays.asList("java/util/ArrayList", "java/util/AbstractList", "java/util/AbstractCollection", "java/lang/Object"),
+                    repo.getHierarchy("java/util/ArrayList"));
+            assertTrue(repo.getInformation("java/util/List").isInterface());
+            assertNull(repo.getInformation("java/util/FakeClass"));
+            assertNull(repo.getInformation("fake/FakeClass"));
+
+            // Same as any other classpath element, classes in a module image can't be added again
+            ClassInformation classInformation = new ClassInformation("fake/FakeSuper", Collections.<String>emptyList(), false);
+            assertFalse(repo.addIndividualIfAbsent("java/util/List", classInformation));
+            assertTrue(repo.addIndividualIfAbsent("java/util/FakeClass", classInformation));
+        }
+    }
+
+    @Test
+    public void mustResolveClassesInModuleImageAfterClose() throws Exception {
+        File moduleImage = new File(System.getProperty("java.home"), "lib/modules");
+        if (!moduleImage.isFile()) {
+            return; // only JDK 9+ has a module image
+        }
+        
+        try (ClassInformationRepository repo = ClassInformationRepository.create(Arrays.asList(moduleImage))) {
+            ClassInformation classInformation = repo.getInformation("java/util/ArrayList");
+            repo.close();
+            
+            // what was already read stays available, anything else gets read by opening the module image again
+            assertSame(classInformation, repo.getInformation("java/util/ArrayList"));
+            assertEquals("java/util/AbstractMap", repo.getInformation("java/util/HashMap").getSuperClassName());
+            repo.close();
+            assertTrue(repo.getInformation("java/util/concurrent/ConcurrentMap").isInterface());
+        }
+    }
+
+    @Test
+    public void mustRebuildCorruptCacheFile() throws Exception {
+        byte[] classData = readZipFromResource("SimpleStub.zip").get("SimpleStub.class");
+        File jarFile = createJar(new JarEntry("SimpleStub.class", classData));
+        
+        ClassInformationRepository.create(Arrays.asList(jarFile), cacheDirectory);
+        File cacheFile = cacheDirectory.listFiles()[0];
+        FileUtils.writeByteArrayToFile(cacheFile, new byte[] { 1, 2, 3 });
+        
+        ClassInformationRepository repo = ClassInformationRepository.create(Arrays.asList(jarFile), cacheDirectory);
+        assertEquals("java/lang/Object", repo.getInformation("SimpleStub").getSuperClassName());
+        assertTrue(cacheFile.length() > 3L);
+    }
+}
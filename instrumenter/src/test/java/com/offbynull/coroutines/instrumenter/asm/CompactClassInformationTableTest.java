@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter.asm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class CompactClassInformationTableTest {
+
+    private Map<String, ClassInformation> classes;
+
+    @Before
+    public void setUp() {
+        classes = new LinkedHashMap<>();
+        classes.put("java/lang/Object", new ClassInformation(null, Collections.<String>emptyList(), false));
+        classes.put("java/lang/Runnable", new ClassInformation(null, Collections.<String>emptyList(), true));
+        classes.put("a/Base", new ClassInformation("java/lang/Object", Arrays.asList("java/lang/Runnable", "x/External"), false));
+        classes.put("a/Child", new ClassInformation("a/Base", Collections.<String>emptyList(), false));
+        for (int i = 0; i < 1000; i++) { // enough to cause collisions in the hash table
+            classes.put("b/Filler" + i, new ClassInformation("a/Base", Arrays.asList("java/lang/Runnable"), false));
+        }
+    }
+
+    @Test
+    public void mustGetSameInformationAsWhatWasPutIn() {
+        CompactClassInformationTable table = CompactClassInformationTable.create(classes);
+
+        assertEquals(classes.size(), table.size());
+        for (Map.Entry<String, ClassInformation> entry : classes.entrySet()) {
+            assertInformationEquals(entry.getValue(), table.getInformation(entry.getKey()));
+        }
+        
+        // referenced by a class in the table, but not in the table itself
+        assertFalse(table.contains("x/External"));
+        assertNull(table.getInformation("x/External"));
+        assertNull(table.getInformation("fake/FakeClass"));
+    }
+
+    @Test
+    public void mustGetSameInformationAfterWritingAndReadingBack() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(baos)) {
+            CompactClassInformationTable.create(classes).write(dos);
+        }
+        
+        CompactClassInformationTable table;
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            table = CompactClassInformationTable.read(dis);
+        }
+
+        assertEquals(classes.size(), table.size());
+        for (Map.Entry<String, ClassInformation> entry : classes.entrySet()) {
+            assertTrue(table.contains(entry.getKey()));
+            assertInformationEquals(entry.getValue(), table.getInformation(entry.getKey()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailToReadBackTableWithBadIndexes() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeInt(1); // symbol count
+            dos.writeInt(1); // class count
+            dos.writeUTF("a/Child");
+            dos.writeInt(5); // super class index -- out of bounds
+            dos.writeInt(0); // interface offset
+            dos.writeBoolean(false); // interface marker
+            dos.writeInt(0); // interface count
+        }
+        
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            CompactClassInformationTable.read(dis);
+        }
+    }
+    
+    private static void assertInformationEquals(ClassInformation expected, ClassInformation actual) {
+        assertEquals(expected.getSuperClassName(), actual.getSuperClassName());
+        assertEquals(expected.getInterfaces(), actual.getInterfaces());
+        assertEquals(expected.isInterface(), actual.isInterface());
+    }
+}
@@ -17,6 +17,8 @@
 package com.offbynull.coroutines.instrumenter.asm;
 
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.forEach;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.ifIntegerNotZero;
+import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.ifIntegerZero;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.ifIntegersEqual;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.ifObjectsEqual;
 import static com.offbynull.coroutines.instrumenter.asm.InstructionUtils.loadVar;
@@ -167,6 +169,44 @@ public final class InstructionUtilsTest {
         }
     }
 
+    @Test
+    public void mustCreateAndRunZeroCheckStatements() throws Exception {
+        // Augment signature
+        methodNode.desc = Type.getMethodDescriptor(Type.getType(String.class), new Type[] { Type.INT_TYPE, Type.INT_TYPE });
+        
+        // Initialize variable table
+        VariableTable varTable = new VariableTable(classNode, methodNode);
+        Variable intVar1 = varTable.getArgument(1);
+        Variable intVar2 = varTable.getArgument(2);
+        
+        // Update method logic
+        /**
+         * if (arg1 == 0) {
+         *     return "zero";
+         * }
+         * if (arg2 != 0) {
+         *     return "nonzero";
+         * }
+         * return "neither";
+         */
+        methodNode.instructions
+                = merge(ifIntegerZero(loadVar(intVar1),
+                                returnValue(Type.getType(String.class), loadStringConst("zero"))),
+                        ifIntegerNotZero(loadVar(intVar2),
+                                returnValue(Type.getType(String.class), loadStringConst("nonzero"))),
+                        returnValue(Type.getType(String.class), loadStringConst("neither"))
+                );
+        
+        // Write to JAR file + load up in classloader -- then execute tests
+        try (URLClassLoader cl = createJarAndLoad(classNode)) {
+            Object obj = cl.loadClass(STUB_CLASSNAME).newInstance();
+            
+            assertEquals("zero", MethodUtils.invokeMethod(obj, STUB_METHOD_NAME, 0, 0));
+            assertEquals("nonzero", MethodUtils.invokeMethod(obj, STUB_METHOD_NAME, -1, 2));
+            assertEquals("neither", MethodUtils.invokeMethod(obj, STUB_METHOD_NAME, 1, 0));
+        }
+    }
+
     @Test
     public void mustCreateAndRunForEachStatement() throws Exception {
         // Augment signature
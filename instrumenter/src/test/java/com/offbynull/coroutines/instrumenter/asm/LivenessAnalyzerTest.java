@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter.asm;
+
+import java.util.BitSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+public final class LivenessAnalyzerTest {
+
+    @Test
+    public void mustMarkLocalDeadAfterLastRead() {
+        MethodNode methodNode = new MethodNode(Opcodes.ACC_STATIC, "test", "()I", null, null);
+        methodNode.instructions.add(new InsnNode(Opcodes.ICONST_0));        // 0
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ISTORE, 0));    // 1
+        methodNode.instructions.add(new InsnNode(Opcodes.ICONST_1));        // 2
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ISTORE, 1));    // 3
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ILOAD, 0));     // 4
+        methodNode.instructions.add(new InsnNode(Opcodes.POP));             // 5
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ILOAD, 1));     // 6
+        methodNode.instructions.add(new InsnNode(Opcodes.IRETURN));         // 7
+
+        BitSet[] liveLocals = LivenessAnalyzer.analyze(methodNode);
+
+        assertEquals(8, liveLocals.length);
+        assertEquals(new BitSet(), liveLocals[0]);
+        assertEquals(bits(0), liveLocals[2]);
+        assertEquals(bits(0, 1), liveLocals[4]);
+        assertEquals(bits(1), liveLocals[5]);
+        assertEquals(bits(1), liveLocals[6]);
+        assertEquals(new BitSet(), liveLocals[7]);
+    }
+
+    @Test
+    public void mustKeepLocalLiveAcrossLoopBackEdge() {
+        LabelNode loopStartLabelNode = new LabelNode();
+        LabelNode loopEndLabelNode = new LabelNode();
+
+        // while (local0 != 0) { local0 = local1; }
+        MethodNode methodNode = new MethodNode(Opcodes.ACC_STATIC, "test", "(II)V", null, null);
+        methodNode.instructions.add(loopStartLabelNode);                                // 0
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ILOAD, 0));                 // 1
+        methodNode.instructions.add(new JumpInsnNode(Opcodes.IFEQ, loopEndLabelNode));  // 2
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ILOAD, 1));                 // 3
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ISTORE, 0));                // 4
+        methodNode.instructions.add(new JumpInsnNode(Opcodes.GOTO, loopStartLabelNode)); // 5
+        methodNode.instructions.add(loopEndLabelNode);                                  // 6
+        methodNode.instructions.add(new InsnNode(Opcodes.RETURN));                      // 7
+
+        BitSet[] liveLocals = LivenessAnalyzer.analyze(methodNode);
+
+        assertEquals(bits(0, 1), liveLocals[0]);
+        assertEquals(bits(1), liveLocals[3]);  // local0 gets overwritten before it's read again
+        assertEquals(bits(0, 1), liveLocals[5]); // local1 is read in the next iteration
+        assertEquals(new BitSet(), liveLocals[6]);
+    }
+
+    @Test
+    public void mustTreatLocalsLiveInExceptionHandlerAsLiveWithinTryBlock() {
+        LabelNode tryStartLabelNode = new LabelNode();
+        LabelNode tryEndLabelNode = new LabelNode();
+        LabelNode handlerLabelNode = new LabelNode();
+
+        // try { local0 = null; } catch (Throwable t) { return local1; } return null;
+        MethodNode methodNode = new MethodNode(Opcodes.ACC_STATIC, "test", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;",
+                null, null);
+        methodNode.instructions.add(tryStartLabelNode);                     // 0
+        methodNode.instructions.add(new InsnNode(Opcodes.ACONST_NULL));     // 1
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ASTORE, 0));    // 2
+        methodNode.instructions.add(tryEndLabelNode);                       // 3
+        methodNode.instructions.add(new InsnNode(Opcodes.ACONST_NULL));     // 4
+        methodNode.instructions.add(new InsnNode(Opcodes.ARETURN));         // 5
+        methodNode.instructions.add(handlerLabelNode);                      // 6
+        methodNode.instructions.add(new InsnNode(Opcodes.POP));             // 7
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ALOAD, 1));     // 8
+        methodNode.instructions.add(new InsnNode(Opcodes.ARETURN));         // 9
+        methodNode.tryCatchBlocks.add(new TryCatchBlockNode(tryStartLabelNode, tryEndLabelNode, handlerLabelNode, null));
+
+        BitSet[] liveLocals = LivenessAnalyzer.analyze(methodNode);
+
+        assertEquals(bits(1), liveLocals[0]);
+        assertEquals(bits(1), liveLocals[2]);
+        assertEquals(new BitSet(), liveLocals[3]); // outside of try block, handler no longer reachable
+        assertEquals(bits(1), liveLocals[6]);
+    }
+
+    @Test
+    public void mustTreatWideStoresAsOverwritingBothSlots() {
+        // local0/local1 = 0L; return local1 (as int -- not valid bytecode, but enough to check that the 2nd slot isn't live before the
+        // store)
+        MethodNode methodNode = new MethodNode(Opcodes.ACC_STATIC, "test", "(II)I", null, null);
+        methodNode.instructions.add(new InsnNode(Opcodes.LCONST_0));        // 0
+        methodNode.instructions.add(new VarInsnNode(Opcodes.LSTORE, 0));    // 1
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ILOAD, 1));     // 2
+        methodNode.instructions.add(new InsnNode(Opcodes.IRETURN));         // 3
+
+        BitSet[] liveLocals = LivenessAnalyzer.analyze(methodNode);
+
+        assertFalse(liveLocals[1].get(1));
+        assertTrue(liveLocals[2].get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailOnJsr() {
+        LabelNode labelNode = new LabelNode();
+
+        MethodNode methodNode = new MethodNode(Opcodes.ACC_STATIC, "test", "()V", null, null);
+        methodNode.instructions.add(new JumpInsnNode(Opcodes.JSR, labelNode));
+        methodNode.instructions.add(labelNode);
+        methodNode.instructions.add(new InsnNode(Opcodes.RETURN));
+
+        LivenessAnalyzer.analyze(methodNode);
+    }
+
+    private static BitSet bits(int ... indexes) {
+        BitSet ret = new BitSet();
+        for (int index : indexes) {
+            ret.set(index);
+        }
+        return ret;
+    }
+}
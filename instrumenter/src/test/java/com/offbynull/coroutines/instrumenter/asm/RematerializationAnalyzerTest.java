@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter.asm;
+
+import java.util.BitSet;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+public final class RematerializationAnalyzerTest {
+
+    @Test
+    public void mustFindArgumentsThatAreNeverAssignedTo() {
+        // this, local1 = int arg, local2/local3 = long arg, local4 = int arg, local5 = object arg
+        MethodNode methodNode = new MethodNode(0, "test", "(IJILjava/lang/Object;)V", null, null);
+        methodNode.instructions.add(new IincInsnNode(1, 1));                // 0
+        methodNode.instructions.add(new InsnNode(Opcodes.ACONST_NULL));     // 1
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ASTORE, 5));    // 2
+        methodNode.instructions.add(new InsnNode(Opcodes.RETURN));          // 3
+
+        BitSet unmodifiedArgs = RematerializationAnalyzer.findUnmodifiedArguments(methodNode);
+
+        assertEquals(bits(0, 2, 4), unmodifiedArgs);
+    }
+
+    @Test
+    public void mustTreatWideStoresAsModifyingBothSlots() {
+        // local0 = int arg, local1 = int arg -- a long stored in to local0 clobbers both
+        MethodNode methodNode = new MethodNode(Opcodes.ACC_STATIC, "test", "(II)V", null, null);
+        methodNode.instructions.add(new InsnNode(Opcodes.LCONST_0));        // 0
+        methodNode.instructions.add(new VarInsnNode(Opcodes.LSTORE, 0));    // 1
+        methodNode.instructions.add(new InsnNode(Opcodes.RETURN));          // 2
+
+        BitSet unmodifiedArgs = RematerializationAnalyzer.findUnmodifiedArguments(methodNode);
+
+        assertEquals(new BitSet(), unmodifiedArgs);
+    }
+
+    @Test
+    public void mustNotTreatConstructorThisAsUnmodified() {
+        MethodNode methodNode = new MethodNode(0, "<init>", "(I)V", null, null);
+        methodNode.instructions.add(new InsnNode(Opcodes.RETURN));          // 0
+
+        BitSet unmodifiedArgs = RematerializationAnalyzer.findUnmodifiedArguments(methodNode);
+
+        assertEquals(bits(1), unmodifiedArgs);
+    }
+
+    @Test
+    public void mustFindLocalsAssignedConstants() {
+        // local0 = 5; local1/local2 = 1L; local3 = "str"; local4 = 1000; return;
+        MethodNode methodNode = new MethodNode(Opcodes.ACC_STATIC, "test", "()V", null, null);
+        methodNode.instructions.add(new InsnNode(Opcodes.ICONST_5));                // 0
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ISTORE, 0));            // 1
+        methodNode.instructions.add(new InsnNode(Opcodes.LCONST_1));                // 2
+        methodNode.instructions.add(new VarInsnNode(Opcodes.LSTORE, 1));            // 3
+        methodNode.instructions.add(new LdcInsnNode("str"));                        // 4
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ASTORE, 3));            // 5
+        methodNode.instructions.add(new IntInsnNode(Opcodes.SIPUSH, 1000));         // 6
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ISTORE, 4));            // 7
+        methodNode.instructions.add(new InsnNode(Opcodes.RETURN));                  // 8
+        methodNode.maxLocals = 5;
+        methodNode.maxStack = 2;
+
+        Object[][] constantLocals = RematerializationAnalyzer.findConstantLocals("Test", methodNode);
+
+        assertEquals(9, constantLocals.length);
+        assertArrayEquals(new Object[] { null, null, null, null, null }, constantLocals[0]);
+        assertArrayEquals(new Object[] { 5, null, null, null, null }, constantLocals[2]);
+        assertArrayEquals(new Object[] { 5, 1L, null, "str", 1000 }, constantLocals[8]);
+    }
+
+    @Test
+    public void mustFindLocalsAssignedTheSameConstantOnMergingPaths() {
+        LabelNode elseLabelNode = new LabelNode();
+        LabelNode endLabelNode = new LabelNode();
+
+        // if (local0 == 0) { local1 = 3; local2 = 1; } else { local1 = 3; local2 = 2; } return;
+        MethodNode methodNode = new MethodNode(Opcodes.ACC_STATIC, "test", "(I)V", null, null);
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ILOAD, 0));             // 0
+        methodNode.instructions.add(new JumpInsnNode(Opcodes.IFNE, elseLabelNode)); // 1
+        methodNode.instructions.add(new InsnNode(Opcodes.ICONST_3));                // 2
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ISTORE, 1));            // 3
+        methodNode.instructions.add(new InsnNode(Opcodes.ICONST_1));                // 4
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ISTORE, 2));            // 5
+        methodNode.instructions.add(new JumpInsnNode(Opcodes.GOTO, endLabelNode));  // 6
+        methodNode.instructions.add(elseLabelNode);                                 // 7
+        methodNode.instructions.add(new InsnNode(Opcodes.ICONST_3));                // 8
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ISTORE, 1));            // 9
+        methodNode.instructions.add(new InsnNode(Opcodes.ICONST_2));                // 10
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ISTORE, 2));            // 11
+        methodNode.instructions.add(endLabelNode);                                  // 12
+        methodNode.instructions.add(new InsnNode(Opcodes.RETURN));                  // 13
+        methodNode.maxLocals = 3;
+        methodNode.maxStack = 1;
+
+        Object[][] constantLocals = RematerializationAnalyzer.findConstantLocals("Test", methodNode);
+
+        assertArrayEquals(new Object[] { null, 3, 1 }, constantLocals[6]);
+        assertArrayEquals(new Object[] { null, 3, null }, constantLocals[13]); // local2 is either 1 or 2, so it isn't a constant
+    }
+
+    @Test
+    public void mustNotFindLocalsAssignedNonConstants() {
+        // local1 = local0; local2 = 5; local2++; local3 = 7; local3 = local3 (dup'd); return;
+        MethodNode methodNode = new MethodNode(Opcodes.ACC_STATIC, "test", "(I)V", null, null);
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ILOAD, 0));             // 0
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ISTORE, 1));            // 1
+        methodNode.instructions.add(new InsnNode(Opcodes.ICONST_5));                // 2
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ISTORE, 2));            // 3
+        methodNode.instructions.add(new IincInsnNode(2, 1));                        // 4
+        methodNode.instructions.add(new IntInsnNode(Opcodes.BIPUSH, 7));            // 5
+        methodNode.instructions.add(new InsnNode(Opcodes.DUP));                     // 6
+        methodNode.instructions.add(new VarInsnNode(Opcodes.ISTORE, 3));            // 7
+        methodNode.instructions.add(new InsnNode(Opcodes.POP));                     // 8
+        methodNode.instructions.add(new InsnNode(Opcodes.RETURN));                  // 9
+        methodNode.maxLocals = 4;
+        methodNode.maxStack = 2;
+
+        Object[][] constantLocals = RematerializationAnalyzer.findConstantLocals("Test", methodNode);
+
+        assertArrayEquals(new Object[] { null, null, 5, null }, constantLocals[4]);
+        assertArrayEquals(new Object[] { null, null, null, null }, constantLocals[9]);
+    }
+
+    @Test
+    public void mustReturnEmptyArrayForUnreachableInstructions() {
+        MethodNode methodNode = new MethodNode(Opcodes.ACC_STATIC, "test", "()V", null, null);
+        methodNode.instructions.add(new InsnNode(Opcodes.RETURN));                  // 0
+        methodNode.instructions.add(new InsnNode(Opcodes.ICONST_0));                // 1
+        methodNode.instructions.add(new InsnNode(Opcodes.RETURN));                  // 2
+        methodNode.maxLocals = 0;
+        methodNode.maxStack = 1;
+
+        Object[][] constantLocals = RematerializationAnalyzer.findConstantLocals("Test", methodNode);
+
+        assertEquals(3, constantLocals.length);
+        assertEquals(0, constantLocals[1].length);
+        assertEquals(0, constantLocals[2].length);
+    }
+
+    private static BitSet bits(int ... indexes) {
+        BitSet ret = new BitSet();
+        for (int index : indexes) {
+            ret.set(index);
+        }
+        return ret;
+    }
+}
@@ -16,25 +16,36 @@
  */
 package com.offbynull.coroutines.instrumenter.asm;
 
+import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.constantPoolContains;
+import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.estimateCodeSize;
 import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findInvocationsOf;
 import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findInvocationsWithParameter;
 import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findMethodsWithName;
 import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findMethodsWithParameter;
 import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.searchForOpcodes;
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.readZipFromResource;
 import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.readZipResourcesAsClassNodes;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.List;
 import org.apache.commons.lang3.reflect.MethodUtils;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 import org.junit.Test;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
 
 public final class SearchUtilsTest {
     private ClassNode classNode;
@@ -119,4 +130,37 @@ public final class SearchUtilsTest {
         assertEquals(1, reqStackCount);
     }
     
+    @Test
+    public void mustFindStringInConstantPool() throws IOException {
+        byte[] classData = readZipFromResource("NormalInvokeTest.zip").get("NormalInvokeTest.class");
+        ClassReader classReader = new ClassReader(classData);
+
+        assertTrue(constantPoolContains(classReader, "Lcom/offbynull/coroutines/user/Continuation;"));
+        assertTrue(constantPoolContains(classReader, "Continuation"));
+        assertFalse(constantPoolContains(classReader, "Lcom/offbynull/coroutines/user/Continuation;X"));
+    }
+
+    @Test
+    public void mustNotFindStringMissingFromConstantPool() throws IOException {
+        byte[] classData = readZipFromResource("SimpleStub.zip").get("SimpleStub.class");
+        ClassReader classReader = new ClassReader(classData);
+
+        assertFalse(constantPoolContains(classReader, "Lcom/offbynull/coroutines/user/Continuation;"));
+    }
+
+    @Test
+    public void mustEstimateCodeSize() {
+        LabelNode labelNode = new LabelNode();
+        InsnList insnList = new InsnList();
+        insnList.add(labelNode); // 0 bytes
+        insnList.add(new VarInsnNode(Opcodes.ALOAD, 0)); // 1 byte (ALOAD_0)
+        insnList.add(new VarInsnNode(Opcodes.ILOAD, 5)); // 2 bytes
+        insnList.add(new VarInsnNode(Opcodes.ILOAD, 300)); // 4 bytes (WIDE ILOAD)
+        insnList.add(new IntInsnNode(Opcodes.SIPUSH, 1000)); // 3 bytes
+        insnList.add(new MethodInsnNode(Opcodes.INVOKEINTERFACE, "java/util/List", "size", "()I", true)); // 5 bytes
+        insnList.add(new JumpInsnNode(Opcodes.GOTO, labelNode)); // 3 bytes
+        
+        assertEquals(18, estimateCodeSize(insnList));
+    }
+    
 }
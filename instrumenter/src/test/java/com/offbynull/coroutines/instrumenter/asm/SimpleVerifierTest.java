@@ -22,6 +22,7 @@ import java.util.LinkedList;
 import junit.framework.Assert;
 import org.apache.commons.lang3.reflect.ConstructorUtils;
 import org.apache.commons.lang3.reflect.MethodUtils;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.objectweb.asm.ClassReader;
@@ -56,6 +57,11 @@ public class SimpleVerifierTest {
         methodNode = classNode.methods.get(1); // stub should be here
     }
 
+    @After
+    public void tearDown() throws IOException {
+        classRepo.close();
+    }
+
     @Test
     public void testVertificationWithoutUsingClassLoader() throws Exception {
 
@@ -73,6 +73,19 @@ public final class VariableTableTest {
         assertTrue(var.isUsed());
     }
 
+    @Test
+    public void mustBeAbleToAccessParameterAfterWideParameter() {
+        // Augment stub method before testing
+        methodNode.desc = Type.getMethodDescriptor(Type.VOID_TYPE, Type.LONG_TYPE, Type.INT_TYPE);
+
+        VariableTable fixture = new VariableTable(classNode, methodNode);
+        Variable var = fixture.getArgument(2);
+
+        assertEquals(var.getType(), Type.INT_TYPE);
+        assertEquals(var.getIndex(), 3); // long before it takes up 2 slots
+        assertTrue(var.isUsed());
+    }
+
     @Test
     public void mustBeAbleToAcquireExtraVariable() {
         VariableTable fixture = new VariableTable(classNode, methodNode);
@@ -84,7 +97,7 @@ public final class VariableTableTest {
         
         Variable var2 = fixture.acquireExtra(Type.BOOLEAN_TYPE);
         assertEquals(var2.getType(), Type.BOOLEAN_TYPE);
-        assertEquals(var2.getIndex(), 2);
+        assertEquals(var2.getIndex(), 3); // long before it takes up 2 slots
         assertTrue(var2.isUsed());
     }
 
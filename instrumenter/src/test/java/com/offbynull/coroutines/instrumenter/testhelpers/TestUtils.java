@@ -16,6 +16,7 @@
  */
 package com.offbynull.coroutines.instrumenter.testhelpers;
 
+import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
 import com.offbynull.coroutines.instrumenter.Instrumenter;
 import com.offbynull.coroutines.instrumenter.asm.SimpleClassWriter;
 import com.offbynull.coroutines.instrumenter.asm.ClassInformationRepository;
@@ -66,7 +67,20 @@ public final class TestUtils {
      * @throws IOException if an IO error occurs
      */
     public static URLClassLoader loadClassesInZipResourceAndInstrument(String path) throws IOException {
+        return loadClassesInZipResourceAndInstrument(path, InstrumentationSettings.DEFAULT);
+    }
+    
+    /**
+     * Opens up a ZIP resource, instruments the classes within, and returns a {@link URLClassLoader} object with access to those classes.
+     * @param path path of zip resource
+     * @param settings instrumentation settings
+     * @return class loader able to access instrumented classes
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IOException if an IO error occurs
+     */
+    public static URLClassLoader loadClassesInZipResourceAndInstrument(String path, InstrumentationSettings settings) throws IOException {
         Validate.notNull(path);
+        Validate.notNull(settings);
         
         // Load original class
         Map<String, byte[]> classContents = readZipFromResource(path);
@@ -83,14 +97,15 @@ public final class TestUtils {
         classpath.add(originalJarFile);
         
         // Instrument classes and write out new jar
-        Instrumenter instrumenter = new Instrumenter(classpath);
         List<JarEntry> instrumentedJarEntries = new ArrayList<>(classContents.size());
-        for (Entry<String, byte[]> entry : classContents.entrySet()) {
-            byte[] content = entry.getValue();
-            if (entry.getKey().endsWith(".class")) {
-                content = instrumenter.instrument(content);
+        try (Instrumenter instrumenter = new Instrumenter(classpath, settings)) {
+            for (Entry<String, byte[]> entry : classContents.entrySet()) {
+                byte[] content = entry.getValue();
+                if (entry.getKey().endsWith(".class")) {
+                    content = instrumenter.instrument(content);
+                }
+                instrumentedJarEntries.add(new JarEntry(entry.getKey(), content));
             }
-            instrumentedJarEntries.add(new JarEntry(entry.getKey(), content));
         }
         File instrumentedJarFile = createJar(instrumentedJarEntries.toArray(new JarEntry[0]));
         
@@ -139,14 +154,14 @@ public final class TestUtils {
         Validate.notNull(classNodes);
         Validate.noNullElements(classNodes);
         
-        ClassInformationRepository infoRepo = ClassInformationRepository.create(getClasspath());
-        SimpleClassWriter cw = new SimpleClassWriter(SimpleClassWriter.COMPUTE_MAXS | SimpleClassWriter.COMPUTE_FRAMES, infoRepo);
-        
         JarEntry[] jarEntries = new JarEntry[classNodes.length];
-        for (int i = 0; i < jarEntries.length; i++) {
-            classNodes[i].accept(cw);
+        try (ClassInformationRepository infoRepo = ClassInformationRepository.create(getClasspath())) {
+            SimpleClassWriter cw = new SimpleClassWriter(SimpleClassWriter.COMPUTE_MAXS | SimpleClassWriter.COMPUTE_FRAMES, infoRepo);
+            for (int i = 0; i < jarEntries.length; i++) {
+                classNodes[i].accept(cw);
 
-            jarEntries[i] = new JarEntry(classNodes[i].name + ".class", cw.toByteArray());
+                jarEntries[i] = new JarEntry(classNodes[i].name + ".class", cw.toByteArray());
+            }
         }
         
         return createJarAndLoad(jarEntries);
@@ -228,13 +243,20 @@ public final class TestUtils {
                 .filter(x -> x.exists())
                 .collect(Collectors.toList());
 
+        List<File> bootClassPathFiles;
         String bootClasspath = System.getProperty("sun.boot.class.path");
-        Validate.validState(bootClasspath != null);
-        List<File> bootClassPathFiles = Arrays
-                .stream(bootClasspath.split(Pattern.quote(pathSeparator)))
-                .map(x -> new File(x))
-                .filter(x -> x.exists())
-                .collect(Collectors.toList());
+        if (bootClasspath != null) {
+            bootClassPathFiles = Arrays
+                    .stream(bootClasspath.split(Pattern.quote(pathSeparator)))
+                    .map(x -> new File(x))
+                    .filter(x -> x.exists())
+                    .collect(Collectors.toList());
+        } else {
+            // JDK 9+ has no boot classpath, JDK classes are in its module image instead
+            File moduleImage = new File(System.getProperty("java.home"), "lib/modules");
+            Validate.validState(moduleImage.isFile());
+            bootClassPathFiles = Arrays.asList(moduleImage);
+        }
 
         ArrayList<File> ret = new ArrayList<>();
         ret.addAll(classPathFiles);
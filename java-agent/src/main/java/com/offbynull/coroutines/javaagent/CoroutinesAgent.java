@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.javaagent;
+
+import com.offbynull.coroutines.instrumenter.FrameStorageMode;
+import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
+import com.offbynull.coroutines.instrumenter.UnwindMode;
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Java agent that instruments coroutines as they get loaded. Usage is as follows...
+ * <pre>
+ * java -javaagent:java-agent-shaded.jar[=&lt;options&gt;] ...
+ * </pre>
+ * Options are comma separated key-value pairs...
+ * <ul>
+ * <li>{@code cacheDirectory=<dir>} -- directory to cache instrumented classes in, so that later runs don't have to instrument them
+ * again (not cached if not set)</li>
+ * <li>{@code frameStorageMode=<mode>} -- see {@link FrameStorageMode} (defaults to {@link FrameStorageMode#METHOD_STATE})</li>
+ * <li>{@code loopPreemption=<true|false>} -- add preemption points to loops (defaults to {@code false})</li>
+ * <li>{@code outliningThreshold=<bytes>} -- see {@link InstrumentationSettings#getOutliningThreshold()} (defaults to
+ * {@link InstrumentationSettings#DEFAULT_OUTLINING_THRESHOLD})</li>
+ * <li>{@code stateMachineLowering=<true|false>} -- see {@link InstrumentationSettings#isStateMachineLowering()} (defaults to
+ * {@code false})</li>
+ * <li>{@code unwindMode=<mode>} -- see {@link UnwindMode} (defaults to {@link UnwindMode#RETURN})</li>
+ * </ul>
+ * For example, {@code -javaagent:java-agent-shaded.jar=cacheDirectory=/tmp/coroutines,loopPreemption=true}.
+ * @author Kasra Faghihi
+ */
+public final class CoroutinesAgent {
+
+    private CoroutinesAgent() {
+        // do nothing
+    }
+
+    /**
+     * Entry point when the agent is loaded at JVM startup.
+     * @param agentArgs agent options (may be {@code null})
+     * @param inst instrumentation
+     * @throws NullPointerException if {@code inst} is {@code null}
+     * @throws IllegalArgumentException if {@code agentArgs} is malformed
+     */
+    public static void premain(String agentArgs, Instrumentation inst) {
+        Validate.notNull(inst);
+        
+        File cacheDirectory = null;
+        FrameStorageMode frameStorageMode = FrameStorageMode.METHOD_STATE;
+        boolean loopPreemption = false;
+        int outliningThreshold = InstrumentationSettings.DEFAULT_OUTLINING_THRESHOLD;
+        boolean stateMachineLowering = false;
+        UnwindMode unwindMode = UnwindMode.RETURN;
+        
+        if (agentArgs != null) {
+            for (String option : agentArgs.split(",")) {
+                if (option.trim().isEmpty()) {
+                    continue;
+                }
+                
+                int splitIdx = option.indexOf('=');
+                Validate.isTrue(splitIdx != -1, "Option not in key=value form: %s", option);
+                String key = option.substring(0, splitIdx).trim();
+                String value = option.substring(splitIdx + 1).trim();
+                switch (key) {
+                    case "cacheDirectory":
+                        cacheDirectory = new File(value);
+                        break;
+                    case "frameStorageMode":
+                        frameStorageMode = FrameStorageMode.valueOf(value);
+                        break;
+                    case "loopPreemption":
+                        loopPreemption = Boolean.parseBoolean(value);
+                        break;
+                    case "outliningThreshold":
+                        outliningThreshold = Integer.parseInt(value);
+                        break;
+                    case "stateMachineLowering":
+                        stateMachineLowering = Boolean.parseBoolean(value);
+                        break;
+                    case "unwindMode":
+                        unwindMode = UnwindMode.valueOf(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unrecognized option: " + key);
+                }
+            }
+        }
+        
+        InstrumentationSettings settings = new InstrumentationSettings(frameStorageMode, loopPreemption, outliningThreshold,
+                stateMachineLowering, unwindMode);
+        RuntimeInstrumenter instrumenter = new RuntimeInstrumenter(settings, cacheDirectory, () -> inst.getAllLoadedClasses());
+        inst.addTransformer(new InstrumentingClassFileTransformer(instrumenter));
+    }
+
+    /**
+     * Entry point when the agent is loaded after JVM startup. Classes that have already been loaded won't be instrumented.
+     * @param agentArgs agent options (may be {@code null})
+     * @param inst instrumentation
+     * @throws NullPointerException if {@code inst} is {@code null}
+     * @throws IllegalArgumentException if {@code agentArgs} is malformed
+     */
+    public static void agentmain(String agentArgs, Instrumentation inst) {
+        premain(agentArgs, inst);
+    }
+}
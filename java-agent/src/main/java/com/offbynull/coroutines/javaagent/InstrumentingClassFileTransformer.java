@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.javaagent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * {@link ClassFileTransformer} that instruments classes through a {@link RuntimeInstrumenter}.
+ * <p>
+ * Classes loaded by the bootstrap class loader are never touched. If a class fails to be instrumented, the error is written to
+ * {@link System#err} and the class gets loaded as-is.
+ * @author Kasra Faghihi
+ */
+final class InstrumentingClassFileTransformer implements ClassFileTransformer {
+
+    // Loading classes needed by the instrumenter will cause this transformer to be called recursively, those calls need to be ignored
+    private static final ThreadLocal<Boolean> TRANSFORMING = new ThreadLocal<>();
+
+    private final RuntimeInstrumenter instrumenter;
+
+    InstrumentingClassFileTransformer(RuntimeInstrumenter instrumenter) {
+        Validate.notNull(instrumenter);
+        this.instrumenter = instrumenter;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+            byte[] classfileBuffer) {
+        if (loader == null || classBeingRedefined != null || classfileBuffer == null || TRANSFORMING.get() != null) {
+            return null;
+        }
+
+        TRANSFORMING.set(Boolean.TRUE);
+        try {
+            byte[] output = instrumenter.instrument(loader, classfileBuffer);
+            return output == classfileBuffer ? null : output; // null means no change
+        } catch (Exception e) {
+            System.err.println("Unable to instrument " + className);
+            e.printStackTrace();
+            return null;
+        } finally {
+            TRANSFORMING.remove();
+        }
+    }
+}
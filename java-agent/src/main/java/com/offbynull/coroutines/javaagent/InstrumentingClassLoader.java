@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.javaagent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.security.CodeSource;
+import java.security.cert.Certificate;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * {@link URLClassLoader} that instruments the classes it loads through a {@link RuntimeInstrumenter}. Delegates to its parent first,
+ * like a normal {@link URLClassLoader}, so only classes that come from this class loader's URLs get instrumented. Resources aren't
+ * affected ({@link #getResource(java.lang.String) } on a class file returns the class as it was before instrumentation).
+ * <p>
+ * Use this to load coroutines at runtime (e.g. plugins) without having to instrument them at build time or run a Java agent.
+ * @author Kasra Faghihi
+ */
+public final class InstrumentingClassLoader extends URLClassLoader {
+    
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final RuntimeInstrumenter instrumenter;
+
+    /**
+     * Constructs a {@link InstrumentingClassLoader} object.
+     * @param urls URLs to load classes and resources from
+     * @param parent parent class loader
+     * @param instrumenter instrumenter (can be shared between multiple class loaders)
+     * @throws NullPointerException if {@code urls} or {@code instrumenter} is {@code null}, or if {@code urls} contains {@code null}
+     */
+    public InstrumentingClassLoader(URL[] urls, ClassLoader parent, RuntimeInstrumenter instrumenter) {
+        super(Validate.noNullElements(urls), parent);
+        Validate.notNull(instrumenter);
+        this.instrumenter = instrumenter;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        String path = name.replace('.', '/') + ".class";
+        URL url = findResource(path);
+        if (url == null) {
+            throw new ClassNotFoundException(name);
+        }
+
+        byte[] output;
+        URL codeSourceUrl;
+        try {
+            URLConnection connection = url.openConnection();
+            byte[] input;
+            try (InputStream is = connection.getInputStream()) {
+                input = IOUtils.toByteArray(is);
+            }
+            output = instrumenter.instrument(this, input);
+            codeSourceUrl = getCodeSourceUrl(connection, url, path);
+        } catch (IOException | RuntimeException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+
+        int packageSplitIdx = name.lastIndexOf('.');
+        if (packageSplitIdx != -1) {
+            String packageName = name.substring(0, packageSplitIdx);
+            if (getPackage(packageName) == null) {
+                try {
+                    definePackage(packageName, null, null, null, null, null, null, null);
+                } catch (IllegalArgumentException iae) {
+                    // defined by another thread in the mean time, ignore
+                }
+            }
+        }
+
+        CodeSource codeSource = new CodeSource(codeSourceUrl, (Certificate[]) null);
+        return defineClass(name, output, 0, output.length, codeSource);
+    }
+
+    private static URL getCodeSourceUrl(URLConnection connection, URL url, String path) throws MalformedURLException {
+        if (connection instanceof JarURLConnection) {
+            return ((JarURLConnection) connection).getJarFileURL();
+        }
+
+        String urlStr = url.toString();
+        return urlStr.endsWith(path) ? new URL(urlStr.substring(0, urlStr.length() - path.length())) : url;
+    }
+}
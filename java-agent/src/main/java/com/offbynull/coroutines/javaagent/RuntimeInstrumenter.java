@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.javaagent;
+
+import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.constantPoolContains;
+import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
+import com.offbynull.coroutines.instrumenter.Instrumenter;
+import com.offbynull.coroutines.instrumenter.asm.ClassInformation;
+import com.offbynull.coroutines.instrumenter.asm.ClassInformationRepository;
+import com.offbynull.coroutines.user.Continuation;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.Validate;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Instruments classes as they get loaded at runtime.
+ * <p>
+ * Nothing gets set up until the first class that needs to be instrumented comes along. Most classes never reference
+ * {@link Continuation}, and those are passed through without doing anything else. For the classes that do, the class hierarchy
+ * information needed by the instrumenter is gathered lazily:
+ * <ul>
+ * <li>The runtime classpath (the {@code java.class.path} and {@code sun.boot.class.path} system properties, or the JDK's module image on
+ * JDK 9+) is indexed when the first class gets instrumented.</li>
+ * <li>The classpath of any {@link URLClassLoader} that a class gets loaded through is indexed the first time that class loader is
+ * encountered.</li>
+ * <li>Classes that have already been loaded (supplied by the caller) are added when the first class gets instrumented, and every class
+ * passed in to {@link #instrument(java.lang.ClassLoader, byte[]) } after that gets added as well.</li>
+ * </ul>
+ * <p>
+ * If a cache directory is given, instrumented classes get written to it, keyed by a hash of the class before instrumentation. When the
+ * same class comes along again (e.g. the next time the JVM starts), the instrumented class is read back from the cache instead of
+ * being instrumented again. Cache files are never modified once written, so a cache directory can be shared between JVMs running at the
+ * same time. Cache files are kept in a sub-directory specific to the instrumentation settings and the instrumenter JAR being used, so
+ * changing either means everything gets instrumented from scratch.
+ * <p>
+ * This class is thread-safe.
+ * @author Kasra Faghihi
+ */
+public final class RuntimeInstrumenter {
+    private static final String CONTINUATION_DESCRIPTOR = Type.getDescriptor(Continuation.class);
+    private static final String UNCHANGED_SUFFIX = ".unchanged";
+    private static final String CHANGED_SUFFIX = ".class";
+
+    private final InstrumentationSettings settings;
+    private final File cacheDirectory; // null if not caching
+    private final Supplier<Class<?>[]> loadedClassesSupplier;
+    
+    private final Set<ClassLoader> indexedClassLoaders = Collections.newSetFromMap(new WeakHashMap<>()); // synchronize on this
+    private volatile ClassInformationRepository classRepo; // created lazily
+    private volatile Instrumenter instrumenter; // created lazily
+
+    /**
+     * Constructs a {@link RuntimeInstrumenter} object.
+     * @param settings instrumentation settings
+     * @param cacheDirectory directory to cache instrumented classes in (created if it doesn't exist), or {@code null} to not cache
+     * @param loadedClassesSupplier supplies classes that have already been loaded (called once, when the first class gets instrumented)
+     * @throws NullPointerException if {@code settings} or {@code loadedClassesSupplier} is {@code null}
+     */
+    public RuntimeInstrumenter(InstrumentationSettings settings, File cacheDirectory, Supplier<Class<?>[]> loadedClassesSupplier) {
+        Validate.notNull(settings);
+        Validate.notNull(loadedClassesSupplier);
+        this.settings = settings;
+        this.cacheDirectory = cacheDirectory == null ? null : new File(cacheDirectory, hash(getCacheKey(settings)));
+        this.loadedClassesSupplier = loadedClassesSupplier;
+    }
+
+    /**
+     * Instruments a class.
+     * @param classLoader class loader that's loading the class (used to find classes that the class depends on), or {@code null} for the
+     * bootstrap class loader
+     * @param input class file contents
+     * @return instrumented class, or {@code input} itself if the class didn't need to be instrumented
+     * @throws NullPointerException if {@code input} is {@code null}
+     * @throws IllegalArgumentException if the class could not be instrumented for some reason
+     * @throws IOException if an IO error occurs
+     */
+    public byte[] instrument(ClassLoader classLoader, byte[] input) throws IOException {
+        Validate.notNull(input);
+        Validate.isTrue(input.length > 0);
+
+        ClassReader classReader = new ClassReader(input);
+        recordClass(classReader);
+        
+        // Same check as the one Instrumenter does. Done here as well to avoid hashing/caching classes that are obviously not coroutines.
+        if (!constantPoolContains(classReader, CONTINUATION_DESCRIPTOR)) {
+            return input;
+        }
+
+        String key = null;
+        if (cacheDirectory != null) {
+            key = hash(input);
+            if (new File(cacheDirectory, key + UNCHANGED_SUFFIX).isFile()) {
+                return input;
+            }
+            File cachedFile = new File(cacheDirectory, key + CHANGED_SUFFIX);
+            if (cachedFile.isFile()) {
+                return FileUtils.readFileToByteArray(cachedFile);
+            }
+        }
+        
+        Instrumenter currentInstrumenter = getInstrumenter();
+        recordClass(classReader); // in case this is the class that triggered setup
+        indexClassLoader(classLoader);
+        byte[] output = currentInstrumenter.instrument(input);
+        
+        if (cacheDirectory != null) {
+            if (output == input) {
+                writeCacheFile(new File(cacheDirectory, key + UNCHANGED_SUFFIX), new byte[0]);
+            } else {
+                writeCacheFile(new File(cacheDirectory, key + CHANGED_SUFFIX), output);
+            }
+        }
+        
+        return output;
+    }
+    
+    private Instrumenter getInstrumenter() throws IOException {
+        Instrumenter ret = instrumenter;
+        if (ret != null) {
+            return ret;
+        }
+        
+        synchronized (this) {
+            if (instrumenter == null) {
+                ClassInformationRepository newClassRepo = ClassInformationRepository.create(getRuntimeClasspath());
+                for (Class<?> cls : loadedClassesSupplier.get()) {
+                    recordClass(newClassRepo, cls);
+                }
+                classRepo = newClassRepo;
+                instrumenter = new Instrumenter(newClassRepo, settings);
+            }
+            return instrumenter;
+        }
+    }
+    
+    private void indexClassLoader(ClassLoader classLoader) throws IOException {
+        ClassInformationRepository repo = classRepo;
+
+        // Walk up the class loader hierarchy, adding the classpaths of any URLClassLoaders that haven't been seen yet
+        ClassLoader current = classLoader;
+        while (current != null) {
+            if (current instanceof URLClassLoader) {
+                boolean added;
+                synchronized (indexedClassLoaders) {
+                    added = indexedClassLoaders.add(current);
+                }
+                if (added) {
+                    repo.addClasspath(toFiles(((URLClassLoader) current).getURLs()));
+                }
+            }
+            current = current.getParent();
+        }
+    }
+    
+    private void recordClass(ClassReader classReader) {
+        ClassInformationRepository repo = classRepo;
+        if (repo == null) {
+            // Not set up yet -- classes that are being loaded right now will be picked up as loaded classes once it is
+            return;
+        }
+        
+        boolean interfaceMarker = (classReader.getAccess() & Opcodes.ACC_INTERFACE) != 0;
+        ClassInformation classInformation = new ClassInformation(classReader.getSuperName(), Arrays.asList(classReader.getInterfaces()),
+                interfaceMarker);
+        repo.addIndividualIfAbsent(classReader.getClassName(), classInformation);
+    }
+    
+    private static void recordClass(ClassInformationRepository repo, Class<?> cls) {
+        if (cls.isArray() || cls.isPrimitive()) {
+            return;
+        }
+        
+        Class<?> superClass = cls.getSuperclass();
+        String superClassName = superClass == null ? null : Type.getInternalName(superClass);
+        List<String> interfaces = new ArrayList<>();
+        for (Class<?> interfaceCls : cls.getInterfaces()) {
+            interfaces.add(Type.getInternalName(interfaceCls));
+        }
+        
+        repo.addIndividualIfAbsent(Type.getInternalName(cls), new ClassInformation(superClassName, interfaces, cls.isInterface()));
+    }
+
+    private static List<File> getRuntimeClasspath() {
+        List<File> ret = new ArrayList<>();
+        for (String property : new String[] {"java.class.path", "sun.boot.class.path"}) {
+            String value = System.getProperty(property);
+            if (value == null) {
+                continue;
+            }
+            for (String path : value.split(Pattern.quote(File.pathSeparator))) {
+                File file = new File(path);
+                if (!path.isEmpty() && file.exists()) {
+                    ret.add(file);
+                }
+            }
+        }
+        
+        File moduleImage = new File(System.getProperty("java.home"), "lib/modules"); // JDK 9+ has no boot classpath
+        if (System.getProperty("sun.boot.class.path") == null && moduleImage.isFile()) {
+            ret.add(moduleImage);
+        }
+        return ret;
+    }
+    
+    private static List<File> toFiles(URL[] urls) {
+        List<File> ret = new ArrayList<>();
+        for (URL url : urls) {
+            if (!"file".equals(url.getProtocol())) {
+                continue; // can't index remote classpaths
+            }
+            
+            try {
+                File file = new File(url.toURI());
+                if (file.exists()) {
+                    ret.add(file);
+                }
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // not a valid file URL, skip it
+            }
+        }
+        return ret;
+    }
+
+    private static void writeCacheFile(File cacheFile, byte[] data) throws IOException {
+        File directory = cacheFile.getParentFile();
+        Files.createDirectories(directory.toPath());
+        
+        // Write to a temp file and move it in to place, so that other JVMs never see a partially written cache file
+        File tempFile = File.createTempFile("cache", ".tmp", directory);
+        try {
+            FileUtils.writeByteArrayToFile(tempFile, data);
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+    
+    private static String getCacheKey(InstrumentationSettings settings) {
+        // Identify the instrumenter by the JAR/folder it was loaded from, so that rebuilding it (e.g. a new SNAPSHOT) invalidates the cache
+        String location = "";
+        try {
+            CodeSource codeSource = Instrumenter.class.getProtectionDomain().getCodeSource();
+            if (codeSource != null && codeSource.getLocation() != null) {
+                File file = new File(codeSource.getLocation().toURI());
+                location = file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified();
+            }
+        } catch (URISyntaxException | IllegalArgumentException | SecurityException e) {
+            // location unknown, key on settings alone
+        }
+        return settings.toString() + '|' + location;
+    }
+    
+    private static String hash(String key) {
+        return hash(key.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xFF));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae); // should never happen, SHA-1 is required to be present
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.javaagent;
+
+import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
+import com.offbynull.coroutines.user.Coroutine;
+import com.offbynull.coroutines.user.CoroutineRunner;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class InstrumentingClassLoaderTest {
+    
+    private File classDir;
+    private File cacheDir;
+    
+    @Before
+    public void setUp() throws Exception {
+        classDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+        cacheDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(classDir);
+        FileUtils.deleteDirectory(cacheDir);
+    }
+
+    @Test
+    public void mustInstrumentLoadedClassesAndCacheThem() throws Exception {
+        byte[] input = readZipFromResource("NormalInvokeTest.zip").get("NormalInvokeTest.class");
+        FileUtils.writeByteArrayToFile(new File(classDir, "NormalInvokeTest.class"), input);
+        
+        RuntimeInstrumenter instrumenter = new RuntimeInstrumenter(InstrumentationSettings.DEFAULT, cacheDir, () -> new Class<?>[0]);
+        try (InstrumentingClassLoader classLoader = new InstrumentingClassLoader(new URL[] { classDir.toURI().toURL() },
+                getClass().getClassLoader(), instrumenter)) {
+            StringBuilder builder = new StringBuilder();
+            Class<?> cls = classLoader.loadClass("NormalInvokeTest");
+            Coroutine coroutine = (Coroutine) cls.getConstructor(StringBuilder.class).newInstance(builder);
+            
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            int suspendCount = 0;
+            while (runner.execute()) {
+                suspendCount++;
+            }
+            
+            Assert.assertEquals(10, suspendCount);
+            Assert.assertEquals(classDir.toURI().toURL(), cls.getProtectionDomain().getCodeSource().getLocation());
+        }
+        
+        // Instrumented class should now be cached, and a new instrumenter using the same directory should return the cached copy
+        Collection<File> cacheFiles = FileUtils.listFiles(cacheDir, new String[] {"class"}, true);
+        Assert.assertEquals(1, cacheFiles.size());
+        byte[] cached = FileUtils.readFileToByteArray(cacheFiles.iterator().next());
+        
+        RuntimeInstrumenter warmInstrumenter = new RuntimeInstrumenter(InstrumentationSettings.DEFAULT, cacheDir, () -> {
+            throw new IllegalStateException(); // instrumenter should never be set up, everything should come from the cache
+        });
+        Assert.assertArrayEquals(cached, warmInstrumenter.instrument(getClass().getClassLoader(), input));
+    }
+
+    @Test
+    public void mustPassThroughClassesThatDontNeedInstrumentation() throws Exception {
+        byte[] input = readZipFromResource("SimpleStub.zip").get("SimpleStub.class");
+        
+        RuntimeInstrumenter instrumenter = new RuntimeInstrumenter(InstrumentationSettings.DEFAULT, cacheDir, () -> {
+            throw new IllegalStateException(); // instrumenter should never be set up
+        });
+        Assert.assertSame(input, instrumenter.instrument(getClass().getClassLoader(), input));
+        Assert.assertTrue(FileUtils.listFiles(cacheDir, null, true).isEmpty());
+    }
+    
+    private static Map<String, byte[]> readZipFromResource(String path) throws IOException {
+        URL url = ClassLoader.getSystemClassLoader().getResource(path);
+        Assert.assertNotNull(url);
+        
+        Map<String, byte[]> ret = new HashMap<>();
+        try (InputStream is = url.openStream();
+                ZipArchiveInputStream zais = new ZipArchiveInputStream(is)) {
+            ZipArchiveEntry entry;
+            while ((entry = zais.getNextZipEntry()) != null) {
+                ret.put(entry.getName(), IOUtils.toByteArray(zais));
+            }
+        }
+        return ret;
+    }
+}
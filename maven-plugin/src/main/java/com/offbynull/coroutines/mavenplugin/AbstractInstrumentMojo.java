@@ -16,9 +16,20 @@
  */
 package com.offbynull.coroutines.mavenplugin;
 
+import com.offbynull.coroutines.instrumenter.CallGraph;
+import com.offbynull.coroutines.instrumenter.FrameStorageMode;
+import com.offbynull.coroutines.instrumenter.IncrementalState;
+import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
 import com.offbynull.coroutines.instrumenter.Instrumenter;
+import com.offbynull.coroutines.instrumenter.UnwindMode;
+import com.offbynull.coroutines.instrumenter.asm.ClassInformationRepository;
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import org.apache.commons.io.FileUtils;
 import org.apache.maven.plugin.AbstractMojo;
@@ -39,35 +50,160 @@ public abstract class AbstractInstrumentMojo extends AbstractMojo {
     @Parameter(defaultValue = "${java.home}/lib", required = true)
     private String jdkLibsDirectory;
 
+    @Parameter(defaultValue = "METHOD_STATE", required = true)
+    private FrameStorageMode frameStorageMode = FrameStorageMode.METHOD_STATE;
+
+    @Parameter(defaultValue = "false", required = true)
+    private boolean loopPreemption;
+
+    @Parameter(defaultValue = "325", required = true)
+    private int outliningThreshold = InstrumentationSettings.DEFAULT_OUTLINING_THRESHOLD;
+
+    @Parameter(defaultValue = "false", required = true)
+    private boolean stateMachineLowering;
+
+    @Parameter(defaultValue = "RETURN", required = true)
+    private UnwindMode unwindMode = UnwindMode.RETURN;
+
+    @Parameter
+    private File classInformationCacheDirectory;
+
+    @Parameter(defaultValue = "1", required = true)
+    private int parallelism = 1;
+
+    @Parameter(defaultValue = "true", required = true)
+    private boolean incremental = true;
+
+    @Parameter(defaultValue = "false", required = true)
+    private boolean callGraphAnalysis;
+
     /**
-     * Instruments all classes in a path recursively.
+     * Instruments all classes in a path recursively. If incremental instrumentation is turned on, classes that haven't changed since the
+     * last time this path was instrumented are skipped.
      * @param log maven logger
-     * @param instrumenter coroutine instrumenter
+     * @param classpath classpath for classes being instrumented
      * @param path directory containing files to instrument
+     * @param name name to keep incremental state under (must be different for each path instrumented by the project)
      * @throws MojoExecutionException if any exception occurs
      */
-    protected final void instrumentPath(Log log, Instrumenter instrumenter, File path) throws MojoExecutionException {
+    protected final void instrumentPath(Log log, List<String> classpath, File path, String name) throws MojoExecutionException {
+        if (parallelism < 1) {
+            throw new MojoExecutionException("Parallelism must be at least 1: " + parallelism);
+        }
+        if (outliningThreshold < 0) {
+            throw new MojoExecutionException("Outlining threshold must not be negative: " + outliningThreshold);
+        }
+        if (callGraphAnalysis && !incremental) {
+            // Classes are instrumented in place. Without the originals that incremental instrumentation keeps around, classes that were
+            // instrumented by an earlier build can't be instrumented again if the call graph changes.
+            throw new MojoExecutionException("Call graph analysis requires incremental instrumentation");
+        }
+
+        List<File> classpathFiles = getClasspathFiles(log, classpath);
+        InstrumentationSettings settings = new InstrumentationSettings(frameStorageMode, loopPreemption, outliningThreshold,
+                stateMachineLowering, unwindMode);
+
+        List<String> relativePaths = FileUtils.listFiles(path, new String[]{"class"}, true).stream()
+                .map(x -> path.toPath().relativize(x.toPath()).toString().replace(File.separatorChar, '/'))
+                .collect(Collectors.toList());
+
+        IncrementalState incrementalState = null;
         try {
-            for (File classFile : FileUtils.listFiles(path, new String[]{"class"}, true)) {
-                log.info("Instrumenting " + classFile);
-                byte[] input = FileUtils.readFileToByteArray(classFile);
-                byte[] output = instrumenter.instrument(input);
-                log.debug("File size changed from " + input.length + " to " + output.length);
-                FileUtils.writeByteArrayToFile(classFile, output);
+            List<String> pathsToInstrument = relativePaths;
+            if (incremental) {
+                File stateDirectory = new File(project.getBuild().getDirectory(), "coroutines-incremental/" + name);
+                incrementalState = IncrementalState.load(stateDirectory, path, path, classpathFiles, settings);
+                pathsToInstrument = incrementalState.findPathsToInstrument(relativePaths, callGraphAnalysis);
+                log.info(pathsToInstrument.size() + " of " + relativePaths.size() + " class files need to be instrumented");
             }
+
+            if (!pathsToInstrument.isEmpty()) {
+                // Closing only closes the files this execution had open, the shared JARs stay usable by other executions
+                try (ClassInformationRepository classRepo = createClassInformationRepository(log, classpathFiles)) {
+                    Instrumenter instrumenter = new Instrumenter(classRepo, settings);
+                    CallGraph callGraph = null;
+                    if (callGraphAnalysis) {
+                        callGraph = buildCallGraph(log, incrementalState, pathsToInstrument, settings);
+                    }
+                    instrumentFiles(log, instrumenter, callGraph, incrementalState, path, pathsToInstrument);
+                }
+            }
+        } catch (ExecutionException ee) {
+            throw new MojoExecutionException("Unable to instrument", ee.getCause());
+        } catch (MojoExecutionException mee) {
+            throw mee;
         } catch (Exception ex) {
-            throw new MojoExecutionException("Unable to get compile classpath elements", ex);
+            throw new MojoExecutionException("Unable to instrument", ex);
+        } finally {
+            // Even if instrumentation failed, save what did get instrumented
+            if (incrementalState != null) {
+                try {
+                    incrementalState.save();
+                } catch (IOException ioe) {
+                    log.warn("Unable to save incremental state", ioe);
+                }
+            }
         }
     }
 
-    /**
-     * Creates an {@link Instrumenter} instance.
-     * @param log maven logger
-     * @param classpath classpath for classes being instrumented
-     * @return a new {@link Instrumenter}
-     * @throws MojoExecutionException if any exception occurs
-     */
-    protected final Instrumenter getInstrumenter(Log log, List<String> classpath) throws MojoExecutionException {
+    private CallGraph buildCallGraph(Log log, IncrementalState incrementalState, List<String> relativePaths,
+            InstrumentationSettings settings) throws IOException {
+        // If anything changed, incremental state hands back every path (see IncrementalState.findPathsToInstrument()), so these are all
+        // the classes in the batch
+        log.info("Building call graph of " + relativePaths.size() + " class files...");
+        CallGraph.Builder callGraphBuilder = new CallGraph.Builder(settings);
+        for (String relativePath : relativePaths) {
+            callGraphBuilder.addClass(incrementalState.readInput(relativePath));
+        }
+        CallGraph callGraph = callGraphBuilder.build();
+        log.info(callGraph.getNonSuspendingMethodCount() + " methods proven to never suspend");
+        return callGraph;
+    }
+
+    private void instrumentFiles(Log log, Instrumenter instrumenter, CallGraph callGraph, IncrementalState incrementalState, File path,
+            List<String> relativePaths) throws Exception {
+        if (parallelism == 1) {
+            for (String relativePath : relativePaths) {
+                instrumentFile(log, instrumenter, callGraph, incrementalState, path, relativePath);
+            }
+            return;
+        }
+
+        // Each file is read, instrumented, and written by a single task -- only files currently being worked on are held in memory
+        List<Callable<Void>> tasks = relativePaths.stream()
+                .map(x -> (Callable<Void>) () -> {
+                    instrumentFile(log, instrumenter, callGraph, incrementalState, path, x);
+                    return null;
+                })
+                .collect(Collectors.toList());
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void instrumentFile(Log log, Instrumenter instrumenter, CallGraph callGraph, IncrementalState incrementalState, File path,
+            String relativePath) throws IOException {
+        File classFile = new File(path, relativePath);
+        log.info("Instrumenting " + classFile);
+        byte[] input = incrementalState != null ? incrementalState.readInput(relativePath) : FileUtils.readFileToByteArray(classFile);
+        byte[] output = callGraph != null ? instrumenter.instrument(input, callGraph) : instrumenter.instrument(input);
+        log.debug("File size changed from " + input.length + " to " + output.length);
+        // Instrumenter hands back the input array when there's nothing to instrument -- the class file is already what it should be, so
+        // don't bother rewriting it (an original kept for incremental instrumentation always gets changed, so it never ends up here)
+        if (output != input) {
+            FileUtils.writeByteArrayToFile(classFile, output);
+        }
+        if (incrementalState != null) {
+            incrementalState.record(relativePath, input, output);
+        }
+    }
+
+    private List<File> getClasspathFiles(Log log, List<String> classpath) throws MojoExecutionException {
         List<File> classpathFiles;
         try {
             log.debug("Getting compile classpath");
@@ -75,16 +211,30 @@ public abstract class AbstractInstrumentMojo extends AbstractMojo {
                     .stream().map(x -> new File(x)).collect(Collectors.toList());
             log.debug("Getting bootstrap classpath");
             classpathFiles.addAll(FileUtils.listFiles(new File(jdkLibsDirectory), new String[]{"jar"}, true));
+            File moduleImage = new File(jdkLibsDirectory, "modules"); // JDK 9+ has classes in a module image instead of JARs
+            if (moduleImage.isFile()) {
+                classpathFiles.add(moduleImage);
+            }
 
             log.info("Classpath for instrumentation is as follows: " + classpathFiles);
         } catch (Exception ex) {
             throw new MojoExecutionException("Unable to get compile classpath elements", ex);
         }
+        return classpathFiles;
+    }
 
-        log.info("Creating instrumenter...");
+    private ClassInformationRepository createClassInformationRepository(Log log, List<File> classpathFiles)
+            throws MojoExecutionException {
+        log.info("Creating instrumenter (frame storage mode is " + frameStorageMode + ", loop preemption is " + loopPreemption
+                + ", outlining threshold is " + outliningThreshold + ", state machine lowering is " + stateMachineLowering
+                + ", unwind mode is " + unwindMode + ", call graph analysis is " + callGraphAnalysis + ")...");
 
         try {
-            return new Instrumenter(classpathFiles);
+            if (classInformationCacheDirectory != null) {
+                log.info("Using class information cache at " + classInformationCacheDirectory);
+            }
+            // JARs already indexed by other modules in this build (or by the other mojo in this module) get reused
+            return SharedClassInformationRepositories.create(classpathFiles, classInformationCacheDirectory);
         } catch (Exception ex) {
             throw new MojoExecutionException("Unable to create instrumenter", ex);
         }
@@ -16,7 +16,6 @@
  */
 package com.offbynull.coroutines.mavenplugin;
 
-import com.offbynull.coroutines.instrumenter.Instrumenter;
 import java.io.File;
 import java.util.List;
 import org.apache.maven.artifact.DependencyResolutionRequiredException;
@@ -74,8 +73,7 @@ public final class MainInstrumentMojo extends AbstractInstrumentMojo {
             throw new MojoExecutionException("Dependency resolution problem", ex);
         }
         
-        Instrumenter instrumenter = getInstrumenter(log, classpath);
         log.info("Processing main output folder ... ");
-        instrumentPath(log, instrumenter, mainOutputFolder);
+        instrumentPath(log, classpath, mainOutputFolder, "main");
     }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.mavenplugin;
+
+import com.offbynull.coroutines.instrumenter.asm.ClassInformationRepository;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Class information repositories for JARs, shared by every mojo execution in the same JVM. In a multi-module build, the JDK's JARs and
+ * most dependency JARs are on the classpath of every module, so each one only gets indexed by the first module that needs it. A JAR
+ * that changes during the build (e.g. a module's own packaged output) has a different size or last modified time, so it gets indexed
+ * again and its new repository replaces the old one. Only the latest version of each JAR is held on to, so long-lived JVMs (e.g. an
+ * embedded Maven running build after build) don't keep every version of a rebuilt JAR around. Folders are never shared, since they're
+ * typically output folders that change as the build runs.
+ * <p>
+ * Each mojo execution closes the repository it created once it's done with it, which closes the shared JARs it had open. Closing doesn't
+ * stop a repository from being used (JARs get opened again if more classes need to be read out of them), so executions running at the
+ * same time aren't affected. This way, JARs aren't held open between executions, where they'd otherwise stay locked on Windows and
+ * couldn't be rebuilt by later modules in the build.
+ * <p>
+ * This class is thread-safe.
+ * @author Kasra Faghihi
+ */
+final class SharedClassInformationRepositories {
+    
+    private static final Map<String, JarRepository> JAR_REPOS = new ConcurrentHashMap<>(); // keyed by JAR path and cache directory
+
+    private SharedClassInformationRepositories() {
+        // do nothing
+    }
+
+    /**
+     * Creates a {@link ClassInformationRepository} for a classpath. The returned repository is layered on top of a repository for each
+     * element of the classpath, in classpath order. Repositories for JARs are shared, repositories for folders are not.
+     * @param classpath classpath
+     * @param cacheDirectory class information cache directory to use when indexing JARs, or {@code null} to not cache
+     * @return repository for {@code classpath}
+     * @throws NullPointerException if {@code classpath} is {@code null} or contains {@code null} elements
+     * @throws IOException if an IO error occurs
+     */
+    static ClassInformationRepository create(List<File> classpath, File cacheDirectory) throws IOException {
+        Validate.notNull(classpath);
+        Validate.noNullElements(classpath);
+        
+        List<ClassInformationRepository> layers = new ArrayList<>(classpath.size());
+        for (File classpathElement : classpath) {
+            if (classpathElement.isFile()) {
+                layers.add(getJarRepository(classpathElement, cacheDirectory));
+            } else {
+                layers.add(createRepository(classpathElement, cacheDirectory));
+            }
+        }
+        return ClassInformationRepository.layer(layers);
+    }
+
+    private static ClassInformationRepository getJarRepository(File jar, File cacheDirectory) throws IOException {
+        String key = jar.getCanonicalPath() + '|' + (cacheDirectory == null ? "" : cacheDirectory.getCanonicalPath());
+        long length = jar.length();
+        long lastModified = jar.lastModified();
+        try {
+            return JAR_REPOS.compute(key, (k, existing) -> {
+                if (existing != null && existing.length == length && existing.lastModified == lastModified) {
+                    return existing;
+                }
+                
+                // Either the JAR hasn't been seen before or it changed since it was last indexed. In the latter case, the repository for
+                // the old version gets dropped here and the JAR it has open gets closed (mojos still using it can keep doing so).
+                try {
+                    if (existing != null) {
+                        existing.repository.close();
+                    }
+                    return new JarRepository(length, lastModified, createRepository(jar, cacheDirectory));
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }).repository;
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }
+
+    private static ClassInformationRepository createRepository(File classpathElement, File cacheDirectory) throws IOException {
+        List<File> classpath = Collections.singletonList(classpathElement);
+        return cacheDirectory == null
+                ? ClassInformationRepository.create(classpath)
+                : ClassInformationRepository.create(classpath, cacheDirectory);
+    }
+    
+    private static final class JarRepository {
+        private final long length;
+        private final long lastModified;
+        private final ClassInformationRepository repository;
+
+        JarRepository(long length, long lastModified, ClassInformationRepository repository) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.repository = repository;
+        }
+    }
+}
@@ -17,6 +17,7 @@ import org.apache.commons.lang3.reflect.FieldUtils;
 import org.apache.maven.model.Build;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -25,6 +26,7 @@ import org.mockito.Mockito;
 public final class MainInstrumentMojoTest {
     
     private MavenProject mavenProject;
+    private File buildDir;
     
     private MainInstrumentMojo fixture;
     
@@ -38,6 +40,13 @@ public final class MainInstrumentMojoTest {
         FieldUtils.writeField(fixture, "project", mavenProject, true);
         FieldUtils.writeField(fixture, "log", log, true);
         FieldUtils.writeField(fixture, "jdkLibsDirectory", System.getProperty("java.home") + "/lib", true);
+        
+        buildDir = Files.createTempDirectory(getClass().getSimpleName()).toFile(); // incremental state gets kept in here
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(buildDir);
     }
 
     @Test
@@ -55,6 +64,7 @@ public final class MainInstrumentMojoTest {
             Mockito.when(mavenProject.getCompileClasspathElements()).thenReturn(Collections.emptyList());
             Build build = Mockito.mock(Build.class);
             Mockito.when(mavenProject.getBuild()).thenReturn(build);
+            Mockito.when(build.getDirectory()).thenReturn(buildDir.getAbsolutePath());
             Mockito.when(build.getOutputDirectory()).thenReturn(mainDir.getAbsolutePath());
             
             // execute plugin
@@ -72,6 +82,47 @@ public final class MainInstrumentMojoTest {
         }
     }
 
+    @Test
+    public void mustInstrumentAgainFromOriginalsWhenCallGraphAnalysisIsToggled() throws Exception {
+        byte[] classContent = readZipFromResource("NonSuspendingInvokeTest.zip").get("NonSuspendingInvokeTest.class");
+        
+        File mainDir = null;
+        try {
+            // write out
+            mainDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            File mainClass = new File(mainDir, "NonSuspendingInvokeTest.class");
+            FileUtils.writeByteArrayToFile(mainClass, classContent);
+            
+            // mock
+            Mockito.when(mavenProject.getCompileClasspathElements()).thenReturn(Collections.emptyList());
+            Build build = Mockito.mock(Build.class);
+            Mockito.when(mavenProject.getBuild()).thenReturn(build);
+            Mockito.when(build.getDirectory()).thenReturn(buildDir.getAbsolutePath());
+            Mockito.when(build.getOutputDirectory()).thenReturn(mainDir.getAbsolutePath());
+            
+            // execute plugin without and then with call graph analysis -- the second time around the class in the directory is already
+            // instrumented, so the call graph has to be built from (and the class instrumented from) the original
+            fixture.execute();
+            byte[] withoutCallGraphContent = FileUtils.readFileToByteArray(mainClass);
+            FieldUtils.writeField(fixture, "callGraphAnalysis", true, true);
+            fixture.execute();
+            byte[] withCallGraphContent = FileUtils.readFileToByteArray(mainClass);
+            FieldUtils.writeField(fixture, "callGraphAnalysis", false, true);
+            fixture.execute();
+            byte[] withoutCallGraphAgainContent = FileUtils.readFileToByteArray(mainClass);
+            
+            // test -- calls proven to never suspend don't get continuation points, so the class ends up smaller
+            Assert.assertTrue(withoutCallGraphContent.length > classContent.length);
+            Assert.assertTrue(withCallGraphContent.length > classContent.length);
+            Assert.assertTrue(withCallGraphContent.length < withoutCallGraphContent.length);
+            Assert.assertArrayEquals(withoutCallGraphContent, withoutCallGraphAgainContent);
+        } finally {
+            if (mainDir != null) {
+                FileUtils.deleteDirectory(mainDir);
+            }
+        }
+    }
+
     @Test
     public void mustNotThrowExceptionWhenDirectoryDoesntExist() throws Exception {
         File mainDir = null;
@@ -84,6 +135,7 @@ public final class MainInstrumentMojoTest {
             Mockito.when(mavenProject.getCompileClasspathElements()).thenReturn(Collections.emptyList());
             Build build = Mockito.mock(Build.class);
             Mockito.when(mavenProject.getBuild()).thenReturn(build);
+            Mockito.when(build.getDirectory()).thenReturn(buildDir.getAbsolutePath());
             Mockito.when(build.getOutputDirectory()).thenReturn(fakeFolder.getAbsolutePath());
             
             // execute plugin
@@ -17,6 +17,7 @@ import org.apache.commons.lang3.reflect.FieldUtils;
 import org.apache.maven.model.Build;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -25,6 +26,7 @@ import org.mockito.Mockito;
 public final class TestInstrumentMojoTest {
     
     private MavenProject mavenProject;
+    private File buildDir;
     
     private TestInstrumentMojo fixture;
     
@@ -38,6 +40,13 @@ public final class TestInstrumentMojoTest {
         FieldUtils.writeField(fixture, "project", mavenProject, true);
         FieldUtils.writeField(fixture, "log", log, true);
         FieldUtils.writeField(fixture, "jdkLibsDirectory", System.getProperty("java.home") + "/lib", true);
+        
+        buildDir = Files.createTempDirectory(getClass().getSimpleName()).toFile(); // incremental state gets kept in here
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(buildDir);
     }
 
     @Test
@@ -55,6 +64,7 @@ public final class TestInstrumentMojoTest {
             Mockito.when(mavenProject.getTestClasspathElements()).thenReturn(Collections.emptyList());
             Build build = Mockito.mock(Build.class);
             Mockito.when(mavenProject.getBuild()).thenReturn(build);
+            Mockito.when(build.getDirectory()).thenReturn(buildDir.getAbsolutePath());
             Mockito.when(build.getTestOutputDirectory()).thenReturn(testDir.getAbsolutePath());
             
             // execute plugin
@@ -84,6 +94,7 @@ public final class TestInstrumentMojoTest {
             Mockito.when(mavenProject.getTestClasspathElements()).thenReturn(Collections.emptyList());
             Build build = Mockito.mock(Build.class);
             Mockito.when(mavenProject.getBuild()).thenReturn(build);
+            Mockito.when(build.getDirectory()).thenReturn(buildDir.getAbsolutePath());
             Mockito.when(build.getTestOutputDirectory()).thenReturn(fakeFolder.getAbsolutePath());
             
             // execute plugin
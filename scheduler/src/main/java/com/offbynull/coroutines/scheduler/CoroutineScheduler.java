@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.scheduler;
+
+import com.offbynull.coroutines.user.CoroutineRunner;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Runs {@link CoroutineRunner}s across a fixed pool of worker threads.
+ * <p>
+ * Each worker has its own deque of runnable coroutines. A worker runs coroutines from the head of its own deque, and coroutines that
+ * suspend get put back on to the tail of that same deque (so coroutines sharing a worker take turns). A worker that runs out of
+ * coroutines steals from the tail of some other worker's deque. None of this requires locks -- the deques are non-blocking, and idle
+ * workers are parked until there's something for them to do.
+ * <p>
+ * A coroutine that suspends normally gets re-queued right away. If it instead wants to wait for some external event, it can call
+ * {@link ScheduledCoroutine#park()} before suspending. It won't be run again until something calls {@link ScheduledCoroutine#wake()}.
+ * <p>
+ * This class is thread-safe.
+ * @author Kasra Faghihi
+ */
+public final class CoroutineScheduler implements AutoCloseable {
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10L);
+
+    private final Worker[] workers;
+    private final ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Worker> currentWorker = new ThreadLocal<>();
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Constructs a {@link CoroutineScheduler} object.
+     * @param workerCount number of worker threads
+     * @throws IllegalArgumentException if {@code workerCount < 1}
+     */
+    public CoroutineScheduler(int workerCount) {
+        this(workerCount, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * Constructs a {@link CoroutineScheduler} object.
+     * @param workerCount number of worker threads
+     * @param threadFactory factory used to create worker threads
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code workerCount < 1}
+     */
+    public CoroutineScheduler(int workerCount, ThreadFactory threadFactory) {
+        Validate.isTrue(workerCount >= 1);
+        Validate.notNull(threadFactory);
+
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i);
+        }
+
+        for (Worker worker : workers) {
+            worker.thread = threadFactory.newThread(worker);
+            Validate.validState(worker.thread != null, "Thread factory returned null");
+        }
+
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Schedules a coroutine to run.
+     * @param runner coroutine to run
+     * @return handle to the scheduled coroutine
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalStateException if this scheduler has been closed
+     */
+    public ScheduledCoroutine submit(CoroutineRunner runner) {
+        Validate.notNull(runner);
+        Validate.validState(!closed, "Scheduler closed");
+
+        ScheduledCoroutine scheduledCoroutine = new ScheduledCoroutine(this, runner);
+        enqueue(scheduledCoroutine);
+        return scheduledCoroutine;
+    }
+
+    /**
+     * Stops all worker threads and waits for them to die. Coroutines that are currently running will run until they suspend or finish.
+     * Coroutines that are queued or parked are never run again.
+     * @throws InterruptedException if interrupted while waiting for worker threads to die
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker.thread);
+        }
+
+        for (Worker worker : workers) {
+            if (worker.thread != Thread.currentThread()) {
+                worker.thread.join();
+            }
+        }
+    }
+
+    void enqueue(ScheduledCoroutine scheduledCoroutine) {
+        // If called from one of this scheduler's workers, keep it local to that worker. Otherwise, spread it around.
+        Worker worker = currentWorker.get();
+        if (worker == null) {
+            worker = workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+        }
+
+        worker.deque.addLast(scheduledCoroutine);
+
+        Worker idleWorker = idleWorkers.poll();
+        if (idleWorker != null) {
+            LockSupport.unpark(idleWorker.thread);
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final int id;
+        private final ConcurrentLinkedDeque<ScheduledCoroutine> deque = new ConcurrentLinkedDeque<>();
+        private volatile Thread thread;
+
+        Worker(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            currentWorker.set(this);
+            try {
+                while (!closed) {
+                    ScheduledCoroutine scheduledCoroutine = findWork();
+
+                    if (scheduledCoroutine == null) {
+                        // Advertise as idle, then check one last time before parking in case something was queued before this worker was
+                        // advertised (otherwise it would miss the unpark). The park is timed as a safeguard.
+                        idleWorkers.add(this);
+                        scheduledCoroutine = findWork();
+                        if (scheduledCoroutine == null && !closed) {
+                            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                        }
+                        idleWorkers.remove(this);
+
+                        if (scheduledCoroutine == null) {
+                            continue;
+                        }
+                    }
+
+                    try {
+                        if (scheduledCoroutine.execute()) {
+                            enqueue(scheduledCoroutine); // back on this worker's deque, but wakes up an idle worker to steal it
+                        }
+                    } catch (Throwable t) {
+                        // execute() records whatever the coroutine throws, so this should never happen. If it does, report it and keep
+                        // going rather than letting the worker die and silently shrink the pool.
+                        reportUncaught(t);
+                    }
+                }
+            } finally {
+                currentWorker.remove();
+            }
+        }
+
+        private void reportUncaught(Throwable t) {
+            Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+            try {
+                handler.uncaughtException(thread, t);
+            } catch (Throwable ignored) {
+                // nothing else can be done with it
+            }
+        }
+
+        private ScheduledCoroutine findWork() {
+            ScheduledCoroutine ret = deque.pollFirst();
+            if (ret != null) {
+                return ret;
+            }
+
+            for (int i = 1; i < workers.length; i++) {
+                Worker victim = workers[(id + i) % workers.length];
+                ret = victim.deque.pollLast();
+                if (ret != null) {
+                    return ret;
+                }
+            }
+
+            return null;
+        }
+    }
+}
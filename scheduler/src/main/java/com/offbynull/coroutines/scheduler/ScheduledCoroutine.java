@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.scheduler;
+
+import com.offbynull.coroutines.user.CoroutineRunner;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Handle to a coroutine that's been submitted to a {@link CoroutineScheduler}.
+ * <p>
+ * This class is thread-safe.
+ * @author Kasra Faghihi
+ */
+public final class ScheduledCoroutine {
+
+    private static final ThreadLocal<ScheduledCoroutine> CURRENT = new ThreadLocal<>();
+
+    private static final int RUNNABLE = 0; // queued in a worker's deque
+    private static final int RUNNING = 1;
+    private static final int RUNNING_WOKEN = 2; // wake() was called while running, so park() gets ignored
+    private static final int PARKED = 3;
+    private static final int FINISHED = 4;
+
+    private final CoroutineScheduler scheduler;
+    private final CoroutineRunner runner;
+    private final AtomicInteger state = new AtomicInteger(RUNNABLE);
+    private boolean parkRequested; // only ever touched by the worker running the coroutine
+    private volatile Throwable failure;
+
+    ScheduledCoroutine(CoroutineScheduler scheduler, CoroutineRunner runner) {
+        Validate.notNull(scheduler);
+        Validate.notNull(runner);
+        this.scheduler = scheduler;
+        this.runner = runner;
+    }
+
+    /**
+     * Get the scheduled coroutine that's running on the calling thread. Use this from within a coroutine to get a handle to itself.
+     * @return scheduled coroutine running on the calling thread, or {@code null} if the calling thread isn't running a scheduled coroutine
+     */
+    public static ScheduledCoroutine current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Get the runner for this coroutine.
+     * @return runner for this coroutine
+     */
+    public CoroutineRunner getRunner() {
+        return runner;
+    }
+
+    /**
+     * Requests that this coroutine not be re-queued when it next suspends. Once suspended, it won't run again until {@link #wake()} is
+     * called. If {@link #wake()} gets called before this coroutine suspends, the request is ignored (the wake-up isn't lost).
+     * <p>
+     * Must only be called by this coroutine, while it's running (e.g. right before calling
+     * {@link com.offbynull.coroutines.user.Continuation#suspend()}).
+     * @throws IllegalStateException if not called from within this coroutine
+     */
+    public void park() {
+        Validate.validState(CURRENT.get() == this, "Must be called from within the coroutine");
+        parkRequested = true;
+    }
+
+    /**
+     * Makes this coroutine runnable again if it's parked. If it's currently running, a pending call to {@link #park()} is cancelled.
+     * @return {@code true} if this call had any effect, {@code false} if this coroutine is already queued to run or has finished
+     */
+    public boolean wake() {
+        while (true) {
+            int current = state.get();
+            switch (current) {
+                case PARKED:
+                    if (state.compareAndSet(PARKED, RUNNABLE)) {
+                        scheduler.enqueue(this);
+                        return true;
+                    }
+                    break;
+                case RUNNING:
+                    if (state.compareAndSet(RUNNING, RUNNING_WOKEN)) {
+                        return true;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Checks if this coroutine has finished, either because it ran to completion or because it threw an exception or error.
+     * @return {@code true} if this coroutine has finished
+     */
+    public boolean isFinished() {
+        return state.get() == FINISHED;
+    }
+
+    /**
+     * Get the exception or error this coroutine failed with.
+     * @return exception or error that this coroutine failed with, or {@code null} if it hasn't failed
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    // runs the coroutine once, returns true if it should be re-queued -- anything the coroutine throws (including errors) is recorded as
+    // its failure rather than propagated, so that a bad coroutine can't take down the worker running it
+    boolean execute() {
+        state.set(RUNNING);
+        parkRequested = false;
+
+        boolean suspended;
+        CURRENT.set(this);
+        try {
+            suspended = runner.execute();
+        } catch (Throwable t) {
+            failure = t;
+            state.set(FINISHED);
+            return false;
+        } finally {
+            CURRENT.remove();
+        }
+
+        if (!suspended) {
+            state.set(FINISHED);
+            return false;
+        }
+
+        if (parkRequested && state.compareAndSet(RUNNING, PARKED)) {
+            return false;
+        }
+
+        state.set(RUNNABLE);
+        return true;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.scheduler;
+
+import com.offbynull.coroutines.user.Continuation;
+import com.offbynull.coroutines.user.Coroutine;
+import com.offbynull.coroutines.user.CoroutineRunner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class CoroutineSchedulerTest {
+
+    private CoroutineScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new CoroutineScheduler(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.close();
+    }
+
+    @Test
+    public void mustRequeueSuspendedCoroutinesUntilTheyFinish() throws Exception {
+        int count = 1000;
+        CountDownLatch finishedLatch = new CountDownLatch(count);
+        SuspendingCoroutine[] coroutines = new SuspendingCoroutine[count];
+        ScheduledCoroutine[] scheduledCoroutines = new ScheduledCoroutine[count];
+
+        for (int i = 0; i < count; i++) {
+            coroutines[i] = new SuspendingCoroutine(10, false, finishedLatch);
+            scheduledCoroutines[i] = scheduler.submit(new CoroutineRunner(coroutines[i]));
+        }
+
+        assertTrue(finishedLatch.await(10L, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertEquals(11, coroutines[i].runCount.get());
+            assertTrue(waitUntilFinished(scheduledCoroutines[i]));
+        }
+    }
+
+    @Test
+    public void mustNotRunParkedCoroutineUntilWoken() throws Exception {
+        CountDownLatch finishedLatch = new CountDownLatch(1);
+        SuspendingCoroutine coroutine = new SuspendingCoroutine(1, true, finishedLatch);
+        ScheduledCoroutine scheduledCoroutine = scheduler.submit(new CoroutineRunner(coroutine));
+
+        assertFalse(finishedLatch.await(500L, TimeUnit.MILLISECONDS));
+        assertEquals(1, coroutine.runCount.get());
+
+        assertTrue(scheduledCoroutine.wake());
+
+        assertTrue(finishedLatch.await(10L, TimeUnit.SECONDS));
+        assertEquals(2, coroutine.runCount.get());
+        assertTrue(waitUntilFinished(scheduledCoroutine));
+        assertFalse(scheduledCoroutine.wake());
+    }
+
+    @Test
+    public void mustRecordFailureOfCoroutine() throws Exception {
+        ScheduledCoroutine scheduledCoroutine = scheduler.submit(new CoroutineRunner((Continuation c) -> {
+            throw new IllegalStateException();
+        }));
+
+        assertTrue(waitUntilFinished(scheduledCoroutine));
+        assertNotNull(scheduledCoroutine.getFailure());
+    }
+
+    @Test
+    public void mustRecordErrorOfCoroutineAndKeepWorkersRunning() throws Exception {
+        scheduler.close();
+        scheduler = new CoroutineScheduler(1);
+        
+        ScheduledCoroutine failingScheduledCoroutine = scheduler.submit(new CoroutineRunner((Continuation c) -> {
+            throw new AssertionError();
+        }));
+
+        assertTrue(waitUntilFinished(failingScheduledCoroutine));
+        assertTrue(failingScheduledCoroutine.getFailure() instanceof AssertionError);
+        assertFalse(failingScheduledCoroutine.wake());
+
+        // The only worker must have survived the error
+        CountDownLatch finishedLatch = new CountDownLatch(1);
+        ScheduledCoroutine scheduledCoroutine = scheduler.submit(new CoroutineRunner(new SuspendingCoroutine(1, false, finishedLatch)));
+        assertTrue(finishedLatch.await(10L, TimeUnit.SECONDS));
+        assertTrue(waitUntilFinished(scheduledCoroutine));
+        assertNull(scheduledCoroutine.getFailure());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void mustFailToSubmitOnceClosed() throws Exception {
+        scheduler.close();
+        scheduler.submit(new CoroutineRunner((Continuation c) -> { }));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void mustFailToParkFromOutsideOfCoroutine() throws Exception {
+        CountDownLatch finishedLatch = new CountDownLatch(1);
+        ScheduledCoroutine scheduledCoroutine = scheduler.submit(new CoroutineRunner(new SuspendingCoroutine(1, true, finishedLatch)));
+        scheduledCoroutine.park();
+    }
+
+    private static boolean waitUntilFinished(ScheduledCoroutine scheduledCoroutine) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + 10000L;
+        while (!scheduledCoroutine.isFinished()) {
+            if (System.currentTimeMillis() > endTime) {
+                return false;
+            }
+            Thread.sleep(10L);
+        }
+        return true;
+    }
+
+    // Pretends to be an instrumented coroutine that suspends a set number of times (this module doesn't depend on the instrumenter).
+    private static final class SuspendingCoroutine implements Coroutine {
+        private final int suspendCount;
+        private final boolean park;
+        private final CountDownLatch finishedLatch;
+        private final AtomicInteger runCount = new AtomicInteger();
+
+        SuspendingCoroutine(int suspendCount, boolean park, CountDownLatch finishedLatch) {
+            this.suspendCount = suspendCount;
+            this.park = park;
+            this.finishedLatch = finishedLatch;
+        }
+
+        @Override
+        public void run(Continuation continuation) throws Exception {
+            if (runCount.incrementAndGet() > suspendCount) {
+                finishedLatch.countDown();
+                return;
+            }
+
+            if (park) {
+                ScheduledCoroutine.current().park();
+            }
+            continuation.setMode(Continuation.MODE_SAVING); // what an instrumented method does when suspend() is called
+        }
+    }
+}
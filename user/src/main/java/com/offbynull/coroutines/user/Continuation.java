@@ -16,8 +16,10 @@
  */
 package com.offbynull.coroutines.user;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.LinkedList;
+import java.util.Arrays;
 
 /**
  * This class is used to store and restore the execution state. Any method that takes in this type as a parameter will be instrumented to
@@ -29,7 +31,7 @@ import java.util.LinkedList;
  * @author Kasra Faghihi
  */
 public final class Continuation implements Serializable {
-    private static final long serialVersionUID = 2L;
+    private static final long serialVersionUID = 3L;
     
     /**
      * Do not use -- for internal use only.
@@ -43,10 +45,36 @@ public final class Continuation implements Serializable {
      * Do not use -- for internal use only.
      */
     public static final int MODE_LOADING = 2;
-    private LinkedList savedMethodStates = new LinkedList();
-    private LinkedList pendingMethodStates = new LinkedList();
+    
+    private static final int INITIAL_FRAME_CAPACITY = 8;
+    private static final int INITIAL_SLOT_CAPACITY = 64;
+    
+    // Frames are kept in a set of parallel arrays that get reused between execution cycles (as opposed to a list of newly allocated
+    // nodes). Index i holds the frame of the i-th method down the call chain (index 0 is the coroutine's entry point). Each frame was
+    // either saved as a MethodState object or saved directly in to the shared slots array (the "slot arena"), depending on which mode the
+    // method was instrumented with.
+    //
+    // Each slot in the slot arena is backed by an element in both slots and primitiveSlots. Primitives are kept in primitiveSlots (floats
+    // and doubles as their raw bits) so that they don't have to be boxed, everything else is kept in slots.
+    //
+    // When a coroutine suspends, the frames that were pending become the frames that are saved. When the coroutine resumes, each method
+    // down the call chain reads its saved frame from index pendingCount and then re-adds it as pending -- it lands at the exact same index
+    // that it was read from, so saved frames never have to be moved or copied.
+    private MethodState[] frameMethodStates = new MethodState[INITIAL_FRAME_CAPACITY];
+    private int[] frameContinuationPoints = new int[INITIAL_FRAME_CAPACITY];
+    private LockState[] frameLockStates = new LockState[INITIAL_FRAME_CAPACITY];
+    private int[] frameSlotLimits = new int[INITIAL_FRAME_CAPACITY]; // exclusive end of each frame's range in slots
+    private Object[] slots = new Object[INITIAL_SLOT_CAPACITY];
+    private long[] primitiveSlots = new long[INITIAL_SLOT_CAPACITY];
+    private int pendingCount;
+    private int savedCount;
+    private int currentFrame; // frame accessed by the set*Slot()/get*Slot() methods and getSlotsLockState()
+    private int currentSlotOffset; // start of currentFrame's range in slots
     private int mode = MODE_NORMAL;
     
+    private int preemptionBudget; // number of loop iterations allowed per execution cycle before being preempted, 0 means never
+    private int preemptionCount;
+    
     private Object context;
 
     Continuation() {
@@ -77,9 +105,9 @@ public final class Continuation implements Serializable {
      * @param max n/a
      */
     public void clearExcessPending(int max) {
-        // This is for handling cases where the pendingMethodStates list has more items in it than it should. This happens when you call in
-        // to a method that throws an exception. Because that exception is thrown, removeLastPending() is never called when it leaves the
-        // method, which means that pendingMethodStates will contain extra MethodState objects that should have been removed.
+        // This is for handling cases where there are more pending frames than there should be. This happens when you call in to a method
+        // that throws an exception. Because that exception is thrown, the frame that the caller added before invoking that method is never
+        // cleared, which means that there will be extra pending frames that should have been removed.
         //
         // Imagine the following scenario
         //
@@ -91,7 +119,7 @@ public final class Continuation implements Serializable {
         //            System.out.println("Caught exception and continuing " + re);
         //        }
         //
-        //      // AT THIS POINT, pendingMethodStates WILL CONTAIN EXTRA ITEMS BECAUSE THE InnerClass1.run() THREW AN EXCEPTION AND
+        //      // AT THIS POINT, THERE WILL BE EXTRA PENDING FRAMES BECAUSE THE InnerClass1.run() THREW AN EXCEPTION AND
         //        new InnerClass2().run(c);
         //    }
         //
@@ -111,8 +139,12 @@ public final class Continuation implements Serializable {
             throw new IllegalArgumentException();
         }
         
-        for (int i = pendingMethodStates.size() - max; i > 0; i--) {
-            pendingMethodStates.removeLast();
+        for (int i = max; i < pendingCount; i++) {
+            frameMethodStates[i] = null;
+            frameLockStates[i] = null;
+        }
+        if (pendingCount > max) {
+            pendingCount = max;
         }
     }
 
@@ -123,8 +155,15 @@ public final class Continuation implements Serializable {
     public void addPending(MethodState methodState) {
         if (methodState == null) {
             throw new NullPointerException();
-        }        
-        pendingMethodStates.addLast(methodState);
+        }
+        
+        int frame = pendingCount;
+        ensureFrameCapacity(frame + 1);
+        frameMethodStates[frame] = methodState;
+        frameContinuationPoints[frame] = methodState.getContinuationPoint();
+        frameLockStates[frame] = null;
+        frameSlotLimits[frame] = getSlotOffset(frame); // takes up no slots
+        pendingCount++;
     }
 
     /**
@@ -132,7 +171,7 @@ public final class Continuation implements Serializable {
      * @return n/a
      */
     public int getPendingSize() {
-        return pendingMethodStates.size();
+        return pendingCount;
     }
     
     /**
@@ -140,10 +179,12 @@ public final class Continuation implements Serializable {
      * @return n/a
      */
     public MethodState removeFirstSaved() {
-        if (savedMethodStates.isEmpty()) {
+        // The frame being read is the one at pendingCount. The caller re-adds it via addPending(), at which point it ends up back at the
+        // same index.
+        if (pendingCount >= savedCount || frameMethodStates[pendingCount] == null) {
             throw new IllegalStateException();
         }
-        return (MethodState) savedMethodStates.removeFirst();
+        return frameMethodStates[pendingCount];
     }
 
     /**
@@ -152,14 +193,203 @@ public final class Continuation implements Serializable {
      * @return n/a
      */
     public MethodState getSaved(int idx) {
-        return (MethodState) savedMethodStates.get(idx);
+        if (idx < 0 || idx >= savedCount) {
+            throw new IndexOutOfBoundsException();
+        }
+        return frameMethodStates[idx];
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param continuationPoint n/a
+     * @param lockState n/a
+     * @param slotCount n/a
+     */
+    public void addPendingSlots(int continuationPoint, LockState lockState, int slotCount) {
+        if (continuationPoint < 0 || slotCount < 0) {
+            throw new IllegalArgumentException();
+        }
+        
+        int frame = pendingCount;
+        ensureFrameCapacity(frame + 1);
+        int offset = getSlotOffset(frame);
+        ensureSlotCapacity(offset + slotCount);
+        frameMethodStates[frame] = null;
+        frameContinuationPoints[frame] = continuationPoint;
+        frameLockStates[frame] = lockState;
+        frameSlotLimits[frame] = offset + slotCount;
+        currentFrame = frame;
+        currentSlotOffset = offset;
+        pendingCount++;
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @return n/a
+     */
+    public int removeFirstSavedSlots() {
+        // Same as removeFirstSaved()/addPending() but for frames that were saved in to the slot arena. The frame is re-added as pending
+        // immediately, since its saved slots are already sitting at the index that it needs to be re-added at.
+        int frame = pendingCount;
+        if (frame >= savedCount || frameMethodStates[frame] != null) {
+            throw new IllegalStateException();
+        }
+        currentFrame = frame;
+        currentSlotOffset = getSlotOffset(frame);
+        pendingCount++;
+        return frameContinuationPoints[frame];
     }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param frame n/a
+     */
+    public void selectSlots(int frame) {
+        if (frame < 0 || frame >= pendingCount) {
+            throw new IllegalArgumentException();
+        }
+        currentFrame = frame;
+        currentSlotOffset = getSlotOffset(frame);
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param idx n/a
+     * @param value n/a
+     */
+    public void setSlot(int idx, Object value) {
+        slots[currentSlotOffset + idx] = value;
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param idx n/a
+     * @return n/a
+     */
+    public Object getSlot(int idx) {
+        return slots[currentSlotOffset + idx];
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param idx n/a
+     * @param value n/a
+     */
+    public void setIntSlot(int idx, int value) {
+        setLongSlot(idx, value);
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param idx n/a
+     * @return n/a
+     */
+    public int getIntSlot(int idx) {
+        return (int) primitiveSlots[currentSlotOffset + idx];
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param idx n/a
+     * @param value n/a
+     */
+    public void setLongSlot(int idx, long value) {
+        int slot = currentSlotOffset + idx;
+        primitiveSlots[slot] = value;
+        slots[slot] = null; // don't hold on to whatever object was in this slot before
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param idx n/a
+     * @return n/a
+     */
+    public long getLongSlot(int idx) {
+        return primitiveSlots[currentSlotOffset + idx];
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param idx n/a
+     * @param value n/a
+     */
+    public void setFloatSlot(int idx, float value) {
+        setLongSlot(idx, Float.floatToRawIntBits(value));
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param idx n/a
+     * @return n/a
+     */
+    public float getFloatSlot(int idx) {
+        return Float.intBitsToFloat((int) primitiveSlots[currentSlotOffset + idx]);
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param idx n/a
+     * @param value n/a
+     */
+    public void setDoubleSlot(int idx, double value) {
+        setLongSlot(idx, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param idx n/a
+     * @return n/a
+     */
+    public double getDoubleSlot(int idx) {
+        return Double.longBitsToDouble(primitiveSlots[currentSlotOffset + idx]);
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @return n/a
+     */
+    public LockState getSlotsLockState() {
+        return frameLockStates[currentFrame];
+    }
+    
+    /**
+     * Do not use -- for internal use only.
+     * @return n/a
+     */
+    public boolean checkPreemption() {
+        // Called at each loop back-edge if loop preemption is enabled in the instrumenter. If the budget has been used up, the instrumented
+        // code calls suspend().
+        if (preemptionBudget == 0) {
+            return false;
+        }
+        
+        preemptionCount++;
+        return preemptionCount >= preemptionBudget;
+    }
+    
+    int getPreemptionBudget() {
+        return preemptionBudget;
+    }
+
+    void setPreemptionBudget(int preemptionBudget) {
+        if (preemptionBudget < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.preemptionBudget = preemptionBudget;
+    }
+    
     /**
      * Do not use -- for internal use only.
      */
     public void reset() {
-        pendingMethodStates.clear();
-        savedMethodStates.clear();
+        Arrays.fill(frameMethodStates, null);
+        Arrays.fill(frameLockStates, null);
+        Arrays.fill(slots, null);
+        pendingCount = 0;
+        savedCount = 0;
+        currentFrame = 0;
+        currentSlotOffset = 0;
+        preemptionCount = 0;
         mode = MODE_NORMAL;
     }
 
@@ -167,8 +397,9 @@ public final class Continuation implements Serializable {
      * Do not use -- for internal use only.
      */
     public void finishedExecutionCycle() {
-        savedMethodStates = pendingMethodStates;
-        pendingMethodStates = new LinkedList();
+        savedCount = pendingCount;
+        pendingCount = 0;
+        preemptionCount = 0;
     }
     
     /**
@@ -194,5 +425,60 @@ public final class Continuation implements Serializable {
     public void setContext(Object context) {
         this.context = context;
     }
+
+    private int getSlotOffset(int frame) {
+        return frame == 0 ? 0 : frameSlotLimits[frame - 1];
+    }
+
+    private void ensureFrameCapacity(int capacity) {
+        int oldCapacity = frameSlotLimits.length;
+        if (capacity <= oldCapacity) {
+            return;
+        }
+        
+        int newCapacity = Math.max(capacity, oldCapacity * 2);
+        
+        MethodState[] newFrameMethodStates = new MethodState[newCapacity];
+        System.arraycopy(frameMethodStates, 0, newFrameMethodStates, 0, oldCapacity);
+        frameMethodStates = newFrameMethodStates;
+        
+        int[] newFrameContinuationPoints = new int[newCapacity];
+        System.arraycopy(frameContinuationPoints, 0, newFrameContinuationPoints, 0, oldCapacity);
+        frameContinuationPoints = newFrameContinuationPoints;
+        
+        LockState[] newFrameLockStates = new LockState[newCapacity];
+        System.arraycopy(frameLockStates, 0, newFrameLockStates, 0, oldCapacity);
+        frameLockStates = newFrameLockStates;
+        
+        int[] newFrameSlotLimits = new int[newCapacity];
+        System.arraycopy(frameSlotLimits, 0, newFrameSlotLimits, 0, oldCapacity);
+        frameSlotLimits = newFrameSlotLimits;
+    }
+
+    private void ensureSlotCapacity(int capacity) {
+        int oldCapacity = slots.length;
+        if (capacity <= oldCapacity) {
+            return;
+        }
+        
+        int newCapacity = Math.max(capacity, oldCapacity * 2);
+        
+        Object[] newSlots = new Object[newCapacity];
+        System.arraycopy(slots, 0, newSlots, 0, oldCapacity);
+        slots = newSlots;
+        
+        long[] newPrimitiveSlots = new long[newCapacity];
+        System.arraycopy(primitiveSlots, 0, newPrimitiveSlots, 0, oldCapacity);
+        primitiveSlots = newPrimitiveSlots;
+    }
     
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // Slots beyond the last frame that's still in use may hold on to stale objects left over from previous execution cycles. Clear
+        // them out so that they don't get serialized.
+        int usedFrames = Math.max(pendingCount, savedCount);
+        Arrays.fill(frameMethodStates, usedFrames, frameMethodStates.length, null);
+        Arrays.fill(frameLockStates, usedFrames, frameLockStates.length, null);
+        Arrays.fill(slots, getSlotOffset(usedFrames), slots.length, null);
+        out.defaultWriteObject();
+    }
 }
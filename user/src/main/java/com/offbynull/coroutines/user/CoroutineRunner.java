@@ -51,7 +51,7 @@ public final class CoroutineRunner implements Serializable {
      */
     public boolean execute() {
         try {
-            coroutine.run(continuation);
+            runCoroutine();
             continuation.finishedExecutionCycle();
         } catch (Exception e) {
             throw new CoroutineException("Exception thrown during execution", e);
@@ -67,6 +67,14 @@ public final class CoroutineRunner implements Serializable {
         }
     }
 
+    private void runCoroutine() throws Exception {
+        try {
+            coroutine.run(continuation);
+        } catch (UnwindSignal us) {
+            // coroutine was instrumented to unwind by throwing when it suspends, mode will have been set to SAVING before this was thrown
+        }
+    }
+
     /**
      * Get the context. Accessible via the {@link Continuation} object that gets used by this coroutine.
      * @return context context
@@ -83,6 +91,25 @@ public final class CoroutineRunner implements Serializable {
         continuation.setContext(context);
     }
 
+    /**
+     * Get the preemption budget. See {@link #setPreemptionBudget(int)}.
+     * @return preemption budget
+     */
+    public int getPreemptionBudget() {
+        return continuation.getPreemptionBudget();
+    }
+
+    /**
+     * Set the preemption budget. This is the number of loop iterations the coroutine is allowed to go through in a single call to
+     * {@link #execute() } before it's forced to suspend. Only loops in code that was instrumented with loop preemption turned on count
+     * towards this budget. Defaults to 0, which means that the coroutine never gets preempted.
+     * @param preemptionBudget preemption budget, or 0 to never preempt
+     * @throws IllegalArgumentException if {@code preemptionBudget < 0}
+     */
+    public void setPreemptionBudget(int preemptionBudget) {
+        continuation.setPreemptionBudget(preemptionBudget);
+    }
+
     /**
      * Get the coroutine assigned to this runner.
      * @return coroutine assigned to this runner
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+/**
+ * Do not use -- for internal use only.
+ * <p>
+ * Thrown to unwind the call stack when a coroutine suspends, if that coroutine was instrumented to unwind by throwing rather than by
+ * returning. A single instance gets reused and no stack trace is ever filled in, so throwing it doesn't allocate. {@link CoroutineRunner}
+ * catches it.
+ * @author Kasra Faghihi
+ */
+public final class UnwindSignal extends Error {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Do not use -- for internal use only.
+     */
+    public static final UnwindSignal INSTANCE = new UnwindSignal();
+
+    private UnwindSignal() {
+        super("Coroutine suspended");
+    }
+
+    /**
+     * Does nothing. The stack trace of this object is never filled in.
+     * @return this object
+     */
+    public Throwable fillInStackTrace() {
+        return this;
+    }
+}